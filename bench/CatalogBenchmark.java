@@ -0,0 +1,294 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+/**
+ * Benchmarks of the catalog operations of {TableManagerImpl}. Each benchmark runs warmup
+ * iterations followed by measured iterations of a fixed duration and reports the throughput and
+ * the latency percentiles of one operation.
+ *
+ * The benchmarks run against the cluster in the default cluster file, or against the in-memory
+ * engine with --memory. Run them with
+ *   bash run_bench.sh [--warmup N] [--iterations N] [--time SECONDS] [--memory] [name filter]
+ * e.g. bash run_bench.sh --iterations 3 listTables
+ */
+public class CatalogBenchmark {
+
+  static final String[] AttributeNames = new String[]{"SSN", "Name", "Address", "Salary"};
+  static final AttributeType[] AttributeTypes = new AttributeType[]{AttributeType.INT, AttributeType.VARCHAR,
+      AttributeType.VARCHAR, AttributeType.DOUBLE};
+  static final String[] PKAttributes = new String[]{"SSN"};
+
+  /**
+   * One benchmarked operation. Only run() is timed.
+   */
+  interface Operation {
+    /**
+     * Called before every measured or warmup iteration.
+     */
+    default void setupIteration() {}
+
+    /**
+     * Called before every invocation of run(), outside of the timed section.
+     */
+    default void setupInvocation() {}
+
+    Object run();
+  }
+
+  static class Benchmark {
+    final String name;
+    final Operation operation;
+
+    Benchmark(String name, Operation operation) {
+      this.name = name;
+      this.operation = operation;
+    }
+  }
+
+  /**
+   * Latency samples of one iteration, in nanoseconds.
+   */
+  static class Samples {
+    private long[] samples = new long[1024];
+    private int count = 0;
+
+    void add(long nanos) {
+      if (count == samples.length) {
+        samples = Arrays.copyOf(samples, count * 2);
+      }
+      samples[count++] = nanos;
+    }
+
+    void addAll(Samples other) {
+      for (int i = 0; i < other.count; i++) {
+        add(other.samples[i]);
+      }
+    }
+
+    int count() {
+      return count;
+    }
+
+    /**
+     * @return the given percentile in milliseconds. Sorts the samples.
+     */
+    double percentile(double percentile) {
+      Arrays.sort(samples, 0, count);
+      int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+      return samples[Math.max(0, Math.min(index, count - 1))] / 1e6;
+    }
+  }
+
+  static int warmupIterations = 2;
+  static int measuredIterations = 5;
+  static long iterationNanos = 5_000_000_000L;
+
+  /**
+   * Creates tableCount tables with one batch.
+   */
+  static void createTables(TableManager tableManager, String prefix, int tableCount) {
+    DdlBatch batch = new DdlBatch();
+    for (int i = 0; i < tableCount; i++) {
+      batch.createTable(prefix + i, AttributeNames, AttributeTypes, PKAttributes);
+    }
+    tableManager.applyBatch(batch);
+  }
+
+  static List<Benchmark> benchmarks(TableManagerImpl tableManager) {
+    List<Benchmark> benchmarks = new ArrayList<>();
+
+    benchmarks.add(new Benchmark("createTable", new Operation() {
+      int nextTable;
+
+      @Override
+      public void setupIteration() {
+        tableManager.dropAllTables();
+        nextTable = 0;
+      }
+
+      @Override
+      public Object run() {
+        return tableManager.createTable("Table" + nextTable++, AttributeNames, AttributeTypes, PKAttributes);
+      }
+    }));
+
+    for (int tableCount : new int[]{10, 1000, 10000}) {
+      // Served by the metadata cache
+      benchmarks.add(new Benchmark("listTables tableCount=" + tableCount, new Operation() {
+        @Override
+        public void setupIteration() {
+          tableManager.dropAllTables();
+          createTables(tableManager, "Table", tableCount);
+        }
+
+        @Override
+        public Object run() {
+          return tableManager.listTables();
+        }
+      }));
+
+      // Reading the whole catalog from the database
+      benchmarks.add(new Benchmark("listTablesUncached tableCount=" + tableCount, new Operation() {
+        @Override
+        public void setupIteration() {
+          tableManager.dropAllTables();
+          createTables(tableManager, "Table", tableCount);
+        }
+
+        @Override
+        public void setupInvocation() {
+          tableManager.invalidateCache();
+        }
+
+        @Override
+        public Object run() {
+          return tableManager.listTables();
+        }
+      }));
+    }
+
+    for (int attributeCount : new int[]{100, 500}) {
+      String[] names = new String[attributeCount];
+      AttributeType[] types = new AttributeType[attributeCount];
+      for (int i = 0; i < attributeCount; i++) {
+        names[i] = "attr" + i;
+        types[i] = AttributeType.INT;
+      }
+
+      benchmarks.add(new Benchmark("addAttribute attributeCount=" + attributeCount, new Operation() {
+        int nextAttribute;
+
+        @Override
+        public void setupIteration() {
+          tableManager.dropAllTables();
+          tableManager.createTable("Wide", names, types, new String[]{"attr0"});
+          nextAttribute = attributeCount;
+        }
+
+        @Override
+        public Object run() {
+          return tableManager.addAttribute("Wide", "attr" + nextAttribute++, AttributeType.INT);
+        }
+      }));
+
+      benchmarks.add(new Benchmark("dropAttribute attributeCount=" + attributeCount, new Operation() {
+        @Override
+        public void setupIteration() {
+          tableManager.dropAllTables();
+          tableManager.createTable("Wide", names, types, new String[]{"attr0"});
+        }
+
+        @Override
+        public void setupInvocation() {
+          tableManager.addAttribute("Wide", "dropped", AttributeType.VARCHAR);
+        }
+
+        @Override
+        public Object run() {
+          return tableManager.dropAttribute("Wide", "dropped");
+        }
+      }));
+    }
+
+    for (int tableCount : new int[]{10, 1000}) {
+      benchmarks.add(new Benchmark("dropAllTables tableCount=" + tableCount, new Operation() {
+        @Override
+        public void setupInvocation() {
+          createTables(tableManager, "Table", tableCount);
+        }
+
+        @Override
+        public Object run() {
+          return tableManager.dropAllTables();
+        }
+      }));
+    }
+
+    return benchmarks;
+  }
+
+  /**
+   * Runs one iteration of the benchmark and returns its latency samples.
+   */
+  static Samples runIteration(Operation operation) {
+    Samples samples = new Samples();
+    operation.setupIteration();
+    long timed = 0;
+    while (timed < iterationNanos) {
+      operation.setupInvocation();
+      long start = System.nanoTime();
+      operation.run();
+      long elapsed = System.nanoTime() - start;
+      samples.add(elapsed);
+      timed += elapsed;
+    }
+    return samples;
+  }
+
+  static void runBenchmark(Benchmark benchmark) {
+    for (int i = 0; i < warmupIterations; i++) {
+      Samples samples = runIteration(benchmark.operation);
+      System.out.printf("# Warmup iteration %d: %.3f ops/s%n", i + 1, throughput(samples));
+    }
+
+    Samples all = new Samples();
+    for (int i = 0; i < measuredIterations; i++) {
+      Samples samples = runIteration(benchmark.operation);
+      System.out.printf("Iteration %d: %.3f ops/s%n", i + 1, throughput(samples));
+      all.addAll(samples);
+    }
+
+    System.out.printf("%-40s %12.3f ops/s  p50 %9.3f ms  p90 %9.3f ms  p99 %9.3f ms  p99.9 %9.3f ms  max %9.3f ms%n",
+        benchmark.name, throughput(all), all.percentile(50), all.percentile(90), all.percentile(99),
+        all.percentile(99.9), all.percentile(100));
+  }
+
+  /**
+   * @return operations per second of timed execution
+   */
+  static double throughput(Samples samples) {
+    long total = 0;
+    for (int i = 0; i < samples.count; i++) {
+      total += samples.samples[i];
+    }
+    return samples.count / (total / 1e9);
+  }
+
+  public static void main(String[] args) {
+    String filter = "";
+    boolean memory = false;
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--warmup":
+          warmupIterations = Integer.parseInt(args[++i]);
+          break;
+        case "--iterations":
+          measuredIterations = Integer.parseInt(args[++i]);
+          break;
+        case "--time":
+          iterationNanos = Long.parseLong(args[++i]) * 1_000_000_000L;
+          break;
+        case "--memory":
+          memory = true;
+          break;
+        default:
+          filter = args[i];
+      }
+    }
+
+    TableManagerImpl tableManager = memory
+        ? new TableManagerImpl(new MemoryKeyValueStore(), new Subspace(Tuple.from("database")))
+        : new TableManagerImpl();
+    for (Benchmark benchmark : benchmarks(tableManager)) {
+      if (benchmark.name.contains(filter)) {
+        System.out.println("# Benchmark: " + benchmark.name);
+        runBenchmark(benchmark);
+      }
+    }
+    tableManager.dropAllTables();
+  }
+}
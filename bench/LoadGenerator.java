@@ -0,0 +1,386 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+/**
+ * Load generator that drives a weighted mix of catalog and record operations of one
+ * {TableManagerImpl} from many concurrent workers, and reports the throughput and latency
+ * percentiles of each operation, the conflict rate of its transactions and the consistency
+ * violations it saw.
+ *
+ * Workers share a pool of tables, so their operations contend on the same schemas and statistics,
+ * but every worker only touches the tables, attributes and record keys it created. It knows what
+ * each of them must hold, so it checks every status code and every record and listTables() result
+ * against its own model, and checks all of them once more after the run. Workers are virtual
+ * threads when the JVM has them, platform threads otherwise.
+ *
+ * The load runs against the cluster in the default cluster file, or against the in-memory engine
+ * with --memory. Run it with
+ *   bash run_load.sh [--threads N] [--time SECONDS] [--tables N] [--mix op=weight,...] [--memory]
+ * e.g. bash run_load.sh --threads 2000 --mix listTables=50,getRecord=50
+ */
+public class LoadGenerator {
+
+  enum Op {
+    CREATE_TABLE("createTable", 5),
+    DELETE_TABLE("deleteTable", 5),
+    ADD_ATTRIBUTE("addAttribute", 5),
+    DROP_ATTRIBUTE("dropAttribute", 5),
+    LIST_TABLES("listTables", 20),
+    INSERT_RECORD("insertRecord", 15),
+    GET_RECORD("getRecord", 25),
+    UPDATE_RECORD("updateRecord", 15),
+    DELETE_RECORD("deleteRecord", 5);
+
+    final String label;
+    final int defaultWeight;
+
+    Op(String label, int defaultWeight) {
+      this.label = label;
+      this.defaultWeight = defaultWeight;
+    }
+  }
+
+  // What a worker owns at most, so that the catalog and the tables stay the same size
+  static final int MAX_TABLES_PER_WORKER = 2;
+  static final int MAX_ATTRIBUTES_PER_WORKER = 2;
+  static final int MAX_RECORDS_PER_WORKER = 64;
+  static final int MAX_REPORTED_VIOLATIONS = 20;
+
+  static int threads = 1000;
+  static long durationNanos = 30_000_000_000L;
+  static int sharedTables = 16;
+  static final Map<Op, Integer> weights = new EnumMap<>(Op.class);
+  static boolean virtualThreads = false;
+
+  static final Map<Op, LatencyHistogram> latencies = new EnumMap<>(Op.class);
+  static final Map<Op, LongAdder> errors = new EnumMap<>(Op.class);
+  static final AtomicLong violations = new AtomicLong();
+  static final List<String> violationMessages = Collections.synchronizedList(new ArrayList<>());
+
+  static {
+    for (Op op : Op.values()) {
+      weights.put(op, op.defaultWeight);
+      latencies.put(op, new LatencyHistogram());
+      errors.put(op, new LongAdder());
+    }
+  }
+
+  static String sharedTable(long key) {
+    return "Load" + Math.floorMod(key, sharedTables);
+  }
+
+  static void violation(String message) {
+    if (violations.incrementAndGet() <= MAX_REPORTED_VIOLATIONS) {
+      violationMessages.add(message);
+    }
+  }
+
+  /**
+   * One worker and the model of everything it created.
+   */
+  static class Worker implements Runnable {
+    final int id;
+    final TableManagerImpl tableManager;
+    final RecordManager recordManager;
+    final long deadline;
+    final Random random;
+    final Op[] choices;
+
+    final Deque<String> tables = new ArrayDeque<>();
+    // Attributes added to shared tables, by name, with their table
+    final Map<String, String> attributes = new HashMap<>();
+    // Names of the records inserted in shared tables, by primary key
+    final Map<Long, String> records = new HashMap<>();
+    long nextName = 0;
+
+    Worker(int id, TableManagerImpl tableManager, RecordManager recordManager, long deadline, Op[] choices) {
+      this.id = id;
+      this.tableManager = tableManager;
+      this.recordManager = recordManager;
+      this.deadline = deadline;
+      this.random = new Random(id);
+      this.choices = choices;
+    }
+
+    @Override
+    public void run() {
+      while (System.nanoTime() < deadline) {
+        Op op = choices[random.nextInt(choices.length)];
+        long start = System.nanoTime();
+        try {
+          op = execute(op);
+        }
+        catch(RuntimeException e) {
+          errors.get(op).increment();
+          continue;
+        }
+        latencies.get(op).record(System.nanoTime() - start);
+      }
+    }
+
+    void expect(Op op, StatusCode expected, StatusCode actual, String target) {
+      if (actual != expected) {
+        violation(op.label + " " + target + " returned " + actual + " instead of " + expected);
+      }
+    }
+
+    /**
+     * Runs the operation, or the one that undoes it when the worker has nothing to undo or owns
+     * as much as it may.
+     *
+     * @return the operation that ran
+     */
+    Op execute(Op op) {
+      switch (op) {
+        case CREATE_TABLE:
+        case DELETE_TABLE:
+          if (tables.isEmpty() || (op == Op.CREATE_TABLE && tables.size() < MAX_TABLES_PER_WORKER)) {
+            String table = "W" + id + "_" + nextName++;
+            expect(Op.CREATE_TABLE, StatusCode.SUCCESS, tableManager.createTable(table,
+                CatalogBenchmark.AttributeNames, CatalogBenchmark.AttributeTypes, CatalogBenchmark.PKAttributes), table);
+            tables.add(table);
+            return Op.CREATE_TABLE;
+          }
+          String table = tables.remove();
+          expect(Op.DELETE_TABLE, StatusCode.SUCCESS, tableManager.deleteTable(table), table);
+          return Op.DELETE_TABLE;
+        case ADD_ATTRIBUTE:
+        case DROP_ATTRIBUTE:
+          if (attributes.isEmpty() || (op == Op.ADD_ATTRIBUTE && attributes.size() < MAX_ATTRIBUTES_PER_WORKER)) {
+            String attribute = "a" + id + "_" + nextName++;
+            String shared = sharedTable(random.nextInt(sharedTables));
+            expect(Op.ADD_ATTRIBUTE, StatusCode.SUCCESS, tableManager.addAttribute(shared, attribute,
+                AttributeType.INT), shared + "." + attribute);
+            attributes.put(attribute, shared);
+            return Op.ADD_ATTRIBUTE;
+          }
+          String attribute = attributes.keySet().iterator().next();
+          String shared = attributes.remove(attribute);
+          expect(Op.DROP_ATTRIBUTE, StatusCode.SUCCESS, tableManager.dropAttribute(shared, attribute),
+              shared + "." + attribute);
+          return Op.DROP_ATTRIBUTE;
+        case LIST_TABLES:
+          checkCatalog(tableManager.listTables());
+          return Op.LIST_TABLES;
+        default:
+          return executeRecord(op);
+      }
+    }
+
+    Op executeRecord(Op op) {
+      if (records.isEmpty() || (op == Op.INSERT_RECORD && records.size() < MAX_RECORDS_PER_WORKER)) {
+        long key = (long) id * 1_000_000 + nextName++;
+        String name = "Name" + key;
+        expect(Op.INSERT_RECORD, StatusCode.SUCCESS, recordManager.insertRecord(sharedTable(key),
+            new TableRecord().set("SSN", key).set("Name", name).set("Salary", 0.0)), sharedTable(key) + "/" + key);
+        records.put(key, name);
+        return Op.INSERT_RECORD;
+      }
+      long key = records.keySet().iterator().next();
+      String target = sharedTable(key) + "/" + key;
+      switch (op) {
+        case INSERT_RECORD:
+        case GET_RECORD:
+          checkRecord(key);
+          return Op.GET_RECORD;
+        case UPDATE_RECORD: {
+          String name = "Name" + key + "_" + nextName++;
+          expect(Op.UPDATE_RECORD, StatusCode.SUCCESS, recordManager.updateRecord(sharedTable(key),
+              new TableRecord().set("SSN", key).set("Name", name)), target);
+          records.put(key, name);
+          return Op.UPDATE_RECORD;
+        }
+        default:
+          expect(Op.DELETE_RECORD, StatusCode.SUCCESS, recordManager.deleteRecord(sharedTable(key), key), target);
+          records.remove(key);
+          return Op.DELETE_RECORD;
+      }
+    }
+
+    void checkRecord(long key) {
+      TableRecord record = recordManager.getRecord(sharedTable(key), key);
+      if (record == null || !records.get(key).equals(record.get("Name"))) {
+        violation("getRecord " + sharedTable(key) + "/" + key + " returned " + record + " instead of Name="
+            + records.get(key));
+      }
+    }
+
+    void checkCatalog(Map<String, TableMetadata> catalog) {
+      for (String table : tables) {
+        if (!catalog.containsKey(table)) {
+          violation("listTables is missing table " + table);
+        }
+      }
+      for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+        TableMetadata shared = catalog.get(attribute.getValue());
+        if (shared == null || !shared.getAttributes().containsKey(attribute.getKey())) {
+          violation("listTables is missing attribute " + attribute.getValue() + "." + attribute.getKey());
+        }
+      }
+    }
+
+    /**
+     * Checks everything the worker owns once the load stopped.
+     */
+    void verify() {
+      checkCatalog(tableManager.listTables());
+      for (long key : records.keySet()) {
+        checkRecord(key);
+      }
+    }
+  }
+
+  /**
+   * @return an executor running every task in a new virtual thread, or in a pool of platform
+   * threads on JVMs without virtual threads
+   */
+  static ExecutorService newWorkerExecutor() {
+    try {
+      ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+      virtualThreads = true;
+      return executor;
+    }
+    catch(ReflectiveOperationException e) {
+      return Executors.newFixedThreadPool(threads, r -> {
+        Thread t = new Thread(r, "load-worker");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+  }
+
+  static Op[] choices() {
+    List<Op> choices = new ArrayList<>();
+    for (Map.Entry<Op, Integer> weight : weights.entrySet()) {
+      for (int i = 0; i < weight.getValue(); i++) {
+        choices.add(weight.getKey());
+      }
+    }
+    if (choices.isEmpty()) {
+      throw new IllegalArgumentException("the mix has no operation with a positive weight");
+    }
+    return choices.toArray(new Op[0]);
+  }
+
+  /**
+   * Parses op=weight pairs; operations left out of the mix do not run.
+   */
+  static void parseMix(String mix) {
+    weights.replaceAll((op, weight) -> 0);
+    for (String entry : mix.split(",")) {
+      String[] pair = entry.split("=");
+      boolean found = false;
+      for (Op op : Op.values()) {
+        if (op.label.equals(pair[0])) {
+          weights.put(op, Integer.parseInt(pair[1]));
+          found = true;
+        }
+      }
+      if (!found) {
+        throw new IllegalArgumentException("unknown operation " + pair[0]);
+      }
+    }
+  }
+
+  static void report(double seconds, long retries, long conflicts) {
+    long total = 0;
+    for (Op op : Op.values()) {
+      LatencyHistogram latency = latencies.get(op);
+      total += latency.getCount();
+      if (latency.getCount() == 0 && errors.get(op).sum() == 0) {
+        continue;
+      }
+      System.out.printf("%-16s %12.3f ops/s  errors %6d  p50 %9.3f ms  p90 %9.3f ms  p99 %9.3f ms  p99.9 %9.3f ms  max %9.3f ms%n",
+          op.label, latency.getCount() / seconds, errors.get(op).sum(), latency.getValueAtPercentile(50) / 1e6,
+          latency.getValueAtPercentile(90) / 1e6, latency.getValueAtPercentile(99) / 1e6,
+          latency.getValueAtPercentile(99.9) / 1e6, latency.getMaxNanos() / 1e6);
+    }
+    System.out.printf("%-16s %12.3f ops/s  retries %d  conflicts %d (%.3f per 100 operations)%n", "total",
+        total / seconds, retries, conflicts, total == 0 ? 0.0 : 100.0 * conflicts / total);
+    System.out.println("Consistency violations: " + violations.get());
+    for (String message : violationMessages) {
+      System.out.println("  " + message);
+    }
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    boolean memory = false;
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--threads":
+          threads = Integer.parseInt(args[++i]);
+          break;
+        case "--time":
+          durationNanos = Long.parseLong(args[++i]) * 1_000_000_000L;
+          break;
+        case "--tables":
+          sharedTables = Integer.parseInt(args[++i]);
+          break;
+        case "--mix":
+          parseMix(args[++i]);
+          break;
+        case "--memory":
+          memory = true;
+          break;
+        default:
+          throw new IllegalArgumentException("unknown option " + args[i]);
+      }
+    }
+
+    TableManagerImpl tableManager = memory
+        ? new TableManagerImpl(new MemoryKeyValueStore(), new Subspace(Tuple.from("database")))
+        : new TableManagerImpl();
+    RecordManager recordManager = new RecordManagerImpl(tableManager);
+    tableManager.dropAllTables();
+    CatalogBenchmark.createTables(tableManager, "Load", sharedTables);
+
+    Op[] choices = choices();
+    ExecutorService executor = newWorkerExecutor();
+    System.out.printf("# %d workers on %s threads, %d shared tables, %d s%n", threads,
+        virtualThreads ? "virtual" : "platform", sharedTables,
+        durationNanos / 1_000_000_000L);
+    long retries = tableManager.getRetryCount();
+    long conflicts = tableManager.getConflictCount();
+    long start = System.nanoTime();
+    List<Worker> workers = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      Worker worker = new Worker(i, tableManager, recordManager, start + durationNanos, choices);
+      workers.add(worker);
+      executor.execute(worker);
+    }
+    executor.shutdown();
+    while (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+      long done = 0;
+      for (LatencyHistogram latency : latencies.values()) {
+        done += latency.getCount();
+      }
+      System.out.printf("# %d s: %d operations, %d violations%n", (System.nanoTime() - start) / 1_000_000_000L,
+          done, violations.get());
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    retries = tableManager.getRetryCount() - retries;
+    conflicts = tableManager.getConflictCount() - conflicts;
+
+    for (Worker worker : workers) {
+      worker.verify();
+    }
+    report(seconds, retries, conflicts);
+    tableManager.dropAllTables();
+  }
+}
@@ -0,0 +1,9 @@
+OUT_DIR=out/bench
+rm -rf ${OUT_DIR}
+
+SRC_DIR=src
+BENCH_DIR=bench
+
+mkdir -p ${OUT_DIR}
+javac -d ${OUT_DIR} -cp ".:lib/*" ${SRC_DIR}/*.java ${BENCH_DIR}/*.java
+java -cp "${OUT_DIR}:./lib/*" CatalogBenchmark "$@"
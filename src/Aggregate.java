@@ -0,0 +1,65 @@
+/**
+ * Aggregate is a function computed over the records of a group, see {TableQuery#aggregate}.
+ *
+ * count() counts the records; sum, min and max skip the records without a value for the attribute
+ * and have no value if no record has one. sum() is a Long for INT attributes and a Double for
+ * DOUBLE attributes; min() and max() compare values like {QueryPredicate} does.
+ */
+public class Aggregate {
+
+  public enum Function {
+    COUNT,
+    SUM,
+    MIN,
+    MAX
+  }
+
+  private final Function function;
+  private final String attributeName;
+
+  private Aggregate(Function function, String attributeName) {
+    this.function = function;
+    this.attributeName = attributeName;
+  }
+
+  public static Aggregate count() {
+    return new Aggregate(Function.COUNT, null);
+  }
+
+  public static Aggregate sum(String attributeName) {
+    return new Aggregate(Function.SUM, attributeName);
+  }
+
+  public static Aggregate min(String attributeName) {
+    return new Aggregate(Function.MIN, attributeName);
+  }
+
+  public static Aggregate max(String attributeName) {
+    return new Aggregate(Function.MAX, attributeName);
+  }
+
+  public Function getFunction() {
+    return function;
+  }
+
+  /**
+   * @return the aggregated attribute, or null for count()
+   */
+  public String getAttributeName() {
+    return attributeName;
+  }
+
+  /**
+   * @return the name the result has in the records returned by {TableQuery#aggregate}, such as
+   * "count" or "sum(Salary)"
+   */
+  public String getName() {
+    String name = function.name().toLowerCase();
+    return attributeName == null ? name : name + "(" + attributeName + ")";
+  }
+
+  @Override
+  public String toString() {
+    return getName();
+  }
+}
@@ -0,0 +1,72 @@
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.apple.foundationdb.StreamingMode;
+
+/**
+ * AsyncRecordManager defines the asynchronous version of the interfaces in {RecordManager}.
+ *
+ * The status codes the futures complete with are the same as the ones documented in {RecordManager}.
+ */
+public interface AsyncRecordManager {
+
+  /**
+   * Insert a record into a table
+   *
+   * @param tableName the table's name
+   * @param record the record to insert
+   * @return future of the status code
+   */
+  public CompletableFuture<StatusCode> insertRecord(String tableName, TableRecord record);
+
+  /**
+   * Get a record by its primary key
+   *
+   * @param tableName the table's name
+   * @param primaryKeyValues the values of the primary key attributes, in primary key order
+   * @return future of the record, or of null if the table or the record does not exist
+   */
+  public CompletableFuture<TableRecord> getRecord(String tableName, Object... primaryKeyValues);
+
+  /**
+   * Update the attributes of an existing record
+   *
+   * @param tableName the table's name
+   * @param record the primary key values and the attribute values to set
+   * @return future of the status code
+   */
+  public CompletableFuture<StatusCode> updateRecord(String tableName, TableRecord record);
+
+  /**
+   * Delete a record by its primary key
+   *
+   * @param tableName the table's name
+   * @param primaryKeyValues the values of the primary key attributes, in primary key order
+   * @return future of the status code
+   */
+  public CompletableFuture<StatusCode> deleteRecord(String tableName, Object... primaryKeyValues);
+
+  /**
+   * Find the records of a table whose attributes have the given values
+   *
+   * @param tableName the table's name
+   * @param attributeNames the attributes to match
+   * @param values the value each attribute must have
+   * @return future of the matching records, or of null if the table or one of the attributes does
+   * not exist
+   */
+  public CompletableFuture<List<TableRecord>> findRecords(String tableName, String[] attributeNames, Object[] values);
+
+  /**
+   * Open a cursor over the records of a table, in primary key order. The cursor starts reading its
+   * first batch right away; see {Cursor#onHasNext} to iterate without blocking.
+   *
+   * @param tableName the table's name
+   * @param batchSize the number of records read per transaction
+   * @param mode the streaming mode of the reads
+   * @param continuation the continuation of an earlier cursor over the table to resume, or null to
+   *                     start at the first record
+   * @return the cursor over the records
+   */
+  public Cursor<TableRecord> openRecordCursor(String tableName, int batchSize, StreamingMode mode, byte[] continuation);
+}
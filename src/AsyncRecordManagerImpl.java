@@ -0,0 +1,496 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.StreamingMode;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+import com.apple.foundationdb.tuple.Tuple;
+
+/**
+ * AsyncRecordManagerImpl implements interfaces in {#AsyncRecordManager}. Records are stored in the
+ * rawdata subspace of their table, in the same store and with the same retried transactions as
+ * the catalog of the given {AsyncTableManagerImpl}. See {RecordFormat} for the key-value layout.
+ *
+ * Writes read the table's schema in their own transaction, so they never act on a stale schema.
+ * Point lookups take the schema from the catalog cache and read the record with a single get.
+ *
+ * Writes also update the entries of the table's secondary indexes in the same transaction, see
+ * {IndexDefinition}, so an index never disagrees with the records it was built from, and add
+ * their change to the table's record counters, see {TableStatistics}.
+ *
+ * The records of columnar tables are read and written a block at a time instead, see
+ * {ColumnStore}.
+ */
+public class AsyncRecordManagerImpl implements AsyncRecordManager {
+
+  // Records a lookup that no index serves reads per transaction
+  private static final int SCAN_BATCH_SIZE = 1000;
+
+  private final AsyncTableManagerImpl tableManager;
+
+  public AsyncRecordManagerImpl(AsyncTableManagerImpl tableManager) {
+    this.tableManager = tableManager;
+  }
+
+  private static CompletableFuture<StatusCode> completed(StatusCode status) {
+    return CompletableFuture.completedFuture(status);
+  }
+
+  @Override
+  public CompletableFuture<StatusCode> insertRecord(String tableName, TableRecord record) {
+    TableSubspaces subspaces = tableManager.tableSubspaces(tableName);
+    return tableManager.measure(Metrics.Operation.INSERT_RECORD, invocation -> tableManager.runAsync(invocation, tr -> {
+      CompletableFuture<WriteState> state = readWriteState(tr, subspaces);
+      return AsyncTableManagerImpl.readSchema(tr, subspaces).thenCompose(schema -> {
+        if (schema == null) {
+          return completed(StatusCode.TABLE_NOT_FOUND);
+        }
+        TableRecord checked = copy(record);
+        StatusCode invalid = RecordFormat.check(schema, checked);
+        if (invalid != null) {
+          return completed(invalid);
+        }
+
+        Tuple primaryKey = RecordFormat.primaryKey(schema, checked);
+        if (schema.getStorageMode() == StorageMode.COLUMNAR) {
+          return ColumnStore.readBlock(tr, subspaces, schema, primaryKey).thenCombine(state, (block, table) -> {
+            List<Tuple> primaryKeys = block.primaryKeys();
+            List<TableRecord> records = block.records(schema);
+            int row = Collections.binarySearch(primaryKeys, primaryKey);
+            if (row >= 0) {
+              return StatusCode.RECORD_ALREADY_EXISTS;
+            }
+            primaryKeys.add(-row - 1, primaryKey);
+            records.add(-row - 1, checked);
+            writeBlock(tr, subspaces, schema, table, block, primaryKeys, records, 1, primaryKey, null, checked);
+            return StatusCode.SUCCESS;
+          });
+        }
+        byte[] key = subspaces.getRawdata().pack(primaryKey);
+        return tr.get(key).thenCombine(state, (existing, table) -> {
+          if (existing != null) {
+            return StatusCode.RECORD_ALREADY_EXISTS;
+          }
+          byte[] value = RecordFormat.encodeValue(schema, checked);
+          tr.set(key, value);
+          updateIndexes(tr, subspaces, table.indexes, primaryKey, null, checked);
+          TableStatistics.add(tr, subspaces, table.statistics, key, 1, key.length + value.length);
+          return StatusCode.SUCCESS;
+        });
+      });
+    }));
+  }
+
+  @Override
+  public CompletableFuture<TableRecord> getRecord(String tableName, Object... primaryKeyValues) {
+    TableSubspaces subspaces = tableManager.tableSubspaces(tableName);
+    return tableManager.measure(Metrics.Operation.GET_RECORD, invocation -> tableManager.getCachedSchema(tableName)
+            .thenCompose(schema -> {
+      Tuple primaryKey = schema == null ? null : RecordFormat.primaryKey(schema, primaryKeyValues);
+      if (primaryKey == null) {
+        return CompletableFuture.completedFuture(null);
+      }
+      if (schema.getStorageMode() == StorageMode.COLUMNAR) {
+        // The columns to read are the ones of the current schema
+        return tableManager.runAsync(invocation, tr -> AsyncTableManagerImpl.readSchema(tr, subspaces).thenCompose(current ->
+            current == null ? CompletableFuture.completedFuture(null)
+                : ColumnStore.readRecord(tr, subspaces, current, primaryKey)));
+      }
+      byte[] key = subspaces.getRawdata().pack(primaryKey);
+      return tableManager.runAsync(invocation, tr -> tr.get(key)).thenCompose(value -> {
+        TableRecord record = value == null ? null : RecordFormat.decode(schema, primaryKey, value);
+        if (value == null || record != null) {
+          return CompletableFuture.completedFuture(record);
+        }
+        // Written with a schema version newer than the cached one
+        return tableManager.runAsync(invocation, tr -> AsyncTableManagerImpl.readSchema(tr, subspaces).thenCombine(tr.get(key),
+                (current, latest) -> current == null || latest == null ? null
+                    : RecordFormat.decode(current, primaryKey, latest)));
+      });
+    }));
+  }
+
+  @Override
+  public CompletableFuture<StatusCode> updateRecord(String tableName, TableRecord record) {
+    TableSubspaces subspaces = tableManager.tableSubspaces(tableName);
+    return tableManager.measure(Metrics.Operation.UPDATE_RECORD, invocation -> tableManager.runAsync(invocation, tr -> {
+      CompletableFuture<WriteState> state = readWriteState(tr, subspaces);
+      return AsyncTableManagerImpl.readSchema(tr, subspaces).thenCompose(schema -> {
+        if (schema == null) {
+          return completed(StatusCode.TABLE_NOT_FOUND);
+        }
+        TableRecord checked = copy(record);
+        StatusCode invalid = RecordFormat.check(schema, checked);
+        if (invalid != null) {
+          return completed(invalid);
+        }
+
+        Tuple primaryKey = RecordFormat.primaryKey(schema, checked);
+        if (schema.getStorageMode() == StorageMode.COLUMNAR) {
+          return ColumnStore.readBlock(tr, subspaces, schema, primaryKey).thenCombine(state, (block, table) -> {
+            List<Tuple> primaryKeys = block.primaryKeys();
+            List<TableRecord> records = block.records(schema);
+            int row = Collections.binarySearch(primaryKeys, primaryKey);
+            if (row < 0) {
+              return StatusCode.RECORD_NOT_FOUND;
+            }
+            TableRecord previous = records.get(row);
+            TableRecord updated = copy(previous);
+            for (Map.Entry<String, Object> entry : checked.getValues().entrySet()) {
+              updated.set(entry.getKey(), entry.getValue());
+            }
+            records.set(row, updated);
+            writeBlock(tr, subspaces, schema, table, block, primaryKeys, records, 0, primaryKey, previous, updated);
+            return StatusCode.SUCCESS;
+          });
+        }
+        byte[] key = subspaces.getRawdata().pack(primaryKey);
+        return tr.get(key).thenCombine(state, (existing, table) -> {
+          if (existing == null) {
+            return StatusCode.RECORD_NOT_FOUND;
+          }
+          // A null value clears the attribute
+          TableRecord previous = RecordFormat.decode(schema, primaryKey, existing);
+          TableRecord updated = RecordFormat.decode(schema, primaryKey, existing);
+          for (Map.Entry<String, Object> entry : checked.getValues().entrySet()) {
+            updated.set(entry.getKey(), entry.getValue());
+          }
+          byte[] value = RecordFormat.encodeValue(schema, updated);
+          tr.set(key, value);
+          updateIndexes(tr, subspaces, table.indexes, primaryKey, previous, updated);
+          TableStatistics.add(tr, subspaces, table.statistics, key, 0, value.length - existing.length);
+          return StatusCode.SUCCESS;
+        });
+      });
+    }));
+  }
+
+  @Override
+  public CompletableFuture<StatusCode> deleteRecord(String tableName, Object... primaryKeyValues) {
+    TableSubspaces subspaces = tableManager.tableSubspaces(tableName);
+    return tableManager.measure(Metrics.Operation.DELETE_RECORD, invocation -> tableManager.runAsync(invocation, tr -> {
+      CompletableFuture<WriteState> state = readWriteState(tr, subspaces);
+      return AsyncTableManagerImpl.readSchema(tr, subspaces).thenCompose(schema -> {
+        if (schema == null) {
+          return completed(StatusCode.TABLE_NOT_FOUND);
+        }
+        Tuple primaryKey = RecordFormat.primaryKey(schema, primaryKeyValues);
+        if (primaryKey == null) {
+          return completed(StatusCode.PRIMARY_KEY_VALUE_MISSING);
+        }
+        if (schema.getStorageMode() == StorageMode.COLUMNAR) {
+          return ColumnStore.readBlock(tr, subspaces, schema, primaryKey).thenCombine(state, (block, table) -> {
+            List<Tuple> primaryKeys = block.primaryKeys();
+            List<TableRecord> records = block.records(schema);
+            int row = Collections.binarySearch(primaryKeys, primaryKey);
+            if (row < 0) {
+              return StatusCode.RECORD_NOT_FOUND;
+            }
+            primaryKeys.remove(row);
+            TableRecord previous = records.remove(row);
+            writeBlock(tr, subspaces, schema, table, block, primaryKeys, records, -1, primaryKey, previous, null);
+            return StatusCode.SUCCESS;
+          });
+        }
+
+        byte[] key = subspaces.getRawdata().pack(primaryKey);
+        return tr.get(key).thenCombine(state, (existing, table) -> {
+          if (existing == null) {
+            return StatusCode.RECORD_NOT_FOUND;
+          }
+          tr.clear(key);
+          updateIndexes(tr, subspaces, table.indexes, primaryKey, RecordFormat.decode(schema, primaryKey, existing), null);
+          TableStatistics.add(tr, subspaces, table.statistics, key, -1, -(key.length + existing.length));
+          return StatusCode.SUCCESS;
+        });
+      });
+    }));
+  }
+
+  @Override
+  public CompletableFuture<List<TableRecord>> findRecords(String tableName, String[] attributeNames, Object[] values) {
+    TableSubspaces subspaces = tableManager.tableSubspaces(tableName);
+    return tableManager.measure(Metrics.Operation.FIND_RECORDS, invocation -> tableManager.getCachedSchema(tableName)
+            .thenCompose(schema -> {
+      if (schema == null || attributeNames.length != values.length) {
+        return CompletableFuture.completedFuture(null);
+      }
+      Map<String, Object> expected = new HashMap<>();
+      boolean mismatch = false;
+      for (int i = 0; i < attributeNames.length; i++) {
+        int index = schema.indexOf(attributeNames[i]);
+        if (index < 0) {
+          return CompletableFuture.completedFuture(null);
+        }
+        Object value = values[i] == null ? null : RecordFormat.normalize(schema.getAttributeType(index), values[i]);
+        if (values[i] != null && value == null) {
+          // No record can have a value of another type
+          mismatch = true;
+        }
+        Object previous = expected.put(attributeNames[i], value);
+        if (expected.size() <= i && !Objects.equals(previous, value)) {
+          mismatch = true;
+        }
+      }
+      if (mismatch) {
+        return CompletableFuture.completedFuture(new ArrayList<>());
+      }
+
+      return tableManager.runAsync(invocation, tr -> AsyncTableManagerImpl.readIndexes(tr, subspaces).thenCompose(definitions -> {
+        IndexDefinition index = chooseIndex(definitions, expected.keySet());
+        if (index == null) {
+          return CompletableFuture.completedFuture(null);
+        }
+        return readIndex(tr, subspaces, schema, index, expected);
+      })).thenCompose(found -> {
+        if (found != null) {
+          return CompletableFuture.completedFuture(found);
+        }
+        // No index serves the lookup: the table is scanned
+        Cursor<TableRecord> cursor = openRecordCursor(tableName, SCAN_BATCH_SIZE, StreamingMode.WANT_ALL, null, invocation);
+        return collect(cursor, record -> {
+          for (Map.Entry<String, Object> entry : expected.entrySet()) {
+            if (!Objects.equals(record.get(entry.getKey()), entry.getValue())) {
+              return false;
+            }
+          }
+          return true;
+        }, new ArrayList<>());
+      });
+    }));
+  }
+
+  @Override
+  public Cursor<TableRecord> openRecordCursor(String tableName, int batchSize, StreamingMode mode, byte[] continuation) {
+    return openRecordCursor(tableName, batchSize, mode, continuation, null);
+  }
+
+  /**
+   * @param lookup the call the batches are measured as part of, or null to measure each batch as
+   *               a scan
+   */
+  private Cursor<TableRecord> openRecordCursor(String tableName, int batchSize, StreamingMode mode, byte[] continuation,
+                                               Metrics.Invocation lookup) {
+    TableSubspaces subspaces = tableManager.tableSubspaces(tableName);
+    Range range = subspaces.getRawdata().range();
+    byte[] begin = range.begin;
+    if (continuation != null) {
+      // Reads of columnar tables continue from a key of the blocks subspace
+      byte[] key = Cursor.resumeKey(continuation, subspaces.getTable().range());
+      begin = Cursor.resumeKey(continuation, subspaces.getBlocks().contains(key) ? subspaces.getBlocks().range() : range);
+    }
+    return new Cursor<>(from -> lookup != null ? readBatch(lookup, subspaces, from, batchSize, mode)
+        : tableManager.measure(Metrics.Operation.SCAN, invocation -> readBatch(invocation, subspaces, from, batchSize, mode)),
+        begin);
+  }
+
+  private CompletableFuture<Cursor.Batch<TableRecord>> readBatch(Metrics.Invocation invocation, TableSubspaces subspaces,
+                                                                 byte[] from, int batchSize, StreamingMode mode) {
+    Range range = subspaces.getRawdata().range();
+    return tableManager.runAsync(invocation, tr -> {
+      // Each batch decodes its records with the schema as of its own transaction
+      CompletableFuture<TableSchema> schema = AsyncTableManagerImpl.readSchema(tr, subspaces);
+      if (subspaces.getBlocks().contains(from)) {
+        return schema.thenCompose(tableSchema -> readBlocks(tr, subspaces, tableSchema, from, batchSize));
+      }
+      CompletableFuture<List<KeyValue>> keyvalues = tr.getRange(from, range.end, batchSize, false, mode).asList();
+      return schema.thenCombine(keyvalues, (tableSchema, rows) -> {
+        List<TableRecord> results = new ArrayList<>();
+        List<byte[]> continuations = new ArrayList<>();
+        if (tableSchema == null) {
+          return CompletableFuture.completedFuture(new Cursor.Batch<>(results, continuations, null));
+        }
+        if (tableSchema.getStorageMode() == StorageMode.COLUMNAR) {
+          // The first batch of a read that did not know the table is columnar
+          return readBlocks(tr, subspaces, tableSchema, subspaces.getBlocks().range().begin, batchSize);
+        }
+        for (KeyValue row : rows) {
+          results.add(RecordFormat.decode(tableSchema, subspaces.getRawdata().unpack(row.getKey()), row.getValue()));
+          continuations.add(ByteArrayUtil.join(row.getKey(), new byte[]{0}));
+        }
+        byte[] next = rows.size() < batchSize ? null : continuations.get(continuations.size() - 1);
+        return CompletableFuture.completedFuture(new Cursor.Batch<>(results, continuations, next));
+      }).thenCompose(batch -> batch);
+    });
+  }
+
+  private static CompletableFuture<Cursor.Batch<TableRecord>> readBlocks(KeyValueTransaction tr, TableSubspaces subspaces,
+                                                                         TableSchema schema, byte[] from, int batchSize) {
+    if (schema == null) {
+      return CompletableFuture.completedFuture(new Cursor.Batch<>(new ArrayList<>(), new ArrayList<>(), null));
+    }
+    return ColumnStore.readRecords(tr, subspaces, schema, from, batchSize).thenApply(read -> {
+      List<byte[]> continuations = new ArrayList<>();
+      for (byte[] key : read.keys) {
+        continuations.add(ByteArrayUtil.join(key, new byte[]{0}));
+      }
+      return new Cursor.Batch<>(read.records, continuations, read.next);
+    });
+  }
+
+  /**
+   * The table state besides its schema that a record write maintains: the index definitions and
+   * the ("stats") key of the counters, see {TableStatistics}.
+   */
+  private static class WriteState {
+    final List<IndexDefinition> indexes;
+    final byte[] statistics;
+
+    WriteState(List<IndexDefinition> indexes, byte[] statistics) {
+      this.indexes = indexes;
+      this.statistics = statistics;
+    }
+  }
+
+  private static CompletableFuture<WriteState> readWriteState(KeyValueTransaction tr, TableSubspaces subspaces) {
+    return AsyncTableManagerImpl.readIndexes(tr, subspaces).thenCombine(tr.get(subspaces.getStatisticsKey()),
+            WriteState::new);
+  }
+
+  /**
+   * Writes back a block of a columnar table after one of its records changed, with the index
+   * entries and the counters of the change.
+   *
+   * @param rows the change of the row count
+   */
+  private static void writeBlock(KeyValueTransaction tr, TableSubspaces subspaces, TableSchema schema, WriteState table,
+                                 ColumnStore.Block block, List<Tuple> primaryKeys, List<TableRecord> records, long rows,
+                                 Tuple primaryKey, TableRecord previous, TableRecord updated) {
+    long bytes = ColumnStore.write(tr, subspaces, schema, block, primaryKeys, records);
+    updateIndexes(tr, subspaces, table.indexes, primaryKey, previous, updated);
+    TableStatistics.add(tr, subspaces, table.statistics, subspaces.getBlocks().pack(primaryKey), rows, bytes);
+  }
+
+  /**
+   * Replaces the index entries of the previous version of a record, if any, with the entries of
+   * its new version, if any. Indexes still being built are maintained too.
+   */
+  private static void updateIndexes(KeyValueTransaction tr, TableSubspaces subspaces, List<IndexDefinition> definitions,
+                                    Tuple primaryKey, TableRecord previous, TableRecord updated) {
+    for (IndexDefinition definition : definitions) {
+      Subspace index = subspaces.getIndex(definition.getName());
+      if (previous != null) {
+        tr.clear(index.pack(definition.entry(previous, primaryKey)));
+      }
+      if (updated != null) {
+        tr.set(index.pack(definition.entry(updated, primaryKey)), new byte[0]);
+      }
+    }
+  }
+
+  /**
+   * @return a ready index whose leading attributes are exactly the given ones, preferring the one
+   * with the fewest attributes, or null if there is none
+   */
+  private static IndexDefinition chooseIndex(List<IndexDefinition> definitions, Set<String> attributeNames) {
+    IndexDefinition chosen = null;
+    for (IndexDefinition definition : definitions) {
+      String[] indexed = definition.getAttributeNames();
+      if (!definition.isReady() || indexed.length < attributeNames.size()) {
+        continue;
+      }
+      Set<String> leading = new HashSet<>(Arrays.asList(indexed).subList(0, attributeNames.size()));
+      if (leading.equals(attributeNames) && (chosen == null || indexed.length < chosen.getAttributeNames().length)) {
+        chosen = definition;
+      }
+    }
+    return chosen;
+  }
+
+  /**
+   * Reads the index entries that start with the expected values and the records they point to.
+   */
+  private static CompletableFuture<List<TableRecord>> readIndex(KeyValueTransaction tr, TableSubspaces subspaces,
+                                                                TableSchema schema, IndexDefinition index,
+                                                                Map<String, Object> expected) {
+    Tuple prefix = new Tuple();
+    for (int i = 0; i < expected.size(); i++) {
+      prefix = prefix.addObject(expected.get(index.getAttributeNames()[i]));
+    }
+    Subspace entries = subspaces.getIndex(index.getName());
+    int keyStart = index.getAttributeNames().length;
+    return tr.getRange(entries.range(prefix)).asList().thenCompose(keyvalues -> {
+      List<Tuple> primaryKeys = new ArrayList<>();
+      for (KeyValue keyvalue : keyvalues) {
+        Tuple entry = entries.unpack(keyvalue.getKey());
+        primaryKeys.add(Tuple.fromList(entry.getItems().subList(keyStart, entry.size())));
+      }
+      if (schema.getStorageMode() == StorageMode.COLUMNAR) {
+        List<CompletableFuture<TableRecord>> found = new ArrayList<>();
+        for (Tuple primaryKey : primaryKeys) {
+          found.add(ColumnStore.readRecord(tr, subspaces, schema, primaryKey));
+        }
+        return CompletableFuture.allOf(found.toArray(new CompletableFuture<?>[0])).thenApply(ignore -> {
+          List<TableRecord> records = new ArrayList<>();
+          for (CompletableFuture<TableRecord> record : found) {
+            if (record.join() != null) {
+              records.add(record.join());
+            }
+          }
+          return records;
+        });
+      }
+      List<CompletableFuture<byte[]>> rows = new ArrayList<>();
+      for (Tuple primaryKey : primaryKeys) {
+        rows.add(tr.get(subspaces.getRawdata().pack(primaryKey)));
+      }
+      return CompletableFuture.allOf(rows.toArray(new CompletableFuture<?>[0])).thenCompose(ignore -> {
+        List<TableRecord> records = new ArrayList<>();
+        for (int i = 0; i < rows.size(); i++) {
+          byte[] value = rows.get(i).join();
+          if (value != null) {
+            TableRecord record = RecordFormat.decode(schema, primaryKeys.get(i), value);
+            if (record == null) {
+              // Written with a schema version newer than the cached one
+              return AsyncTableManagerImpl.readSchema(tr, subspaces).thenCompose(current ->
+                  current == null ? CompletableFuture.completedFuture(new ArrayList<>())
+                      : readIndex(tr, subspaces, current, index, expected));
+            }
+            records.add(record);
+          }
+        }
+        return CompletableFuture.completedFuture(records);
+      });
+    });
+  }
+
+  /**
+   * Adds the cursor's remaining records that match the filter to the results. Records already read
+   * are consumed in a loop, so the future chain only grows by one step per batch.
+   */
+  private static CompletableFuture<List<TableRecord>> collect(Cursor<TableRecord> cursor, Predicate<TableRecord> filter,
+                                                              List<TableRecord> results) {
+    CompletableFuture<Boolean> hasNext;
+    while ((hasNext = cursor.onHasNext()).isDone() && hasNext.join()) {
+      TableRecord record = cursor.next();
+      if (filter.test(record)) {
+        results.add(record);
+      }
+    }
+    if (hasNext.isDone()) {
+      return CompletableFuture.completedFuture(results);
+    }
+    return hasNext.thenCompose(ignore -> collect(cursor, filter, results));
+  }
+
+  /**
+   * Copies the caller's record, since checking it converts its values and the operation may run
+   * several times.
+   */
+  private static TableRecord copy(TableRecord record) {
+    TableRecord copy = new TableRecord();
+    copy.getValues().putAll(record.getValues());
+    return copy;
+  }
+}
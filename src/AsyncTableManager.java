@@ -0,0 +1,139 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import com.apple.foundationdb.StreamingMode;
+import com.apple.foundationdb.tuple.Versionstamp;
+
+/**
+ * AsyncTableManager defines the asynchronous version of the interfaces in {TableManager}. Every
+ * operation returns immediately with a future that completes once the operation's transaction has
+ * committed, so a caller can pipeline many operations without blocking a thread on each of them.
+ *
+ * The status codes the futures complete with are the same as the ones documented in {TableManager}.
+ */
+public interface AsyncTableManager {
+
+  /**
+   * Create a table with given name and attributes
+   *
+   * @param tableName the table's name
+   * @param attributeNames the list of name of attributes
+   * @param attributeTypes the list of type of attributes
+   * @param primaryKeyAttributeNames the list of name of the primary-key attributes
+   * @return future of the status code
+   */
+  public CompletableFuture<StatusCode> createTable(String tableName, String[] attributeNames,
+                                                   AttributeType[] attributeTypes, String[] primaryKeyAttributeNames);
+
+  /**
+   * Create a table with given name and attributes whose records are stored with the given
+   * {StorageMode}
+   *
+   * @param storageMode how the records of the table are laid out
+   * @return future of the status code
+   */
+  public CompletableFuture<StatusCode> createTable(String tableName, String[] attributeNames,
+                                                   AttributeType[] attributeTypes, String[] primaryKeyAttributeNames,
+                                                   StorageMode storageMode);
+
+  /**
+   * Delete a table by its name
+   *
+   * @param tableName the table's name
+   * @return future of the status code
+   */
+  public CompletableFuture<StatusCode> deleteTable(String tableName);
+
+  /**
+   * List all existing tables
+   * @return future of the map from tableName to table instance
+   */
+  public CompletableFuture<HashMap<String, TableMetadata>> listTables();
+
+  /**
+   * Open a cursor over the tables, in table name order. The cursor starts reading its first batch
+   * right away; see {Cursor#onHasNext} to iterate without blocking.
+   *
+   * @param batchSize the number of catalog entries read per transaction
+   * @param mode the streaming mode of the reads
+   * @param continuation the continuation of an earlier cursor to resume, or null to start at the
+   *                     first table
+   * @return the cursor over the table names and their metadata
+   */
+  public Cursor<Map.Entry<String, TableMetadata>> openTableCursor(int batchSize, StreamingMode mode,
+                                                                 byte[] continuation);
+
+  /**
+   * Open a cursor over the schema changes committed after the given one, in commit order. Each
+   * change carries the versionstamp to pass to the next call, so a consumer polling this method
+   * only reads the changes it has not seen. The cursor starts reading its first batch right away.
+   *
+   * @param versionstamp the versionstamp of the last change the consumer applied, or null to start
+   *                     with a CREATE_TABLE change for every existing table
+   * @return the cursor over the changes
+   */
+  public Cursor<SchemaChange> changesSince(Versionstamp versionstamp);
+
+  /**
+   * Add a new attribute to a table
+   *
+   * @param tableName the name of the table to be altered
+   * @param attributeName the name of the attribute to be added
+   * @param attributeType the type of the attribute to be added
+   * @return future of the status code
+   */
+  public CompletableFuture<StatusCode> addAttribute(String tableName, String attributeName, AttributeType attributeType);
+
+  /**
+   * Drop an existing attribute in a table. Primary key attributes cannot be dropped, since they
+   * make up the keys of the table's records.
+   *
+   * @param tableName the name of the table to be altered
+   * @param attributeName the name of the attribute to be dropped
+   * @return future of the status code
+   */
+  public CompletableFuture<StatusCode> dropAttribute(String tableName, String attributeName);
+
+  /**
+   * Create a secondary index on attributes of a table
+   *
+   * @param tableName the name of the table to be indexed
+   * @param indexName the name of the index
+   * @param attributeNames the indexed attributes, in index order
+   * @return future of the status code, completed once the index is ready
+   */
+  public CompletableFuture<StatusCode> createIndex(String tableName, String indexName, String[] attributeNames);
+
+  /**
+   * Drop a secondary index of a table
+   *
+   * @param tableName the name of the indexed table
+   * @param indexName the name of the index
+   * @return future of the status code
+   */
+  public CompletableFuture<StatusCode> dropIndex(String tableName, String indexName);
+
+  /**
+   * Drop all tables in the database
+   * @return future of the status code
+   */
+  public CompletableFuture<StatusCode> dropAllTables();
+
+  /**
+   * Apply a batch of create/add/drop operations
+   *
+   * @param batch the operations to apply
+   * @return future of the status code of each operation, in batch order
+   */
+  public CompletableFuture<List<StatusCode>> applyBatch(DdlBatch batch);
+
+  /**
+   * Get the record counters and column histograms of a table
+   *
+   * @param tableName the table's name
+   * @return future of the statistics, or of null if the table does not exist
+   */
+  public CompletableFuture<TableStatistics> getTableStatistics(String tableName);
+}
@@ -0,0 +1,1519 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.apple.foundationdb.FDBException;
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.ReadTransaction;
+import com.apple.foundationdb.StreamingMode;
+import com.apple.foundationdb.Transaction;
+import com.apple.foundationdb.async.AsyncUtil;
+import com.apple.foundationdb.directory.DirectoryLayer;
+import com.apple.foundationdb.directory.DirectorySubspace;
+import com.apple.foundationdb.directory.PathUtil;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+import com.apple.foundationdb.tuple.Tuple;
+import com.apple.foundationdb.tuple.Versionstamp;
+
+/**
+ * AsyncTableManagerImpl implements interfaces in {#AsyncTableManager} on top of a {KeyValueStore}.
+ * Every operation runs in a single retried transaction and never blocks the calling thread.
+ *
+ * All keys live under the root subspace:
+ *   ("catalog", tableName, chunk)          the schema record of every table, see {TableSchema}
+ *   ("tables", tableName, "metadata", ...) per-table metadata other than the schema
+ *   ("tables", tableName, "rawdata", ...)  the table's records
+ *   ("tables", tableName, "index", ...)    the entries of the table's secondary indexes
+ *   ("pendingPurges", tableName)           the tables with dropped attributes still being
+ *                                          purged from their records, see {AttributePurger}
+ *   ("schemaChanges", versionstamp)        the schema change log, see {SchemaChange}
+ *   ("schemaChangeDefinitions", versionstamp, chunk)
+ *                                          the definitions of created tables too large for
+ *                                          their log entry
+ */
+public class AsyncTableManagerImpl implements AsyncTableManager {
+
+  private KeyValueStore store;
+  private Subspace root;
+  // Subspace holding the metadata and rawdata subspaces of every table
+  private Subspace tables;
+
+  // Key holding the catalog version. Every DDL operation atomically increments it, so a watch
+  // on this key fires whenever any TableManager instance changes the catalog.
+  private byte[] catalogVersionKey;
+
+  // Subspace holding the schema of every table in one contiguous key range. The encoded schema
+  // record is split into chunks that stay below the FDB value size limit of 100KB:
+  //   (tableName, chunk index) -> chunk of the record
+  private Subspace catalog;
+  private static final int SCHEMA_CHUNK_BYTES = 90_000;
+  // Key recording the catalog layout version. Absent for databases that still keep the schema in
+  // the per-table "metadata" directories of the legacy layout.
+  private byte[] catalogFormatKey;
+  private static final long CATALOG_FORMAT_VERSION = 1;
+
+  // Cached result of the last catalog load, keyed by table name. null means the cache is invalid.
+  private volatile Map<String, TableMetadata> cachedTables;
+  // Bumped on every invalidation so a load racing with a DDL operation does not install stale data.
+  private final AtomicLong cacheGeneration = new AtomicLong();
+  // The reload in flight, and the generation it started at
+  private CompletableFuture<Map<String, TableMetadata>> pendingReload;
+  private long pendingReloadGeneration;
+  private CompletableFuture<Void> catalogWatch;
+  private final ExecutorService cacheRefresher = Executors.newSingleThreadExecutor(r -> {
+    Thread t = new Thread(r, "catalog-cache-refresher");
+    t.setDaemon(true);
+    return t;
+  });
+
+  // Subspace marking the tables with pending purge jobs, so purges interrupted by a restart are
+  // resumed without scanning every table
+  private Subspace pendingPurges;
+  // Schema changes in commit order, kept by dropAllTables()
+  private Subspace schemaChanges;
+  private static final int SCHEMA_CHANGES_PER_BATCH = 1000;
+  // Schema records of CREATE_TABLE changes too large for their log entry, split into chunks under
+  // the versionstamp of the entry:
+  //   (versionstamp, chunk index) -> chunk of the record
+  private Subspace schemaChangeDefinitions;
+  // Type code of a versionstamp in the tuple encoding
+  private static final byte VERSIONSTAMP_CODE = 0x33;
+  // Purges run in the background after dropAttribute, by table
+  private final Map<String, CompletableFuture<Long>> runningPurges = new HashMap<>();
+  private final ExecutorService maintenance = Executors.newSingleThreadExecutor(r -> {
+    Thread t = new Thread(r, "table-maintenance");
+    t.setDaemon(true);
+    return t;
+  });
+  // Records per second read by background purges
+  private static final double PURGE_ROWS_PER_SECOND = 50_000;
+  // Analyses run in the background when statistics are read, by table
+  private final Map<String, CompletableFuture<TableStatistics>> runningAnalyses = new HashMap<>();
+  private volatile boolean autoAnalyze = false;
+  // Records per second read by background analyses, and the change of the row count since the
+  // last analysis after which histograms are refreshed
+  private static final double ANALYZE_ROWS_PER_SECOND = 50_000;
+  private static final double REANALYZE_CHANGE = 0.2;
+  // Legacy table directories removed per background transaction
+  private static final int LEGACY_REMOVALS_PER_TRANSACTION = 100;
+
+  // Resolved key prefixes of recently used tables, least recently used first
+  private static final int MAX_CACHED_SUBSPACES = 4096;
+  private final LinkedHashMap<String, TableSubspaces> subspaceCache =
+          new LinkedHashMap<String, TableSubspaces>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, TableSubspaces> eldest) {
+      return size() > MAX_CACHED_SUBSPACES;
+    }
+  };
+
+  private static final byte[] ONE = new byte[]{1, 0, 0, 0, 0, 0, 0, 0};
+
+  // Retry policy of every transaction
+  private static final int RETRY_LIMIT = 50;
+  private static final long MAX_RETRY_DELAY_MS = 1000;
+  private static final long TRANSACTION_TIMEOUT_MS = 30_000;
+  // FDB error code of a commit that conflicted with another transaction
+  private static final int NOT_COMMITTED = 1020;
+
+  private final LongAdder commitCount = new LongAdder();
+  private final LongAdder retryCount = new LongAdder();
+  private final LongAdder conflictCount = new LongAdder();
+  private final Metrics metrics = new Metrics();
+
+  // Records an index backfill reads per transaction
+  private static final int BACKFILL_ROWS = 1000;
+
+  // Bytes a batch writes per transaction. FDB rejects transactions above 10MB and recommends
+  // keeping them under 1MB.
+  private static final int BATCH_TRANSACTION_BYTES = 1_000_000;
+
+  /**
+   * Open the FoundationDB database in the default cluster file and keep the tables under its
+   * "database" directory.
+   */
+  public AsyncTableManagerImpl() {
+    FdbKeyValueStore fdbStore = null;
+    DirectorySubspace rootDirectory = null;
+    // Instantiate the Database and open it
+    try {
+      fdbStore = new FdbKeyValueStore();
+    }
+    catch(Exception e) {
+      System.out.println("Failed to open database");
+    }
+
+    // Instantiate the root directory
+    try {
+      rootDirectory = DirectoryLayer.getDefault().createOrOpen(fdbStore.getDatabase(),
+              PathUtil.from("database")).join();
+    }
+    catch(Exception e) {
+      System.out.println("Failed to create root directory");
+    }
+
+    init(fdbStore, rootDirectory);
+    LegacyDirectories legacy = rootDirectory == null ? null : legacyDirectories(rootDirectory);
+    if (legacy != null) {
+      try {
+        migrateCatalog(legacy);
+      }
+      catch(Exception e) {
+        // The legacy directories still hold the tables that were not migrated
+        System.out.println("Failed to migrate catalog, keeping the legacy directories: " + e);
+      }
+    }
+    resumePurges();
+    if (legacy != null) {
+      scheduleLegacyCleanup(legacy);
+    }
+  }
+
+  /**
+   * Keep the tables in the given store, under the given root subspace.
+   */
+  public AsyncTableManagerImpl(KeyValueStore store, Subspace root) {
+    init(store, root);
+    resumePurges();
+  }
+
+  private void init(KeyValueStore store, Subspace root) {
+    this.store = store;
+    this.root = root;
+    tables = root.get("tables");
+    catalogVersionKey = root.pack(Tuple.from("catalogVersion"));
+    catalog = root.get("catalog");
+    catalogFormatKey = root.pack(Tuple.from("catalogFormat"));
+    pendingPurges = root.get("pendingPurges");
+    schemaChanges = root.get("schemaChanges");
+    schemaChangeDefinitions = root.get("schemaChangeDefinitions");
+  }
+
+  /**
+   * Migrates a FoundationDB database created with the legacy layout to the catalog. The catalog
+   * format is recorded once every table was migrated, and marks the catalog as migrated.
+   */
+  void migrateCatalog(LegacyDirectories directories) {
+    if (run(tr -> tr.get(catalogFormatKey).join()) != null) {
+      return;
+    }
+    migrateLegacyDirectories(directories);
+
+    run(tr -> {
+      tr.set(catalogFormatKey, Tuple.from(CATALOG_FORMAT_VERSION).pack());
+      bumpCatalogVersion(tr);
+      return null;
+    });
+  }
+
+  /**
+   * Migrates the layout where every table had a "database/tableName" directory with "metadata" and
+   * "rawdata" subdirectories, and its schema was kept as one key per attribute in "metadata". The
+   * directories themselves are removed later, in the background, see scheduleLegacyCleanup().
+   *
+   * Each table is migrated in its own transaction and is skipped if it is already in the catalog,
+   * so an interrupted migration is simply run again on the next start.
+   */
+  private void migrateLegacyDirectories(LegacyDirectories directories) {
+    Metrics.Invocation invocation = metrics.start(Metrics.Operation.MAINTENANCE);
+    List<String> tableNames = directories.list();
+    countDirectoryCalls(invocation, 1);
+    for (String tableName : tableNames) {
+      TableSubspaces subspaces = tableSubspaces(tableName);
+      run(tr -> {
+        if (tr.getRange(subspaces.getSchema().range(), 1).asList().join().isEmpty()) {
+          TableSchema schema = directories.readSchema(tr, tableName);
+          // exists() and open() of the "metadata" directory
+          countDirectoryCalls(invocation, 2);
+          if (schema != null) {
+            writeSchema(tr, subspaces, schema);
+          }
+        }
+        return null;
+      });
+    }
+    if (invocation != null) {
+      invocation.finish(null);
+    }
+  }
+
+  /**
+   * The directories left by the legacy layout, see migrateCatalog() and scheduleLegacyCleanup()
+   */
+  interface LegacyDirectories {
+    /**
+     * @return the names of the subdirectories of the root directory
+     */
+    List<String> list();
+
+    /**
+     * @return the schema kept in the "metadata" directory of the table, or null if it has none
+     */
+    TableSchema readSchema(KeyValueTransaction tr, String tableName);
+
+    /**
+     * Removes the named subdirectories in the given transaction.
+     */
+    void remove(KeyValueTransaction tr, List<String> names);
+  }
+
+  private LegacyDirectories legacyDirectories(DirectorySubspace rootDirectory) {
+    return new LegacyDirectories() {
+      @Override
+      public List<String> list() {
+        return rootDirectory.list(((FdbKeyValueStore) store).getDatabase(), PathUtil.from()).join();
+      }
+
+      @Override
+      public TableSchema readSchema(KeyValueTransaction kvTr, String tableName) {
+        Transaction tr = ((FdbKeyValueStore.FdbTransaction) kvTr).getTransaction();
+        if (!rootDirectory.exists(tr, PathUtil.from(tableName, "metadata")).join()) {
+          return null;
+        }
+        DirectorySubspace metadata = rootDirectory.open(tr, PathUtil.from(tableName, "metadata")).join();
+        List<KeyValue> keyvalues = tr.getRange(metadata.range()).asList().join();
+
+        String[] names = new String[keyvalues.size()];
+        AttributeType[] types = new AttributeType[keyvalues.size()];
+        ArrayList<String> primaryKeys = new ArrayList<>();
+        for (int i = 0; i < keyvalues.size(); i++) {
+          Tuple key = metadata.unpack(keyvalues.get(i).getKey());
+          names[i] = key.getString(0);
+          types[i] = AttributeType.valueOf(key.getString(1));
+          if (Tuple.fromBytes(keyvalues.get(i).getValue()).getBoolean(0)) {
+            primaryKeys.add(names[i]);
+          }
+        }
+        // The legacy layout reported the primary keys in reverse key order
+        Collections.reverse(primaryKeys);
+        return TableSchema.of(names, types, primaryKeys.toArray(new String[0]));
+      }
+
+      @Override
+      public void remove(KeyValueTransaction kvTr, List<String> names) {
+        Transaction tr = ((FdbKeyValueStore.FdbTransaction) kvTr).getTransaction();
+        for (String name : names) {
+          rootDirectory.removeIfExists(tr, PathUtil.from(name)).join();
+        }
+      }
+    };
+  }
+
+  /**
+   * Removes the directories left by the legacy layout in the background, on the maintenance
+   * thread. Tables no longer use directories, so once the catalog is migrated every subdirectory of
+   * the root directory is a leftover, and the catalog format recorded by the migration keeps them
+   * from being migrated again. Until then they hold the tables not migrated yet, so nothing is
+   * removed until the migration records the catalog format. Removing a directory clears
+   * its prefix and its directory-layer nodes; doing it here keeps the migration, dropAllTables and
+   * deleteTable from waiting on one directory-layer transaction per table. An interrupted cleanup
+   * resumes on the next start.
+   *
+   * @return future of whether the directories were removed
+   */
+  CompletableFuture<Boolean> scheduleLegacyCleanup(LegacyDirectories directories) {
+    return CompletableFuture.supplyAsync(() -> null, maintenance).thenCompose(ignore ->
+        measure(Metrics.Operation.MAINTENANCE, invocation -> {
+      try {
+        byte[] format = run(tr -> tr.get(catalogFormatKey).join());
+        if (format == null) {
+          System.out.println("Catalog not migrated, keeping the legacy directories");
+          return CompletableFuture.completedFuture(false);
+        }
+        List<String> names = directories.list();
+        countDirectoryCalls(invocation, 1);
+        for (int from = 0; from < names.size(); from += LEGACY_REMOVALS_PER_TRANSACTION) {
+          List<String> batch = names.subList(from, Math.min(names.size(), from + LEGACY_REMOVALS_PER_TRANSACTION));
+          run(tr -> {
+            directories.remove(tr, batch);
+            return null;
+          });
+          countDirectoryCalls(invocation, batch.size());
+        }
+        return CompletableFuture.completedFuture(true);
+      }
+      catch(Exception e) {
+        System.out.println("Failed to remove legacy directories: " + e);
+        return CompletableFuture.failedFuture(e);
+      }
+    }));
+  }
+
+  // Directory-layer calls run on the raw FDB transaction, which is never metered
+  private static void countDirectoryCalls(Metrics.Invocation invocation, int calls) {
+    if (invocation != null) {
+      invocation.add(Metrics.Invocation.DIRECTORY_CALLS, calls);
+    }
+  }
+
+  KeyValueStore getStore() {
+    return store;
+  }
+
+  /**
+   * @return the key prefixes of the table, from the cache when the table was used recently
+   */
+  TableSubspaces tableSubspaces(String tableName) {
+    synchronized (subspaceCache) {
+      TableSubspaces subspaces = subspaceCache.get(tableName);
+      if (subspaces == null) {
+        subspaces = new TableSubspaces(store, catalog, tables, tableName);
+        subspaceCache.put(tableName, subspaces);
+      }
+      return subspaces;
+    }
+  }
+
+  private void evictTableSubspaces(String tableName) {
+    synchronized (subspaceCache) {
+      subspaceCache.remove(tableName);
+    }
+  }
+
+  private void evictAllTableSubspaces() {
+    synchronized (subspaceCache) {
+      subspaceCache.clear();
+    }
+  }
+
+  /**
+   * Writes the table's schema record, replacing the previous one. The caller is responsible for
+   * bumping the catalog version.
+   */
+  static void writeSchema(KeyValueTransaction tr, TableSubspaces subspaces, TableSchema schema) {
+    byte[] record = schema.encode();
+    tr.clear(subspaces.getSchema().range());
+    for (int chunk = 0; chunk * SCHEMA_CHUNK_BYTES < record.length; chunk++) {
+      int from = chunk * SCHEMA_CHUNK_BYTES;
+      tr.set(subspaces.schemaChunkKey(chunk),
+              Arrays.copyOfRange(record, from, Math.min(record.length, from + SCHEMA_CHUNK_BYTES)));
+    }
+  }
+
+  /**
+   * @return the table's schema, or null if the table does not exist
+   */
+  static CompletableFuture<TableSchema> readSchema(KeyValueTransaction tr, TableSubspaces subspaces) {
+    return tr.getRange(subspaces.getSchema().range()).asList().thenCompose(chunks -> {
+      if (chunks.isEmpty()) {
+        return CompletableFuture.completedFuture(null);
+      }
+      TableSchema schema = TableSchema.decode(concat(chunks));
+      if (schema.getDictionaryId() == 0 || ValueCompression.isLoaded(schema.getDictionaryId())) {
+        return CompletableFuture.completedFuture(schema);
+      }
+      // The dictionaries of the values the transaction can read are never newer than the current one
+      return tr.getRange(subspaces.getDictionaries().range()).asList().thenApply(dictionaries -> {
+        for (KeyValue dictionary : dictionaries) {
+          ValueCompression.load(subspaces.getStore(), subspaces.getTable().getKey(),
+              subspaces.getDictionaries().unpack(dictionary.getKey()).getLong(0),
+              Tuple.fromBytes(dictionary.getValue()).getBytes(2));
+        }
+        return schema;
+      });
+    });
+  }
+
+  private static byte[] concat(List<KeyValue> chunks) {
+    if (chunks.size() == 1) {
+      return chunks.get(0).getValue();
+    }
+    int size = 0;
+    for (KeyValue chunk : chunks) {
+      size += chunk.getValue().length;
+    }
+    byte[] record = new byte[size];
+    int offset = 0;
+    for (KeyValue chunk : chunks) {
+      System.arraycopy(chunk.getValue(), 0, record, offset, chunk.getValue().length);
+      offset += chunk.getValue().length;
+    }
+    return record;
+  }
+
+  /**
+   * @return the definitions of the table's indexes, building or ready
+   */
+  static CompletableFuture<List<IndexDefinition>> readIndexes(KeyValueTransaction tr, TableSubspaces subspaces) {
+    return tr.getRange(subspaces.getIndexDefinitions().range()).asList().thenApply(keyvalues -> {
+      List<IndexDefinition> indexes = new ArrayList<>();
+      for (KeyValue keyvalue : keyvalues) {
+        String name = subspaces.getIndexDefinitions().unpack(keyvalue.getKey()).getString(0);
+        indexes.add(IndexDefinition.decode(name, keyvalue.getValue()));
+      }
+      return indexes;
+    });
+  }
+
+  /**
+   * Removes the index's definition, backfill progress and entries.
+   */
+  private static void clearIndex(KeyValueTransaction tr, TableSubspaces subspaces, String indexName) {
+    tr.clear(subspaces.getIndexDefinitions().pack(Tuple.from(indexName)));
+    tr.clear(subspaces.getIndexBuilds().pack(Tuple.from(indexName)));
+    tr.clear(subspaces.getIndex(indexName).range());
+  }
+
+  /**
+   * @return whether the table exists, reading at most one key
+   */
+  private static CompletableFuture<Boolean> tableExists(KeyValueTransaction tr, TableSubspaces subspaces) {
+    return tr.getRange(subspaces.getSchema().range(), 1).asList().thenApply(chunks -> !chunks.isEmpty());
+  }
+
+  /**
+   * Atomically increments the catalog version in the given transaction.
+   */
+  void bumpCatalogVersion(KeyValueTransaction tr) {
+    tr.mutate(MutationType.ADD, catalogVersionKey, ONE);
+  }
+
+  /**
+   * Appends a change to the schema change log in the given transaction. The definition of a
+   * created table too large for the entry is written in chunks under the same versionstamp.
+   *
+   * @param order the position of the change among the changes of the transaction
+   */
+  void logChange(KeyValueTransaction tr, int order, SchemaChange change) {
+    tr.mutate(MutationType.SET_VERSIONSTAMPED_KEY, versionstampedKey(schemaChanges, order),
+            change.encode(SCHEMA_CHUNK_BYTES));
+    byte[] record = change.getTable() == null ? null : change.getTable().getSchema().encode();
+    if (record != null && record.length > SCHEMA_CHUNK_BYTES) {
+      for (int chunk = 0; chunk * SCHEMA_CHUNK_BYTES < record.length; chunk++) {
+        int from = chunk * SCHEMA_CHUNK_BYTES;
+        tr.mutate(MutationType.SET_VERSIONSTAMPED_KEY, versionstampedKey(schemaChangeDefinitions, order, chunk),
+                Arrays.copyOfRange(record, from, Math.min(record.length, from + SCHEMA_CHUNK_BYTES)));
+      }
+    }
+  }
+
+  /**
+   * @return the parameter of a SET_VERSIONSTAMPED_KEY that writes the key (versionstamp, suffix...)
+   * of the subspace, with the given user version. This is what packWithVersionstamp() returns, but
+   * that asks the FoundationDB client for the offset format and so loads its native library.
+   */
+  static byte[] versionstampedKey(Subspace subspace, int userVersion, Object... suffix) {
+    byte[] prefix = subspace.getKey();
+    byte[] rest = Tuple.from(suffix).pack();
+    ByteBuffer key = ByteBuffer.allocate(prefix.length + 1 + Versionstamp.LENGTH + rest.length + 4);
+    key.put(prefix).put(VERSIONSTAMP_CODE);
+    key.put(Versionstamp.incomplete(userVersion).getBytes());
+    key.put(rest);
+    key.order(ByteOrder.LITTLE_ENDIAN).putInt(prefix.length + 1);
+    return key.array();
+  }
+
+  /**
+   * Runs the operation in a transaction and commits it, retrying on retryable errors. The delay
+   * between attempts grows exponentially up to MAX_RETRY_DELAY_MS, and the operation fails with
+   * the last error after RETRY_LIMIT retries or TRANSACTION_TIMEOUT_MS.
+   *
+   * The operation must only write through the given transaction, since it may run several times.
+   */
+  <T> CompletableFuture<T> runAsync(Function<KeyValueTransaction, CompletableFuture<T>> operation) {
+    return runAsync(null, operation);
+  }
+
+  /**
+   * Version of runAsync that counts the work of the transaction into the given call of an
+   * operation, see {Metrics}. A null invocation is not measured.
+   */
+  <T> CompletableFuture<T> runAsync(Metrics.Invocation invocation, Function<KeyValueTransaction, CompletableFuture<T>> operation) {
+    KeyValueTransaction tr = store.createTransaction();
+    if (invocation != null) {
+      tr = new MeteredTransaction(tr, invocation);
+    }
+    tr.setRetryLimit(RETRY_LIMIT);
+    tr.setMaxRetryDelay(MAX_RETRY_DELAY_MS);
+    tr.setTimeout(TRANSACTION_TIMEOUT_MS);
+    return runAttempt(tr, invocation, operation);
+  }
+
+  /**
+   * Measures one call of an operation: starts an invocation, passes it to the operation to run
+   * its transactions with, and finishes it when the operation completes.
+   */
+  <T> CompletableFuture<T> measure(Metrics.Operation operation, Function<Metrics.Invocation, CompletableFuture<T>> call) {
+    Metrics.Invocation invocation = metrics.start(operation);
+    CompletableFuture<T> result = call.apply(invocation);
+    if (invocation != null) {
+      result.whenComplete((value, e) -> invocation.finish(e));
+    }
+    return result;
+  }
+
+  private <T> CompletableFuture<T> runAttempt(KeyValueTransaction tr, Metrics.Invocation invocation,
+          Function<KeyValueTransaction, CompletableFuture<T>> operation) {
+    CompletableFuture<T> result;
+    try {
+      result = operation.apply(tr);
+    }
+    catch(RuntimeException e) {
+      result = CompletableFuture.failedFuture(e);
+    }
+
+    return result.thenCompose(value -> tr.commit().thenApply(ignore -> value)).handle((value, e) -> {
+      if (e == null) {
+        tr.close();
+        commitCount.increment();
+        return CompletableFuture.completedFuture(value);
+      }
+
+      Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+      if (!(cause instanceof FDBException)) {
+        tr.close();
+        return CompletableFuture.<T>failedFuture(cause);
+      }
+      if (((FDBException) cause).getCode() == NOT_COMMITTED) {
+        conflictCount.increment();
+        if (invocation != null) {
+          invocation.add(Metrics.Invocation.CONFLICTS, 1);
+        }
+      }
+      // onError waits for the backoff delay, or fails if the error is not retryable or the
+      // retry limit has been reached. Either way it takes ownership of the transaction.
+      return tr.onError(cause).handle((retry, error) -> {
+        if (error != null) {
+          return CompletableFuture.<T>failedFuture(error instanceof CompletionException ? error.getCause() : error);
+        }
+        retryCount.increment();
+        if (invocation != null) {
+          invocation.add(Metrics.Invocation.RETRIES, 1);
+        }
+        return runAttempt(retry, invocation, operation);
+      }).thenCompose(f -> f);
+    }).thenCompose(f -> f);
+  }
+
+  /**
+   * Blocking version of runAsync for operations that read synchronously.
+   */
+  <T> T run(Function<KeyValueTransaction, T> operation) {
+    return runAsync(tr -> CompletableFuture.completedFuture(operation.apply(tr))).join();
+  }
+
+  /**
+   * @return the number of transactions committed by this instance
+   */
+  public long getCommitCount() {
+    return commitCount.sum();
+  }
+
+  /**
+   * @return the number of times a transaction of this instance was retried
+   */
+  public long getRetryCount() {
+    return retryCount.sum();
+  }
+
+  /**
+   * @return the number of commits of this instance rejected because of a conflict with another
+   * transaction
+   */
+  public long getConflictCount() {
+    return conflictCount.sum();
+  }
+
+  /**
+   * @return the per-operation metrics of this instance and of its record managers
+   */
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Runs a DDL operation in a retried transaction and invalidates the catalog cache once a change
+   * has been committed.
+   */
+  private CompletableFuture<StatusCode> runDdl(Metrics.Operation measured,
+          Function<KeyValueTransaction, CompletableFuture<StatusCode>> operation) {
+    return measure(measured, invocation -> runDdl(invocation, operation));
+  }
+
+  /**
+   * Version of runDdl that counts the work of the transaction into the given call of an operation.
+   */
+  CompletableFuture<StatusCode> runDdl(Metrics.Invocation invocation,
+          Function<KeyValueTransaction, CompletableFuture<StatusCode>> operation) {
+    return runAsync(invocation, operation).thenApply(status -> {
+      if (status == StatusCode.SUCCESS) {
+        invalidateCache();
+      }
+      return status;
+    });
+  }
+
+  byte[] pendingPurgeKey(String tableName) {
+    return pendingPurges.pack(Tuple.from(tableName));
+  }
+
+  /**
+   * Records the job that purges the values of a dropped attribute from the table's records. A
+   * columnar table keeps them in the column blocks of the attribute id, which the job clears, and
+   * none for primary key attributes.
+   *
+   * @param schema the schema the attribute is dropped from
+   * @param index the index of the attribute in the schema
+   */
+  private void addPurgeJob(KeyValueTransaction tr, TableSubspaces subspaces, String tableName, TableSchema schema,
+                           int index) {
+    String attributeName = schema.getAttributeName(index);
+    if (schema.getStorageMode() == StorageMode.ROW) {
+      tr.set(subspaces.getPurges().pack(Tuple.from(attributeName)), subspaces.getRawdata().range().begin);
+    } else if (schema.getPrimaryKeyPosition(index) < 0) {
+      int attributeId = schema.getAttributeId(index);
+      tr.set(subspaces.getPurges().pack(Tuple.from(attributeName, attributeId)),
+          subspaces.getColumn(attributeId).range().begin);
+    }
+    tr.set(pendingPurgeKey(tableName), new byte[0]);
+  }
+
+  /**
+   * Purges the dropped attributes of the table in the background, after the purges already
+   * running for it.
+   */
+  private void schedulePurge(String tableName) {
+    synchronized (runningPurges) {
+      CompletableFuture<Long> previous = runningPurges.getOrDefault(tableName, CompletableFuture.completedFuture(0L));
+      CompletableFuture<Long> purge = previous.handleAsync((ignore, e) -> null, maintenance)
+          .thenCompose(ignore -> new AttributePurger(this, tableName).setMaxRowsPerSecond(PURGE_ROWS_PER_SECOND)
+              .purgeAsync());
+      runningPurges.put(tableName, purge);
+      purge.whenComplete((rewritten, e) -> {
+        if (e != null) {
+          System.out.println("Failed to purge dropped attributes of " + tableName + ": " + e);
+        }
+        synchronized (runningPurges) {
+          runningPurges.remove(tableName, purge);
+        }
+      });
+    }
+  }
+
+  /**
+   * Restarts the purges that were interrupted when the database was last used.
+   */
+  private void resumePurges() {
+    try {
+      for (KeyValue keyvalue : run(tr -> tr.getRange(pendingPurges.range()).asList().join())) {
+        schedulePurge(pendingPurges.unpack(keyvalue.getKey()).getString(0));
+      }
+    }
+    catch(Exception e) {
+      System.out.println("Failed to resume attribute purges");
+    }
+  }
+
+  private static CompletableFuture<StatusCode> completed(StatusCode status) {
+    return CompletableFuture.completedFuture(status);
+  }
+
+  /**
+   * Drops the cached catalog so that the next listTables() reads it from the database. Called
+   * after a local DDL commit and when the catalog watch fires.
+   */
+  public void invalidateCache() {
+    cacheGeneration.incrementAndGet();
+    cachedTables = null;
+  }
+
+  /**
+   * Reads the whole catalog and arms a watch on the catalog version key in the same transaction,
+   * so any change committed after this read (by any client) fires the watch. Concurrent callers
+   * share the reload that is already in flight, unless the cache was invalidated since it started:
+   * it may have read the catalog before a DDL operation of this client committed.
+   */
+  private synchronized CompletableFuture<Map<String, TableMetadata>> reloadCache() {
+    long generation = cacheGeneration.get();
+    if (pendingReload != null && pendingReloadGeneration == generation) {
+      return pendingReload;
+    }
+
+    AtomicReference<CompletableFuture<Void>> watch = new AtomicReference<>();
+    CompletableFuture<Map<String, TableMetadata>> reload = runAsync(tr -> readTables(tr).thenApply(tables -> {
+      watch.set(tr.watch(catalogVersionKey));
+      return tables;
+    })).thenApply(tables -> {
+      armWatch(watch.get());
+      if (generation == cacheGeneration.get()) {
+        cachedTables = tables;
+      }
+      return tables;
+    });
+    pendingReload = reload;
+    pendingReloadGeneration = generation;
+    reload.whenComplete((tables, e) -> {
+      synchronized (this) {
+        if (pendingReload == reload) {
+          pendingReload = null;
+        }
+      }
+    });
+    return reload;
+  }
+
+  private synchronized void armWatch(CompletableFuture<Void> watch) {
+    if (catalogWatch != null) {
+      catalogWatch.cancel(true);
+    }
+    catalogWatch = watch;
+    watch.whenCompleteAsync((ignore, e) -> onCatalogChanged(watch), cacheRefresher);
+  }
+
+  /**
+   * Invalidates the cache and refreshes it in the background when the catalog watch fires.
+   */
+  private void onCatalogChanged(CompletableFuture<Void> watch) {
+    synchronized (this) {
+      // A cancelled or superseded watch
+      if (watch != catalogWatch) {
+        return;
+      }
+      catalogWatch = null;
+    }
+    invalidateCache();
+    // On failure the next listTables() call reloads the catalog
+    reloadCache();
+  }
+
+  private static HashMap<String, TableMetadata> copyTables(Map<String, TableMetadata> tables) {
+    HashMap<String, TableMetadata> copy = new HashMap<>();
+    for (Map.Entry<String, TableMetadata> entry : tables.entrySet()) {
+      copy.put(entry.getKey(), new TableMetadata(entry.getValue()));
+    }
+    return copy;
+  }
+
+  @Override
+  public CompletableFuture<StatusCode> createTable(String tableName, String[] attributeNames,
+                                                   AttributeType[] attributeType, String[] primaryKeyAttributeNames) {
+    return createTable(tableName, attributeNames, attributeType, primaryKeyAttributeNames, StorageMode.ROW);
+  }
+
+  @Override
+  public CompletableFuture<StatusCode> createTable(String tableName, String[] attributeNames,
+                                                   AttributeType[] attributeType, String[] primaryKeyAttributeNames,
+                                                   StorageMode storageMode) {
+    TableSubspaces subspaces = tableSubspaces(tableName);
+    return runDdl(Metrics.Operation.CREATE_TABLE, tr -> tableExists(tr, subspaces).thenCompose(exists -> {
+      // Check if table name already exists in the catalog
+      if (exists) {
+        return completed(StatusCode.TABLE_ALREADY_EXISTS);
+      }
+
+      StatusCode invalid = checkTableDefinition(attributeNames, attributeType, primaryKeyAttributeNames);
+      if (invalid != null) {
+        return completed(invalid);
+      }
+
+      TableSchema schema = TableSchema.of(attributeNames, attributeType, primaryKeyAttributeNames)
+              .withStorageMode(storageMode == null ? StorageMode.ROW : storageMode);
+      writeSchema(tr, subspaces, schema);
+      // A new table has no records, so its counters are exact from the start
+      tr.set(subspaces.getStatisticsKey(), new byte[0]);
+      logChange(tr, 0, SchemaChange.tableCreated(tableName, schema));
+      bumpCatalogVersion(tr);
+      return completed(StatusCode.SUCCESS);
+    }));
+  }
+
+  /**
+   * Checks the attribute definitions of a new table. Definitions that pass can always be built
+   * into a schema, so any exception createTable() fails with is a bug, not a bad definition.
+   *
+   * @return the error status code, or null if the definitions are valid
+   */
+  private static StatusCode checkTableDefinition(String[] attributeNames, AttributeType[] attributeType,
+                                                 String[] primaryKeyAttributeNames) {
+    // Check if attribute parameters are provided and valid
+    if (attributeNames == null || attributeType == null ||
+            primaryKeyAttributeNames == null || attributeNames.length != attributeType.length) {
+      return StatusCode.TABLE_CREATION_ATTRIBUTE_INVALID;
+    }
+    for (int i = 0; i < attributeNames.length; i++) {
+      if (attributeNames[i] == null) {
+        return StatusCode.TABLE_CREATION_ATTRIBUTE_INVALID;
+      }
+      if (attributeType[i] == null) {
+        return StatusCode.ATTRIBUTE_TYPE_NOT_SUPPORTED;
+      }
+    }
+
+    // Records are keyed by their primary key values, so a table without one could hold one record
+    if (primaryKeyAttributeNames.length == 0) {
+      return StatusCode.TABLE_CREATION_NO_PRIMARY_KEY;
+    }
+
+    // Primary key attributes contains attributes that are not in the attribute definitions
+    for (String pk : primaryKeyAttributeNames) {
+      boolean contains = false;
+      for (String attribute : attributeNames) {
+        if (attribute.equals(pk)) {
+          contains = true;
+          break;
+        }
+      }
+      if (!contains)  {
+        return StatusCode.TABLE_CREATION_PRIMARY_KEY_NOT_FOUND;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Deletes the table with a constant number of range clears in one transaction: its schema, and
+   * its subspace holding its metadata, records and indexes.
+   */
+  @Override
+  public CompletableFuture<StatusCode> deleteTable(String tableName) {
+    TableSubspaces subspaces = tableSubspaces(tableName);
+    return runDdl(Metrics.Operation.DELETE_TABLE, tr -> tableExists(tr, subspaces).thenCompose(exists -> {
+      if (!exists) {
+        return completed(StatusCode.TABLE_NOT_FOUND);
+      }
+
+      // Remove the schema and everything stored under the table's subspace
+      tr.clear(subspaces.getSchema().range());
+      tr.clear(subspaces.getTable().range());
+      tr.clear(pendingPurgeKey(tableName));
+      logChange(tr, 0, SchemaChange.tableDeleted(tableName));
+      bumpCatalogVersion(tr);
+      return completed(StatusCode.SUCCESS);
+    })).whenComplete((status, e) -> {
+      if (status == StatusCode.SUCCESS) {
+        ValueCompression.unload(store, subspaces.getTable().getKey());
+      }
+      evictTableSubspaces(tableName);
+    });
+  }
+
+  @Override
+  public CompletableFuture<HashMap<String, TableMetadata>> listTables() {
+    return measure(Metrics.Operation.LIST_TABLES, invocation -> {
+      // Served from the cache until a DDL operation or the catalog watch invalidates it
+      Map<String, TableMetadata> tables = cachedTables;
+      if (tables != null) {
+        return CompletableFuture.completedFuture(copyTables(tables));
+      }
+      return reloadCache().thenApply(AsyncTableManagerImpl::copyTables);
+    });
+  }
+
+  /**
+   * @return the schema of the table from the catalog cache, or null if the table does not exist.
+   * The schema may lag behind DDL committed by other clients until the catalog watch fires, so
+   * operations that must not act on a stale schema read it in their own transaction instead.
+   */
+  CompletableFuture<TableSchema> getCachedSchema(String tableName) {
+    Map<String, TableMetadata> tables = cachedTables;
+    CompletableFuture<Map<String, TableMetadata>> loaded = tables != null
+            ? CompletableFuture.completedFuture(tables) : reloadCache();
+    return loaded.thenApply(all -> {
+      TableMetadata table = all.get(tableName);
+      return table == null ? null : table.getSchema();
+    });
+  }
+
+  /**
+   * Reads the metadata of every table with a single streaming scan of the catalog subspace.
+   */
+  private CompletableFuture<HashMap<String, TableMetadata>> readTables(KeyValueTransaction tr) {
+    CatalogScan scan = new CatalogScan();
+    return AsyncUtil.forEach(tr.getRange(catalog.range(), ReadTransaction.ROW_LIMIT_UNLIMITED, false,
+            StreamingMode.WANT_ALL), scan, store.getExecutor()).thenApply(ignore -> scan.finish());
+  }
+
+  /**
+   * Decodes the schema records from the catalog key-values in key order. The chunks of a table's
+   * record are contiguous. Tables are kept in catalog order.
+   */
+  private class CatalogScan implements Consumer<KeyValue> {
+    private final LinkedHashMap<String, TableMetadata> tables = new LinkedHashMap<>();
+
+    private String tableName = null;
+    private final List<KeyValue> chunks = new ArrayList<>();
+
+    @Override
+    public void accept(KeyValue keyvalue) {
+      String name = catalog.unpack(keyvalue.getKey()).getString(0);
+      if (!name.equals(tableName)) {
+        finishTable();
+        tableName = name;
+      }
+      chunks.add(keyvalue);
+    }
+
+    private void finishTable() {
+      if (tableName == null) {
+        return;
+      }
+      tables.put(tableName, TableSchema.decode(concat(chunks)).toTableMetadata());
+      tableName = null;
+      chunks.clear();
+    }
+
+    HashMap<String, TableMetadata> finish() {
+      finishTable();
+      return tables;
+    }
+  }
+
+  @Override
+  public Cursor<Map.Entry<String, TableMetadata>> openTableCursor(int batchSize, StreamingMode mode,
+                                                                 byte[] continuation) {
+    Range range = catalog.range();
+    byte[] begin = continuation == null ? range.begin : Cursor.resumeKey(continuation, range);
+    return new Cursor<>(from -> measure(Metrics.Operation.SCAN, invocation -> runAsync(invocation,
+            tr -> tr.getRange(from, range.end, batchSize, false, mode).asList()
+            .thenCompose(keyvalues -> {
+      if (keyvalues.size() < batchSize) {
+        return CompletableFuture.completedFuture(tableBatch(keyvalues, true));
+      }
+      // The batch may end in the middle of the last table's schema record
+      byte[] lastKey = keyvalues.get(keyvalues.size() - 1).getKey();
+      Subspace lastTable = catalog.get(catalog.unpack(lastKey).getString(0));
+      return tr.getRange(new Range(ByteArrayUtil.join(lastKey, new byte[]{0}), lastTable.range().end)).asList().thenApply(rest -> {
+        List<KeyValue> all = new ArrayList<>(keyvalues);
+        all.addAll(rest);
+        return tableBatch(all, false);
+      });
+    }))), begin);
+  }
+
+  /**
+   * @param keyvalues the complete schema records of the tables in the batch
+   * @param last whether the batch reached the end of the catalog
+   */
+  private Cursor.Batch<Map.Entry<String, TableMetadata>> tableBatch(List<KeyValue> keyvalues, boolean last) {
+    CatalogScan scan = new CatalogScan();
+    keyvalues.forEach(scan);
+    List<Map.Entry<String, TableMetadata>> results = new ArrayList<>();
+    List<byte[]> continuations = new ArrayList<>();
+    for (Map.Entry<String, TableMetadata> table : scan.finish().entrySet()) {
+      results.add(new AbstractMap.SimpleImmutableEntry<>(table));
+      continuations.add(catalog.get(table.getKey()).range().end);
+    }
+    byte[] next = last ? null : continuations.get(continuations.size() - 1);
+    return new Cursor.Batch<>(results, continuations, next);
+  }
+
+  /**
+   * Reads the log in batches of SCHEMA_CHANGES_PER_BATCH changes, one transaction each. Without a
+   * versionstamp, the first batch is the catalog and the position of the end of the log, read in
+   * one transaction, so the changes that follow are exactly the ones after that catalog.
+   */
+  @Override
+  public Cursor<SchemaChange> changesSince(Versionstamp versionstamp) {
+    byte[] begin = versionstamp == null ? null
+            : ByteArrayUtil.join(schemaChanges.pack(Tuple.from(versionstamp)), new byte[]{0});
+    return new Cursor<>(from -> measure(Metrics.Operation.SCHEMA_CHANGES, invocation -> runAsync(invocation,
+            tr -> from == null ? readCatalogChanges(tr) : readChanges(tr, from))), begin);
+  }
+
+  /**
+   * @return a CREATE_TABLE change for every table, stamped with the last logged change
+   */
+  private CompletableFuture<Cursor.Batch<SchemaChange>> readCatalogChanges(KeyValueTransaction tr) {
+    Range log = schemaChanges.range();
+    return readTables(tr).thenCombine(tr.getRange(log, 1, true, StreamingMode.WANT_ALL).asList(), (catalog, last) -> {
+      Versionstamp stamp = last.isEmpty() ? Versionstamp.complete(new byte[10])
+              : schemaChanges.unpack(last.get(0).getKey()).getVersionstamp(0);
+      byte[] next = last.isEmpty() ? log.begin : ByteArrayUtil.join(last.get(0).getKey(), new byte[]{0});
+      List<SchemaChange> results = new ArrayList<>();
+      List<byte[]> continuations = new ArrayList<>();
+      for (Map.Entry<String, TableMetadata> table : catalog.entrySet()) {
+        results.add(new SchemaChange(stamp, SchemaChange.Type.CREATE_TABLE, table.getKey(), null, null,
+                table.getValue()));
+        continuations.add(next);
+      }
+      return new Cursor.Batch<>(results, continuations, next);
+    });
+  }
+
+  private CompletableFuture<Cursor.Batch<SchemaChange>> readChanges(KeyValueTransaction tr, byte[] from) {
+    return tr.getRange(from, schemaChanges.range().end, SCHEMA_CHANGES_PER_BATCH, false, StreamingMode.WANT_ALL)
+        .asList().thenCompose(keyvalues -> {
+      List<SchemaChange> results = new ArrayList<>();
+      List<byte[]> continuations = new ArrayList<>();
+      List<CompletableFuture<Void>> filled = new ArrayList<>();
+      for (KeyValue keyvalue : keyvalues) {
+        SchemaChange change = SchemaChange.decode(schemaChanges.unpack(keyvalue.getKey()).getVersionstamp(0),
+                keyvalue.getValue());
+        int position = results.size();
+        results.add(change);
+        continuations.add(ByteArrayUtil.join(keyvalue.getKey(), new byte[]{0}));
+        if (change.getType() == SchemaChange.Type.CREATE_TABLE && change.getTable() == null) {
+          // The definition was too large for the entry, so it was logged in chunks next to it
+          filled.add(tr.getRange(schemaChangeDefinitions.range(Tuple.from(change.getVersionstamp()))).asList()
+                  .thenAccept(chunks -> results.set(position,
+                          change.withTable(TableSchema.decode(concat(chunks)).toTableMetadata()))));
+        }
+      }
+      byte[] next = keyvalues.size() < SCHEMA_CHANGES_PER_BATCH ? null : continuations.get(continuations.size() - 1);
+      return CompletableFuture.allOf(filled.toArray(new CompletableFuture<?>[0]))
+              .thenApply(ignore -> new Cursor.Batch<>(results, continuations, next));
+    });
+  }
+
+  /**
+   * Removes the changes up to and including the given versionstamp from the schema change log.
+   * Only trim changes every consumer has read: a consumer behind them would silently miss them.
+   */
+  public CompletableFuture<Void> trimSchemaChanges(Versionstamp versionstamp) {
+    byte[] end = ByteArrayUtil.join(schemaChanges.pack(Tuple.from(versionstamp)), new byte[]{0});
+    return runAsync(tr -> {
+      tr.clear(new Range(schemaChanges.range().begin, end));
+      tr.clear(new Range(schemaChangeDefinitions.range().begin,
+              schemaChangeDefinitions.range(Tuple.from(versionstamp)).end));
+      return CompletableFuture.completedFuture(null);
+    });
+  }
+
+  @Override
+  public CompletableFuture<StatusCode> addAttribute(String tableName, String attributeName, AttributeType attributeType) {
+    TableSubspaces subspaces = tableSubspaces(tableName);
+    return runDdl(Metrics.Operation.ADD_ATTRIBUTE, tr -> readSchema(tr, subspaces).thenApply(schema -> {
+      // Check if tableName exists in the catalog
+      if (schema == null) {
+        return StatusCode.TABLE_NOT_FOUND;
+      }
+      // Check if attribute exists. If yes, return ATTRIBUTE_ALREADY_EXISTS
+      if (schema.indexOf(attributeName) >= 0) {
+        return StatusCode.ATTRIBUTE_ALREADY_EXISTS;
+      }
+
+      // Add attribute
+      writeSchema(tr, subspaces, schema.withAttribute(attributeName, attributeType));
+      logChange(tr, 0, SchemaChange.attributeAdded(tableName, attributeName, attributeType));
+      bumpCatalogVersion(tr);
+      return StatusCode.SUCCESS;
+    }));
+  }
+
+  @Override
+  public CompletableFuture<StatusCode> dropAttribute(String tableName, String attributeName) {
+    TableSubspaces subspaces = tableSubspaces(tableName);
+    return runDdl(Metrics.Operation.DROP_ATTRIBUTE, tr -> readSchema(tr, subspaces).thenCombine(readIndexes(tr, subspaces), (schema, indexes) -> {
+      // Check if table exists. If no, return TABLE_NOT_FOUND
+      if (schema == null) {
+        return StatusCode.TABLE_NOT_FOUND;
+      }
+      // Check if attribute exists. If no, return ATTRIBUTE_NOT_FOUND
+      int index = schema.indexOf(attributeName);
+      if (index < 0) {
+        return StatusCode.ATTRIBUTE_NOT_FOUND;
+      }
+      // Records are keyed by their primary key values
+      if (schema.getPrimaryKeyPosition(index) >= 0) {
+        return StatusCode.PRIMARY_KEY_ATTRIBUTE_DROP_NOT_ALLOWED;
+      }
+      writeSchema(tr, subspaces, schema.withoutAttribute(index));
+
+      // Indexes on the attribute go with it
+      for (IndexDefinition definition : indexes) {
+        if (definition.covers(attributeName)) {
+          clearIndex(tr, subspaces, definition.getName());
+        }
+      }
+
+      // The values stay in the records until the purge job removes them
+      addPurgeJob(tr, subspaces, tableName, schema, index);
+      logChange(tr, 0, SchemaChange.attributeDropped(tableName, attributeName));
+      bumpCatalogVersion(tr);
+      return StatusCode.SUCCESS;
+    })).thenApply(status -> {
+      if (status == StatusCode.SUCCESS) {
+        schedulePurge(tableName);
+      }
+      return status;
+    });
+  }
+
+  @Override
+  public CompletableFuture<StatusCode> createIndex(String tableName, String indexName, String[] attributeNames) {
+    TableSubspaces subspaces = tableSubspaces(tableName);
+    byte[] definitionKey = subspaces.getIndexDefinitions().pack(Tuple.from(indexName));
+    return measure(Metrics.Operation.CREATE_INDEX, invocation -> runAsync(invocation,
+            tr -> readSchema(tr, subspaces).thenCombine(tr.get(definitionKey), (schema, existing) -> {
+      if (schema == null) {
+        return StatusCode.TABLE_NOT_FOUND;
+      }
+      if (attributeNames == null || attributeNames.length == 0) {
+        return StatusCode.ATTRIBUTE_NOT_FOUND;
+      }
+      for (String attributeName : attributeNames) {
+        if (attributeName == null || schema.indexOf(attributeName) < 0) {
+          return StatusCode.ATTRIBUTE_NOT_FOUND;
+        }
+      }
+
+      if (existing != null) {
+        // The backfill of an identical index was interrupted; it is resumed
+        IndexDefinition definition = IndexDefinition.decode(indexName, existing);
+        boolean resume = !definition.isReady() && Arrays.equals(definition.getAttributeNames(), attributeNames);
+        return resume ? StatusCode.SUCCESS : StatusCode.INDEX_ALREADY_EXISTS;
+      }
+
+      // From now on every record write maintains the index
+      tr.set(definitionKey, new IndexDefinition(indexName, attributeNames.clone(), false).encode());
+      Subspace data = schema.getStorageMode() == StorageMode.COLUMNAR ? subspaces.getBlocks() : subspaces.getRawdata();
+      tr.set(subspaces.getIndexBuilds().pack(Tuple.from(indexName)), data.range().begin);
+      return StatusCode.SUCCESS;
+    })).thenCompose(status -> status == StatusCode.SUCCESS
+            ? backfillIndex(invocation, subspaces, indexName) : completed(status)));
+  }
+
+  /**
+   * Indexes the records that existed before the index was defined, BACKFILL_ROWS records per
+   * transaction. The progress is kept with the index, so an interrupted backfill continues where
+   * it stopped. Once every record is indexed the index is marked ready. The progress of a columnar
+   * table is a key of its blocks subspace, see {ColumnStore#readRecords}.
+   */
+  private CompletableFuture<StatusCode> backfillIndex(Metrics.Invocation invocation, TableSubspaces subspaces,
+                                                      String indexName) {
+    byte[] definitionKey = subspaces.getIndexDefinitions().pack(Tuple.from(indexName));
+    byte[] progressKey = subspaces.getIndexBuilds().pack(Tuple.from(indexName));
+    Range rawdata = subspaces.getRawdata().range();
+
+    return runAsync(invocation, tr -> {
+      CompletableFuture<TableSchema> schema = readSchema(tr, subspaces);
+      CompletableFuture<byte[]> definition = tr.get(definitionKey);
+      return tr.get(progressKey).thenCompose(progress -> {
+        if (progress == null) {
+          return definition.thenApply(value -> value == null ? StatusCode.INDEX_NOT_FOUND : StatusCode.SUCCESS);
+        }
+        if (subspaces.getBlocks().contains(progress)) {
+          return schema.thenCompose(tableSchema -> tableSchema == null ? completed(StatusCode.INDEX_NOT_FOUND)
+              : ColumnStore.readRecords(tr, subspaces, tableSchema, progress, BACKFILL_ROWS).thenCombine(definition,
+                  (read, value) -> {
+            if (value == null) {
+              return StatusCode.INDEX_NOT_FOUND;
+            }
+            IndexDefinition index = IndexDefinition.decode(indexName, value);
+            for (int r = 0; r < read.records.size(); r++) {
+              tr.set(subspaces.getIndex(indexName).pack(index.entry(read.records.get(r), read.primaryKeys.get(r))),
+                  new byte[0]);
+            }
+            if (read.next == null) {
+              tr.set(definitionKey, index.asReady().encode());
+              tr.clear(progressKey);
+              return StatusCode.SUCCESS;
+            }
+            tr.set(progressKey, read.next);
+            return null;
+          }));
+        }
+        CompletableFuture<List<KeyValue>> rows = tr.getRange(progress, rawdata.end, BACKFILL_ROWS, false,
+                StreamingMode.WANT_ALL).asList();
+        return schema.thenCompose(tableSchema -> definition.thenCombine(rows, (value, keyvalues) -> {
+          if (tableSchema == null || value == null) {
+            // The index or its table was dropped during the backfill
+            return StatusCode.INDEX_NOT_FOUND;
+          }
+          IndexDefinition index = IndexDefinition.decode(indexName, value);
+          for (KeyValue keyvalue : keyvalues) {
+            Tuple primaryKey = subspaces.getRawdata().unpack(keyvalue.getKey());
+            TableRecord record = RecordFormat.decode(tableSchema, primaryKey, keyvalue.getValue());
+            tr.set(subspaces.getIndex(indexName).pack(index.entry(record, primaryKey)), new byte[0]);
+          }
+          if (keyvalues.size() < BACKFILL_ROWS) {
+            tr.set(definitionKey, index.asReady().encode());
+            tr.clear(progressKey);
+            return StatusCode.SUCCESS;
+          }
+          tr.set(progressKey, ByteArrayUtil.join(keyvalues.get(keyvalues.size() - 1).getKey(), new byte[]{0}));
+          // More records to index
+          return null;
+        }));
+      });
+    }).thenCompose(status -> status == null ? backfillIndex(invocation, subspaces, indexName) : completed(status));
+  }
+
+  @Override
+  public CompletableFuture<StatusCode> dropIndex(String tableName, String indexName) {
+    TableSubspaces subspaces = tableSubspaces(tableName);
+    return measure(Metrics.Operation.DROP_INDEX, invocation -> runAsync(invocation, tr -> tableExists(tr, subspaces).thenCombine(
+            tr.get(subspaces.getIndexDefinitions().pack(Tuple.from(indexName))), (exists, definition) -> {
+      if (!exists) {
+        return StatusCode.TABLE_NOT_FOUND;
+      }
+      if (definition == null) {
+        return StatusCode.INDEX_NOT_FOUND;
+      }
+      clearIndex(tr, subspaces, indexName);
+      return StatusCode.SUCCESS;
+    })));
+  }
+
+  /**
+   * Drops every table with three range clears in one transaction, whatever the number of tables:
+   * the catalog, the tables subspace holding all metadata, records and indexes, and the pending
+   * purges.
+   */
+  @Override
+  public CompletableFuture<StatusCode> dropAllTables() {
+    return runDdl(Metrics.Operation.DROP_ALL_TABLES, tr -> {
+      tr.clear(catalog.range());
+      tr.clear(tables.range());
+      tr.clear(pendingPurges.range());
+      logChange(tr, 0, SchemaChange.allTablesDropped());
+      bumpCatalogVersion(tr);
+      return completed(StatusCode.SUCCESS);
+    }).whenComplete((status, e) -> {
+      if (status == StatusCode.SUCCESS) {
+        ValueCompression.unload(store, tables.getKey());
+      }
+      evictAllTableSubspaces();
+    });
+  }
+
+  @Override
+  public CompletableFuture<List<StatusCode>> applyBatch(DdlBatch batch) {
+    return measure(Metrics.Operation.APPLY_BATCH, invocation -> applyBatch(invocation, batch));
+  }
+
+  private CompletableFuture<List<StatusCode>> applyBatch(Metrics.Invocation invocation, DdlBatch batch) {
+    List<DdlBatch.Operation> operations = batch.getOperations();
+    StatusCode[] statuses = new StatusCode[operations.size()];
+
+    // Check the arguments of every operation before touching the database, and split the valid
+    // operations into chunks that stay well below the transaction size limit
+    List<List<Integer>> chunks = new ArrayList<>();
+    List<Integer> chunk = new ArrayList<>();
+    int chunkSize = 0;
+    for (int i = 0; i < operations.size(); i++) {
+      DdlBatch.Operation operation = operations.get(i);
+      statuses[i] = checkOperation(operation);
+      if (statuses[i] != null) {
+        continue;
+      }
+      int size = operation.estimatedSize();
+      if (!chunk.isEmpty() && chunkSize + size > BATCH_TRANSACTION_BYTES) {
+        chunks.add(chunk);
+        chunk = new ArrayList<>();
+        chunkSize = 0;
+      }
+      chunk.add(i);
+      chunkSize += size;
+    }
+    if (!chunk.isEmpty()) {
+      chunks.add(chunk);
+    }
+
+    CompletableFuture<Void> applied = CompletableFuture.completedFuture(null);
+    for (List<Integer> c : chunks) {
+      applied = applied.thenCompose(ignore -> applyChunk(invocation, operations, c, statuses));
+    }
+    return applied.thenApply(ignore -> {
+      Set<String> dropped = new HashSet<>();
+      for (int i = 0; i < operations.size(); i++) {
+        if (operations.get(i).type == DdlBatch.OperationType.DROP_ATTRIBUTE && statuses[i] == StatusCode.SUCCESS) {
+          dropped.add(operations.get(i).tableName);
+        }
+      }
+      dropped.forEach(this::schedulePurge);
+      return Arrays.asList(statuses);
+    });
+  }
+
+  /**
+   * Reads the statistics of the table in one transaction. With auto-analyze on, tables that were
+   * never analyzed, or whose row count changed by more than REANALYZE_CHANGE since, are analyzed
+   * in the background; the statistics returned are the ones before that analysis.
+   */
+  @Override
+  public CompletableFuture<TableStatistics> getTableStatistics(String tableName) {
+    TableSubspaces subspaces = tableSubspaces(tableName);
+    return measure(Metrics.Operation.TABLE_STATISTICS, invocation -> runAsync(invocation,
+            tr -> tableExists(tr, subspaces).thenCombine(tr.getRange(subspaces.getMetadata().range()).asList(),
+                (exists, metadata) -> exists ? TableStatistics.decode(subspaces, metadata) : null)))
+        .thenApply(statistics -> {
+          if (statistics != null && autoAnalyze && statistics.isStale(REANALYZE_CHANGE)) {
+            scheduleAnalysis(tableName);
+          }
+          return statistics;
+        });
+  }
+
+  /**
+   * Refresh the column histograms of tables whose statistics are read in the background when they
+   * are stale. Off by default.
+   */
+  public void setAutoAnalyze(boolean autoAnalyze) {
+    this.autoAnalyze = autoAnalyze;
+  }
+
+  /**
+   * Analyzes the table on the maintenance thread, unless an analysis of it is already running.
+   */
+  private void scheduleAnalysis(String tableName) {
+    synchronized (runningAnalyses) {
+      if (runningAnalyses.containsKey(tableName)) {
+        return;
+      }
+      CompletableFuture<TableStatistics> analysis = CompletableFuture.supplyAsync(() -> null, maintenance)
+          .thenCompose(ignore -> new TableAnalyzer(this, tableName).setMaxRowsPerSecond(ANALYZE_ROWS_PER_SECOND)
+              .analyzeAsync());
+      runningAnalyses.put(tableName, analysis);
+      analysis.whenComplete((statistics, e) -> {
+        if (e != null) {
+          System.out.println("Failed to analyze " + tableName + ": " + e);
+        }
+        synchronized (runningAnalyses) {
+          runningAnalyses.remove(tableName, analysis);
+        }
+      });
+    }
+  }
+
+  /**
+   * Checks the arguments of a batched operation that can be checked without reading the catalog.
+   *
+   * @return the error status code, or null if the operation has to be checked against the catalog
+   */
+  private static StatusCode checkOperation(DdlBatch.Operation operation) {
+    switch (operation.type) {
+      case CREATE_TABLE:
+        if (operation.tableName == null) {
+          return StatusCode.TABLE_CREATION_ATTRIBUTE_INVALID;
+        }
+        return checkTableDefinition(operation.attributeNames, operation.attributeTypes,
+                operation.primaryKeyAttributeNames);
+      case ADD_ATTRIBUTE:
+        if (operation.tableName == null) {
+          return StatusCode.TABLE_NOT_FOUND;
+        }
+        if (operation.attributeTypes[0] == null) {
+          return StatusCode.ATTRIBUTE_TYPE_NOT_SUPPORTED;
+        }
+        return operation.attributeNames[0] == null ? StatusCode.ATTRIBUTE_ALREADY_EXISTS : null;
+      default:
+        if (operation.tableName == null) {
+          return StatusCode.TABLE_NOT_FOUND;
+        }
+        return operation.attributeNames[0] == null ? StatusCode.ATTRIBUTE_NOT_FOUND : null;
+    }
+  }
+
+  /**
+   * Applies one chunk of a batch in a single retried transaction. The tables the chunk touches are
+   * read once, every operation is checked against that snapshot updated by the operations before
+   * it, and each changed schema is written once at the end.
+   */
+  private CompletableFuture<Void> applyChunk(Metrics.Invocation invocation, List<DdlBatch.Operation> operations,
+                                             List<Integer> chunk, StatusCode[] statuses) {
+    return runAsync(invocation, tr -> {
+      Map<String, CompletableFuture<TableSchema>> reads = new HashMap<>();
+      Map<String, CompletableFuture<List<IndexDefinition>>> indexReads = new HashMap<>();
+      for (int i : chunk) {
+        String name = operations.get(i).tableName;
+        reads.computeIfAbsent(name, tableName -> readSchema(tr, tableSubspaces(tableName)));
+        if (operations.get(i).type == DdlBatch.OperationType.DROP_ATTRIBUTE) {
+          indexReads.computeIfAbsent(name, tableName -> readIndexes(tr, tableSubspaces(tableName)));
+        }
+      }
+      List<CompletableFuture<?>> allReads = new ArrayList<>(reads.values());
+      allReads.addAll(indexReads.values());
+
+      return CompletableFuture.allOf(allReads.toArray(new CompletableFuture<?>[0])).thenApply(ignore -> {
+        // Schema of each table, or null for a table that does not exist
+        Map<String, TableSchema> schemas = new HashMap<>();
+        for (Map.Entry<String, CompletableFuture<TableSchema>> read : reads.entrySet()) {
+          schemas.put(read.getKey(), read.getValue().join());
+        }
+        Set<String> changed = new HashSet<>();
+
+        StatusCode[] chunkStatuses = new StatusCode[chunk.size()];
+        for (int k = 0; k < chunk.size(); k++) {
+          DdlBatch.Operation operation = operations.get(chunk.get(k));
+          TableSchema schema = schemas.get(operation.tableName);
+          String attributeName = operation.attributeNames[0];
+
+          switch (operation.type) {
+            case CREATE_TABLE:
+              if (schema != null) {
+                chunkStatuses[k] = StatusCode.TABLE_ALREADY_EXISTS;
+                break;
+              }
+              schema = TableSchema.of(operation.attributeNames, operation.attributeTypes,
+                      operation.primaryKeyAttributeNames);
+              tr.set(tableSubspaces(operation.tableName).getStatisticsKey(), new byte[0]);
+              logChange(tr, k, SchemaChange.tableCreated(operation.tableName, schema));
+              chunkStatuses[k] = StatusCode.SUCCESS;
+              break;
+            case ADD_ATTRIBUTE:
+              if (schema == null) {
+                chunkStatuses[k] = StatusCode.TABLE_NOT_FOUND;
+              } else if (schema.indexOf(attributeName) >= 0) {
+                chunkStatuses[k] = StatusCode.ATTRIBUTE_ALREADY_EXISTS;
+              } else {
+                schema = schema.withAttribute(attributeName, operation.attributeTypes[0]);
+                logChange(tr, k, SchemaChange.attributeAdded(operation.tableName, attributeName,
+                        operation.attributeTypes[0]));
+                chunkStatuses[k] = StatusCode.SUCCESS;
+              }
+              break;
+            case DROP_ATTRIBUTE:
+              int index = schema == null ? -1 : schema.indexOf(attributeName);
+              if (schema == null) {
+                chunkStatuses[k] = StatusCode.TABLE_NOT_FOUND;
+              } else if (index < 0) {
+                chunkStatuses[k] = StatusCode.ATTRIBUTE_NOT_FOUND;
+              } else if (schema.getPrimaryKeyPosition(index) >= 0) {
+                chunkStatuses[k] = StatusCode.PRIMARY_KEY_ATTRIBUTE_DROP_NOT_ALLOWED;
+              } else {
+                addPurgeJob(tr, tableSubspaces(operation.tableName), operation.tableName, schema, index);
+                schema = schema.withoutAttribute(index);
+                for (IndexDefinition definition : indexReads.get(operation.tableName).join()) {
+                  if (definition.covers(attributeName)) {
+                    clearIndex(tr, tableSubspaces(operation.tableName), definition.getName());
+                  }
+                }
+                logChange(tr, k, SchemaChange.attributeDropped(operation.tableName, attributeName));
+                chunkStatuses[k] = StatusCode.SUCCESS;
+              }
+              break;
+          }
+          if (chunkStatuses[k] == StatusCode.SUCCESS) {
+            schemas.put(operation.tableName, schema);
+            changed.add(operation.tableName);
+          }
+        }
+
+        for (String tableName : changed) {
+          writeSchema(tr, tableSubspaces(tableName), schemas.get(tableName));
+        }
+        if (!changed.isEmpty()) {
+          bumpCatalogVersion(tr);
+        }
+        return chunkStatuses;
+      });
+    }).thenAccept(chunkStatuses -> {
+      for (int k = 0; k < chunk.size(); k++) {
+        statuses[chunk.get(k)] = chunkStatuses[k];
+      }
+      invalidateCache();
+    });
+  }
+}
@@ -0,0 +1,222 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.StreamingMode;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+import com.apple.foundationdb.tuple.Tuple;
+
+/**
+ * AttributePurger removes the values of dropped attributes from the stored records of a table.
+ *
+ * dropAttribute only removes the attribute from the schema, so records stop showing it at once,
+ * and records a purge job for it under the table's metadata subspace:
+ *   ("purge", attributeName) -> next rawdata key to purge
+ * The purger walks the rawdata range in transactions of at most rowsPerTransaction records and
+ * bytesPerTransaction bytes, rewrites the records that still hold values of dropped attributes
+ * with the current schema version, and advances the jobs in the same transaction. An interrupted
+ * purge continues where it stopped on the next run, and every job is removed once it reaches the
+ * end of the table. Jobs recorded while a purge runs are picked up by that purge.
+ *
+ * On a columnar table, see {ColumnStore}, the values of an attribute are kept apart from the
+ * records, and its job is keyed by the attribute id as well:
+ *   ("purge", attributeName, attributeId) -> next column block key to clear
+ * Such a job clears the column blocks of the attribute id in transactions of at most
+ * bytesPerTransaction bytes, one job at a time.
+ *
+ * maxRowsPerSecond bounds the rate at which records are read, so a purge of a large table does
+ * not compete with the workload; 0 means no limit.
+ */
+public class AttributePurger {
+
+  private final AsyncTableManagerImpl tableManager;
+  private final String tableName;
+
+  private int rowsPerTransaction = 1000;
+  private int bytesPerTransaction = 1_000_000;
+  private double maxRowsPerSecond = 0;
+
+  public AttributePurger(TableManagerImpl tableManager, String tableName) {
+    this(tableManager.getAsyncTableManagerImpl(), tableName);
+  }
+
+  AttributePurger(AsyncTableManagerImpl tableManager, String tableName) {
+    this.tableManager = tableManager;
+    this.tableName = tableName;
+  }
+
+  public AttributePurger setRowsPerTransaction(int rowsPerTransaction) {
+    this.rowsPerTransaction = rowsPerTransaction;
+    return this;
+  }
+
+  public AttributePurger setBytesPerTransaction(int bytesPerTransaction) {
+    this.bytesPerTransaction = bytesPerTransaction;
+    return this;
+  }
+
+  public AttributePurger setMaxRowsPerSecond(double maxRowsPerSecond) {
+    this.maxRowsPerSecond = maxRowsPerSecond;
+    return this;
+  }
+
+  /**
+   * Runs the table's pending purge jobs to completion and waits for them.
+   *
+   * @return the number of records rewritten
+   */
+  public long purge() {
+    return purgeAsync().join();
+  }
+
+  /**
+   * Runs the table's pending purge jobs to completion.
+   *
+   * @return future of the number of records rewritten
+   */
+  public CompletableFuture<Long> purgeAsync() {
+    return tableManager.measure(Metrics.Operation.MAINTENANCE, invocation -> purgeFrom(invocation, 0));
+  }
+
+  private CompletableFuture<Long> purgeFrom(Metrics.Invocation invocation, long rewritten) {
+    long start = System.nanoTime();
+    return tableManager.runAsync(invocation, this::purgeStep).thenCompose(step -> {
+      if (step == null) {
+        return CompletableFuture.completedFuture(rewritten);
+      }
+      long total = rewritten + step[1];
+      if (maxRowsPerSecond <= 0) {
+        return purgeFrom(invocation, total);
+      }
+      // Wait until the records read so far fit the rate
+      long delay = (long) (step[0] * 1e9 / maxRowsPerSecond) - (System.nanoTime() - start);
+      return CompletableFuture.supplyAsync(() -> null,
+              CompletableFuture.delayedExecutor(Math.max(0, delay), TimeUnit.NANOSECONDS))
+          .thenCompose(ignore -> purgeFrom(invocation, total));
+    });
+  }
+
+  /**
+   * Purges the records following the least advanced job in one transaction.
+   *
+   * @return the number of records read and rewritten, or null if no job is left
+   */
+  private CompletableFuture<long[]> purgeStep(KeyValueTransaction tr) {
+    TableSubspaces subspaces = tableManager.tableSubspaces(tableName);
+    Range rawdata = subspaces.getRawdata().range();
+    CompletableFuture<TableSchema> schema = AsyncTableManagerImpl.readSchema(tr, subspaces);
+    CompletableFuture<byte[]> statistics = tr.get(subspaces.getStatisticsKey());
+    return tr.getRange(subspaces.getPurges().range()).asList().thenCompose(keyvalues -> {
+      if (keyvalues.isEmpty()) {
+        tr.clear(tableManager.pendingPurgeKey(tableName));
+        return CompletableFuture.completedFuture(null);
+      }
+      for (KeyValue keyvalue : keyvalues) {
+        if (subspaces.getColumns().contains(keyvalue.getValue())) {
+          return statistics.thenCompose(state -> purgeColumn(tr, subspaces, state, keyvalue));
+        }
+      }
+      Map<String, byte[]> jobs = new HashMap<>();
+      byte[] begin = null;
+      for (KeyValue keyvalue : keyvalues) {
+        jobs.put(subspaces.getPurges().unpack(keyvalue.getKey()).getString(0), keyvalue.getValue());
+        if (begin == null || ByteArrayUtil.compareUnsigned(keyvalue.getValue(), begin) < 0) {
+          begin = keyvalue.getValue();
+        }
+      }
+
+      CompletableFuture<List<KeyValue>> rows = tr.getRange(begin, rawdata.end, rowsPerTransaction, false,
+              StreamingMode.WANT_ALL).asList();
+      return statistics.thenCompose(state -> schema.thenCombine(rows, (tableSchema, records) -> {
+        if (tableSchema == null) {
+          // The table was deleted with its records
+          tr.clear(subspaces.getPurges().range());
+          tr.clear(tableManager.pendingPurgeKey(tableName));
+          return null;
+        }
+
+        long rewritten = 0;
+        int read = 0;
+        int bytes = 0;
+        long sizeChange = 0;
+        byte[] next = rawdata.end;
+        for (KeyValue record : records) {
+          if (bytes >= bytesPerTransaction) {
+            next = record.getKey();
+            break;
+          }
+          read++;
+          bytes += record.getKey().length + record.getValue().length;
+          if (RecordFormat.hasDroppedValues(tableSchema, record.getValue())) {
+            Tuple primaryKey = subspaces.getRawdata().unpack(record.getKey());
+            byte[] value = RecordFormat.encodeValue(tableSchema,
+                    RecordFormat.decode(tableSchema, primaryKey, record.getValue()));
+            tr.set(record.getKey(), value);
+            bytes += value.length;
+            rewritten++;
+            if (TableStatistics.counts(state, record.getKey())) {
+              sizeChange += value.length - record.getValue().length;
+            }
+          }
+        }
+        TableStatistics.add(tr, subspaces, 0, sizeChange);
+        if (next == rawdata.end && records.size() == rowsPerTransaction) {
+          next = ByteArrayUtil.join(records.get(records.size() - 1).getKey(), new byte[]{0});
+        }
+
+        for (Map.Entry<String, byte[]> job : jobs.entrySet()) {
+          byte[] jobKey = subspaces.getPurges().pack(Tuple.from(job.getKey()));
+          if (next == rawdata.end) {
+            tr.clear(jobKey);
+          } else if (ByteArrayUtil.compareUnsigned(job.getValue(), next) < 0) {
+            tr.set(jobKey, next);
+          }
+        }
+        return new long[]{read, rewritten};
+      }));
+    });
+  }
+
+  /**
+   * Clears the next column blocks of a purge job on a columnar table in one transaction.
+   *
+   * @return the number of records of the blocks cleared, as records read, and none rewritten
+   */
+  private CompletableFuture<long[]> purgeColumn(KeyValueTransaction tr, TableSubspaces subspaces, byte[] state,
+                                                KeyValue job) {
+    byte[] from = job.getValue();
+    int attributeId = (int) TupleBytes.decodeLong(from, subspaces.getColumns().getKey().length);
+    byte[] end = subspaces.getColumn(attributeId).range().end;
+    int limit = rowsPerTransaction / ColumnStore.MAX_BLOCK_ROWS + 1;
+    return tr.getRange(from, end, limit, false, StreamingMode.WANT_ALL).asList().thenApply(columns -> {
+      long read = 0;
+      long bytes = 0;
+      byte[] next = end;
+      for (KeyValue column : columns) {
+        if (bytes >= bytesPerTransaction) {
+          next = column.getKey();
+          break;
+        }
+        read += ColumnBlock.count(column.getValue());
+        bytes += column.getKey().length + column.getValue().length;
+      }
+      if (next == end && columns.size() == limit) {
+        next = ByteArrayUtil.join(columns.get(columns.size() - 1).getKey(), new byte[]{0});
+      }
+      tr.clear(new Range(from, next));
+      if (next == end) {
+        tr.clear(job.getKey());
+      } else {
+        tr.set(job.getKey(), next);
+      }
+      if (state != null) {
+        TableStatistics.add(tr, subspaces, 0, -bytes);
+      }
+      return new long[]{read, 0};
+    });
+  }
+}
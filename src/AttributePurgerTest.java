@@ -0,0 +1,82 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class AttributePurgerTest {
+
+  private TableManagerImpl tableManager;
+  private RecordManager recordManager;
+
+  @Before
+  public void init() {
+    tableManager = new TableManagerImpl(new MemoryKeyValueStore(), new Subspace(Tuple.from("database")));
+    recordManager = new RecordManagerImpl(tableManager);
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(RecordManagerTest.EmployeeTableName,
+        RecordManagerTest.EmployeeTableAttributeNames, RecordManagerTest.EmployeeTableAttributeTypes,
+        RecordManagerTest.EmployeeTablePKAttributes));
+    for (int i = 0; i < 2500; i++) {
+      assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(RecordManagerTest.EmployeeTableName,
+          new TableRecord().set("SSN", i).set("Name", "Employee" + i).set("Salary", i * 10.0)));
+    }
+  }
+
+  private List<KeyValue> read(Subspace subspace) {
+    return tableManager.getAsyncTableManagerImpl().run(tr -> tr.getRange(subspace.range()).asList().join());
+  }
+
+  private boolean storesDroppedValues() {
+    AsyncTableManagerImpl asyncTableManager = tableManager.getAsyncTableManagerImpl();
+    TableSubspaces subspaces = asyncTableManager.tableSubspaces(RecordManagerTest.EmployeeTableName);
+    TableSchema schema = asyncTableManager.run(tr -> AsyncTableManagerImpl.readSchema(tr, subspaces).join());
+    for (KeyValue keyvalue : read(subspaces.getRawdata())) {
+      if (RecordFormat.hasDroppedValues(schema, keyvalue.getValue())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Test
+  public void purgeTest() {
+    TableSubspaces subspaces = tableManager.getAsyncTableManagerImpl().tableSubspaces(RecordManagerTest.EmployeeTableName);
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAttribute(RecordManagerTest.EmployeeTableName, "Salary"));
+    // The attribute is gone from the schema at once
+    assertFalse(tableManager.listTables().get(RecordManagerTest.EmployeeTableName).getAttributes().containsKey("Salary"));
+
+    new AttributePurger(tableManager, RecordManagerTest.EmployeeTableName)
+        .setRowsPerTransaction(100).setBytesPerTransaction(2000).purge();
+    assertFalse(storesDroppedValues());
+    assertTrue(read(subspaces.getPurges()).isEmpty());
+    assertEquals(2500, read(subspaces.getRawdata()).size());
+    assertEquals(new TableRecord().set("SSN", 7L).set("Name", "Employee7"),
+        recordManager.getRecord(RecordManagerTest.EmployeeTableName, 7));
+  }
+
+  @Test
+  public void addDroppedAttributeTest() {
+    // Adding the attribute again does not bring the old values back, even before they are purged
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAttribute(RecordManagerTest.EmployeeTableName, "Salary"));
+    assertEquals(StatusCode.SUCCESS, tableManager.addAttribute(RecordManagerTest.EmployeeTableName, "Salary",
+        AttributeType.DOUBLE));
+    assertEquals(new TableRecord().set("SSN", 7L).set("Name", "Employee7"),
+        recordManager.getRecord(RecordManagerTest.EmployeeTableName, 7));
+
+    // Also when both happen in one batch
+    DdlBatch batch = new DdlBatch()
+        .dropAttribute(RecordManagerTest.EmployeeTableName, "Name")
+        .addAttribute(RecordManagerTest.EmployeeTableName, "Name", AttributeType.VARCHAR);
+    assertEquals(List.of(StatusCode.SUCCESS, StatusCode.SUCCESS), tableManager.applyBatch(batch));
+    assertEquals(new TableRecord().set("SSN", 7L), recordManager.getRecord(RecordManagerTest.EmployeeTableName, 7));
+    new AttributePurger(tableManager, RecordManagerTest.EmployeeTableName).purge();
+    assertFalse(storesDroppedValues());
+  }
+}
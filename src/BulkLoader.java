@@ -0,0 +1,610 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.async.AsyncUtil;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+import com.apple.foundationdb.tuple.Tuple;
+
+/**
+ * BulkLoader loads a large number of records into one table. Records are checked against the
+ * table's schema, grouped into batches that stay well below the transaction size and duration
+ * limits, and the batches are committed concurrently by a pool of workers. At most
+ * maxInFlightBatches batches are held in memory at a time.
+ *
+ * Every batch covers a contiguous range of input rows and records that range in the same
+ * transaction as its records, under the table's metadata subspace:
+ *   ("bulkload", loadId, first row) -> (row after the last row)
+ * Running a failed load again with the same loadId and the same input skips the rows that were
+ * already committed. The ranges are removed once the load completes.
+ *
+ * Loaded records replace existing records with the same primary key, as does the last of several
+ * records with the same primary key in the input, and the entries of the table's secondary indexes
+ * are written with them. The load fails if attributes of the table are
+ * added or dropped while it runs; training a dictionary or upgrading records does not stop it.
+ *
+ * The records of a batch for a columnar table are sorted by primary key and merged into the
+ * blocks they belong to, one block after the other, see {ColumnStore}.
+ */
+public class BulkLoader {
+
+  private final AsyncTableManagerImpl tableManager;
+  private final String tableName;
+
+  private int workerCount = 8;
+  private int maxInFlightBatches = 16;
+  // Estimated bytes and number of records per batch. FDB rejects transactions above 10MB and
+  // recommends keeping them under 1MB.
+  private int batchBytes = 1_000_000;
+  private int batchRows = 10_000;
+
+  // Number of rejected rows whose reason is kept in the result
+  private static final int MAX_REPORTED_REJECTIONS = 100;
+
+  public BulkLoader(TableManagerImpl tableManager, String tableName) {
+    this.tableManager = tableManager.getAsyncTableManagerImpl();
+    this.tableName = tableName;
+  }
+
+  public BulkLoader setWorkerCount(int workerCount) {
+    this.workerCount = workerCount;
+    return this;
+  }
+
+  public BulkLoader setMaxInFlightBatches(int maxInFlightBatches) {
+    this.maxInFlightBatches = maxInFlightBatches;
+    return this;
+  }
+
+  public BulkLoader setBatchBytes(int batchBytes) {
+    this.batchBytes = batchBytes;
+    return this;
+  }
+
+  public BulkLoader setBatchRows(int batchRows) {
+    this.batchRows = batchRows;
+    return this;
+  }
+
+  /**
+   * The outcome of a load.
+   */
+  public static class LoadResult {
+    private final StatusCode status;
+    private final long rowsLoaded;
+    private final long rowsSkipped;
+    private final long rowsRejected;
+    private final List<String> rejections;
+    private final long elapsedNanos;
+
+    LoadResult(StatusCode status, long rowsLoaded, long rowsSkipped, long rowsRejected, List<String> rejections,
+               long elapsedNanos) {
+      this.status = status;
+      this.rowsLoaded = rowsLoaded;
+      this.rowsSkipped = rowsSkipped;
+      this.rowsRejected = rowsRejected;
+      this.rejections = rejections;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return SUCCESS, or TABLE_NOT_FOUND if the table does not exist
+     */
+    public StatusCode getStatus() {
+      return status;
+    }
+
+    /**
+     * @return the number of records written by this run
+     */
+    public long getRowsLoaded() {
+      return rowsLoaded;
+    }
+
+    /**
+     * @return the number of rows committed by an earlier run of the same load
+     */
+    public long getRowsSkipped() {
+      return rowsSkipped;
+    }
+
+    /**
+     * @return the number of rows that did not match the table's schema
+     */
+    public long getRowsRejected() {
+      return rowsRejected;
+    }
+
+    /**
+     * @return the row number and status code of the first rejected rows
+     */
+    public List<String> getRejections() {
+      return rejections;
+    }
+
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    public double getRowsPerSecond() {
+      return elapsedNanos == 0 ? 0 : rowsLoaded / (elapsedNanos / 1e9);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: %d rows loaded, %d skipped, %d rejected in %.3f s (%.0f rows/s)", status,
+          rowsLoaded, rowsSkipped, rowsRejected, elapsedNanos / 1e9, getRowsPerSecond());
+    }
+  }
+
+  /**
+   * Rows [firstRow, endRow) of the input, without the rows committed by an earlier run.
+   */
+  private static class Batch {
+    final long firstRow;
+    long endRow;
+    final List<Long> rows = new ArrayList<>();
+    final List<TableRecord> records = new ArrayList<>();
+    int estimatedBytes = 0;
+
+    Batch(long firstRow) {
+      this.firstRow = firstRow;
+      this.endRow = firstRow;
+    }
+  }
+
+  /**
+   * Loads the records in iteration order. The iteration order must be the same when a failed load
+   * is run again.
+   *
+   * @param loadId identifies the load, to resume it after a failure
+   * @param records the records to load
+   * @return the outcome of the load
+   * @throws CompletionException if a batch could not be committed. The batches committed before
+   * the failure are kept.
+   */
+  public LoadResult load(String loadId, Iterator<TableRecord> records) {
+    return loadInput(loadId, schema -> records);
+  }
+
+  /**
+   * Loads the records of the iterator built from the schema the load checks every batch against.
+   */
+  private LoadResult loadInput(String loadId, Function<TableSchema, Iterator<TableRecord>> input) {
+    long start = System.nanoTime();
+    TableSubspaces subspaces = tableManager.tableSubspaces(tableName);
+    TableSchema schema = tableManager.run(tr -> AsyncTableManagerImpl.readSchema(tr, subspaces).join());
+    if (schema == null) {
+      return new LoadResult(StatusCode.TABLE_NOT_FOUND, 0, 0, 0, Collections.emptyList(), System.nanoTime() - start);
+    }
+    Iterator<TableRecord> records = input.apply(schema);
+
+    Subspace checkpoints = subspaces.getMetadata().get("bulkload").get(loadId);
+    TreeMap<Long, Long> committed = new TreeMap<>();
+    for (KeyValue keyvalue : tableManager.run(tr -> tr.getRange(checkpoints.range()).asList().join())) {
+      committed.put(checkpoints.unpack(keyvalue.getKey()).getLong(0), Tuple.fromBytes(keyvalue.getValue()).getLong(0));
+    }
+
+    LongAdder loaded = new LongAdder();
+    LongAdder rejected = new LongAdder();
+    List<String> rejections = Collections.synchronizedList(new ArrayList<>());
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Semaphore inFlight = new Semaphore(maxInFlightBatches);
+    ExecutorService workers = Executors.newFixedThreadPool(workerCount, r -> {
+      Thread t = new Thread(r, "bulk-loader-" + tableName);
+      t.setDaemon(true);
+      return t;
+    });
+
+    long skipped = 0;
+    long row = 0;
+    Batch batch = new Batch(0);
+    try {
+      while (failure.get() == null && records.hasNext()) {
+        TableRecord record = records.next();
+        long current = row++;
+        batch.endRow = row;
+
+        Map.Entry<Long, Long> range = committed.floorEntry(current);
+        if (range != null && current < range.getValue()) {
+          skipped++;
+          continue;
+        }
+
+        batch.rows.add(current);
+        batch.records.add(record);
+        batch.estimatedBytes += estimatedSize(record);
+        if (batch.records.size() >= batchRows || batch.estimatedBytes >= batchBytes) {
+          Batch full = batch;
+          submit(workers, inFlight, failure,
+              () -> commitBatch(subspaces, schema, checkpoints, full, loaded, rejected, rejections));
+          batch = new Batch(row);
+        }
+      }
+      if (!batch.records.isEmpty()) {
+        Batch last = batch;
+        submit(workers, inFlight, failure,
+            () -> commitBatch(subspaces, schema, checkpoints, last, loaded, rejected, rejections));
+      }
+    }
+    finally {
+      // Wait for the batches in flight, also when reading the input failed
+      inFlight.acquireUninterruptibly(maxInFlightBatches);
+      workers.shutdown();
+    }
+
+    if (failure.get() != null) {
+      throw failure.get() instanceof CompletionException
+          ? (CompletionException) failure.get() : new CompletionException(failure.get());
+    }
+
+    tableManager.run(tr -> {
+      tr.clear(checkpoints.range());
+      return null;
+    });
+    return new LoadResult(StatusCode.SUCCESS, loaded.sum(), skipped, rejected.sum(), new ArrayList<>(rejections),
+        System.nanoTime() - start);
+  }
+
+  private void submit(ExecutorService workers, Semaphore inFlight, AtomicReference<Throwable> failure,
+                      Runnable commit) {
+    inFlight.acquireUninterruptibly();
+    workers.execute(() -> {
+      try {
+        commit.run();
+      }
+      catch(Throwable e) {
+        failure.compareAndSet(null, e);
+      }
+      finally {
+        inFlight.release();
+      }
+    });
+  }
+
+  /**
+   * Checks and encodes the records of the batch, then writes them and the batch's row range in one
+   * retried transaction.
+   */
+  private void commitBatch(TableSubspaces subspaces, TableSchema schema, Subspace checkpoints,
+                           Batch batch, LongAdder loaded, LongAdder rejected, List<String> rejections) {
+    List<TableRecord> records = new ArrayList<>();
+    List<Tuple> primaryKeys = new ArrayList<>();
+    List<byte[]> keys = new ArrayList<>();
+    List<byte[]> values = new ArrayList<>();
+    for (int i = 0; i < batch.records.size(); i++) {
+      TableRecord record = new TableRecord();
+      record.getValues().putAll(batch.records.get(i).getValues());
+      StatusCode invalid = RecordFormat.check(schema, record);
+      if (invalid != null) {
+        rejected.increment();
+        if (rejections.size() < MAX_REPORTED_REJECTIONS) {
+          rejections.add("row " + batch.rows.get(i) + ": " + invalid);
+        }
+        continue;
+      }
+      records.add(record);
+      primaryKeys.add(RecordFormat.primaryKey(schema, record));
+    }
+    int valid = records.size();
+    if (schema.getStorageMode() == StorageMode.COLUMNAR) {
+      sortByPrimaryKey(primaryKeys, records);
+    } else {
+      // Each key is read and counted once, so only the last record with it is written
+      keepLastByPrimaryKey(primaryKeys, records);
+      for (int i = 0; i < records.size(); i++) {
+        keys.add(subspaces.getRawdata().pack(primaryKeys.get(i)));
+        values.add(RecordFormat.encodeValue(schema, records.get(i)));
+      }
+    }
+
+    tableManager.runAsync(tr -> {
+      CompletableFuture<List<IndexDefinition>> indexes = AsyncTableManagerImpl.readIndexes(tr, subspaces);
+      CompletableFuture<byte[]> statistics = tr.get(subspaces.getStatisticsKey());
+      return AsyncTableManagerImpl.readSchema(tr, subspaces).thenCombine(indexes, (current, definitions) -> {
+        // Reading the schema also makes the batch conflict with a concurrent schema change. A new
+        // dictionary or minimum record version does not change how records are encoded.
+        if (current == null || !current.hasSameLayout(schema)) {
+          throw new IllegalStateException("the schema of table " + tableName + " changed during the load");
+        }
+        return definitions;
+      }).thenCompose(definitions -> statistics.thenCompose(state -> {
+        if (schema.getStorageMode() == StorageMode.COLUMNAR) {
+          return mergeBlocks(tr, subspaces, schema, definitions, state, primaryKeys, records, 0)
+              .thenApply(ignore -> {
+                tr.set(checkpoints.pack(Tuple.from(batch.firstRow)), Tuple.from(batch.endRow).pack());
+                return null;
+              });
+        }
+        // The records the batch replaces are read for the record counters and, with indexes, for
+        // the entries that have to be removed. Tables created before record counters, which do not
+        // keep them, write the records blindly unless they have indexes.
+        List<CompletableFuture<byte[]>> existing = new ArrayList<>();
+        if (!definitions.isEmpty() || state != null) {
+          for (byte[] key : keys) {
+            existing.add(tr.get(key));
+          }
+        }
+        return AsyncUtil.whenAll(existing).thenApply(ignore -> {
+          long rows = 0;
+          long bytes = 0;
+          for (int i = 0; i < keys.size(); i++) {
+            tr.set(keys.get(i), values.get(i));
+            if (TableStatistics.counts(state, keys.get(i))) {
+              byte[] previous = existing.get(i).join();
+              rows += previous == null ? 1 : 0;
+              bytes += values.get(i).length - (previous == null ? -keys.get(i).length : previous.length);
+            }
+          }
+          TableStatistics.add(tr, subspaces, rows, bytes);
+          for (IndexDefinition definition : definitions) {
+            Subspace index = subspaces.getIndex(definition.getName());
+            for (int i = 0; i < keys.size(); i++) {
+              byte[] previous = existing.get(i).join();
+              if (previous != null) {
+                TableRecord replaced = RecordFormat.decode(schema, primaryKeys.get(i), previous);
+                tr.clear(index.pack(definition.entry(replaced, primaryKeys.get(i))));
+              }
+              tr.set(index.pack(definition.entry(records.get(i), primaryKeys.get(i))), new byte[0]);
+            }
+          }
+          tr.set(checkpoints.pack(Tuple.from(batch.firstRow)), Tuple.from(batch.endRow).pack());
+          return null;
+        });
+      }));
+    }).join();
+    loaded.add(valid);
+  }
+
+  /**
+   * Removes, in place, every record followed by a record with the same primary key in the batch,
+   * keeping the others in order.
+   */
+  private static void keepLastByPrimaryKey(List<Tuple> primaryKeys, List<TableRecord> records) {
+    Map<Tuple, Integer> last = new HashMap<>();
+    for (int i = 0; i < primaryKeys.size(); i++) {
+      last.put(primaryKeys.get(i), i);
+    }
+    if (last.size() == primaryKeys.size()) {
+      return;
+    }
+    int kept = 0;
+    for (int i = 0; i < primaryKeys.size(); i++) {
+      if (last.get(primaryKeys.get(i)) == i) {
+        primaryKeys.set(kept, primaryKeys.get(i));
+        records.set(kept++, records.get(i));
+      }
+    }
+    primaryKeys.subList(kept, primaryKeys.size()).clear();
+    records.subList(kept, records.size()).clear();
+  }
+
+  /**
+   * Sorts the records and their primary keys by primary key. Sorting is stable, so the last of
+   * several records with the same primary key stays last.
+   */
+  private static void sortByPrimaryKey(List<Tuple> primaryKeys, List<TableRecord> records) {
+    Integer[] order = new Integer[records.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> primaryKeys.get(a).compareTo(primaryKeys.get(b)));
+    List<Tuple> sortedKeys = new ArrayList<>();
+    List<TableRecord> sortedRecords = new ArrayList<>();
+    for (int i : order) {
+      sortedKeys.add(primaryKeys.get(i));
+      sortedRecords.add(records.get(i));
+    }
+    Collections.copy(primaryKeys, sortedKeys);
+    Collections.copy(records, sortedRecords);
+  }
+
+  /**
+   * Merges the records from the given position on into the blocks of a columnar table: reads the
+   * block the first of them belongs to, replaces or inserts the ones that belong to the same block,
+   * writes it back and continues with the next block.
+   *
+   * @param primaryKeys the primary keys of the records, in order
+   */
+  private static CompletableFuture<Void> mergeBlocks(KeyValueTransaction tr, TableSubspaces subspaces, TableSchema schema,
+                                                     List<IndexDefinition> definitions, byte[] state,
+                                                     List<Tuple> primaryKeys, List<TableRecord> records, int from) {
+    if (from == records.size()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return ColumnStore.readBlock(tr, subspaces, schema, primaryKeys.get(from)).thenCompose(block -> {
+      List<Tuple> stored = block.primaryKeys();
+      List<TableRecord> storedRecords = block.records(schema);
+      List<Tuple> mergedKeys = new ArrayList<>();
+      List<TableRecord> merged = new ArrayList<>();
+      long rows = 0;
+      int i = 0;
+      int j = from;
+      while (j < records.size() && (block.next == null
+              || ByteArrayUtil.compareUnsigned(subspaces.getBlocks().pack(primaryKeys.get(j)), block.next) < 0)) {
+        int cmp = i == stored.size() ? 1 : stored.get(i).compareTo(primaryKeys.get(j));
+        if (cmp < 0) {
+          mergedKeys.add(stored.get(i));
+          merged.add(storedRecords.get(i++));
+          continue;
+        }
+        if (j + 1 < records.size() && primaryKeys.get(j + 1).equals(primaryKeys.get(j))) {
+          // Replaced by a later record of the batch
+          j++;
+          continue;
+        }
+        for (IndexDefinition definition : definitions) {
+          Subspace index = subspaces.getIndex(definition.getName());
+          if (cmp == 0) {
+            tr.clear(index.pack(definition.entry(storedRecords.get(i), primaryKeys.get(j))));
+          }
+          tr.set(index.pack(definition.entry(records.get(j), primaryKeys.get(j))), new byte[0]);
+        }
+        rows += cmp == 0 ? 0 : 1;
+        i += cmp == 0 ? 1 : 0;
+        mergedKeys.add(primaryKeys.get(j));
+        merged.add(records.get(j++));
+      }
+      mergedKeys.addAll(stored.subList(i, stored.size()));
+      merged.addAll(storedRecords.subList(i, storedRecords.size()));
+
+      long bytes = ColumnStore.write(tr, subspaces, schema, block, mergedKeys, merged);
+      TableStatistics.add(tr, subspaces, state, block.keys == null ? subspaces.getBlocks().range().begin
+          : block.keys.getKey(), rows, bytes);
+      return mergeBlocks(tr, subspaces, schema, definitions, state, primaryKeys, records, j);
+    });
+  }
+
+  private static int estimatedSize(TableRecord record) {
+    int size = 16;
+    for (Map.Entry<String, Object> entry : record.getValues().entrySet()) {
+      size += entry.getKey().length() + 2;
+      Object value = entry.getValue();
+      size += value instanceof String ? ((String) value).length() * 3 + 2 : 9;
+    }
+    return size;
+  }
+
+  /**
+   * Loads a CSV file whose first line names the attributes of the columns. Fields may be quoted
+   * with double quotes, a quote inside a quoted field is written twice, and fields may not span
+   * lines. An empty field leaves the attribute without a value. Fields that do not parse as their
+   * attribute's type are rejected with ATTRIBUTE_TYPE_MISMATCH.
+   *
+   * @param loadId identifies the load, to resume it after a failure
+   * @param file the CSV file
+   * @return the outcome of the load
+   */
+  public LoadResult loadCsv(String loadId, Path file) throws IOException {
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String header = reader.readLine();
+      if (header == null) {
+        return load(loadId, Collections.emptyIterator());
+      }
+      String[] columns = parseCsvLine(header);
+
+      try {
+        // Fields are parsed with the schema the batches are checked against
+        return loadInput(loadId, schema -> new Iterator<TableRecord>() {
+          private final AttributeType[] types = types(schema, columns);
+          private String next = readLine();
+
+          private String readLine() {
+            try {
+              return reader.readLine();
+            }
+            catch(IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }
+
+          @Override
+          public boolean hasNext() {
+            return next != null;
+          }
+
+          @Override
+          public TableRecord next() {
+            if (next == null) {
+              throw new NoSuchElementException();
+            }
+            String[] fields = parseCsvLine(next);
+            next = readLine();
+
+            TableRecord record = new TableRecord();
+            for (int i = 0; i < columns.length && i < fields.length; i++) {
+              if (!fields[i].isEmpty()) {
+                record.set(columns[i], parseField(types[i], fields[i]));
+              }
+            }
+            return record;
+          }
+        });
+      }
+      catch(UncheckedIOException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  /**
+   * @return the type of the attribute of each column, or null for the columns that name no
+   * attribute
+   */
+  private static AttributeType[] types(TableSchema schema, String[] columns) {
+    AttributeType[] types = new AttributeType[columns.length];
+    for (int i = 0; i < columns.length; i++) {
+      int index = schema.indexOf(columns[i]);
+      types[i] = index < 0 ? null : schema.getAttributeType(index);
+    }
+    return types;
+  }
+
+  /**
+   * @return the field parsed as the type, or the field itself if it does not parse
+   */
+  private static Object parseField(AttributeType type, String field) {
+    try {
+      if (type == AttributeType.INT) {
+        return Long.parseLong(field.trim());
+      }
+      if (type == AttributeType.DOUBLE) {
+        return Double.parseDouble(field.trim());
+      }
+    }
+    catch(NumberFormatException e) {
+      return field;
+    }
+    return field;
+  }
+
+  static String[] parseCsvLine(String line) {
+    List<String> fields = new ArrayList<>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append('"');
+          i++;
+        } else if (c == '"') {
+          quoted = false;
+        } else {
+          field.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    fields.add(field.toString());
+    return fields.toArray(new String[0]);
+  }
+}
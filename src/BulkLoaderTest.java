@@ -0,0 +1,221 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class BulkLoaderTest {
+
+  private MemoryKeyValueStore store;
+  private TableManagerImpl tableManager;
+  private RecordManager recordManager;
+
+  @Before
+  public void init() {
+    store = new MemoryKeyValueStore();
+    tableManager = new TableManagerImpl(store, new Subspace(Tuple.from("database")));
+    recordManager = new RecordManagerImpl(tableManager);
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(RecordManagerTest.EmployeeTableName,
+        RecordManagerTest.EmployeeTableAttributeNames, RecordManagerTest.EmployeeTableAttributeTypes,
+        RecordManagerTest.EmployeeTablePKAttributes));
+  }
+
+  private static List<TableRecord> employees(int count) {
+    List<TableRecord> records = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      records.add(new TableRecord().set("SSN", (long) i).set("Name", "Employee" + i).set("Salary", i * 10.0));
+    }
+    return records;
+  }
+
+  @Test
+  public void loadCsvTest() throws IOException {
+    Path file = Files.createTempFile("employees", ".csv");
+    try {
+      StringBuilder csv = new StringBuilder("SSN,Name,Salary\n");
+      for (int i = 0; i < 1000; i++) {
+        csv.append(i).append(",\"Employee, ").append(i).append("\",").append(i * 10.0).append('\n');
+      }
+      csv.append("1000,No salary,\n");
+      csv.append("abc,Bad key,1.0\n");
+      Files.write(file, csv.toString().getBytes(StandardCharsets.UTF_8));
+
+      BulkLoader.LoadResult result = new BulkLoader(tableManager, RecordManagerTest.EmployeeTableName)
+          .setWorkerCount(4).setBatchRows(64).loadCsv("employees.csv", file);
+      assertEquals(StatusCode.SUCCESS, result.getStatus());
+      assertEquals(1001, result.getRowsLoaded());
+      assertEquals(1, result.getRowsRejected());
+      assertEquals("row 1001: ATTRIBUTE_TYPE_MISMATCH", result.getRejections().get(0));
+    }
+    finally {
+      Files.delete(file);
+    }
+
+    assertEquals(new TableRecord().set("SSN", 17L).set("Name", "Employee, 17").set("Salary", 170.0),
+        recordManager.getRecord(RecordManagerTest.EmployeeTableName, 17));
+    assertEquals(new TableRecord().set("SSN", 1000L).set("Name", "No salary"),
+        recordManager.getRecord(RecordManagerTest.EmployeeTableName, 1000));
+  }
+
+  @Test
+  public void resumeTest() {
+    List<TableRecord> records = employees(1000);
+    BulkLoader loader = new BulkLoader(tableManager, RecordManagerTest.EmployeeTableName)
+        .setWorkerCount(2).setBatchRows(50);
+
+    // The input fails half way through
+    Iterator<TableRecord> all = records.iterator();
+    Iterator<TableRecord> failing = new Iterator<TableRecord>() {
+      int returned = 0;
+
+      @Override
+      public boolean hasNext() {
+        return true;
+      }
+
+      @Override
+      public TableRecord next() {
+        if (returned++ == 520) {
+          throw new IllegalStateException("input failure");
+        }
+        return all.next();
+      }
+    };
+    try {
+      loader.load("employees", failing);
+      fail("the load should fail with its input");
+    }
+    catch(IllegalStateException e) {
+      assertEquals("input failure", e.getMessage());
+    }
+    assertTrue(recordManager.getRecord(RecordManagerTest.EmployeeTableName, 0) != null);
+
+    // The batches filled before the failure were committed
+    BulkLoader.LoadResult result = loader.load("employees", records.iterator());
+    assertEquals(500, result.getRowsSkipped());
+    assertEquals(500, result.getRowsLoaded());
+    for (TableRecord record : records) {
+      assertEquals(record, recordManager.getRecord(RecordManagerTest.EmployeeTableName, record.get("SSN")));
+    }
+
+    // The completed load left no progress behind, so loading again writes every row
+    assertEquals(1000, loader.load("employees", records.iterator()).getRowsLoaded());
+  }
+
+  /**
+   * @return the records, running the change on the loading thread before the given row
+   */
+  private static Iterator<TableRecord> changing(List<TableRecord> records, int row, Runnable change) {
+    Iterator<TableRecord> all = records.iterator();
+    return new Iterator<TableRecord>() {
+      int returned = 0;
+
+      @Override
+      public boolean hasNext() {
+        return all.hasNext();
+      }
+
+      @Override
+      public TableRecord next() {
+        if (returned++ == row) {
+          change.run();
+        }
+        return all.next();
+      }
+    };
+  }
+
+  @Test
+  public void schemaChangeTest() throws IOException {
+    List<TableRecord> records = employees(1000);
+    BulkLoader loader = new BulkLoader(tableManager, RecordManagerTest.EmployeeTableName)
+        .setWorkerCount(2).setBatchRows(50);
+
+    // A new dictionary and a record upgrade leave the encoding of the records as it was
+    BulkLoader.LoadResult result = loader.load("employees", changing(records, 500, () -> {
+      new DictionaryTrainer(tableManager, RecordManagerTest.EmployeeTableName).train();
+      new RecordUpgrader(tableManager, RecordManagerTest.EmployeeTableName).upgrade();
+    }));
+    assertEquals(1000, result.getRowsLoaded());
+    for (TableRecord record : records) {
+      assertEquals(record, recordManager.getRecord(RecordManagerTest.EmployeeTableName, record.get("SSN")));
+    }
+
+    try {
+      loader.load("again", changing(records, 500, () -> assertEquals(StatusCode.SUCCESS,
+          tableManager.addAttribute(RecordManagerTest.EmployeeTableName, "Age", AttributeType.INT))));
+      fail("the load should fail when an attribute is added");
+    }
+    catch(CompletionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+
+    // Fields are parsed with the current schema, not with one cached before another client added
+    // the attribute
+    tableManager.listTables();
+    TableManagerImpl other = new TableManagerImpl(store, new Subspace(Tuple.from("database")));
+    assertEquals(StatusCode.SUCCESS, other.addAttribute(RecordManagerTest.EmployeeTableName, "Level", AttributeType.INT));
+    Path file = Files.createTempFile("levels", ".csv");
+    try {
+      Files.write(file, "SSN,Level\n1,5\n".getBytes(StandardCharsets.UTF_8));
+      result = loader.loadCsv("levels.csv", file);
+      assertEquals(1, result.getRowsLoaded());
+      assertEquals(0, result.getRowsRejected());
+    }
+    finally {
+      Files.delete(file);
+    }
+    assertEquals(5L, recordManager.getRecord(RecordManagerTest.EmployeeTableName, 1).get("Level"));
+  }
+
+  @Test
+  public void duplicateKeyTest() {
+    assertEquals(StatusCode.SUCCESS, tableManager.createIndex(RecordManagerTest.EmployeeTableName, "ByName",
+        new String[]{"Name"}));
+    assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(RecordManagerTest.EmployeeTableName,
+        new TableRecord().set("SSN", 2L).set("Name", "x")));
+    List<TableRecord> records = new ArrayList<>();
+    records.add(new TableRecord().set("SSN", 1L).set("Name", "a"));
+    records.add(new TableRecord().set("SSN", 2L).set("Name", "c"));
+    records.add(new TableRecord().set("SSN", 1L).set("Name", "b"));
+    records.add(new TableRecord().set("SSN", 2L).set("Name", "d"));
+    BulkLoader.LoadResult result = new BulkLoader(tableManager, RecordManagerTest.EmployeeTableName)
+        .load("duplicates", records.iterator());
+    assertEquals(StatusCode.SUCCESS, result.getStatus());
+    assertEquals(4, result.getRowsLoaded());
+
+    // The last record with a primary key replaces the others, and only it is indexed and counted
+    assertEquals(2, tableManager.getTableStatistics(RecordManagerTest.EmployeeTableName).getRowCount());
+    for (String name : new String[]{"a", "c", "x"}) {
+      assertTrue(recordManager.findRecords(RecordManagerTest.EmployeeTableName, new String[]{"Name"},
+          new Object[]{name}).isEmpty());
+    }
+    List<TableRecord> found = recordManager.findRecords(RecordManagerTest.EmployeeTableName, new String[]{"Name"},
+        new Object[]{"b"});
+    assertEquals(1, found.size());
+    assertEquals(new TableRecord().set("SSN", 1L).set("Name", "b"), found.get(0));
+    assertEquals(new TableRecord().set("SSN", 2L).set("Name", "d"),
+        recordManager.getRecord(RecordManagerTest.EmployeeTableName, 2L));
+    assertEquals(1, recordManager.findRecords(RecordManagerTest.EmployeeTableName, new String[]{"Name"},
+        new Object[]{"d"}).size());
+  }
+
+  @Test
+  public void missingTableTest() {
+    assertEquals(StatusCode.TABLE_NOT_FOUND,
+        new BulkLoader(tableManager, "Department").load("departments", employees(1).iterator()).getStatus());
+  }
+}
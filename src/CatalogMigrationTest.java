@@ -0,0 +1,83 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class CatalogMigrationTest {
+
+  private AsyncTableManagerImpl tableManager;
+  // The subdirectories of the legacy root directory, and the schemas kept in them
+  private List<String> directories;
+  private Map<String, TableSchema> schemas;
+  private volatile boolean corrupt;
+
+  @Before
+  public void init() {
+    tableManager = new AsyncTableManagerImpl(new MemoryKeyValueStore(), new Subspace(Tuple.from("database")));
+    directories = Collections.synchronizedList(new ArrayList<>(Arrays.asList("Employee", "Department")));
+    schemas = new HashMap<>();
+    schemas.put("Employee", TableSchema.of(new String[]{"SSN", "Name"},
+        new AttributeType[]{AttributeType.INT, AttributeType.VARCHAR}, new String[]{"SSN"}));
+    schemas.put("Department", TableSchema.of(new String[]{"Dno", "DName"},
+        new AttributeType[]{AttributeType.INT, AttributeType.VARCHAR}, new String[]{"Dno"}));
+  }
+
+  private AsyncTableManagerImpl.LegacyDirectories legacyDirectories() {
+    return new AsyncTableManagerImpl.LegacyDirectories() {
+      @Override
+      public List<String> list() {
+        return new ArrayList<>(directories);
+      }
+
+      @Override
+      public TableSchema readSchema(KeyValueTransaction tr, String tableName) {
+        if (corrupt && tableName.equals("Department")) {
+          throw new IllegalArgumentException("unknown attribute type");
+        }
+        return schemas.get(tableName);
+      }
+
+      @Override
+      public void remove(KeyValueTransaction tr, List<String> names) {
+        directories.removeAll(names);
+      }
+    };
+  }
+
+  @Test
+  public void failedMigrationTest() {
+    corrupt = true;
+    try {
+      tableManager.migrateCatalog(legacyDirectories());
+      throw new AssertionError("expected the migration to fail");
+    }
+    catch(RuntimeException e) {
+      // The Department schema cannot be read
+    }
+    // The legacy directories are kept while the catalog is not migrated
+    assertFalse(tableManager.scheduleLegacyCleanup(legacyDirectories()).join());
+    assertEquals(Arrays.asList("Employee", "Department"), directories);
+
+    // Once the migration succeeds they are removed
+    corrupt = false;
+    tableManager.migrateCatalog(legacyDirectories());
+    Map<String, TableMetadata> tables = tableManager.listTables().join();
+    assertEquals(2, tables.size());
+    assertEquals(schemas.get("Employee").toTableMetadata(), tables.get("Employee"));
+    assertEquals(schemas.get("Department").toTableMetadata(), tables.get("Department"));
+    assertTrue(tableManager.scheduleLegacyCleanup(legacyDirectories()).join());
+    assertTrue(directories.isEmpty());
+  }
+}
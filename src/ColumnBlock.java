@@ -0,0 +1,324 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.apple.foundationdb.tuple.Tuple;
+
+/**
+ * ColumnBlock encodes the values one attribute has in the records of a block of a columnar table,
+ * see {ColumnStore}, in record order:
+ *   format                       1 byte: LONGS, DOUBLES, STRINGS or DICTIONARY
+ *   record count                 varint
+ *   presence bitmap              (record count + 7) / 8 bytes, bit r set if record r has a value
+ *   LONGS:       minimum         8 bytes
+ *                width           1 byte
+ *                for each value: value - minimum in width bytes
+ *   DOUBLES:     for each value: the IEEE 754 bits in 8 bytes
+ *   STRINGS:     for each value: varint length, UTF-8
+ *   DICTIONARY:  entry count     varint
+ *                for each entry, in sorted order: varint length, UTF-8
+ *                for each value: the index of its entry in 1 byte, or in 2 bytes with more than
+ *                256 entries
+ * Numbers are big-endian. INT values only take the bytes that the spread between the smallest and
+ * the largest value of the block needs, and VARCHAR values use a dictionary when at most half of
+ * them are distinct.
+ */
+class ColumnBlock {
+
+  static final byte LONGS = 0;
+  static final byte DOUBLES = 1;
+  static final byte STRINGS = 2;
+  static final byte DICTIONARY = 3;
+
+  private static final int MAX_DICTIONARY_ENTRIES = 1 << 16;
+
+  private ColumnBlock() {}
+
+  /**
+   * @param values the value of every record of the block, in the representation stored for the
+   *               type, or null
+   */
+  static byte[] encode(AttributeType type, Object[] values) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int count = 0;
+    byte[] present = new byte[(values.length + 7) / 8];
+    for (int r = 0; r < values.length; r++) {
+      if (values[r] != null) {
+        present[r / 8] |= (byte) (1 << (r % 8));
+        count++;
+      }
+    }
+
+    switch (type) {
+      case INT: {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (Object value : values) {
+          if (value != null) {
+            min = Math.min(min, (Long) value);
+            max = Math.max(max, (Long) value);
+          }
+        }
+        // The spread of values of opposite signs may overflow, it is then taken as unsigned
+        long spread = count == 0 ? 0 : max - min;
+        int width = (64 - Long.numberOfLeadingZeros(spread) + 7) / 8;
+        writeHeader(out, LONGS, values.length, present);
+        writeLong(out, count == 0 ? 0 : min, 8);
+        out.write(width);
+        for (Object value : values) {
+          if (value != null) {
+            writeLong(out, (Long) value - min, width);
+          }
+        }
+        break;
+      }
+      case DOUBLE:
+        writeHeader(out, DOUBLES, values.length, present);
+        for (Object value : values) {
+          if (value != null) {
+            writeLong(out, Double.doubleToRawLongBits((Double) value), 8);
+          }
+        }
+        break;
+      default: {
+        Map<String, Integer> entries = new HashMap<>();
+        for (Object value : values) {
+          if (value != null && entries.size() <= count / 2) {
+            entries.put((String) value, 0);
+          }
+        }
+        if (count == 0 || entries.size() > count / 2 || entries.size() > MAX_DICTIONARY_ENTRIES) {
+          writeHeader(out, STRINGS, values.length, present);
+          for (Object value : values) {
+            if (value != null) {
+              writeString(out, (String) value);
+            }
+          }
+          break;
+        }
+        writeHeader(out, DICTIONARY, values.length, present);
+        writeVarint(out, entries.size());
+        int index = 0;
+        for (String entry : new TreeMap<>(entries).keySet()) {
+          entries.put(entry, index++);
+          writeString(out, entry);
+        }
+        int width = entries.size() > 256 ? 2 : 1;
+        for (Object value : values) {
+          if (value != null) {
+            writeLong(out, entries.get(value), width);
+          }
+        }
+        break;
+      }
+    }
+    return out.toByteArray();
+  }
+
+  private static void writeHeader(ByteArrayOutputStream out, byte format, int count, byte[] present) {
+    out.write(format);
+    writeVarint(out, count);
+    out.write(present, 0, present.length);
+  }
+
+  private static void writeLong(ByteArrayOutputStream out, long value, int width) {
+    for (int i = width - 1; i >= 0; i--) {
+      out.write((int) (value >>> (8 * i)));
+    }
+  }
+
+  private static void writeString(ByteArrayOutputStream out, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeVarint(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  /**
+   * @return the value of every record of the block, or null for the records without one
+   */
+  static Object[] decode(byte[] bytes) {
+    Reader reader = new Reader(bytes);
+    Object[] values = new Object[reader.count];
+    switch (reader.format) {
+      case LONGS: {
+        long min = reader.readLong(8);
+        int width = reader.bytes[reader.offset++];
+        for (int r = 0; r < values.length; r++) {
+          if (reader.isPresent(r)) {
+            values[r] = min + reader.readLong(width);
+          }
+        }
+        break;
+      }
+      case DOUBLES:
+        for (int r = 0; r < values.length; r++) {
+          if (reader.isPresent(r)) {
+            values[r] = Double.longBitsToDouble(reader.readLong(8));
+          }
+        }
+        break;
+      case STRINGS:
+        for (int r = 0; r < values.length; r++) {
+          if (reader.isPresent(r)) {
+            values[r] = reader.readString();
+          }
+        }
+        break;
+      default: {
+        String[] entries = new String[reader.readVarint()];
+        for (int e = 0; e < entries.length; e++) {
+          entries[e] = reader.readString();
+        }
+        int width = entries.length > 256 ? 2 : 1;
+        for (int r = 0; r < values.length; r++) {
+          if (reader.isPresent(r)) {
+            values[r] = entries[(int) reader.readLong(width)];
+          }
+        }
+        break;
+      }
+    }
+    return values;
+  }
+
+  /**
+   * @return the number of records of a column block
+   */
+  static int count(byte[] column) {
+    return new Reader(column).count;
+  }
+
+  /**
+   * The values of a column block packed as tuple elements, as {TupleBytes} reads them: the value of
+   * record r is the element in [offsets[r], offsets[r + 1]) of bytes, a null element for the
+   * records without a value.
+   */
+  static class Elements {
+    final byte[] bytes;
+    final int[] offsets;
+
+    Elements(byte[] bytes, int[] offsets) {
+      this.bytes = bytes;
+      this.offsets = offsets;
+    }
+  }
+
+  /**
+   * Packs the values of a column block as tuple elements. Numbers are packed without building
+   * objects, and every entry of a dictionary is packed once.
+   */
+  static Elements elements(byte[] column) {
+    Reader reader = new Reader(column);
+    int[] offsets = new int[reader.count + 1];
+    if (reader.format == LONGS || reader.format == DOUBLES) {
+      long min = reader.format == LONGS ? reader.readLong(8) : 0;
+      int width = reader.format == LONGS ? reader.bytes[reader.offset++] : 8;
+      byte[] bytes = new byte[9 * reader.count];
+      int offset = 0;
+      for (int r = 0; r < reader.count; r++) {
+        offsets[r] = offset;
+        if (!reader.isPresent(r)) {
+          bytes[offset++] = TupleBytes.NULL;
+        } else if (reader.format == LONGS) {
+          offset = TupleBytes.encodeLong(bytes, offset, min + reader.readLong(width));
+        } else {
+          offset = TupleBytes.encodeDouble(bytes, offset, Double.longBitsToDouble(reader.readLong(8)));
+        }
+      }
+      offsets[reader.count] = offset;
+      return new Elements(bytes, offsets);
+    }
+
+    byte[][] entries = null;
+    if (reader.format == DICTIONARY) {
+      entries = new byte[reader.readVarint()][];
+      for (int e = 0; e < entries.length; e++) {
+        entries[e] = Tuple.from(reader.readString()).pack();
+      }
+    }
+    int width = entries != null && entries.length > 256 ? 2 : 1;
+    byte[][] packed = new byte[reader.count][];
+    int size = 0;
+    for (int r = 0; r < reader.count; r++) {
+      if (!reader.isPresent(r)) {
+        packed[r] = new byte[]{TupleBytes.NULL};
+      } else if (entries != null) {
+        packed[r] = entries[(int) reader.readLong(width)];
+      } else {
+        packed[r] = Tuple.from(reader.readString()).pack();
+      }
+      size += packed[r].length;
+    }
+    byte[] bytes = new byte[size];
+    int offset = 0;
+    for (int r = 0; r < reader.count; r++) {
+      offsets[r] = offset;
+      System.arraycopy(packed[r], 0, bytes, offset, packed[r].length);
+      offset += packed[r].length;
+    }
+    offsets[reader.count] = offset;
+    return new Elements(bytes, offsets);
+  }
+
+  /**
+   * Reads a column block after its header.
+   */
+  private static class Reader {
+    final byte[] bytes;
+    final byte format;
+    final int count;
+    // Offset of the presence bitmap
+    final int present;
+    int offset;
+
+    Reader(byte[] bytes) {
+      this.bytes = bytes;
+      this.format = bytes[0];
+      this.offset = 1;
+      this.count = readVarint();
+      this.present = offset;
+      this.offset += (count + 7) / 8;
+    }
+
+    boolean isPresent(int r) {
+      return (bytes[present + r / 8] & (1 << (r % 8))) != 0;
+    }
+
+    long readLong(int width) {
+      long value = 0;
+      for (int i = 0; i < width; i++) {
+        value = (value << 8) | (bytes[offset++] & 0xff);
+      }
+      return value;
+    }
+
+    int readVarint() {
+      int value = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = bytes[offset++];
+        value |= (b & 0x7f) << shift;
+        shift += 7;
+      } while (b < 0);
+      return value;
+    }
+
+    String readString() {
+      int length = readVarint();
+      String value = new String(bytes, offset, length, StandardCharsets.UTF_8);
+      offset += length;
+      return value;
+    }
+  }
+}
@@ -0,0 +1,356 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.StreamingMode;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+import com.apple.foundationdb.tuple.Tuple;
+
+/**
+ * ColumnStore keeps the records of a table created with {StorageMode#COLUMNAR}. The records are
+ * grouped into blocks of consecutive primary keys, and each attribute of a block is stored in its
+ * own key-value under the table's subspace:
+ *   ("blocks", first primary key) -> (primary key length, primary key values of every record, ...)
+ *   ("columns", attribute id, first primary key) -> values of the attribute, see {ColumnBlock}
+ * A block holds the records from its first primary key up to the first primary key of the next
+ * block. The column blocks of an attribute are contiguous, so a scan reads each attribute it needs
+ * with one range read and never reads the others. A dropped attribute is removed by clearing its
+ * range, and a block where no record has a value for an attribute, such as one added after the
+ * block was written, has no column block for it.
+ *
+ * A record write reads the block holding the record with all its columns and writes back the
+ * key-values that changed. A block that grows past MAX_BLOCK_ROWS records, or one of whose
+ * key-values grows past MAX_BLOCK_BYTES, is split in halves, and an empty block is removed. Since
+ * writes to records of the same block conflict, columnar tables are meant to be loaded in bulk and
+ * scanned rather than written a record at a time.
+ */
+class ColumnStore {
+
+  static final int MAX_BLOCK_ROWS = 1024;
+  // FDB rejects values above 100KB
+  static final int MAX_BLOCK_BYTES = 90_000;
+
+  private ColumnStore() {}
+
+  /**
+   * One block as read by a transaction: its key-value in the blocks subspace and the column blocks
+   * of the attributes it was read for.
+   */
+  static class Block {
+    // Null for the empty block the first record of a table goes to
+    final KeyValue keys;
+    // Column block of each attribute id the block was read for, or null if the block has none
+    final KeyValue[] columns;
+    // Key of the next block, or null if this is the last block or the next one was not read
+    final byte[] next;
+
+    Block(KeyValue keys, KeyValue[] columns, byte[] next) {
+      this.keys = keys;
+      this.columns = columns;
+      this.next = next;
+    }
+
+    /**
+     * @return the primary keys of the records, in order
+     */
+    List<Tuple> primaryKeys() {
+      List<Tuple> primaryKeys = new ArrayList<>();
+      if (keys == null) {
+        return primaryKeys;
+      }
+      List<Object> values = Tuple.fromBytes(keys.getValue()).getItems();
+      int width = ((Long) values.get(0)).intValue();
+      for (int start = 1; start + width <= values.size(); start += width) {
+        primaryKeys.add(Tuple.fromList(values.subList(start, start + width)));
+      }
+      return primaryKeys;
+    }
+
+    /**
+     * @return the records of a block read with the columns of {#columnIds}, in primary key order
+     */
+    List<TableRecord> records(TableSchema schema) {
+      List<TableRecord> records = new ArrayList<>();
+      for (Tuple primaryKey : primaryKeys()) {
+        TableRecord record = new TableRecord();
+        for (int k = 0; k < schema.getPrimaryKeyCount() && k < primaryKey.size(); k++) {
+          record.set(schema.getAttributeName(schema.getPrimaryKeyIndex(k)), primaryKey.get(k));
+        }
+        records.add(record);
+      }
+      for (int i = 0; i < columns.length; i++) {
+        if (columns[i] == null) {
+          continue;
+        }
+        Object[] values = ColumnBlock.decode(columns[i].getValue());
+        for (int r = 0; r < values.length && r < records.size(); r++) {
+          if (values[r] != null) {
+            records.get(r).set(schema.getAttributeName(i), values[r]);
+          }
+        }
+      }
+      return records;
+    }
+  }
+
+  /**
+   * @return the attribute id of every attribute of the schema, by attribute index, or -1 for the
+   * primary key attributes, whose values are kept with the keys of the blocks
+   */
+  static int[] columnIds(TableSchema schema) {
+    int[] ids = new int[schema.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = schema.getPrimaryKeyPosition(i) >= 0 ? -1 : schema.getAttributeId(i);
+    }
+    return ids;
+  }
+
+  /**
+   * Reads the column blocks of consecutive blocks with one range read per attribute.
+   *
+   * @param keys the key-values of the blocks, in key order
+   * @param attributeIds the attributes to read; -1 reads nothing
+   */
+  static CompletableFuture<List<Block>> readColumns(KeyValueTransaction tr, TableSubspaces subspaces, List<KeyValue> keys,
+                                                    int[] attributeIds) {
+    if (keys.isEmpty()) {
+      return CompletableFuture.completedFuture(new ArrayList<>());
+    }
+    int prefix = subspaces.getBlocks().getKey().length;
+    byte[] first = Arrays.copyOfRange(keys.get(0).getKey(), prefix, keys.get(0).getKey().length);
+    byte[] lastKey = keys.get(keys.size() - 1).getKey();
+    byte[] last = Arrays.copyOfRange(lastKey, prefix, lastKey.length);
+
+    List<CompletableFuture<List<KeyValue>>> reads = new ArrayList<>();
+    for (int attributeId : attributeIds) {
+      if (attributeId < 0) {
+        reads.add(CompletableFuture.completedFuture(Collections.emptyList()));
+        continue;
+      }
+      byte[] column = subspaces.getColumn(attributeId).getKey();
+      reads.add(tr.getRange(ByteArrayUtil.join(column, first), ByteArrayUtil.join(column, last, new byte[]{0}), 0,
+              false, StreamingMode.WANT_ALL).asList());
+    }
+    return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).thenApply(ignore -> {
+      KeyValue[][] columns = new KeyValue[keys.size()][attributeIds.length];
+      for (int j = 0; j < attributeIds.length; j++) {
+        int columnPrefix = attributeIds[j] < 0 ? 0 : subspaces.getColumn(attributeIds[j]).getKey().length;
+        // Both are in primary key order, and every column block belongs to a block
+        int b = 0;
+        for (KeyValue column : reads.get(j).join()) {
+          while (b < keys.size() && compareSuffixes(keys.get(b).getKey(), prefix, column.getKey(), columnPrefix) < 0) {
+            b++;
+          }
+          if (b < keys.size() && compareSuffixes(keys.get(b).getKey(), prefix, column.getKey(), columnPrefix) == 0) {
+            columns[b][j] = column;
+          }
+        }
+      }
+      List<Block> blocks = new ArrayList<>();
+      for (int b = 0; b < keys.size(); b++) {
+        blocks.add(new Block(keys.get(b), columns[b], null));
+      }
+      return blocks;
+    });
+  }
+
+  /**
+   * Compares the primary keys a block key and a column block key end with.
+   */
+  private static int compareSuffixes(byte[] a, int aStart, byte[] b, int bStart) {
+    int length = Math.min(a.length - aStart, b.length - bStart);
+    for (int i = 0; i < length; i++) {
+      int cmp = Integer.compare(a[aStart + i] & 0xff, b[bStart + i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return Integer.compare(a.length - aStart, b.length - bStart);
+  }
+
+  /**
+   * Reads the block a record with the primary key belongs to, with all its columns: the last
+   * block whose first primary key is not after it, or the first block for a primary key before
+   * every block. The key of the following block is read too.
+   */
+  static CompletableFuture<Block> readBlock(KeyValueTransaction tr, TableSubspaces subspaces, TableSchema schema,
+                                            Tuple primaryKey) {
+    Range range = subspaces.getBlocks().range();
+    byte[] after = ByteArrayUtil.join(subspaces.getBlocks().pack(primaryKey), new byte[]{0});
+    CompletableFuture<List<KeyValue>> previous = tr.getRange(range.begin, after, 1, true, StreamingMode.WANT_ALL).asList();
+    CompletableFuture<List<KeyValue>> following = tr.getRange(after, range.end, 2, false, StreamingMode.WANT_ALL).asList();
+    int[] attributeIds = columnIds(schema);
+    return previous.thenCombine(following, (before, rest) -> {
+      if (!before.isEmpty()) {
+        return new Block(before.get(0), null, rest.isEmpty() ? null : rest.get(0).getKey());
+      }
+      if (!rest.isEmpty()) {
+        return new Block(rest.get(0), null, rest.size() > 1 ? rest.get(1).getKey() : null);
+      }
+      return new Block(null, new KeyValue[attributeIds.length], null);
+    }).thenCompose(block -> block.keys == null ? CompletableFuture.completedFuture(block)
+        : readColumns(tr, subspaces, Collections.singletonList(block.keys), attributeIds)
+            .thenApply(blocks -> new Block(block.keys, blocks.get(0).columns, block.next)));
+  }
+
+  /**
+   * @return future of the record with the primary key, or of null if there is none
+   */
+  static CompletableFuture<TableRecord> readRecord(KeyValueTransaction tr, TableSubspaces subspaces, TableSchema schema,
+                                                   Tuple primaryKey) {
+    return readBlock(tr, subspaces, schema, primaryKey).thenApply(block -> {
+      int row = Collections.binarySearch(block.primaryKeys(), primaryKey);
+      return row < 0 ? null : block.records(schema).get(row);
+    });
+  }
+
+  /**
+   * Replaces the records of a block read by readBlock() with the given ones, which must all belong
+   * to it, splitting it if it grows too large.
+   *
+   * @param primaryKeys the primary keys of the records, in order
+   * @param records the records, with all their values
+   * @return the change of the bytes stored for the table
+   */
+  static long write(KeyValueTransaction tr, TableSubspaces subspaces, TableSchema schema, Block block,
+                    List<Tuple> primaryKeys, List<TableRecord> records) {
+    Map<byte[], byte[]> stored = new TreeMap<>(ByteArrayUtil::compareUnsigned);
+    if (block.keys != null) {
+      stored.put(block.keys.getKey(), block.keys.getValue());
+    }
+    for (KeyValue column : block.columns) {
+      if (column != null) {
+        stored.put(column.getKey(), column.getValue());
+      }
+    }
+    Map<byte[], byte[]> written = new TreeMap<>(ByteArrayUtil::compareUnsigned);
+    encode(subspaces, schema, primaryKeys, records, 0, records.size(), written);
+
+    long bytes = 0;
+    for (Map.Entry<byte[], byte[]> entry : stored.entrySet()) {
+      if (!written.containsKey(entry.getKey())) {
+        tr.clear(entry.getKey());
+      }
+      bytes -= entry.getKey().length + entry.getValue().length;
+    }
+    for (Map.Entry<byte[], byte[]> entry : written.entrySet()) {
+      if (!Arrays.equals(entry.getValue(), stored.get(entry.getKey()))) {
+        tr.set(entry.getKey(), entry.getValue());
+      }
+      bytes += entry.getKey().length + entry.getValue().length;
+    }
+    return bytes;
+  }
+
+  /**
+   * Encodes the records in [from, to) as one block, or as several if they do not fit one.
+   */
+  private static void encode(TableSubspaces subspaces, TableSchema schema, List<Tuple> primaryKeys,
+                             List<TableRecord> records, int from, int to, Map<byte[], byte[]> written) {
+    if (from == to) {
+      return;
+    }
+    if (to - from > MAX_BLOCK_ROWS) {
+      encode(subspaces, schema, primaryKeys, records, from, (from + to) / 2, written);
+      encode(subspaces, schema, primaryKeys, records, (from + to) / 2, to, written);
+      return;
+    }
+
+    Tuple first = primaryKeys.get(from);
+    List<Object> keys = new ArrayList<>();
+    keys.add((long) first.size());
+    for (int r = from; r < to; r++) {
+      keys.addAll(primaryKeys.get(r).getItems());
+    }
+    Map<byte[], byte[]> block = new TreeMap<>(ByteArrayUtil::compareUnsigned);
+    block.put(subspaces.getBlocks().pack(first), Tuple.fromList(keys).pack());
+    for (int i = 0; i < schema.size(); i++) {
+      if (schema.getPrimaryKeyPosition(i) >= 0) {
+        continue;
+      }
+      Object[] values = new Object[to - from];
+      boolean present = false;
+      for (int r = from; r < to; r++) {
+        values[r - from] = records.get(r).get(schema.getAttributeName(i));
+        present |= values[r - from] != null;
+      }
+      if (present) {
+        block.put(subspaces.getColumn(schema.getAttributeId(i)).pack(first),
+                ColumnBlock.encode(schema.getAttributeType(i), values));
+      }
+    }
+
+    for (byte[] value : block.values()) {
+      if (value.length > MAX_BLOCK_BYTES && to - from > 1) {
+        encode(subspaces, schema, primaryKeys, records, from, (from + to) / 2, written);
+        encode(subspaces, schema, primaryKeys, records, (from + to) / 2, to, written);
+        return;
+      }
+    }
+    written.putAll(block);
+  }
+
+  /**
+   * Records read by readRecords(), with the key of each of them in the blocks subspace.
+   */
+  static class Records {
+    final List<byte[]> keys = new ArrayList<>();
+    final List<Tuple> primaryKeys = new ArrayList<>();
+    final List<TableRecord> records = new ArrayList<>();
+    // Key to continue from, or null if the table has no more records
+    byte[] next = null;
+  }
+
+  /**
+   * Reads the records whose key in the blocks subspace is not before from, in primary key order.
+   *
+   * @param limit the maximum number of records
+   */
+  static CompletableFuture<Records> readRecords(KeyValueTransaction tr, TableSubspaces subspaces, TableSchema schema,
+                                                byte[] from, int limit) {
+    Range range = subspaces.getBlocks().range();
+    // The block holding the first record starts at or before it
+    byte[] after = ByteArrayUtil.join(from, new byte[]{0});
+    return tr.getRange(range.begin, after, 1, true, StreamingMode.WANT_ALL).asList().thenCompose(previous ->
+        readRecords(tr, subspaces, schema, from, previous.isEmpty() ? from : previous.get(0).getKey(), limit,
+            new Records()));
+  }
+
+  private static CompletableFuture<Records> readRecords(KeyValueTransaction tr, TableSubspaces subspaces,
+                                                        TableSchema schema, byte[] from, byte[] start, int limit,
+                                                        Records read) {
+    int blockCount = limit / MAX_BLOCK_ROWS + 1;
+    byte[] end = subspaces.getBlocks().range().end;
+    return tr.getRange(start, end, blockCount, false, StreamingMode.WANT_ALL).asList().thenCompose(keys ->
+        readColumns(tr, subspaces, keys, columnIds(schema)).thenCompose(blocks -> {
+      for (Block block : blocks) {
+        List<Tuple> primaryKeys = block.primaryKeys();
+        List<TableRecord> records = block.records(schema);
+        for (int r = 0; r < records.size(); r++) {
+          byte[] key = subspaces.getBlocks().pack(primaryKeys.get(r));
+          if (ByteArrayUtil.compareUnsigned(key, from) < 0) {
+            continue;
+          }
+          read.keys.add(key);
+          read.primaryKeys.add(primaryKeys.get(r));
+          read.records.add(records.get(r));
+          if (read.records.size() == limit) {
+            read.next = ByteArrayUtil.join(key, new byte[]{0});
+            return CompletableFuture.completedFuture(read);
+          }
+        }
+      }
+      if (keys.size() < blockCount) {
+        return CompletableFuture.completedFuture(read);
+      }
+      byte[] next = ByteArrayUtil.join(keys.get(keys.size() - 1).getKey(), new byte[]{0});
+      return readRecords(tr, subspaces, schema, from, next, limit, read);
+    }));
+  }
+}
@@ -0,0 +1,314 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.StreamingMode;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class ColumnarTableTest {
+
+  private static final String RowTable = "Staff";
+  private static final String ColumnTable = "StaffColumns";
+  private static final String[] Departments = {"Engineering", "Finance", "Legal", "Sales"};
+  private static final String[] AttributeNames = {"Dept", "Id", "Name", "Age", "Salary"};
+  private static final AttributeType[] AttributeTypes = {AttributeType.VARCHAR, AttributeType.INT,
+      AttributeType.VARCHAR, AttributeType.INT, AttributeType.DOUBLE};
+
+  private TableManagerImpl tableManager;
+  private RecordManager recordManager;
+  private List<TableRecord> records;
+
+  @Before
+  public void init() {
+    tableManager = new TableManagerImpl(new MemoryKeyValueStore(), new Subspace(Tuple.from("database")));
+    recordManager = new RecordManagerImpl(tableManager);
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(RowTable, AttributeNames, AttributeTypes,
+        new String[]{"Dept", "Id"}));
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(ColumnTable, AttributeNames, AttributeTypes,
+        new String[]{"Dept", "Id"}, StorageMode.COLUMNAR));
+
+    Random random = new Random(42);
+    records = new ArrayList<>();
+    for (int i = 0; i < 6000; i++) {
+      TableRecord record = new TableRecord().set("Dept", Departments[i % Departments.length]).set("Id", (long) i - 1000)
+          .set("Name", "Employee" + i).set("Salary", random.nextInt(200_000) - 1000.5);
+      if (i % 7 != 0) {
+        record.set("Age", (long) (20 + random.nextInt(45)));
+      }
+      records.add(record);
+    }
+  }
+
+  private void load() {
+    new BulkLoader(tableManager, RowTable).load("staff", records.iterator());
+    new BulkLoader(tableManager, ColumnTable).setBatchRows(1500).load("staff", records.iterator());
+  }
+
+  private TableSubspaces subspaces(String tableName) {
+    return tableManager.getAsyncTableManagerImpl().tableSubspaces(tableName);
+  }
+
+  /**
+   * @return the key-values of the blocks and of the columns of the columnar table
+   */
+  private List<KeyValue> stored() {
+    TableSubspaces subspaces = subspaces(ColumnTable);
+    return tableManager.getAsyncTableManagerImpl().run(tr -> {
+      List<KeyValue> keyvalues = new ArrayList<>(tr.getRange(subspaces.getBlocks().range()).asList().join());
+      keyvalues.addAll(tr.getRange(subspaces.getColumns().range()).asList().join());
+      return keyvalues;
+    });
+  }
+
+  private void assertCounted() {
+    long bytes = 0;
+    long rows = 0;
+    for (KeyValue keyvalue : stored()) {
+      bytes += keyvalue.getKey().length + keyvalue.getValue().length;
+      if (subspaces(ColumnTable).getBlocks().contains(keyvalue.getKey())) {
+        List<Object> keys = Tuple.fromBytes(keyvalue.getValue()).getItems();
+        rows += (keys.size() - 1) / (Long) keys.get(0);
+        assertTrue(keys.size() - 1 <= 2 * ColumnStore.MAX_BLOCK_ROWS);
+      }
+    }
+    TableStatistics statistics = tableManager.getTableStatistics(ColumnTable);
+    assertEquals(rows, statistics.getRowCount());
+    assertEquals(bytes, statistics.getByteSize());
+  }
+
+  private static Map<Object, TableRecord> byId(List<TableRecord> records) {
+    Map<Object, TableRecord> result = new TreeMap<>();
+    for (TableRecord record : records) {
+      result.put(record.get("Id"), record);
+    }
+    return result;
+  }
+
+  private Map<Object, TableRecord> scan(String tableName) {
+    List<TableRecord> scanned = Collections.synchronizedList(new ArrayList<>());
+    long count = new TableScan(tableManager, tableName).setParallelism(3).setRowsPerTransaction(2000)
+        .forEach(scanned::add);
+    assertEquals(scanned.size(), count);
+    return byId(scanned);
+  }
+
+  private Map<Object, TableRecord> run(TableQuery query) {
+    Map<Object, TableRecord> results = new ConcurrentHashMap<>();
+    long count = query.setParallelism(3).setRowsPerTransaction(2000).forEach(record -> results.put(record.get("Id"), record));
+    assertEquals(results.size(), count);
+    return new TreeMap<>(results);
+  }
+
+  @Test
+  public void encodingTest() {
+    Random random = new Random(7);
+    byte[] bytes = new byte[9];
+    for (int i = 0; i < 1000; i++) {
+      long value = i < 4 ? new long[]{0, Long.MIN_VALUE, Long.MAX_VALUE, -1}[i] : random.nextLong() >> random.nextInt(64);
+      int end = TupleBytes.encodeLong(bytes, 0, value);
+      assertArrayEquals(Tuple.from(value).pack(), Arrays.copyOf(bytes, end));
+      double number = i < 3 ? new double[]{-0.0, Double.NEGATIVE_INFINITY, Double.NaN}[i] : random.nextGaussian() * 1e6;
+      end = TupleBytes.encodeDouble(bytes, 0, number);
+      assertArrayEquals(Tuple.from(number).pack(), Arrays.copyOf(bytes, end));
+    }
+
+    Object[][] columns = new Object[5][300];
+    AttributeType[] types = {AttributeType.INT, AttributeType.INT, AttributeType.DOUBLE, AttributeType.VARCHAR,
+        AttributeType.VARCHAR};
+    for (int r = 0; r < 300; r++) {
+      if (r % 5 != 0) {
+        columns[0][r] = 1000L + random.nextInt(200);
+        columns[1][r] = r % 2 == 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+        columns[2][r] = random.nextDouble();
+        columns[3][r] = "value\u0000" + r;
+        columns[4][r] = "entry" + random.nextInt(r < 150 ? 3 : 100);
+      }
+    }
+    byte[][] encoded = new byte[columns.length][];
+    for (int c = 0; c < columns.length; c++) {
+      encoded[c] = ColumnBlock.encode(types[c], columns[c]);
+      assertArrayEquals(columns[c], ColumnBlock.decode(encoded[c]));
+      assertEquals(300, ColumnBlock.count(encoded[c]));
+      ColumnBlock.Elements elements = ColumnBlock.elements(encoded[c]);
+      for (int r = 0; r < 300; r++) {
+        assertArrayEquals(Tuple.from(columns[c][r]).pack(), Arrays.copyOfRange(elements.bytes,
+            elements.offsets[r], elements.offsets[r + 1]));
+      }
+    }
+    // Values close to each other take one byte each, few distinct strings use a dictionary
+    assertTrue(encoded[0].length < 300 + 60);
+    assertEquals(ColumnBlock.DICTIONARY, encoded[4][0]);
+    assertEquals(ColumnBlock.STRINGS, encoded[3][0]);
+  }
+
+  @Test
+  public void recordTest() {
+    List<TableRecord> shuffled = new ArrayList<>(records.subList(0, 2500));
+    Collections.shuffle(shuffled, new Random(1));
+    for (TableRecord record : shuffled) {
+      assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(ColumnTable, record));
+    }
+    assertEquals(StatusCode.RECORD_ALREADY_EXISTS, recordManager.insertRecord(ColumnTable, records.get(3)));
+    assertCounted();
+    // The blocks were split as they grew
+    assertTrue(stored().size() > 3 * 4);
+
+    for (int i = 0; i < 2500; i += 97) {
+      TableRecord record = records.get(i);
+      assertEquals(record, recordManager.getRecord(ColumnTable, record.get("Dept"), record.get("Id")));
+    }
+    assertNull(recordManager.getRecord(ColumnTable, "Legal", 5000L));
+
+    TableRecord update = new TableRecord().set("Dept", "Finance").set("Id", -999L).set("Age", 99L);
+    assertEquals(StatusCode.SUCCESS, recordManager.updateRecord(ColumnTable, update));
+    TableRecord expected = new TableRecord();
+    expected.getValues().putAll(records.get(1).getValues());
+    expected.set("Age", 99L);
+    assertEquals(expected, recordManager.getRecord(ColumnTable, "Finance", -999L));
+    assertEquals(StatusCode.RECORD_NOT_FOUND, recordManager.updateRecord(ColumnTable,
+        new TableRecord().set("Dept", "Finance").set("Id", 5000L).set("Age", 1L)));
+
+    for (int i = 0; i < 2500; i += 2) {
+      TableRecord record = records.get(i);
+      assertEquals(StatusCode.SUCCESS, recordManager.deleteRecord(ColumnTable, record.get("Dept"), record.get("Id")));
+    }
+    assertEquals(StatusCode.RECORD_NOT_FOUND, recordManager.deleteRecord(ColumnTable, "Engineering", -1000L));
+    assertNull(recordManager.getRecord(ColumnTable, "Engineering", -1000L));
+    assertEquals(1250, scan(ColumnTable).size());
+    assertCounted();
+  }
+
+  @Test
+  public void readTest() {
+    load();
+    assertCounted();
+    Map<Object, TableRecord> expected = scan(RowTable);
+    assertEquals(records.size(), expected.size());
+    assertEquals(expected, scan(ColumnTable));
+
+    // A cursor resumed in the middle of a block
+    List<TableRecord> read = new ArrayList<>();
+    Cursor<TableRecord> cursor = recordManager.openRecordCursor(ColumnTable, 700, StreamingMode.ITERATOR, null);
+    for (int i = 0; i < 1900; i++) {
+      read.add(cursor.next());
+    }
+    cursor = recordManager.openRecordCursor(ColumnTable, 700, StreamingMode.ITERATOR, cursor.getContinuation());
+    while (cursor.hasNext()) {
+      read.add(cursor.next());
+    }
+    assertNull(cursor.getContinuation());
+    List<TableRecord> ordered = new ArrayList<>();
+    cursor = recordManager.openRecordCursor(RowTable, 1000, StreamingMode.ITERATOR, null);
+    while (cursor.hasNext()) {
+      ordered.add(cursor.next());
+    }
+    assertEquals(ordered, read);
+  }
+
+  @Test
+  public void queryTest() {
+    load();
+    String[] tables = {RowTable, ColumnTable};
+    List<Map<Object, TableRecord>> results = new ArrayList<>();
+    for (String table : tables) {
+      results.add(run(new TableQuery(tableManager, table)
+          .where(QueryPredicate.greaterThanOrEqualTo("Age", 40))
+          .where(QueryPredicate.lessThan("Salary", 50_000.0))
+          .select("Id", "Name")));
+      results.add(run(new TableQuery(tableManager, table)
+          .where(QueryPredicate.equalTo("Dept", "Legal"))
+          .where(QueryPredicate.greaterThan("Id", 1500))
+          .where(QueryPredicate.lessThanOrEqualTo("Id", 3002))));
+    }
+    assertTrue(results.get(0).size() > 100);
+    assertEquals(results.get(0), results.get(2));
+    assertTrue(results.get(1).size() > 100);
+    assertEquals(results.get(1), results.get(3));
+
+    List<List<TableRecord>> groups = new ArrayList<>();
+    for (String table : tables) {
+      groups.add(new TableQuery(tableManager, table).where(QueryPredicate.lessThan("Id", 4000)).groupBy("Dept")
+          .aggregate(Aggregate.count(), Aggregate.sum("Age"), Aggregate.min("Name"), Aggregate.max("Salary")));
+    }
+    assertEquals(Departments.length, groups.get(0).size());
+    assertEquals(groups.get(0), groups.get(1));
+
+    // A projection reads the columns it needs only
+    Metrics metrics = tableManager.getMetrics();
+    metrics.setEnabled(true);
+    long[] bytesRead = new long[2];
+    for (int t = 0; t < tables.length; t++) {
+      metrics.reset();
+      assertEquals(records.size(), new TableQuery(tableManager, tables[t]).select("Age").count());
+      assertEquals(records.size(), run(new TableQuery(tableManager, tables[t]).select("Id", "Age")).size());
+      bytesRead[t] = metrics.get(Metrics.Operation.QUERY).getBytesRead();
+    }
+    assertTrue(bytesRead[1] < bytesRead[0] / 2);
+  }
+
+  @Test
+  public void schemaChangeTest() {
+    load();
+    assertEquals(StatusCode.SUCCESS, tableManager.addAttribute(ColumnTable, "Bonus", AttributeType.DOUBLE));
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAttribute(ColumnTable, "Name"));
+    new AttributePurger(tableManager, ColumnTable).setRowsPerTransaction(2000).purge();
+    assertTrue(tableManager.getAsyncTableManagerImpl().run(tr -> tr.getRange(subspaces(ColumnTable).getPurges().range())
+        .asList().join()).isEmpty());
+    assertCounted();
+
+    for (long id = -1000; id < -990; id++) {
+      assertEquals(StatusCode.SUCCESS, recordManager.updateRecord(ColumnTable,
+          new TableRecord().set("Dept", Departments[(int) (id + 1000) % Departments.length]).set("Id", id)
+              .set("Bonus", 10.0 * (id + 1000))));
+    }
+    Map<Object, TableRecord> results = run(new TableQuery(tableManager, ColumnTable)
+        .where(QueryPredicate.greaterThanOrEqualTo("Bonus", 50.0)));
+    assertEquals(5, results.size());
+    TableRecord expected = new TableRecord();
+    expected.getValues().putAll(records.get(5).getValues());
+    expected.getValues().remove("Name");
+    expected.set("Bonus", 50.0);
+    assertEquals(expected, results.get(-995L));
+    assertEquals(expected, recordManager.getRecord(ColumnTable, "Finance", -995L));
+    assertCounted();
+
+    // A new attribute with the name of a dropped one starts without values
+    assertEquals(StatusCode.SUCCESS, tableManager.addAttribute(ColumnTable, "Name", AttributeType.VARCHAR));
+    assertEquals(0, new TableQuery(tableManager, ColumnTable).where(QueryPredicate.greaterThan("Name", "")).count());
+  }
+
+  @Test
+  public void indexTest() {
+    load();
+    assertEquals(StatusCode.SUCCESS, tableManager.createIndex(ColumnTable, "ByAge", new String[]{"Age"}));
+    assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(ColumnTable,
+        new TableRecord().set("Dept", "Sales").set("Id", 9000L).set("Name", "New").set("Age", 33L)));
+    List<TableRecord> expected = new ArrayList<>();
+    for (TableRecord record : records) {
+      if (Long.valueOf(33).equals(record.get("Age"))) {
+        expected.add(record);
+      }
+    }
+    expected.add(recordManager.getRecord(ColumnTable, "Sales", 9000L));
+    assertEquals(byId(expected), byId(recordManager.findRecords(ColumnTable, new String[]{"Age"}, new Object[]{33L})));
+
+    TableStatistics statistics = new TableAnalyzer(tableManager, ColumnTable).setRowsPerTransaction(2000).analyze();
+    assertEquals(records.size() + 1, statistics.getRowCount());
+    assertEquals(records.size() + 1, statistics.getAnalyzedRowCount());
+  }
+}
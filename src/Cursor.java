@@ -0,0 +1,132 @@
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+import com.apple.foundationdb.tuple.Tuple;
+
+/**
+ * Cursor iterates over the results of a large read one batch at a time. Every batch is read in its
+ * own transaction, and the next batch is read while the current one is consumed, so results are
+ * returned as soon as the first batch is read and memory does not grow with the size of the read.
+ *
+ * getContinuation() returns an opaque token that resumes the read right after the last returned
+ * result, in a new cursor and a new transaction. Since the batches are read in different
+ * transactions, the cursor does not see a single snapshot of the data.
+ *
+ * A cursor is meant to be used by a single thread.
+ */
+public class Cursor<T> implements Iterator<T> {
+
+  private static final long TOKEN_VERSION = 1;
+
+  /**
+   * One batch of results. continuations holds, for each result, the key a read resuming right
+   * after it starts at.
+   */
+  static class Batch<T> {
+    final List<T> results;
+    final List<byte[]> continuations;
+    // Key the next batch starts at, or null if this is the last batch
+    final byte[] next;
+
+    Batch(List<T> results, List<byte[]> continuations, byte[] next) {
+      this.results = results;
+      this.continuations = continuations;
+      this.next = next;
+    }
+  }
+
+  /**
+   * Reads the batch of results starting at the given key.
+   */
+  interface BatchReader<T> {
+    CompletableFuture<Batch<T>> read(byte[] begin);
+  }
+
+  private final BatchReader<T> reader;
+  private Batch<T> batch = null;
+  private int position = 0;
+  private CompletableFuture<Batch<T>> nextBatch;
+  // Key the read resumes at after the last returned result
+  private byte[] resumeKey;
+
+  Cursor(BatchReader<T> reader, byte[] begin) {
+    this.reader = reader;
+    this.resumeKey = begin;
+    nextBatch = reader.read(begin);
+  }
+
+  /**
+   * @return the key a cursor created from the token starts at
+   * @throws IllegalArgumentException if the token was not created by a cursor over the range
+   */
+  static byte[] resumeKey(byte[] continuation, Range range) {
+    Tuple token;
+    try {
+      token = Tuple.fromBytes(continuation);
+    }
+    catch(RuntimeException e) {
+      throw new IllegalArgumentException("invalid continuation", e);
+    }
+    if (token.size() != 2 || !(token.get(0) instanceof Long) || token.getLong(0) != TOKEN_VERSION
+            || !(token.get(1) instanceof byte[])) {
+      throw new IllegalArgumentException("invalid continuation");
+    }
+    byte[] key = token.getBytes(1);
+    if (ByteArrayUtil.compareUnsigned(key, range.begin) < 0 || ByteArrayUtil.compareUnsigned(key, range.end) > 0) {
+      throw new IllegalArgumentException("continuation of another read");
+    }
+    return key;
+  }
+
+  /**
+   * @return future that completes with whether there is a next result, without blocking
+   */
+  public CompletableFuture<Boolean> onHasNext() {
+    if (batch != null && position < batch.results.size()) {
+      return CompletableFuture.completedFuture(true);
+    }
+    if (nextBatch == null) {
+      return CompletableFuture.completedFuture(false);
+    }
+    return nextBatch.thenCompose(read -> {
+      batch = read;
+      position = 0;
+      nextBatch = read.next == null ? null : reader.read(read.next);
+      if (read.results.isEmpty()) {
+        // Only the last batch may be empty, but a resumed read may also start at the end of a batch
+        resumeKey = read.next == null ? resumeKey : read.next;
+        return onHasNext();
+      }
+      return CompletableFuture.completedFuture(true);
+    });
+  }
+
+  @Override
+  public boolean hasNext() {
+    return onHasNext().join();
+  }
+
+  @Override
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    resumeKey = batch.continuations.get(position);
+    return batch.results.get(position++);
+  }
+
+  /**
+   * @return the token that resumes the read after the last result returned by next(), or null if
+   * there are no more results
+   */
+  public byte[] getContinuation() {
+    if (!hasNext()) {
+      return null;
+    }
+    return Tuple.from(TOKEN_VERSION, resumeKey).pack();
+  }
+}
@@ -0,0 +1,89 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * DdlBatch collects create/add/drop operations so that they can be applied together through
+ * {TableManager#applyBatch}. Operations are applied in the order they were added, and each one
+ * gets its own status code, exactly as if the corresponding TableManager method had been called.
+ */
+public class DdlBatch {
+
+  enum OperationType {
+    CREATE_TABLE,
+    ADD_ATTRIBUTE,
+    DROP_ATTRIBUTE
+  }
+
+  /**
+   * One operation of the batch. Only the fields used by its type are set.
+   */
+  static class Operation {
+    final OperationType type;
+    final String tableName;
+    final String[] attributeNames;
+    final AttributeType[] attributeTypes;
+    final String[] primaryKeyAttributeNames;
+
+    Operation(OperationType type, String tableName, String[] attributeNames, AttributeType[] attributeTypes,
+              String[] primaryKeyAttributeNames) {
+      this.type = type;
+      this.tableName = tableName;
+      this.attributeNames = attributeNames;
+      this.attributeTypes = attributeTypes;
+      this.primaryKeyAttributeNames = primaryKeyAttributeNames;
+    }
+
+    /**
+     * @return a rough estimate of the bytes this operation writes, used to split the batch into
+     * transactions
+     */
+    int estimatedSize() {
+      int size = 64 + 2 * tableName.length();
+      if (attributeNames != null) {
+        for (String attributeName : attributeNames) {
+          size += 32 + tableName.length() + (attributeName == null ? 0 : attributeName.length());
+        }
+      }
+      return size;
+    }
+  }
+
+  private final List<Operation> operations = new ArrayList<>();
+
+  /**
+   * Create a table with given name and attributes. See {TableManager#createTable}.
+   */
+  public DdlBatch createTable(String tableName, String[] attributeNames, AttributeType[] attributeTypes,
+                              String[] primaryKeyAttributeNames) {
+    operations.add(new Operation(OperationType.CREATE_TABLE, tableName, attributeNames, attributeTypes,
+            primaryKeyAttributeNames));
+    return this;
+  }
+
+  /**
+   * Add a new attribute to a table. See {TableManager#addAttribute}.
+   */
+  public DdlBatch addAttribute(String tableName, String attributeName, AttributeType attributeType) {
+    operations.add(new Operation(OperationType.ADD_ATTRIBUTE, tableName, new String[]{attributeName},
+            new AttributeType[]{attributeType}, null));
+    return this;
+  }
+
+  /**
+   * Drop an existing attribute in a table. See {TableManager#dropAttribute}.
+   */
+  public DdlBatch dropAttribute(String tableName, String attributeName) {
+    operations.add(new Operation(OperationType.DROP_ATTRIBUTE, tableName, new String[]{attributeName},
+            null, null));
+    return this;
+  }
+
+  public int size() {
+    return operations.size();
+  }
+
+  List<Operation> getOperations() {
+    return Collections.unmodifiableList(operations);
+  }
+}
@@ -0,0 +1,280 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.StreamingMode;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class DictionaryCompressionTest {
+
+  private static final String TableName = "Orders";
+  private static final String[] Regions = {"North America", "Europe, Middle East and Africa", "Asia Pacific"};
+  private static final String[] AttributeNames = {"Id", "Region", "Status", "Note", "Amount"};
+  private static final AttributeType[] AttributeTypes = {AttributeType.INT, AttributeType.VARCHAR,
+      AttributeType.VARCHAR, AttributeType.VARCHAR, AttributeType.DOUBLE};
+
+  private MemoryKeyValueStore store;
+  private TableManagerImpl tableManager;
+  private RecordManager recordManager;
+  private List<TableRecord> records;
+
+  @Before
+  public void init() {
+    store = new MemoryKeyValueStore();
+    tableManager = new TableManagerImpl(store, new Subspace(Tuple.from("database")));
+    recordManager = new RecordManagerImpl(tableManager);
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(TableName, AttributeNames, AttributeTypes,
+        new String[]{"Id"}));
+    records = new ArrayList<>();
+    for (int i = 0; i < 3000; i++) {
+      records.add(record(i));
+    }
+    new BulkLoader(tableManager, TableName).load("orders", records.iterator());
+  }
+
+  private static TableRecord record(long id) {
+    return new TableRecord().set("Id", id).set("Region", Regions[(int) id % Regions.length])
+        .set("Status", id % 5 == 0 ? "awaiting shipment confirmation" : "delivered to the customer")
+        .set("Note", "standard ground delivery, signature required on receipt #" + id)
+        .set("Amount", (id % 100) * 1.25);
+  }
+
+  private TableSubspaces subspaces() {
+    return tableManager.getAsyncTableManagerImpl().tableSubspaces(TableName);
+  }
+
+  private List<KeyValue> rawdata() {
+    return tableManager.getAsyncTableManagerImpl().run(tr -> tr.getRange(subspaces().getRawdata().range()).asList().join());
+  }
+
+  private long currentDictionary() {
+    return tableManager.getAsyncTableManagerImpl().run(tr ->
+        AsyncTableManagerImpl.readSchema(tr, subspaces()).join().getDictionaryId());
+  }
+
+  private Map<Object, TableRecord> scan(TableManagerImpl tableManager) {
+    List<TableRecord> scanned = Collections.synchronizedList(new ArrayList<>());
+    new TableScan(tableManager, TableName).setParallelism(3).setRowsPerTransaction(500).forEach(scanned::add);
+    Map<Object, TableRecord> result = new TreeMap<>();
+    for (TableRecord record : scanned) {
+      result.put(record.get("Id"), record);
+    }
+    return result;
+  }
+
+  private Map<Object, TableRecord> expected() {
+    Map<Object, TableRecord> result = new TreeMap<>();
+    for (TableRecord record : records) {
+      result.put(record.get("Id"), record);
+    }
+    return result;
+  }
+
+  @Test
+  public void codecTest() {
+    List<byte[]> values = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      values.add(Tuple.from(record(i).getValues().values().toArray()).pack());
+    }
+    byte[] dictionary = ValueCompression.train(values, 4096);
+    assertTrue(dictionary.length > 0 && dictionary.length <= 4096);
+    assertTrue(ValueCompression.train(values, 1 << 20).length <= ValueCompression.MAX_DICTIONARY_SIZE);
+
+    long id = 0x0102030405060708L;
+    byte[] value = values.get(7);
+    // Without the dictionary, values stay plain
+    assertSame(value, ValueCompression.compress(value, id + 1));
+    ValueCompression.load(store, Tuple.from("codec").pack(), id, dictionary);
+    byte[] compressed = ValueCompression.compress(value, id);
+    assertTrue(compressed.length < value.length / 2);
+    assertTrue(ValueCompression.isCompressed(compressed));
+    assertEquals(ValueCompression.COMPRESSED, compressed[0]);
+    assertEquals(id, ValueCompression.dictionaryId(compressed));
+    assertArrayEquals(value, ValueCompression.decompress(compressed));
+    assertFalse(ValueCompression.isCompressed(value));
+    assertEquals(0, ValueCompression.dictionaryId(value));
+    assertSame(value, ValueCompression.decompress(value));
+
+    // Values that do not get smaller and values larger than the buffers
+    byte[] small = Tuple.from(1L).pack();
+    assertSame(small, ValueCompression.compress(small, id));
+    StringBuilder large = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      large.append(i);
+    }
+    byte[] largeValue = Tuple.from(large.toString()).pack();
+    assertArrayEquals(largeValue, ValueCompression.decompress(ValueCompression.compress(largeValue, id)));
+
+    compressed[3] ^= 1;
+    assertNull(ValueCompression.decompress(compressed));
+  }
+
+  @Test
+  public void schemaTest() {
+    TableSchema schema = tableManager.listTables().get(TableName).getSchema();
+    assertEquals(0, schema.getDictionaryId());
+    byte[] encoded = schema.encode();
+    assertArrayEquals(encoded, TableSchema.decode(encoded).encode());
+    TableSchema compressed = schema.withDictionaryId(42);
+    assertEquals(42, TableSchema.decode(compressed.encode()).getDictionaryId());
+    assertEquals(encoded.length + 9, compressed.encode().length);
+    assertArrayEquals(encoded, TableSchema.decode(compressed.encode()).withDictionaryId(0).encode());
+  }
+
+  @Test
+  public void trainTest() {
+    long before = tableManager.getTableStatistics(TableName).getByteSize();
+    List<SchemaChange> changes = new ArrayList<>();
+    tableManager.changesSince(null).forEachRemaining(changes::add);
+    long id = new DictionaryTrainer(tableManager, TableName).setSampleSize(500).setDictionarySize(8 * 1024).train();
+    assertTrue(id > 0);
+    assertEquals(id, currentDictionary());
+    assertEquals(-1, new DictionaryTrainer(tableManager, "Missing").train());
+    // Training is a schema change: it is logged, and the cached catalog has it at once
+    assertEquals(id, tableManager.listTables().get(TableName).getSchema().getDictionaryId());
+    Cursor<SchemaChange> cursor = tableManager.changesSince(changes.get(changes.size() - 1).getVersionstamp());
+    SchemaChange change = cursor.next();
+    assertEquals(SchemaChange.Type.SET_DICTIONARY, change.getType());
+    assertEquals(TableName, change.getTableName());
+    assertFalse(cursor.hasNext());
+
+    // Records are compressed as they are written, and the existing ones by the upgrade pass
+    assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(TableName, record(5000)));
+    assertEquals(records.size(), new RecordUpgrader(tableManager, TableName).setRowsPerTransaction(700).upgrade());
+    assertEquals(0, new RecordUpgrader(tableManager, TableName).upgrade());
+    for (KeyValue keyvalue : rawdata()) {
+      assertEquals(id, ValueCompression.dictionaryId(keyvalue.getValue()));
+    }
+    long after = tableManager.getTableStatistics(TableName).getByteSize();
+    assertTrue(after < before * 2 / 3);
+
+    records.add(record(5000));
+    assertEquals(expected(), scan(tableManager));
+  }
+
+  @Test
+  public void recordTest() {
+    new DictionaryTrainer(tableManager, TableName).train();
+    new RecordUpgrader(tableManager, TableName).upgrade();
+    assertEquals(records.get(17), recordManager.getRecord(TableName, 17L));
+    assertEquals(StatusCode.RECORD_ALREADY_EXISTS, recordManager.insertRecord(TableName, record(17)));
+    TableRecord update = new TableRecord().set("Id", 17L).set("Status", "returned");
+    assertEquals(StatusCode.SUCCESS, recordManager.updateRecord(TableName, update));
+    records.get(17).set("Status", "returned");
+    assertEquals(records.get(17), recordManager.getRecord(TableName, 17L));
+    assertEquals(StatusCode.SUCCESS, recordManager.deleteRecord(TableName, 18L));
+    records.remove(18);
+    assertNull(recordManager.getRecord(TableName, 18L));
+
+    List<TableRecord> read = new ArrayList<>();
+    Cursor<TableRecord> cursor = recordManager.openRecordCursor(TableName, 400, StreamingMode.ITERATOR, null);
+    while (cursor.hasNext()) {
+      read.add(cursor.next());
+    }
+    assertEquals(new ArrayList<>(expected().values()), read);
+
+    assertEquals(StatusCode.SUCCESS, tableManager.createIndex(TableName, "ByStatus", new String[]{"Status"}));
+    assertEquals(1, recordManager.findRecords(TableName, new String[]{"Status"}, new Object[]{"returned"}).size());
+    assertEquals(600, recordManager.findRecords(TableName, new String[]{"Status"},
+        new Object[]{"awaiting shipment confirmation"}).size());
+
+    long count = new TableQuery(tableManager, TableName).where(QueryPredicate.equalTo("Region", Regions[1]))
+        .where(QueryPredicate.lessThan("Amount", 10.0)).setParallelism(2).count();
+    long expected = records.stream().filter(record -> Regions[1].equals(record.get("Region"))
+        && (Double) record.get("Amount") < 10.0).count();
+    assertEquals(expected, count);
+
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAttribute(TableName, "Note"));
+    new AttributePurger(tableManager, TableName).purge();
+    for (TableRecord record : records) {
+      record.getValues().remove("Note");
+    }
+    assertEquals(expected(), scan(tableManager));
+    // Purged records stay compressed
+    for (KeyValue keyvalue : rawdata()) {
+      byte[] value = ValueCompression.decompress(keyvalue.getValue());
+      assertTrue(ValueCompression.isCompressed(keyvalue.getValue()));
+      assertEquals(3, Tuple.fromBytes(value).size() - 1);
+    }
+  }
+
+  @Test
+  public void retrainTest() {
+    long first = new DictionaryTrainer(tableManager, TableName).train();
+    new RecordUpgrader(tableManager, TableName).upgrade();
+    List<TableRecord> more = new ArrayList<>();
+    for (int i = 3000; i < 4000; i++) {
+      more.add(record(i).set("Note", "express courier, leave at the door #" + i));
+    }
+    new BulkLoader(tableManager, TableName).load("more", more.iterator());
+    records.addAll(more);
+
+    // Records of every dictionary are read while the new one is trained
+    long second = new DictionaryTrainer(tableManager, TableName).train();
+    assertNotEquals(first, second);
+    assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(TableName, record(9000)));
+    records.add(record(9000));
+    assertEquals(expected(), scan(tableManager));
+
+    // A table manager that did not train the table
+    TableManagerImpl other = new TableManagerImpl(store, new Subspace(Tuple.from("database")));
+    assertEquals(records.get(5), new RecordManagerImpl(other).getRecord(TableName, 5L));
+    assertEquals(expected(), scan(other));
+
+    assertEquals(records.size() - 1, new RecordUpgrader(tableManager, TableName).upgrade());
+    for (KeyValue keyvalue : rawdata()) {
+      assertEquals(second, ValueCompression.dictionaryId(keyvalue.getValue()));
+    }
+  }
+
+  @Test
+  public void unloadTest() {
+    long id = new DictionaryTrainer(tableManager, TableName).train();
+    new RecordUpgrader(tableManager, TableName).upgrade();
+    assertTrue(ValueCompression.isLoaded(id));
+    // Another table of the same name in another store keeps its dictionaries
+    MemoryKeyValueStore otherStore = new MemoryKeyValueStore();
+    TableManagerImpl other = new TableManagerImpl(otherStore, new Subspace(Tuple.from("database")));
+    assertEquals(StatusCode.SUCCESS, other.createTable(TableName, AttributeNames, AttributeTypes, new String[]{"Id"}));
+    new BulkLoader(other, TableName).load("orders", records.iterator());
+    long otherId = new DictionaryTrainer(other, TableName).train();
+    new RecordUpgrader(other, TableName).upgrade();
+    assertTrue(ValueCompression.isLoaded(otherId));
+
+    // Dictionaries are unloaded with their table
+    assertEquals(StatusCode.SUCCESS, tableManager.deleteTable(TableName));
+    assertFalse(ValueCompression.isLoaded(id));
+    assertTrue(ValueCompression.isLoaded(otherId));
+    assertEquals(StatusCode.SUCCESS, other.dropAllTables());
+    assertFalse(ValueCompression.isLoaded(otherId));
+  }
+
+  @Test
+  public void columnarTest() {
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable("Columns", AttributeNames, AttributeTypes,
+        new String[]{"Id"}, StorageMode.COLUMNAR));
+    try {
+      new DictionaryTrainer(tableManager, "Columns").train();
+      throw new AssertionError("expected the columnar table to be refused");
+    }
+    catch(CompletionException e) {
+      assertTrue(e.getCause() instanceof IllegalArgumentException);
+    }
+  }
+}
@@ -0,0 +1,140 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.StreamingMode;
+import com.apple.foundationdb.tuple.Tuple;
+
+/**
+ * DictionaryTrainer trains a compression dictionary on a sample of the records of a row table and
+ * makes it the dictionary new record values are compressed with, see {ValueCompression}.
+ *
+ * The sample takes an equal share of at most sampleSize records from the start of every part of
+ * the table the store reports, so it spreads over the whole table without reading all of it. The
+ * table can be trained again at any time while it is written: the new dictionary gets a new id, and
+ * the dictionaries older values were compressed with are kept. Values are compressed as they are
+ * written; {RecordUpgrader} rewrites the records that are not compressed with the current
+ * dictionary.
+ */
+public class DictionaryTrainer {
+
+  private final AsyncTableManagerImpl tableManager;
+  private final String tableName;
+
+  private int sampleSize = 2000;
+  private int dictionarySize = 16 * 1024;
+
+  public DictionaryTrainer(TableManagerImpl tableManager, String tableName) {
+    this(tableManager.getAsyncTableManagerImpl(), tableName);
+  }
+
+  DictionaryTrainer(AsyncTableManagerImpl tableManager, String tableName) {
+    this.tableManager = tableManager;
+    this.tableName = tableName;
+  }
+
+  public DictionaryTrainer setSampleSize(int sampleSize) {
+    this.sampleSize = sampleSize;
+    return this;
+  }
+
+  /**
+   * Set the maximum size of the dictionary, at most 32KB
+   */
+  public DictionaryTrainer setDictionarySize(int dictionarySize) {
+    this.dictionarySize = dictionarySize;
+    return this;
+  }
+
+  /**
+   * Trains the dictionary and waits for it.
+   *
+   * @return the id of the new dictionary, or -1 if the table does not exist
+   */
+  public long train() {
+    return trainAsync().join();
+  }
+
+  /**
+   * Trains the dictionary.
+   *
+   * @return future of the id of the new dictionary, or of -1 if the table does not exist
+   * @throws IllegalArgumentException through the future if the table is columnar, since column
+   * blocks have encodings of their own
+   */
+  public CompletableFuture<Long> trainAsync() {
+    TableSubspaces subspaces = tableManager.tableSubspaces(tableName);
+    Range rawdata = subspaces.getRawdata().range();
+    return tableManager.measure(Metrics.Operation.MAINTENANCE, invocation ->
+        tableManager.getStore().getBoundaryKeys(rawdata.begin, rawdata.end).thenCompose(boundaries -> {
+          List<byte[]> starts = new ArrayList<>();
+          starts.add(rawdata.begin);
+          starts.addAll(boundaries);
+          int share = Math.max(1, sampleSize / starts.size());
+          List<CompletableFuture<List<byte[]>>> samples = new ArrayList<>();
+          for (byte[] start : starts) {
+            samples.add(tableManager.runAsync(invocation, tr -> sample(tr, subspaces, start, share)));
+          }
+          return CompletableFuture.allOf(samples.toArray(new CompletableFuture<?>[0])).thenCompose(ignore -> {
+            List<byte[]> values = new ArrayList<>();
+            for (CompletableFuture<List<byte[]>> sample : samples) {
+              values.addAll(sample.join());
+            }
+            byte[] dictionary = ValueCompression.train(values, dictionarySize);
+            return install(invocation, subspaces, dictionary, values.size());
+          });
+        }));
+  }
+
+  /**
+   * @return the plain values of at most count records from the start key on
+   */
+  private CompletableFuture<List<byte[]>> sample(KeyValueTransaction tr, TableSubspaces subspaces, byte[] start,
+                                                 int count) {
+    // Reading the schema loads the dictionaries of the values read with it
+    CompletableFuture<TableSchema> schema = AsyncTableManagerImpl.readSchema(tr, subspaces);
+    CompletableFuture<List<KeyValue>> rows = tr.getRange(start, subspaces.getRawdata().range().end, count, false,
+            StreamingMode.WANT_ALL).asList();
+    return schema.thenCombine(rows, (tableSchema, records) -> {
+      List<byte[]> values = new ArrayList<>();
+      for (KeyValue record : records) {
+        byte[] value = ValueCompression.decompress(record.getValue());
+        if (value != null) {
+          values.add(value);
+        }
+      }
+      return values;
+    });
+  }
+
+  /**
+   * Stores the dictionary under a new id and makes it the table's current one, as a DDL operation:
+   * the change is logged and the catalog cache invalidated.
+   */
+  private CompletableFuture<Long> install(Metrics.Invocation invocation, TableSubspaces subspaces, byte[] dictionary,
+                                          int sampled) {
+    // Positive, and 0 means no dictionary
+    long id = 0;
+    while (id == 0) {
+      id = new Random().nextLong() & Long.MAX_VALUE;
+    }
+    long dictionaryId = id;
+    return tableManager.runDdl(invocation, tr -> AsyncTableManagerImpl.readSchema(tr, subspaces).thenApply(schema -> {
+      if (schema == null) {
+        return StatusCode.TABLE_NOT_FOUND;
+      }
+      if (schema.getStorageMode() != StorageMode.ROW) {
+        throw new IllegalArgumentException("table " + tableName + " is not stored in rows");
+      }
+      tr.set(subspaces.getDictionaries().pack(Tuple.from(dictionaryId)),
+              Tuple.from(System.currentTimeMillis(), sampled, dictionary).pack());
+      AsyncTableManagerImpl.writeSchema(tr, subspaces, schema.withDictionaryId(dictionaryId));
+      tableManager.logChange(tr, 0, SchemaChange.dictionarySet(tableName));
+      tableManager.bumpCatalogVersion(tr);
+      return StatusCode.SUCCESS;
+    })).thenApply(status -> status == StatusCode.SUCCESS ? dictionaryId : -1L);
+  }
+}
@@ -0,0 +1,152 @@
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import com.apple.foundationdb.Database;
+import com.apple.foundationdb.FDB;
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.LocalityUtil;
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.StreamingMode;
+import com.apple.foundationdb.Transaction;
+import com.apple.foundationdb.async.AsyncIterable;
+import com.apple.foundationdb.async.AsyncUtil;
+import com.apple.foundationdb.async.CloseableAsyncIterator;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+
+/**
+ * FdbKeyValueStore implements {KeyValueStore} on a FoundationDB database.
+ */
+public class FdbKeyValueStore implements KeyValueStore {
+
+  private final Database db;
+
+  /**
+   * Open the database in the default cluster file
+   */
+  public FdbKeyValueStore() {
+    this(FDB.selectAPIVersion(710).open());
+  }
+
+  public FdbKeyValueStore(Database db) {
+    this.db = db;
+  }
+
+  public Database getDatabase() {
+    return db;
+  }
+
+  @Override
+  public KeyValueTransaction createTransaction() {
+    return new FdbTransaction(db.createTransaction());
+  }
+
+  @Override
+  public Executor getExecutor() {
+    return db.getExecutor();
+  }
+
+  /**
+   * Reads the shard boundaries of the range from the cluster's locality information.
+   */
+  @Override
+  public CompletableFuture<List<byte[]>> getBoundaryKeys(byte[] begin, byte[] end) {
+    CloseableAsyncIterator<byte[]> boundaries = LocalityUtil.getBoundaryKeys(db, begin, end);
+    return AsyncUtil.collectRemaining(boundaries).thenApply(keys -> {
+      // The first boundary is the start of the shard that contains begin
+      keys.removeIf(key -> ByteArrayUtil.compareUnsigned(key, begin) <= 0
+          || ByteArrayUtil.compareUnsigned(key, end) >= 0);
+      return keys;
+    }).whenComplete((keys, e) -> boundaries.close());
+  }
+
+  @Override
+  public void close() {
+    db.close();
+  }
+
+  /**
+   * FdbTransaction implements {KeyValueTransaction} by delegating to a FoundationDB transaction.
+   */
+  public static class FdbTransaction implements KeyValueTransaction {
+
+    private final Transaction tr;
+
+    FdbTransaction(Transaction tr) {
+      this.tr = tr;
+    }
+
+    /**
+     * @return the FoundationDB transaction, for layers such as the directory layer that need it
+     */
+    public Transaction getTransaction() {
+      return tr;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(byte[] key) {
+      return tr.get(key);
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(byte[] begin, byte[] end, int limit, boolean reverse, StreamingMode mode) {
+      return tr.getRange(begin, end, limit, reverse, mode);
+    }
+
+    @Override
+    public void set(byte[] key, byte[] value) {
+      tr.set(key, value);
+    }
+
+    @Override
+    public void clear(byte[] key) {
+      tr.clear(key);
+    }
+
+    @Override
+    public void clear(Range range) {
+      tr.clear(range);
+    }
+
+    @Override
+    public void mutate(MutationType type, byte[] key, byte[] param) {
+      tr.mutate(type, key, param);
+    }
+
+    @Override
+    public CompletableFuture<Void> watch(byte[] key) {
+      return tr.watch(key);
+    }
+
+    @Override
+    public CompletableFuture<Void> commit() {
+      return tr.commit();
+    }
+
+    @Override
+    public CompletableFuture<KeyValueTransaction> onError(Throwable e) {
+      return tr.onError(e).thenApply(FdbTransaction::new);
+    }
+
+    @Override
+    public void setRetryLimit(int retryLimit) {
+      tr.options().setRetryLimit(retryLimit);
+    }
+
+    @Override
+    public void setMaxRetryDelay(long milliseconds) {
+      tr.options().setMaxRetryDelay(milliseconds);
+    }
+
+    @Override
+    public void setTimeout(long milliseconds) {
+      tr.options().setTimeout(milliseconds);
+    }
+
+    @Override
+    public void close() {
+      tr.close();
+    }
+  }
+}
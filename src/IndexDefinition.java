@@ -0,0 +1,77 @@
+import java.util.Arrays;
+
+import com.apple.foundationdb.tuple.Tuple;
+
+/**
+ * IndexDefinition describes a secondary index of a table: the attributes it indexes, in index
+ * order, and whether it is ready to serve lookups.
+ *
+ * Definitions are kept in the table's metadata subspace and the entries in its index subspace:
+ *   ("tables", tableName, "metadata", "index", indexName) -> (state, attributeName, ...)
+ *   ("tables", tableName, "index", indexName, value, ..., primary key value, ...) -> ()
+ * Entries are written for an index as soon as it is defined, but lookups only use it once its
+ * backfill of the existing records is complete.
+ */
+public class IndexDefinition {
+
+  static final String BUILDING = "building";
+  static final String READY = "ready";
+
+  private final String name;
+  private final String[] attributeNames;
+  private final boolean ready;
+
+  IndexDefinition(String name, String[] attributeNames, boolean ready) {
+    this.name = name;
+    this.attributeNames = attributeNames;
+    this.ready = ready;
+  }
+
+  static IndexDefinition decode(String name, byte[] value) {
+    Tuple tuple = Tuple.fromBytes(value);
+    String[] attributeNames = new String[tuple.size() - 1];
+    for (int i = 0; i < attributeNames.length; i++) {
+      attributeNames[i] = tuple.getString(i + 1);
+    }
+    return new IndexDefinition(name, attributeNames, READY.equals(tuple.getString(0)));
+  }
+
+  byte[] encode() {
+    Tuple tuple = Tuple.from(ready ? READY : BUILDING);
+    for (String attributeName : attributeNames) {
+      tuple = tuple.add(attributeName);
+    }
+    return tuple.pack();
+  }
+
+  IndexDefinition asReady() {
+    return new IndexDefinition(name, attributeNames, true);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String[] getAttributeNames() {
+    return attributeNames;
+  }
+
+  public boolean isReady() {
+    return ready;
+  }
+
+  public boolean covers(String attributeName) {
+    return Arrays.asList(attributeNames).contains(attributeName);
+  }
+
+  /**
+   * @return the entry of the record in this index: the indexed values followed by the primary key
+   */
+  Tuple entry(TableRecord record, Tuple primaryKey) {
+    Tuple entry = new Tuple();
+    for (String attributeName : attributeNames) {
+      entry = entry.addObject(record.get(attributeName));
+    }
+    return entry.addAll(primaryKey);
+  }
+}
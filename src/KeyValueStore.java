@@ -0,0 +1,43 @@
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * KeyValueStore defines the ordered key-value storage that the table manager is written against.
+ * Keys are ordered by unsigned byte comparison, and all reads and writes go through
+ * {KeyValueTransaction}s with serializable isolation.
+ *
+ * {FdbKeyValueStore} stores the data in FoundationDB and {MemoryKeyValueStore} keeps it in the
+ * memory of the current process.
+ */
+public interface KeyValueStore extends AutoCloseable {
+
+  /**
+   * Start a new transaction. Its reads see a consistent snapshot of the store as of the time the
+   * transaction started, plus its own writes.
+   *
+   * @return the transaction
+   */
+  public KeyValueTransaction createTransaction();
+
+  /**
+   * @return the executor that runs the continuations of asynchronous iterations over range reads
+   */
+  public Executor getExecutor();
+
+  /**
+   * Get the keys at which the storage of the range is split, such as the shard boundaries of
+   * FoundationDB. Scans use them to split a range into parts that can be read in parallel.
+   *
+   * @param begin the first key of the range
+   * @param end the key after the range
+   * @return future of the boundary keys inside (begin, end), in key order
+   */
+  public CompletableFuture<List<byte[]>> getBoundaryKeys(byte[] begin, byte[] end);
+
+  /**
+   * Release the resources held by the store
+   */
+  @Override
+  public void close();
+}
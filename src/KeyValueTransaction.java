@@ -0,0 +1,100 @@
+import java.util.concurrent.CompletableFuture;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.ReadTransaction;
+import com.apple.foundationdb.StreamingMode;
+import com.apple.foundationdb.async.AsyncIterable;
+
+/**
+ * KeyValueTransaction defines the operations of a transaction of a {KeyValueStore}. The semantics
+ * follow the FoundationDB transaction: writes are buffered until commit, reads see the
+ * transaction's own writes, and a commit fails with a retryable {FDBException} if a key the
+ * transaction read was changed by another transaction in the meantime.
+ */
+public interface KeyValueTransaction extends AutoCloseable {
+
+  /**
+   * Read the value of a key
+   * @param key the key
+   * @return future of the value, or of null if the key does not exist
+   */
+  public CompletableFuture<byte[]> get(byte[] key);
+
+  /**
+   * Read the key-values in [begin, end) in key order
+   *
+   * @param begin the first key of the range
+   * @param end the key after the last key of the range
+   * @param limit the maximum number of key-values to return, or ReadTransaction.ROW_LIMIT_UNLIMITED
+   * @param reverse true to read from the end of the range
+   * @param mode how eagerly the range is fetched from the storage
+   * @return the key-values, fetched as they are iterated
+   */
+  public AsyncIterable<KeyValue> getRange(byte[] begin, byte[] end, int limit, boolean reverse, StreamingMode mode);
+
+  public default AsyncIterable<KeyValue> getRange(Range range) {
+    return getRange(range.begin, range.end, ReadTransaction.ROW_LIMIT_UNLIMITED, false, StreamingMode.ITERATOR);
+  }
+
+  public default AsyncIterable<KeyValue> getRange(Range range, int limit) {
+    return getRange(range.begin, range.end, limit, false, StreamingMode.ITERATOR);
+  }
+
+  public default AsyncIterable<KeyValue> getRange(Range range, int limit, boolean reverse, StreamingMode mode) {
+    return getRange(range.begin, range.end, limit, reverse, mode);
+  }
+
+  public void set(byte[] key, byte[] value);
+
+  public void clear(byte[] key);
+
+  /**
+   * Clear every key in [range.begin, range.end)
+   */
+  public void clear(Range range);
+
+  /**
+   * Apply an atomic operation to a key. Atomic operations do not read the key, so they never
+   * cause a conflict.
+   */
+  public void mutate(MutationType type, byte[] key, byte[] param);
+
+  /**
+   * Watch a key for changes. The watch becomes active once the transaction commits.
+   *
+   * @return a future that completes when the value of the key differs from the value this
+   * transaction saw
+   */
+  public CompletableFuture<Void> watch(byte[] key);
+
+  public CompletableFuture<Void> commit();
+
+  /**
+   * Handle an error of this transaction. The transaction must not be used afterwards.
+   *
+   * @param e the error
+   * @return future of a new transaction to retry with, completed after a backoff delay, or a
+   * failed future if the error cannot be retried
+   */
+  public CompletableFuture<KeyValueTransaction> onError(Throwable e);
+
+  /**
+   * Set how many times onError() may retry this transaction
+   */
+  public void setRetryLimit(int retryLimit);
+
+  /**
+   * Set the maximum delay onError() waits before a retry
+   */
+  public void setMaxRetryDelay(long milliseconds);
+
+  /**
+   * Set the time after which the transaction fails, including its retries
+   */
+  public void setTimeout(long milliseconds);
+
+  @Override
+  public void close();
+}
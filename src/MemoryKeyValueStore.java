@@ -0,0 +1,756 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.apple.foundationdb.FDBException;
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.StreamingMode;
+import com.apple.foundationdb.async.AsyncIterable;
+import com.apple.foundationdb.async.AsyncIterator;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+
+/**
+ * MemoryKeyValueStore implements {KeyValueStore} in the memory of the current process, with the
+ * same transaction semantics as FoundationDB.
+ *
+ * Every key maps to a chain of versions in a concurrent skip-list, so a transaction reads the
+ * snapshot as of its read version without taking any lock. Commits are serialized; a commit fails
+ * with not_committed if a key or range the transaction read was written by a commit after its read
+ * version. Versions older than five seconds are discarded, and transactions older than that fail
+ * with transaction_too_old, as in FoundationDB.
+ */
+public class MemoryKeyValueStore implements KeyValueStore {
+
+  // FoundationDB error codes
+  static final int TRANSACTION_TOO_OLD = 1007;
+  static final int NOT_COMMITTED = 1020;
+  static final int TRANSACTION_CANCELLED = 1025;
+  static final int TRANSACTION_TIMED_OUT = 1031;
+
+  private static final long MVCC_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(5);
+  private static final long INITIAL_RETRY_DELAY_MS = 10;
+  private static final long DEFAULT_MAX_RETRY_DELAY_MS = 1000;
+  // Commits between two sweeps of versions that no transaction can read anymore
+  private static final int SWEEP_INTERVAL = 10_000;
+  // Keys per emulated shard, see getBoundaryKeys()
+  static final int SHARD_KEY_COUNT = 10_000;
+
+  private static final Comparator<byte[]> COMPARATOR = ByteArrayUtil.comparator();
+
+  /**
+   * One version of the value of a key. value is null if the key was cleared at this version.
+   */
+  private static final class Version {
+    final long version;
+    final byte[] value;
+    volatile Version previous;
+
+    Version(long version, byte[] value, Version previous) {
+      this.version = version;
+      this.value = value;
+      this.previous = previous;
+    }
+  }
+
+  private static final class ClearedRange {
+    final long version;
+    final byte[] begin;
+    final byte[] end;
+
+    ClearedRange(long version, byte[] begin, byte[] end) {
+      this.version = version;
+      this.begin = begin;
+      this.end = end;
+    }
+  }
+
+  private static final class WatchEntry {
+    final byte[] value;
+    final CompletableFuture<Void> future;
+
+    WatchEntry(byte[] value, CompletableFuture<Void> future) {
+      this.value = value;
+      this.future = future;
+    }
+  }
+
+  private final ConcurrentSkipListMap<byte[], Version> data = new ConcurrentSkipListMap<>(COMPARATOR);
+  private volatile long committedVersion = 0;
+  // Versions below this one may have been discarded
+  private volatile long oldestVersion = 0;
+
+  // The fields below are guarded by commitLock
+  private final Object commitLock = new Object();
+  // Version of the last commit that wrote each key, and the ranges cleared by recent commits
+  private final TreeMap<byte[], Long> lastWrites = new TreeMap<>(COMPARATOR);
+  private final ArrayDeque<ClearedRange> clearedRanges = new ArrayDeque<>();
+  // (version, System.nanoTime()) of every commit in the MVCC window
+  private final ArrayDeque<long[]> commitTimes = new ArrayDeque<>();
+  private final TreeMap<byte[], List<WatchEntry>> watches = new TreeMap<>(COMPARATOR);
+  private int commitsSinceSweep = 0;
+
+  @Override
+  public KeyValueTransaction createTransaction() {
+    return new MemoryTransaction(0, System.nanoTime(), -1, DEFAULT_MAX_RETRY_DELAY_MS, 0);
+  }
+
+  /**
+   * Range reads complete immediately, so their continuations run in the calling thread.
+   */
+  @Override
+  public Executor getExecutor() {
+    return Runnable::run;
+  }
+
+  /**
+   * There are no shards in memory, so the range is split every SHARD_KEY_COUNT keys that exist
+   * at the latest version, which gives scans the same parallelism as a cluster would.
+   */
+  @Override
+  public CompletableFuture<List<byte[]>> getBoundaryKeys(byte[] begin, byte[] end) {
+    long version = committedVersion;
+    List<byte[]> boundaries = new ArrayList<>();
+    int count = 0;
+    for (Map.Entry<byte[], Version> entry : data.subMap(begin, false, end, false).entrySet()) {
+      if (visible(entry.getValue(), version) != null && ++count % SHARD_KEY_COUNT == 0) {
+        boundaries.add(entry.getKey());
+      }
+    }
+    return CompletableFuture.completedFuture(boundaries);
+  }
+
+  @Override
+  public void close() {
+    synchronized (commitLock) {
+      for (List<WatchEntry> entries : watches.values()) {
+        for (WatchEntry entry : entries) {
+          entry.future.completeExceptionally(new FDBException("operation_cancelled", TRANSACTION_CANCELLED));
+        }
+      }
+      watches.clear();
+    }
+  }
+
+  /**
+   * @return the value of the key as of the given version
+   */
+  private byte[] read(byte[] key, long version) {
+    Version v = data.get(key);
+    while (v != null && v.version > version) {
+      v = v.previous;
+    }
+    return v == null ? null : v.value;
+  }
+
+  private static byte[] visible(Version v, long version) {
+    while (v != null && v.version > version) {
+      v = v.previous;
+    }
+    return v == null ? null : v.value;
+  }
+
+  /**
+   * Adds a version of the key, dropping the versions that no transaction can read anymore.
+   * Called with commitLock held.
+   */
+  private void write(byte[] key, byte[] value, long version) {
+    Version head = data.get(key);
+    if (head != null && head.version == version) {
+      // Written earlier in the same commit
+      head = head.previous;
+    }
+    lastWrites.put(key, version);
+    if (head == null && value == null) {
+      data.remove(key);
+      return;
+    }
+
+    Version node = new Version(version, value, head);
+    for (Version v = node; v != null; v = v.previous) {
+      if (v.version <= oldestVersion) {
+        v.previous = null;
+        break;
+      }
+    }
+    data.put(key, node);
+  }
+
+  /**
+   * Applies a transaction's writes as a new version. Called with commitLock held.
+   */
+  private long apply(List<Operation> operations, List<CompletableFuture<Void>> fired) {
+    long version = committedVersion + 1;
+    List<byte[]> changed = new ArrayList<>();
+    for (Operation operation : operations) {
+      switch (operation.kind) {
+        case SET:
+          write(operation.key, operation.value, version);
+          changed.add(operation.key);
+          break;
+        case CLEAR:
+          write(operation.key, null, version);
+          changed.add(operation.key);
+          break;
+        case CLEAR_RANGE:
+          for (Map.Entry<byte[], Version> entry : data.subMap(operation.key, operation.value).entrySet()) {
+            if (entry.getValue().value != null) {
+              write(entry.getKey(), null, version);
+            }
+          }
+          clearedRanges.add(new ClearedRange(version, operation.key, operation.value));
+          changed.addAll(watches.subMap(operation.key, operation.value).keySet());
+          break;
+        case MUTATE:
+          if (operation.type == MutationType.SET_VERSIONSTAMPED_KEY) {
+            byte[] key = fillVersionstamp(operation.key, version);
+            write(key, operation.value, version);
+            changed.add(key);
+          } else if (operation.type == MutationType.SET_VERSIONSTAMPED_VALUE) {
+            write(operation.key, fillVersionstamp(operation.value, version), version);
+            changed.add(operation.key);
+          } else {
+            write(operation.key, applyMutation(operation.type, read(operation.key, version), operation.value), version);
+            changed.add(operation.key);
+          }
+          break;
+      }
+    }
+    committedVersion = version;
+
+    for (byte[] key : changed) {
+      fireWatches(key, fired);
+    }
+    return version;
+  }
+
+  /**
+   * Moves the oldest readable version forward to the newest commit outside the MVCC window, and
+   * periodically discards the versions and conflict information below it. Called with commitLock held.
+   */
+  private void advanceOldestVersion(long version) {
+    long now = System.nanoTime();
+    commitTimes.add(new long[]{version, now});
+    while (now - commitTimes.peekFirst()[1] > MVCC_WINDOW_NANOS) {
+      oldestVersion = commitTimes.pollFirst()[0];
+    }
+
+    if (++commitsSinceSweep < SWEEP_INTERVAL) {
+      return;
+    }
+    commitsSinceSweep = 0;
+    lastWrites.values().removeIf(v -> v <= oldestVersion);
+    clearedRanges.removeIf(range -> range.version <= oldestVersion);
+    for (Map.Entry<byte[], Version> entry : data.entrySet()) {
+      Version head = entry.getValue();
+      if (head.value == null && head.version <= oldestVersion) {
+        data.remove(entry.getKey(), head);
+        continue;
+      }
+      for (Version v = head; v != null; v = v.previous) {
+        if (v.version <= oldestVersion) {
+          v.previous = null;
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if a commit after readVersion wrote into one of the ranges. Called with commitLock held.
+   */
+  private boolean hasConflict(List<Range> readRanges, long readVersion) {
+    for (Range range : readRanges) {
+      for (long version : lastWrites.subMap(range.begin, range.end).values()) {
+        if (version > readVersion) {
+          return true;
+        }
+      }
+    }
+    for (ClearedRange cleared : clearedRanges) {
+      if (cleared.version <= readVersion) {
+        continue;
+      }
+      for (Range range : readRanges) {
+        if (COMPARATOR.compare(cleared.begin, range.end) < 0 && COMPARATOR.compare(range.begin, cleared.end) < 0) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Fires the watches of the key whose value changed. Called with commitLock held; the futures
+   * are completed by the caller once the lock is released.
+   */
+  private void fireWatches(byte[] key, List<CompletableFuture<Void>> fired) {
+    List<WatchEntry> entries = watches.get(key);
+    if (entries == null) {
+      return;
+    }
+    byte[] value = read(key, committedVersion);
+    entries.removeIf(entry -> {
+      if (Arrays.equals(entry.value, value)) {
+        return false;
+      }
+      fired.add(entry.future);
+      return true;
+    });
+    if (entries.isEmpty()) {
+      watches.remove(key);
+    }
+  }
+
+  /**
+   * Applies an atomic operation to the existing value of a key.
+   *
+   * @return the new value, or null if the key is cleared
+   */
+  @SuppressWarnings("deprecation")
+  static byte[] applyMutation(MutationType type, byte[] existing, byte[] param) {
+    switch (type) {
+      case ADD: {
+        byte[] result = new byte[param.length];
+        int carry = 0;
+        for (int i = 0; i < param.length; i++) {
+          int sum = (existing != null && i < existing.length ? existing[i] & 0xff : 0) + (param[i] & 0xff) + carry;
+          result[i] = (byte) sum;
+          carry = sum >>> 8;
+        }
+        return result;
+      }
+      case MAX:
+      case MIN: {
+        if (existing == null) {
+          return param;
+        }
+        byte[] padded = Arrays.copyOf(existing, param.length);
+        int cmp = 0;
+        // Little-endian unsigned comparison
+        for (int i = param.length - 1; i >= 0 && cmp == 0; i--) {
+          cmp = Integer.compare(padded[i] & 0xff, param[i] & 0xff);
+        }
+        return (type == MutationType.MAX) == (cmp >= 0) ? padded : param;
+      }
+      case BYTE_MAX:
+        return existing == null || COMPARATOR.compare(existing, param) < 0 ? param : existing;
+      case BYTE_MIN:
+        return existing == null || COMPARATOR.compare(existing, param) > 0 ? param : existing;
+      case AND:
+      case BIT_AND:
+      case OR:
+      case BIT_OR:
+      case XOR:
+      case BIT_XOR: {
+        if (existing == null) {
+          return param;
+        }
+        byte[] result = new byte[param.length];
+        for (int i = 0; i < param.length; i++) {
+          int a = i < existing.length ? existing[i] : 0;
+          if (type == MutationType.AND || type == MutationType.BIT_AND) {
+            result[i] = (byte) (a & param[i]);
+          } else if (type == MutationType.OR || type == MutationType.BIT_OR) {
+            result[i] = (byte) (a | param[i]);
+          } else {
+            result[i] = (byte) (a ^ param[i]);
+          }
+        }
+        return result;
+      }
+      case APPEND_IF_FITS: {
+        byte[] base = existing == null ? new byte[0] : existing;
+        return base.length + param.length > 100_000 ? base : ByteArrayUtil.join(base, param);
+      }
+      case COMPARE_AND_CLEAR:
+        return Arrays.equals(existing, param) ? null : existing;
+      default:
+        throw new UnsupportedOperationException("Mutation type not supported: " + type);
+    }
+  }
+
+  /**
+   * Replaces the placeholder of a versionstamped key or value with the versionstamp of a commit:
+   * the commit version as 8 big-endian bytes and a 2-byte batch number, always 0 here. The last 4
+   * bytes of the parameter are the little-endian offset of the placeholder and are removed.
+   */
+  static byte[] fillVersionstamp(byte[] param, long version) {
+    int length = param.length - 4;
+    int offset = ByteBuffer.wrap(param, length, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    byte[] result = Arrays.copyOf(param, length);
+    ByteBuffer.wrap(result, offset, 10).putLong(version).putShort((short) 0);
+    return result;
+  }
+
+  private enum OperationKind {
+    SET,
+    CLEAR,
+    CLEAR_RANGE,
+    MUTATE
+  }
+
+  /**
+   * A buffered write. For CLEAR_RANGE value holds the end of the range, for MUTATE the parameter,
+   * except for SET_VERSIONSTAMPED_KEY where key holds the parameter and value the value.
+   */
+  private static final class Operation {
+    final OperationKind kind;
+    final byte[] key;
+    final byte[] value;
+    final MutationType type;
+
+    Operation(OperationKind kind, byte[] key, byte[] value, MutationType type) {
+      this.kind = kind;
+      this.key = key;
+      this.value = value;
+      this.type = type;
+    }
+  }
+
+  /**
+   * MemoryTransaction buffers its writes and applies them on commit. It is not meant to be used by
+   * several threads at once, but its methods are synchronized so that concurrent use is safe.
+   */
+  private class MemoryTransaction implements KeyValueTransaction {
+
+    private final long readVersion = committedVersion;
+    // Keys written by this transaction; a null value marks a cleared key
+    private final TreeMap<byte[], byte[]> writes = new TreeMap<>(COMPARATOR);
+    private final List<Range> clears = new ArrayList<>();
+    private final List<Operation> operations = new ArrayList<>();
+    private final List<Range> readRanges = new ArrayList<>();
+    private final List<byte[]> watchKeys = new ArrayList<>();
+    private final List<WatchEntry> watchEntries = new ArrayList<>();
+
+    private final int retries;
+    private final long startNanos;
+    private int retryLimit;
+    private long maxRetryDelay;
+    private long timeout;
+    private boolean done = false;
+
+    MemoryTransaction(int retries, long startNanos, int retryLimit, long maxRetryDelay, long timeout) {
+      this.retries = retries;
+      this.startNanos = startNanos;
+      this.retryLimit = retryLimit;
+      this.maxRetryDelay = maxRetryDelay;
+      this.timeout = timeout;
+    }
+
+    private void checkUsable() {
+      if (done) {
+        throw new FDBException("used_during_commit", 2017);
+      }
+      if (timeout > 0 && System.nanoTime() - startNanos > TimeUnit.MILLISECONDS.toNanos(timeout)) {
+        throw new FDBException("transaction_timed_out", TRANSACTION_TIMED_OUT);
+      }
+    }
+
+    private void checkReadVersion() {
+      if (readVersion < oldestVersion) {
+        throw new FDBException("transaction_too_old", TRANSACTION_TOO_OLD);
+      }
+    }
+
+    private boolean isCleared(byte[] key) {
+      for (Range range : clears) {
+        if (COMPARATOR.compare(range.begin, key) <= 0 && COMPARATOR.compare(key, range.end) < 0) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * @return the value of the key as seen by this transaction
+     */
+    private byte[] readLocal(byte[] key) {
+      if (writes.containsKey(key)) {
+        return writes.get(key);
+      }
+      if (isCleared(key)) {
+        return null;
+      }
+      byte[] value = read(key, readVersion);
+      // The version may have been discarded while it was read
+      checkReadVersion();
+      return value;
+    }
+
+    @Override
+    public synchronized CompletableFuture<byte[]> get(byte[] key) {
+      try {
+        checkUsable();
+        checkReadVersion();
+        readRanges.add(new Range(key, ByteArrayUtil.keyAfter(key)));
+        return CompletableFuture.completedFuture(readLocal(key));
+      }
+      catch(RuntimeException e) {
+        return CompletableFuture.failedFuture(e);
+      }
+    }
+
+    @Override
+    public synchronized AsyncIterable<KeyValue> getRange(byte[] begin, byte[] end, int limit, boolean reverse,
+                                                         StreamingMode mode) {
+      try {
+        checkUsable();
+        checkReadVersion();
+        if (COMPARATOR.compare(begin, end) >= 0) {
+          return new ListAsyncIterable(new ArrayList<>(), null);
+        }
+
+        NavigableMap<byte[], Version> base = data.subMap(begin, true, end, false);
+        NavigableMap<byte[], byte[]> local = writes.subMap(begin, true, end, false);
+        if (reverse) {
+          base = base.descendingMap();
+          local = local.descendingMap();
+        }
+        Iterator<Map.Entry<byte[], Version>> baseIterator = base.entrySet().iterator();
+        Iterator<Map.Entry<byte[], byte[]>> localIterator = local.entrySet().iterator();
+        Map.Entry<byte[], Version> b = baseIterator.hasNext() ? baseIterator.next() : null;
+        Map.Entry<byte[], byte[]> l = localIterator.hasNext() ? localIterator.next() : null;
+
+        // Merge the snapshot with this transaction's writes, which take precedence
+        int max = limit <= 0 ? Integer.MAX_VALUE : limit;
+        List<KeyValue> result = new ArrayList<>();
+        while (result.size() < max && (b != null || l != null)) {
+          int cmp;
+          if (b == null) {
+            cmp = 1;
+          } else if (l == null) {
+            cmp = -1;
+          } else {
+            cmp = COMPARATOR.compare(b.getKey(), l.getKey()) * (reverse ? -1 : 1);
+          }
+
+          if (cmp < 0) {
+            byte[] value = visible(b.getValue(), readVersion);
+            if (value != null && !isCleared(b.getKey())) {
+              result.add(new KeyValue(b.getKey(), value));
+            }
+            b = baseIterator.hasNext() ? baseIterator.next() : null;
+          } else {
+            if (cmp == 0) {
+              b = baseIterator.hasNext() ? baseIterator.next() : null;
+            }
+            if (l.getValue() != null) {
+              result.add(new KeyValue(l.getKey(), l.getValue()));
+            }
+            l = localIterator.hasNext() ? localIterator.next() : null;
+          }
+        }
+        checkReadVersion();
+
+        // Only the part of the range that was actually read can conflict
+        if (result.size() == max) {
+          byte[] last = result.get(result.size() - 1).getKey();
+          readRanges.add(reverse ? new Range(last, end) : new Range(begin, ByteArrayUtil.keyAfter(last)));
+        } else {
+          readRanges.add(new Range(begin, end));
+        }
+        return new ListAsyncIterable(result, null);
+      }
+      catch(RuntimeException e) {
+        return new ListAsyncIterable(null, e);
+      }
+    }
+
+    @Override
+    public synchronized void set(byte[] key, byte[] value) {
+      checkUsable();
+      writes.put(key, value);
+      operations.add(new Operation(OperationKind.SET, key, value, null));
+    }
+
+    @Override
+    public synchronized void clear(byte[] key) {
+      checkUsable();
+      writes.put(key, null);
+      operations.add(new Operation(OperationKind.CLEAR, key, null, null));
+    }
+
+    @Override
+    public synchronized void clear(Range range) {
+      checkUsable();
+      if (COMPARATOR.compare(range.begin, range.end) >= 0) {
+        return;
+      }
+      writes.subMap(range.begin, range.end).clear();
+      clears.add(range);
+      operations.add(new Operation(OperationKind.CLEAR_RANGE, range.begin, range.end, null));
+    }
+
+    @Override
+    public synchronized void mutate(MutationType type, byte[] key, byte[] param) {
+      checkUsable();
+      if (type == MutationType.SET_VERSIONSTAMPED_KEY || type == MutationType.SET_VERSIONSTAMPED_VALUE) {
+        // The versionstamp is only known at commit, so reads of this transaction do not see the write
+        operations.add(new Operation(OperationKind.MUTATE, key, param, type));
+        return;
+      }
+      // Reads of the key in this transaction see the mutation applied to the snapshot value, the
+      // commit applies it to the latest value
+      writes.put(key, applyMutation(type, readLocal(key), param));
+      operations.add(new Operation(OperationKind.MUTATE, key, param, type));
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> watch(byte[] key) {
+      checkUsable();
+      CompletableFuture<Void> future = new CompletableFuture<>();
+      watchKeys.add(key);
+      watchEntries.add(new WatchEntry(readLocal(key), future));
+      return future;
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> commit() {
+      List<CompletableFuture<Void>> fired = new ArrayList<>();
+      try {
+        checkUsable();
+        synchronized (commitLock) {
+          if (!operations.isEmpty()) {
+            checkReadVersion();
+            if (hasConflict(readRanges, readVersion)) {
+              throw new FDBException("not_committed", NOT_COMMITTED);
+            }
+            advanceOldestVersion(apply(operations, fired));
+          }
+
+          // Register the watches against the value after this commit
+          for (int i = 0; i < watchKeys.size(); i++) {
+            byte[] key = watchKeys.get(i);
+            WatchEntry entry = watchEntries.get(i);
+            if (Arrays.equals(entry.value, read(key, committedVersion))) {
+              watches.computeIfAbsent(key, k -> new ArrayList<>()).add(entry);
+            } else {
+              fired.add(entry.future);
+            }
+          }
+        }
+        done = true;
+      }
+      catch(RuntimeException e) {
+        return CompletableFuture.failedFuture(e);
+      }
+
+      for (CompletableFuture<Void> future : fired) {
+        future.complete(null);
+      }
+      return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public synchronized CompletableFuture<KeyValueTransaction> onError(Throwable e) {
+      close();
+      if (!(e instanceof FDBException)) {
+        return CompletableFuture.failedFuture(e);
+      }
+      int code = ((FDBException) e).getCode();
+      if ((code != NOT_COMMITTED && code != TRANSACTION_TOO_OLD) || (retryLimit >= 0 && retries >= retryLimit)) {
+        return CompletableFuture.failedFuture(e);
+      }
+
+      // Exponential backoff with jitter, as in FoundationDB
+      long delay = Math.min(maxRetryDelay, INITIAL_RETRY_DELAY_MS << Math.min(retries, 20));
+      delay = ThreadLocalRandom.current().nextLong(delay / 2, delay + 1);
+      return CompletableFuture.supplyAsync(
+              () -> new MemoryTransaction(retries + 1, startNanos, retryLimit, maxRetryDelay, timeout),
+              CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public synchronized void setRetryLimit(int retryLimit) {
+      this.retryLimit = retryLimit;
+    }
+
+    @Override
+    public synchronized void setMaxRetryDelay(long milliseconds) {
+      this.maxRetryDelay = milliseconds;
+    }
+
+    @Override
+    public synchronized void setTimeout(long milliseconds) {
+      this.timeout = milliseconds;
+    }
+
+    @Override
+    public synchronized void close() {
+      if (!done) {
+        done = true;
+        for (WatchEntry entry : watchEntries) {
+          entry.future.completeExceptionally(new FDBException("transaction_cancelled", TRANSACTION_CANCELLED));
+        }
+      }
+    }
+  }
+
+  /**
+   * The result of a range read. The memory store reads the whole range at once, so iteration never
+   * waits.
+   */
+  private static class ListAsyncIterable implements AsyncIterable<KeyValue> {
+    private final List<KeyValue> keyvalues;
+    private final RuntimeException error;
+
+    ListAsyncIterable(List<KeyValue> keyvalues, RuntimeException error) {
+      this.keyvalues = keyvalues;
+      this.error = error;
+    }
+
+    @Override
+    public CompletableFuture<List<KeyValue>> asList() {
+      return error != null ? CompletableFuture.failedFuture(error) : CompletableFuture.completedFuture(keyvalues);
+    }
+
+    @Override
+    public AsyncIterator<KeyValue> iterator() {
+      return new AsyncIterator<KeyValue>() {
+        private int next = 0;
+
+        @Override
+        public CompletableFuture<Boolean> onHasNext() {
+          return error != null ? CompletableFuture.failedFuture(error) : CompletableFuture.completedFuture(hasNext());
+        }
+
+        @Override
+        public boolean hasNext() {
+          if (error != null) {
+            throw error;
+          }
+          return next < keyvalues.size();
+        }
+
+        @Override
+        public KeyValue next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          return keyvalues.get(next++);
+        }
+
+        @Override
+        public void cancel() {
+          next = keyvalues == null ? 0 : keyvalues.size();
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,167 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.apple.foundationdb.FDBException;
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.StreamingMode;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+import com.apple.foundationdb.tuple.Versionstamp;
+
+public class MemoryKeyValueStoreTest {
+
+  private MemoryKeyValueStore store;
+
+  @Before
+  public void init() {
+    store = new MemoryKeyValueStore();
+  }
+
+  private static byte[] key(Object... elements) {
+    return Tuple.from(elements).pack();
+  }
+
+  private void set(byte[] key, byte[] value) {
+    KeyValueTransaction tr = store.createTransaction();
+    tr.set(key, value);
+    tr.commit().join();
+  }
+
+  @Test
+  public void readYourWritesAndRangeOrder() {
+    set(key("a"), key(1));
+    set(key("c"), key(3));
+
+    KeyValueTransaction tr = store.createTransaction();
+    tr.set(key("b"), key(2));
+    tr.clear(key("c"));
+    assertArrayEquals(key(2), tr.get(key("b")).join());
+    assertNull(tr.get(key("c")).join());
+
+    List<KeyValue> keyvalues = tr.getRange(new Range(key("a"), key("z"))).asList().join();
+    assertEquals(2, keyvalues.size());
+    assertArrayEquals(key("a"), keyvalues.get(0).getKey());
+    assertArrayEquals(key("b"), keyvalues.get(1).getKey());
+
+    keyvalues = tr.getRange(key("a"), key("z"), 1, true, StreamingMode.WANT_ALL).asList().join();
+    assertEquals(1, keyvalues.size());
+    assertArrayEquals(key("b"), keyvalues.get(0).getKey());
+    tr.commit().join();
+
+    KeyValueTransaction after = store.createTransaction();
+    assertNull(after.get(key("c")).join());
+    assertArrayEquals(key(2), after.get(key("b")).join());
+  }
+
+  @Test
+  public void snapshotIsolation() {
+    set(key("a"), key(1));
+    KeyValueTransaction reader = store.createTransaction();
+    set(key("a"), key(2));
+    set(key("b"), key(2));
+
+    assertArrayEquals(key(1), reader.get(key("a")).join());
+    assertEquals(1, reader.getRange(new Range(key("a"), key("z"))).asList().join().size());
+  }
+
+  @Test
+  public void conflictingCommitFails() {
+    set(key("counter"), key(0));
+
+    KeyValueTransaction first = store.createTransaction();
+    KeyValueTransaction second = store.createTransaction();
+    first.get(key("counter")).join();
+    second.get(key("counter")).join();
+    first.set(key("counter"), key(1));
+    second.set(key("counter"), key(2));
+    first.commit().join();
+
+    try {
+      second.commit().join();
+      fail("the second commit should conflict");
+    }
+    catch(CompletionException e) {
+      assertEquals(MemoryKeyValueStore.NOT_COMMITTED, ((FDBException) e.getCause()).getCode());
+    }
+
+    // A retry reads the committed value
+    KeyValueTransaction retry = second.onError(new FDBException("not_committed", 1020)).join();
+    assertArrayEquals(key(1), retry.get(key("counter")).join());
+  }
+
+  @Test
+  public void clearRangeConflictsWithRangeRead() {
+    set(key("t", 1), key(1));
+
+    KeyValueTransaction reader = store.createTransaction();
+    reader.getRange(new Range(key("t"), key("u"))).asList().join();
+    reader.set(key("other"), key(1));
+
+    KeyValueTransaction clearer = store.createTransaction();
+    clearer.clear(new Range(key("t"), key("u")));
+    clearer.commit().join();
+
+    assertTrue(reader.commit().isCompletedExceptionally());
+  }
+
+  @Test
+  public void atomicAddDoesNotConflict() {
+    byte[] one = new byte[]{1, 0, 0, 0, 0, 0, 0, 0};
+    KeyValueTransaction first = store.createTransaction();
+    KeyValueTransaction second = store.createTransaction();
+    first.mutate(MutationType.ADD, key("counter"), one);
+    second.mutate(MutationType.ADD, key("counter"), one);
+    first.commit().join();
+    second.commit().join();
+
+    byte[] value = store.createTransaction().get(key("counter")).join();
+    assertArrayEquals(new byte[]{2, 0, 0, 0, 0, 0, 0, 0}, value);
+  }
+
+  @Test
+  public void watchFiresOnChange() throws Exception {
+    KeyValueTransaction tr = store.createTransaction();
+    CompletableFuture<Void> watch = tr.watch(key("version"));
+    tr.commit().join();
+    assertFalse(watch.isDone());
+
+    set(key("version"), key(1));
+    watch.get(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void versionstampedKeysAreInCommitOrder() {
+    Subspace log = new Subspace(Tuple.from("log"));
+    for (int i = 0; i < 3; i++) {
+      KeyValueTransaction tr = store.createTransaction();
+      tr.mutate(MutationType.SET_VERSIONSTAMPED_KEY, AsyncTableManagerImpl.versionstampedKey(log, 1), key(i));
+      // The key is only known at commit
+      assertEquals(i, tr.getRange(log.range()).asList().join().size());
+      tr.commit().join();
+    }
+
+    KeyValueTransaction tr = store.createTransaction();
+    List<KeyValue> keyvalues = tr.getRange(log.range()).asList().join();
+    assertEquals(3, keyvalues.size());
+    for (int i = 0; i < 3; i++) {
+      Tuple entry = log.unpack(keyvalues.get(i).getKey());
+      assertTrue(entry.getVersionstamp(0).isComplete());
+      assertEquals(1, entry.getVersionstamp(0).getUserVersion());
+      assertArrayEquals(key(i), keyvalues.get(i).getValue());
+    }
+  }
+}
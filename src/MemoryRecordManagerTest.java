@@ -0,0 +1,19 @@
+import org.junit.Before;
+
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+/**
+ * Runs the tests of {RecordManagerTest} against the in-memory storage backend.
+ */
+public class MemoryRecordManagerTest extends RecordManagerTest {
+
+  @Before
+  @Override
+  public void init() {
+    TableManagerImpl tableManagerImpl =
+        new TableManagerImpl(new MemoryKeyValueStore(), new Subspace(Tuple.from("database")));
+    tableManager = tableManagerImpl;
+    recordManager = new RecordManagerImpl(tableManagerImpl);
+  }
+}
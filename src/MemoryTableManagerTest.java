@@ -0,0 +1,84 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.function.Predicate;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+/**
+ * Runs the tests of {TableManagerTest} against the in-memory storage backend, and tests the catalog
+ * cache of two table managers sharing one store.
+ */
+public class MemoryTableManagerTest extends TableManagerTest {
+
+  private MemoryKeyValueStore store;
+
+  @Before
+  @Override
+  public void init() {
+    store = new MemoryKeyValueStore();
+    tableManager = new TableManagerImpl(store, new Subspace(Tuple.from("database")));
+  }
+
+  /**
+   * Waits for the tables listed by the table manager to match, as they do once its catalog watch
+   * has fired.
+   */
+  private static HashMap<String, TableMetadata> awaitTables(TableManager tableManager,
+                                                            Predicate<HashMap<String, TableMetadata>> condition)
+      throws InterruptedException {
+    for (int i = 0; i < 100; i++) {
+      HashMap<String, TableMetadata> tables = tableManager.listTables();
+      if (condition.test(tables)) {
+        return tables;
+      }
+      Thread.sleep(50);
+    }
+    throw new AssertionError("the catalog cache was not refreshed");
+  }
+
+  @Test
+  public void catalogCacheTest() throws InterruptedException {
+    TableManager other = new TableManagerImpl(store, new Subspace(Tuple.from("database")));
+    RecordManager otherRecords = new RecordManagerImpl((TableManagerImpl) other);
+    // Both caches are loaded, and their watches armed
+    assertTrue(tableManager.listTables().isEmpty());
+    assertTrue(other.listTables().isEmpty());
+
+    // Each instance sees its own DDL at once, the other one once its watch fires
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(EmployeeTableName, EmployeeTableAttributeNames,
+        EmployeeTableAttributeTypes, EmployeeTablePKAttributes));
+    TableMetadata employee = new TableMetadata(EmployeeTableAttributeNames, EmployeeTableAttributeTypes,
+        EmployeeTablePKAttributes);
+    assertEquals(employee, tableManager.listTables().get(EmployeeTableName));
+    assertEquals(employee, awaitTables(other, tables -> tables.containsKey(EmployeeTableName))
+        .get(EmployeeTableName));
+    assertEquals(StatusCode.SUCCESS, otherRecords.insertRecord(EmployeeTableName,
+        new TableRecord().set("SSN", 1L).set("Name", "Ada")));
+
+    assertEquals(StatusCode.SUCCESS, other.addAttribute(EmployeeTableName, "Age", AttributeType.INT));
+    employee.addAttribute("Age", AttributeType.INT);
+    assertEquals(employee, other.listTables().get(EmployeeTableName));
+    assertEquals(employee, awaitTables(tableManager, tables -> tables.get(EmployeeTableName).getAttributes()
+        .containsKey("Age")).get(EmployeeTableName));
+
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAttribute(EmployeeTableName, "Name"));
+    assertFalse(tableManager.listTables().get(EmployeeTableName).getAttributes().containsKey("Name"));
+    awaitTables(other, tables -> !tables.get(EmployeeTableName).getAttributes().containsKey("Name"));
+    assertEquals(StatusCode.ATTRIBUTE_NOT_FOUND, otherRecords.insertRecord(EmployeeTableName,
+        new TableRecord().set("SSN", 2L).set("Name", "Grace")));
+    assertEquals(StatusCode.SUCCESS, otherRecords.insertRecord(EmployeeTableName,
+        new TableRecord().set("SSN", 2L).set("Age", 36L)));
+    assertEquals(new TableRecord().set("SSN", 1L), otherRecords.getRecord(EmployeeTableName, 1L));
+
+    assertEquals(StatusCode.SUCCESS, other.deleteTable(EmployeeTableName));
+    assertTrue(other.listTables().isEmpty());
+    awaitTables(tableManager, HashMap::isEmpty);
+  }
+}
@@ -0,0 +1,148 @@
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.StreamingMode;
+import com.apple.foundationdb.async.AsyncIterable;
+import com.apple.foundationdb.async.AsyncIterator;
+
+/**
+ * MeteredTransaction counts the reads and writes of a {KeyValueTransaction} into the
+ * {Metrics.Invocation} of the operation that runs it. Transactions are only wrapped while metrics
+ * are collected.
+ */
+class MeteredTransaction implements KeyValueTransaction {
+
+  private final KeyValueTransaction tr;
+  private final Metrics.Invocation invocation;
+
+  MeteredTransaction(KeyValueTransaction tr, Metrics.Invocation invocation) {
+    this.tr = tr;
+    this.invocation = invocation;
+  }
+
+  @Override
+  public CompletableFuture<byte[]> get(byte[] key) {
+    invocation.add(Metrics.Invocation.READS, 1);
+    return tr.get(key).thenApply(value -> {
+      if (value != null) {
+        invocation.add(Metrics.Invocation.BYTES_READ, value.length);
+      }
+      return value;
+    });
+  }
+
+  @Override
+  public AsyncIterable<KeyValue> getRange(byte[] begin, byte[] end, int limit, boolean reverse, StreamingMode mode) {
+    AsyncIterable<KeyValue> range = tr.getRange(begin, end, limit, reverse, mode);
+    return new AsyncIterable<KeyValue>() {
+      @Override
+      public AsyncIterator<KeyValue> iterator() {
+        invocation.add(Metrics.Invocation.RANGE_READS, 1);
+        AsyncIterator<KeyValue> iterator = range.iterator();
+        return new AsyncIterator<KeyValue>() {
+          @Override
+          public CompletableFuture<Boolean> onHasNext() {
+            return iterator.onHasNext();
+          }
+
+          @Override
+          public boolean hasNext() {
+            return iterator.hasNext();
+          }
+
+          @Override
+          public KeyValue next() {
+            KeyValue keyvalue = iterator.next();
+            countRead(keyvalue);
+            return keyvalue;
+          }
+
+          @Override
+          public void cancel() {
+            iterator.cancel();
+          }
+        };
+      }
+
+      @Override
+      public CompletableFuture<List<KeyValue>> asList() {
+        invocation.add(Metrics.Invocation.RANGE_READS, 1);
+        return range.asList().thenApply(keyvalues -> {
+          for (KeyValue keyvalue : keyvalues) {
+            countRead(keyvalue);
+          }
+          return keyvalues;
+        });
+      }
+    };
+  }
+
+  private void countRead(KeyValue keyvalue) {
+    invocation.add(Metrics.Invocation.BYTES_READ, keyvalue.getKey().length + keyvalue.getValue().length);
+  }
+
+  @Override
+  public void set(byte[] key, byte[] value) {
+    invocation.add(Metrics.Invocation.BYTES_WRITTEN, key.length + value.length);
+    tr.set(key, value);
+  }
+
+  @Override
+  public void clear(byte[] key) {
+    invocation.add(Metrics.Invocation.BYTES_WRITTEN, key.length);
+    tr.clear(key);
+  }
+
+  @Override
+  public void clear(Range range) {
+    invocation.add(Metrics.Invocation.BYTES_WRITTEN, range.begin.length + range.end.length);
+    tr.clear(range);
+  }
+
+  @Override
+  public void mutate(MutationType type, byte[] key, byte[] param) {
+    invocation.add(Metrics.Invocation.BYTES_WRITTEN, key.length + param.length);
+    tr.mutate(type, key, param);
+  }
+
+  @Override
+  public CompletableFuture<Void> watch(byte[] key) {
+    return tr.watch(key);
+  }
+
+  @Override
+  public CompletableFuture<Void> commit() {
+    return tr.commit().thenApply(ignore -> {
+      invocation.add(Metrics.Invocation.COMMITS, 1);
+      return null;
+    });
+  }
+
+  @Override
+  public CompletableFuture<KeyValueTransaction> onError(Throwable e) {
+    return tr.onError(e).thenApply(retry -> new MeteredTransaction(retry, invocation));
+  }
+
+  @Override
+  public void setRetryLimit(int retryLimit) {
+    tr.setRetryLimit(retryLimit);
+  }
+
+  @Override
+  public void setMaxRetryDelay(long milliseconds) {
+    tr.setMaxRetryDelay(milliseconds);
+  }
+
+  @Override
+  public void setTimeout(long milliseconds) {
+    tr.setTimeout(milliseconds);
+  }
+
+  @Override
+  public void close() {
+    tr.close();
+  }
+}
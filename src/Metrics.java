@@ -0,0 +1,272 @@
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Metrics collects, for each operation of a {AsyncTableManagerImpl} and of its record managers,
+ * a latency histogram and the work the operation did in the store: point reads, range reads,
+ * directory-layer calls, commits, bytes read and written, retries and conflicts.
+ *
+ * Collection is off by default, or on when the "tablemanager.metrics" system property is true.
+ * While off, operations only read one volatile flag and their transactions are not wrapped. The
+ * counters are read with {#get}; every finished operation is also reported as a JFR event,
+ * "tablemanager.Operation", whenever a recording enables it, even if collection is off.
+ */
+public class Metrics {
+
+  public enum Operation {
+    CREATE_TABLE,
+    DELETE_TABLE,
+    LIST_TABLES,
+    ADD_ATTRIBUTE,
+    DROP_ATTRIBUTE,
+    CREATE_INDEX,
+    DROP_INDEX,
+    DROP_ALL_TABLES,
+    APPLY_BATCH,
+    TABLE_STATISTICS,
+    SCHEMA_CHANGES,
+    INSERT_RECORD,
+    GET_RECORD,
+    UPDATE_RECORD,
+    DELETE_RECORD,
+    FIND_RECORDS,
+    SCAN,
+    QUERY,
+    MAINTENANCE
+  }
+
+  private volatile boolean enabled = Boolean.getBoolean("tablemanager.metrics");
+  private final Map<Operation, OperationMetrics> operations = new EnumMap<>(Operation.class);
+
+  Metrics() {
+    for (Operation operation : Operation.values()) {
+      operations.put(operation, new OperationMetrics());
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * @return the metrics collected for the operation since this instance was created or reset
+   */
+  public OperationMetrics get(Operation operation) {
+    return operations.get(operation);
+  }
+
+  public void reset() {
+    for (OperationMetrics metrics : operations.values()) {
+      metrics.reset();
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (Map.Entry<Operation, OperationMetrics> entry : operations.entrySet()) {
+      if (entry.getValue().getCalls() > 0) {
+        builder.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+      }
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Start measuring one call of an operation.
+   *
+   * @return the measurement to attribute the call's transactions to, or null if neither the
+   * metrics nor the JFR event are enabled
+   */
+  Invocation start(Operation operation) {
+    OperationEvent event = new OperationEvent();
+    if (!enabled && !event.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return new Invocation(operation, enabled ? operations.get(operation) : null, event);
+  }
+
+  /**
+   * Counters of one operation, summed over its calls.
+   */
+  public static class OperationMetrics {
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder[] counters = new LongAdder[Invocation.COUNTERS];
+
+    OperationMetrics() {
+      for (int i = 0; i < counters.length; i++) {
+        counters[i] = new LongAdder();
+      }
+    }
+
+    public LatencyHistogram getLatency() {
+      return latency;
+    }
+
+    public long getCalls() {
+      return calls.sum();
+    }
+
+    /**
+     * @return the number of calls that completed exceptionally
+     */
+    public long getFailures() {
+      return failures.sum();
+    }
+
+    public long getReads() {
+      return counters[Invocation.READS].sum();
+    }
+
+    public long getRangeReads() {
+      return counters[Invocation.RANGE_READS].sum();
+    }
+
+    public long getDirectoryCalls() {
+      return counters[Invocation.DIRECTORY_CALLS].sum();
+    }
+
+    public long getCommits() {
+      return counters[Invocation.COMMITS].sum();
+    }
+
+    public long getBytesRead() {
+      return counters[Invocation.BYTES_READ].sum();
+    }
+
+    public long getBytesWritten() {
+      return counters[Invocation.BYTES_WRITTEN].sum();
+    }
+
+    public long getRetries() {
+      return counters[Invocation.RETRIES].sum();
+    }
+
+    public long getConflicts() {
+      return counters[Invocation.CONFLICTS].sum();
+    }
+
+    void reset() {
+      latency.reset();
+      calls.reset();
+      failures.reset();
+      for (LongAdder counter : counters) {
+        counter.reset();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return String.format("calls=%d failures=%d reads=%d rangeReads=%d directoryCalls=%d commits=%d "
+              + "bytesRead=%d bytesWritten=%d retries=%d conflicts=%d latency[%s]", getCalls(), getFailures(),
+              getReads(), getRangeReads(), getDirectoryCalls(), getCommits(), getBytesRead(), getBytesWritten(),
+              getRetries(), getConflicts(), latency);
+    }
+  }
+
+  /**
+   * The counters of one call of an operation, added to its {OperationMetrics} when it finishes.
+   * A call may span several transactions and callbacks on different threads.
+   */
+  static class Invocation {
+
+    static final int READS = 0;
+    static final int RANGE_READS = 1;
+    static final int DIRECTORY_CALLS = 2;
+    static final int COMMITS = 3;
+    static final int BYTES_READ = 4;
+    static final int BYTES_WRITTEN = 5;
+    static final int RETRIES = 6;
+    static final int CONFLICTS = 7;
+    static final int COUNTERS = 8;
+
+    private final Operation operation;
+    private final OperationMetrics metrics;
+    private final OperationEvent event;
+    private final long start = System.nanoTime();
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTERS);
+
+    Invocation(Operation operation, OperationMetrics metrics, OperationEvent event) {
+      this.operation = operation;
+      this.metrics = metrics;
+      this.event = event;
+    }
+
+    void add(int counter, long delta) {
+      counters.addAndGet(counter, delta);
+    }
+
+    void finish(Throwable error) {
+      if (metrics != null) {
+        metrics.latency.record(System.nanoTime() - start);
+        metrics.calls.increment();
+        if (error != null) {
+          metrics.failures.increment();
+        }
+        for (int i = 0; i < COUNTERS; i++) {
+          long value = counters.get(i);
+          if (value != 0) {
+            metrics.counters[i].add(value);
+          }
+        }
+      }
+      event.end();
+      if (event.shouldCommit()) {
+        event.operation = operation.name();
+        event.failed = error != null;
+        event.reads = counters.get(READS);
+        event.rangeReads = counters.get(RANGE_READS);
+        event.directoryCalls = counters.get(DIRECTORY_CALLS);
+        event.commits = counters.get(COMMITS);
+        event.bytesRead = counters.get(BYTES_READ);
+        event.bytesWritten = counters.get(BYTES_WRITTEN);
+        event.retries = counters.get(RETRIES);
+        event.conflicts = counters.get(CONFLICTS);
+        event.commit();
+      }
+    }
+  }
+
+  @Name("tablemanager.Operation")
+  @Label("Table Manager Operation")
+  @Category("Table Manager")
+  @Description("A table or record operation and the work it did in the store")
+  static class OperationEvent extends Event {
+    @Label("Operation")
+    String operation;
+    @Label("Failed")
+    boolean failed;
+    @Label("Reads")
+    long reads;
+    @Label("Range Reads")
+    long rangeReads;
+    @Label("Directory Calls")
+    long directoryCalls;
+    @Label("Commits")
+    long commits;
+    @Label("Bytes Read")
+    long bytesRead;
+    @Label("Bytes Written")
+    long bytesWritten;
+    @Label("Retries")
+    long retries;
+    @Label("Conflicts")
+    long conflicts;
+  }
+}
@@ -0,0 +1,146 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class MetricsTest {
+
+  private TableManagerImpl tableManager;
+  private RecordManager recordManager;
+  private Metrics metrics;
+
+  @Before
+  public void init() {
+    tableManager = new TableManagerImpl(new MemoryKeyValueStore(), new Subspace(Tuple.from("database")));
+    recordManager = new RecordManagerImpl(tableManager);
+    metrics = tableManager.getMetrics();
+  }
+
+  private void createTable() {
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(RecordManagerTest.EmployeeTableName,
+        RecordManagerTest.EmployeeTableAttributeNames, RecordManagerTest.EmployeeTableAttributeTypes,
+        RecordManagerTest.EmployeeTablePKAttributes));
+  }
+
+  @Test
+  public void disabledTest() {
+    metrics.setEnabled(false);
+    createTable();
+    recordManager.insertRecord(RecordManagerTest.EmployeeTableName, new TableRecord().set("SSN", 1).set("Name", "a"));
+    for (Metrics.Operation operation : Metrics.Operation.values()) {
+      assertEquals(0, metrics.get(operation).getCalls());
+      assertEquals(0, metrics.get(operation).getLatency().getCount());
+    }
+  }
+
+  @Test
+  public void operationTest() {
+    metrics.setEnabled(true);
+    createTable();
+    Metrics.OperationMetrics create = metrics.get(Metrics.Operation.CREATE_TABLE);
+    assertEquals(1, create.getCalls());
+    assertEquals(1, create.getCommits());
+    assertTrue(create.getBytesWritten() > 0);
+
+    for (int i = 0; i < 100; i++) {
+      assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(RecordManagerTest.EmployeeTableName,
+          new TableRecord().set("SSN", i).set("Name", "Employee" + i)));
+    }
+    Metrics.OperationMetrics insert = metrics.get(Metrics.Operation.INSERT_RECORD);
+    assertEquals(100, insert.getCalls());
+    assertEquals(100, insert.getCommits());
+    assertEquals(0, insert.getFailures());
+    // The schema and index definitions are range reads, the record counters key and the existing
+    // record point reads
+    assertEquals(200, insert.getReads());
+    assertEquals(200, insert.getRangeReads());
+    assertEquals(100, insert.getLatency().getCount());
+    assertTrue(insert.getLatency().getValueAtPercentile(50) <= insert.getLatency().getValueAtPercentile(99));
+    assertTrue(insert.getLatency().getValueAtPercentile(100) <= insert.getLatency().getMaxNanos());
+
+    assertEquals(new TableRecord().set("SSN", 7L).set("Name", "Employee7"),
+        recordManager.getRecord(RecordManagerTest.EmployeeTableName, 7));
+    Metrics.OperationMetrics get = metrics.get(Metrics.Operation.GET_RECORD);
+    assertEquals(1, get.getCalls());
+    assertEquals(1, get.getReads());
+    assertTrue(get.getBytesRead() > 0);
+
+    metrics.reset();
+    assertEquals(0, metrics.get(Metrics.Operation.INSERT_RECORD).getCalls());
+    assertEquals(0, metrics.get(Metrics.Operation.INSERT_RECORD).getLatency().getValueAtPercentile(99));
+  }
+
+  /**
+   * Runs a transaction that reads a key another transaction writes before each of its first
+   * attempts commits, so those attempts conflict.
+   *
+   * @return future of the number of attempts
+   */
+  private CompletableFuture<Integer> conflicting(int conflicts) {
+    AsyncTableManagerImpl asyncTableManager = tableManager.getAsyncTableManagerImpl();
+    byte[] key = Tuple.from("counter").pack();
+    AtomicInteger attempts = new AtomicInteger();
+    return asyncTableManager.measure(Metrics.Operation.MAINTENANCE, invocation ->
+        asyncTableManager.runAsync(invocation, tr -> tr.get(key).thenApply(value -> {
+          int attempt = attempts.incrementAndGet();
+          if (attempt <= conflicts) {
+            KeyValueTransaction other = asyncTableManager.getStore().createTransaction();
+            other.set(key, Tuple.from(-attempt).pack());
+            other.commit().join();
+            other.close();
+          }
+          tr.set(key, Tuple.from(attempt).pack());
+          return attempt;
+        })));
+  }
+
+  @Test
+  public void conflictTest() {
+    metrics.setEnabled(true);
+    assertEquals(3, (int) conflicting(2).join());
+    assertEquals(2, tableManager.getAsyncTableManagerImpl().getRetryCount());
+    assertEquals(2, tableManager.getAsyncTableManagerImpl().getConflictCount());
+    Metrics.OperationMetrics maintenance = metrics.get(Metrics.Operation.MAINTENANCE);
+    assertEquals(1, maintenance.getCalls());
+    assertEquals(0, maintenance.getFailures());
+    assertEquals(2, maintenance.getRetries());
+    assertEquals(2, maintenance.getConflicts());
+    assertEquals(1, maintenance.getCommits());
+  }
+
+  @Test
+  public void backoffTest() {
+    // Without the 1s cap, the delays before the 11 retries would add up to more than 10s
+    long start = System.nanoTime();
+    assertEquals(12, (int) conflicting(11).join());
+    assertTrue(System.nanoTime() - start < 9_000_000_000L);
+    assertEquals(11, tableManager.getAsyncTableManagerImpl().getRetryCount());
+  }
+
+  @Test
+  public void histogramTest() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long value = 1; value <= 100_000; value++) {
+      histogram.record(value * 1000);
+    }
+    assertEquals(100_000, histogram.getCount());
+    assertEquals(100_000_000, histogram.getMaxNanos());
+    // Buckets are at most 1/32 of their values wide
+    long p50 = histogram.getValueAtPercentile(50);
+    long p99 = histogram.getValueAtPercentile(99);
+    assertTrue(p50 >= 50_000_000 && p50 <= 50_000_000L * 33 / 32);
+    assertTrue(p99 >= 99_000_000 && p99 <= 99_000_000L * 33 / 32);
+    for (long value = 0; value < 1 << 20; value += 37) {
+      int bucket = LatencyHistogram.bucket(value);
+      assertTrue(value <= LatencyHistogram.highestValue(bucket));
+      assertTrue(bucket == 0 || value > LatencyHistogram.highestValue(bucket - 1));
+    }
+  }
+}
@@ -0,0 +1,105 @@
+import com.apple.foundationdb.tuple.Tuple;
+
+/**
+ * QueryPredicate compares an attribute of a record with a constant, see {TableQuery#where}.
+ *
+ * The constant must have the type of the attribute: a Long or Integer for INT, a Double or Float
+ * for DOUBLE and a String for VARCHAR. Values are compared in the order of their tuple encoding,
+ * which is the order of the records' keys; for DOUBLE this orders -0.0 before 0.0 and NaN after
+ * every other value. A record without a value for the attribute matches no predicate.
+ */
+public class QueryPredicate {
+
+  public enum Comparison {
+    EQUAL,
+    NOT_EQUAL,
+    LESS,
+    LESS_OR_EQUAL,
+    GREATER,
+    GREATER_OR_EQUAL
+  }
+
+  private final String attributeName;
+  private final Comparison comparison;
+  private final Object value;
+
+  public QueryPredicate(String attributeName, Comparison comparison, Object value) {
+    this.attributeName = attributeName;
+    this.comparison = comparison;
+    this.value = value;
+  }
+
+  public static QueryPredicate equalTo(String attributeName, Object value) {
+    return new QueryPredicate(attributeName, Comparison.EQUAL, value);
+  }
+
+  public static QueryPredicate notEqualTo(String attributeName, Object value) {
+    return new QueryPredicate(attributeName, Comparison.NOT_EQUAL, value);
+  }
+
+  public static QueryPredicate lessThan(String attributeName, Object value) {
+    return new QueryPredicate(attributeName, Comparison.LESS, value);
+  }
+
+  public static QueryPredicate lessThanOrEqualTo(String attributeName, Object value) {
+    return new QueryPredicate(attributeName, Comparison.LESS_OR_EQUAL, value);
+  }
+
+  public static QueryPredicate greaterThan(String attributeName, Object value) {
+    return new QueryPredicate(attributeName, Comparison.GREATER, value);
+  }
+
+  public static QueryPredicate greaterThanOrEqualTo(String attributeName, Object value) {
+    return new QueryPredicate(attributeName, Comparison.GREATER_OR_EQUAL, value);
+  }
+
+  public String getAttributeName() {
+    return attributeName;
+  }
+
+  public Comparison getComparison() {
+    return comparison;
+  }
+
+  public Object getValue() {
+    return value;
+  }
+
+  /**
+   * @return the constant converted to the stored representation of the type, packed as a tuple
+   * element
+   * @throws IllegalArgumentException if the constant does not have the type
+   */
+  byte[] encodeValue(AttributeType type) {
+    Object normalized = value == null ? null : RecordFormat.normalize(type, value);
+    if (normalized == null) {
+      throw new IllegalArgumentException("value " + value + " of " + this + " is not of type " + type);
+    }
+    return Tuple.from(normalized).pack();
+  }
+
+  /**
+   * @param cmp the comparison of the attribute's encoded value with the encoded constant
+   */
+  boolean accepts(int cmp) {
+    switch (comparison) {
+      case EQUAL:
+        return cmp == 0;
+      case NOT_EQUAL:
+        return cmp != 0;
+      case LESS:
+        return cmp < 0;
+      case LESS_OR_EQUAL:
+        return cmp <= 0;
+      case GREATER:
+        return cmp > 0;
+      default:
+        return cmp >= 0;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return attributeName + " " + comparison + " " + value;
+  }
+}
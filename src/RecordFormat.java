@@ -0,0 +1,206 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.apple.foundationdb.tuple.Tuple;
+
+/**
+ * RecordFormat encodes the records of a table as key-values under the table's rawdata subspace:
+ *   (primary key values in primary key order) -> (schema version, value, value, ...)
+ * The key is an order-preserving tuple, so records are stored in primary key order. The value holds
+ * the values of the attributes that are not part of the primary key, by position in the layout of
+ * the schema version the record was written with (see {TableSchema#layout}), with trailing nulls
+ * left out. Records are read with the current schema without being rewritten: values of dropped
+ * attributes are skipped and attributes added since the record was written have no value.
+ *
+ * Once the table has a dictionary, values are stored compressed with it, see {ValueCompression}.
+ */
+public class RecordFormat {
+
+  private RecordFormat() {}
+
+  /**
+   * @return the value converted to the representation stored for the type, or null if the value
+   * does not have the type
+   */
+  static Object normalize(AttributeType type, Object value) {
+    switch (type) {
+      case INT:
+        if (value instanceof Long) {
+          return value;
+        }
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+          return ((Number) value).longValue();
+        }
+        return null;
+      case DOUBLE:
+        if (value instanceof Double) {
+          return value;
+        }
+        if (value instanceof Float) {
+          return ((Float) value).doubleValue();
+        }
+        return null;
+      case VARCHAR:
+        return value instanceof String ? value : null;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Checks the record against the schema and converts its values, in place, to their stored
+   * representation.
+   *
+   * @return the error status code, or null if the record is valid
+   */
+  static StatusCode check(TableSchema schema, TableRecord record) {
+    for (Map.Entry<String, Object> entry : record.getValues().entrySet()) {
+      int index = schema.indexOf(entry.getKey());
+      if (index < 0) {
+        return StatusCode.ATTRIBUTE_NOT_FOUND;
+      }
+      if (entry.getValue() == null) {
+        if (schema.getPrimaryKeyPosition(index) >= 0) {
+          return StatusCode.PRIMARY_KEY_VALUE_MISSING;
+        }
+        continue;
+      }
+      Object value = normalize(schema.getAttributeType(index), entry.getValue());
+      if (value == null) {
+        return StatusCode.ATTRIBUTE_TYPE_MISMATCH;
+      }
+      entry.setValue(value);
+    }
+
+    for (int k = 0; k < schema.getPrimaryKeyCount(); k++) {
+      if (record.get(schema.getAttributeName(schema.getPrimaryKeyIndex(k))) == null) {
+        return StatusCode.PRIMARY_KEY_VALUE_MISSING;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the primary key tuple of a record checked by check()
+   */
+  static Tuple primaryKey(TableSchema schema, TableRecord record) {
+    Object[] values = new Object[schema.getPrimaryKeyCount()];
+    for (int k = 0; k < values.length; k++) {
+      values[k] = record.get(schema.getAttributeName(schema.getPrimaryKeyIndex(k)));
+    }
+    return Tuple.from(values);
+  }
+
+  /**
+   * Checks primary key values given in primary key order.
+   *
+   * @return the primary key tuple, or null if the values do not match the primary key
+   */
+  static Tuple primaryKey(TableSchema schema, Object[] primaryKeyValues) {
+    if (primaryKeyValues.length != schema.getPrimaryKeyCount()) {
+      return null;
+    }
+    Object[] values = new Object[primaryKeyValues.length];
+    for (int k = 0; k < values.length; k++) {
+      if (primaryKeyValues[k] == null) {
+        return null;
+      }
+      values[k] = normalize(schema.getAttributeType(schema.getPrimaryKeyIndex(k)), primaryKeyValues[k]);
+      if (values[k] == null) {
+        return null;
+      }
+    }
+    return Tuple.from(values);
+  }
+
+  /**
+   * @return the value of the record, compressed if the table has a dictionary
+   */
+  static byte[] encodeValue(TableSchema schema, TableRecord record) {
+    byte[] value = packValue(schema, record);
+    return schema.getDictionaryId() == 0 ? value : ValueCompression.compress(value, schema.getDictionaryId());
+  }
+
+  /**
+   * @return the plain value of the record
+   */
+  static byte[] packValue(TableSchema schema, TableRecord record) {
+    // The layout of the current version lists the non-primary key attributes in definition order
+    List<Object> values = new ArrayList<>();
+    values.add((long) schema.getVersion());
+    int last = 0;
+    for (int i = 0; i < schema.size(); i++) {
+      if (schema.getPrimaryKeyPosition(i) < 0) {
+        Object attributeValue = record.get(schema.getAttributeName(i));
+        values.add(attributeValue);
+        if (attributeValue != null) {
+          last = values.size();
+        }
+      }
+    }
+    return Tuple.fromList(values.subList(0, Math.max(1, last))).pack();
+  }
+
+  /**
+   * Rebuilds a record from its primary key and encoded value. Values of attributes that were
+   * dropped are left out.
+   *
+   * @return the record, or null if it was written with a newer version than the given schema or
+   * compressed with a dictionary that is not loaded yet
+   */
+  static TableRecord decode(TableSchema schema, Tuple primaryKey, byte[] value) {
+    value = ValueCompression.decompress(value);
+    if (value == null) {
+      return null;
+    }
+    TableRecord record = new TableRecord();
+    for (int k = 0; k < schema.getPrimaryKeyCount(); k++) {
+      record.set(schema.getAttributeName(schema.getPrimaryKeyIndex(k)), primaryKey.get(k));
+    }
+
+    Tuple values = Tuple.fromBytes(value);
+    long rowVersion = values.getLong(0);
+    if (rowVersion > schema.getVersion()) {
+      return null;
+    }
+    int[] layout = schema.layout((int) rowVersion);
+    for (int j = 0; j < layout.length && j + 1 < values.size(); j++) {
+      Object attributeValue = values.get(j + 1);
+      if (layout[j] >= 0 && attributeValue != null) {
+        record.set(schema.getAttributeName(layout[j]), attributeValue);
+      }
+    }
+    return record;
+  }
+
+  /**
+   * @return whether the encoded record holds values of attributes dropped from the given schema
+   */
+  static boolean hasDroppedValues(TableSchema schema, byte[] value) {
+    value = ValueCompression.decompress(value);
+    if (value == null) {
+      return false;
+    }
+    Tuple values = Tuple.fromBytes(value);
+    long rowVersion = values.getLong(0);
+    if (rowVersion > schema.getVersion()) {
+      return false;
+    }
+    int[] layout = schema.layout((int) rowVersion);
+    for (int j = 0; j + 1 < values.size(); j++) {
+      if ((j >= layout.length || layout[j] < 0) && values.get(j + 1) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the schema version the record was written with; the dictionary of a compressed value
+   * must be loaded
+   */
+  static long rowVersion(byte[] value) {
+    return Tuple.fromBytes(ValueCompression.decompress(value)).getLong(0);
+  }
+}
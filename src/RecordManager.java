@@ -0,0 +1,91 @@
+import java.util.List;
+
+import com.apple.foundationdb.StreamingMode;
+
+/**
+ * RecordManager defines the interfaces that need to be implemented to store the records of the
+ * tables managed by a {TableManager}.
+ *
+ * Records are keyed by the values of their table's primary key attributes, in primary key order.
+ */
+public interface RecordManager {
+
+  /**
+   * Insert a record into a table
+   *
+   * ERROR Checking and the StatusCode that should return:
+   * - tableName does not exist --> TABLE_NOT_FOUND
+   * - the record has an attribute the table does not have --> ATTRIBUTE_NOT_FOUND
+   * - a value does not match its attribute's type --> ATTRIBUTE_TYPE_MISMATCH
+   * - a primary key attribute has no value --> PRIMARY_KEY_VALUE_MISSING
+   * - a record with the same primary key exists --> RECORD_ALREADY_EXISTS
+   *
+   * @param tableName the table's name
+   * @param record the record to insert
+   * @return status code
+   */
+  public StatusCode insertRecord(String tableName, TableRecord record);
+
+  /**
+   * Get a record by its primary key
+   *
+   * @param tableName the table's name
+   * @param primaryKeyValues the values of the primary key attributes, in primary key order
+   * @return the record, or null if the table or the record does not exist
+   */
+  public TableRecord getRecord(String tableName, Object... primaryKeyValues);
+
+  /**
+   * Update the attributes of an existing record. Attributes that are not in the given record keep
+   * their value.
+   *
+   * ERROR Checking and the StatusCode that should return:
+   * - the ones of insertRecord, except RECORD_ALREADY_EXISTS
+   * - no record has the given primary key --> RECORD_NOT_FOUND
+   *
+   * @param tableName the table's name
+   * @param record the primary key values and the attribute values to set
+   * @return status code
+   */
+  public StatusCode updateRecord(String tableName, TableRecord record);
+
+  /**
+   * Delete a record by its primary key
+   *
+   * ERROR Checking and the StatusCode that should return:
+   * - tableName does not exist --> TABLE_NOT_FOUND
+   * - the number of values does not match the primary key --> PRIMARY_KEY_VALUE_MISSING
+   * - no record has the given primary key --> RECORD_NOT_FOUND
+   *
+   * @param tableName the table's name
+   * @param primaryKeyValues the values of the primary key attributes, in primary key order
+   * @return status code
+   */
+  public StatusCode deleteRecord(String tableName, Object... primaryKeyValues);
+
+  /**
+   * Find the records of a table whose attributes have the given values. The lookup reads a ready
+   * index whose leading attributes are the given ones, in any order, if the table has one, and
+   * scans the table otherwise.
+   *
+   * @param tableName the table's name
+   * @param attributeNames the attributes to match
+   * @param values the value each attribute must have
+   * @return the matching records, in index order or primary key order, or null if the table or
+   * one of the attributes does not exist
+   */
+  public List<TableRecord> findRecords(String tableName, String[] attributeNames, Object[] values);
+
+  /**
+   * Open a cursor over the records of a table, in primary key order, that reads batchSize records
+   * per transaction. The cursor is empty if the table does not exist.
+   *
+   * @param tableName the table's name
+   * @param batchSize the number of records read per transaction
+   * @param mode the streaming mode of the reads
+   * @param continuation the continuation of an earlier cursor over the table to resume, or null to
+   *                     start at the first record
+   * @return the cursor over the records
+   */
+  public Cursor<TableRecord> openRecordCursor(String tableName, int batchSize, StreamingMode mode, byte[] continuation);
+}
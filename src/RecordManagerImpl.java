@@ -0,0 +1,56 @@
+import java.util.List;
+
+import com.apple.foundationdb.StreamingMode;
+
+/**
+ * RecordManagerImpl implements interfaces in {#RecordManager}. It is a thin synchronous adapter
+ * over {#AsyncRecordManagerImpl}: every call waits for the corresponding asynchronous operation.
+ */
+public class RecordManagerImpl implements RecordManager {
+
+  private AsyncRecordManagerImpl asyncRecordManager;
+
+  /**
+   * Store the records of the tables of the given table manager.
+   */
+  public RecordManagerImpl(TableManagerImpl tableManager) {
+    asyncRecordManager = new AsyncRecordManagerImpl(tableManager.getAsyncTableManagerImpl());
+  }
+
+  /**
+   * @return the asynchronous record manager this instance delegates to
+   */
+  public AsyncRecordManager getAsyncRecordManager() {
+    return asyncRecordManager;
+  }
+
+  @Override
+  public StatusCode insertRecord(String tableName, TableRecord record) {
+    return asyncRecordManager.insertRecord(tableName, record).join();
+  }
+
+  @Override
+  public TableRecord getRecord(String tableName, Object... primaryKeyValues) {
+    return asyncRecordManager.getRecord(tableName, primaryKeyValues).join();
+  }
+
+  @Override
+  public StatusCode updateRecord(String tableName, TableRecord record) {
+    return asyncRecordManager.updateRecord(tableName, record).join();
+  }
+
+  @Override
+  public StatusCode deleteRecord(String tableName, Object... primaryKeyValues) {
+    return asyncRecordManager.deleteRecord(tableName, primaryKeyValues).join();
+  }
+
+  @Override
+  public List<TableRecord> findRecords(String tableName, String[] attributeNames, Object[] values) {
+    return asyncRecordManager.findRecords(tableName, attributeNames, values).join();
+  }
+
+  @Override
+  public Cursor<TableRecord> openRecordCursor(String tableName, int batchSize, StreamingMode mode, byte[] continuation) {
+    return asyncRecordManager.openRecordCursor(tableName, batchSize, mode, continuation);
+  }
+}
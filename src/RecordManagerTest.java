@@ -0,0 +1,202 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.apple.foundationdb.StreamingMode;
+
+public class RecordManagerTest {
+  public static String EmployeeTableName = "Employee";
+  public static String[] EmployeeTableAttributeNames = new String[]{"SSN", "Name", "Salary"};
+  public static AttributeType[] EmployeeTableAttributeTypes =
+      new AttributeType[]{AttributeType.INT, AttributeType.VARCHAR, AttributeType.DOUBLE};
+  public static String[] EmployeeTablePKAttributes = new String[]{"SSN"};
+
+  public static String AssignmentTableName = "Assignment";
+  public static String[] AssignmentTableAttributeNames = new String[]{"Dno", "SSN", "Hours"};
+  public static AttributeType[] AssignmentTableAttributeTypes =
+      new AttributeType[]{AttributeType.INT, AttributeType.INT, AttributeType.DOUBLE};
+  public static String[] AssignmentTablePKAttributes = new String[]{"SSN", "Dno"};
+
+  protected TableManager tableManager;
+  protected RecordManager recordManager;
+
+  @Before
+  public void init() {
+    TableManagerImpl tableManagerImpl = new TableManagerImpl();
+    tableManager = tableManagerImpl;
+    recordManager = new RecordManagerImpl(tableManagerImpl);
+  }
+
+  private void createTables() {
+    tableManager.dropAllTables();
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(EmployeeTableName, EmployeeTableAttributeNames,
+        EmployeeTableAttributeTypes, EmployeeTablePKAttributes));
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(AssignmentTableName, AssignmentTableAttributeNames,
+        AssignmentTableAttributeTypes, AssignmentTablePKAttributes));
+  }
+
+  @Test
+  public void insertAndGetTest() {
+    createTables();
+
+    TableRecord employee = new TableRecord().set("SSN", 1).set("Name", "Ada").set("Salary", 1000.5);
+    assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(EmployeeTableName, employee));
+    assertEquals(StatusCode.RECORD_ALREADY_EXISTS, recordManager.insertRecord(EmployeeTableName, employee));
+    assertEquals(StatusCode.TABLE_NOT_FOUND, recordManager.insertRecord("Department", employee));
+    assertEquals(StatusCode.ATTRIBUTE_NOT_FOUND,
+        recordManager.insertRecord(EmployeeTableName, new TableRecord().set("SSN", 2).set("Address", "LA")));
+    assertEquals(StatusCode.ATTRIBUTE_TYPE_MISMATCH,
+        recordManager.insertRecord(EmployeeTableName, new TableRecord().set("SSN", 2).set("Salary", "high")));
+    assertEquals(StatusCode.PRIMARY_KEY_VALUE_MISSING,
+        recordManager.insertRecord(EmployeeTableName, new TableRecord().set("Name", "Bob")));
+
+    // INT values are stored as long
+    assertEquals(new TableRecord().set("SSN", 1L).set("Name", "Ada").set("Salary", 1000.5),
+        recordManager.getRecord(EmployeeTableName, 1));
+    assertNull(recordManager.getRecord(EmployeeTableName, 2));
+    assertNull(recordManager.getRecord("Department", 1));
+  }
+
+  @Test
+  public void compositeKeyTest() {
+    createTables();
+
+    assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(AssignmentTableName,
+        new TableRecord().set("Dno", 1).set("SSN", 7).set("Hours", 10.0)));
+    assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(AssignmentTableName,
+        new TableRecord().set("Dno", 2).set("SSN", 7)));
+
+    // Primary key values are given in primary key order: SSN, Dno
+    assertEquals(new TableRecord().set("Dno", 1L).set("SSN", 7L).set("Hours", 10.0),
+        recordManager.getRecord(AssignmentTableName, 7, 1));
+    assertEquals(new TableRecord().set("Dno", 2L).set("SSN", 7L),
+        recordManager.getRecord(AssignmentTableName, 7, 2));
+    assertNull(recordManager.getRecord(AssignmentTableName, 1, 7));
+
+    // The keys of the records are made of the primary key values
+    assertEquals(StatusCode.PRIMARY_KEY_ATTRIBUTE_DROP_NOT_ALLOWED, tableManager.dropAttribute(AssignmentTableName, "SSN"));
+    assertEquals(StatusCode.PRIMARY_KEY_ATTRIBUTE_DROP_NOT_ALLOWED,
+        tableManager.applyBatch(new DdlBatch().dropAttribute(AssignmentTableName, "Dno")).get(0));
+    assertEquals(new TableRecord().set("Dno", 1L).set("SSN", 7L).set("Hours", 10.0),
+        recordManager.getRecord(AssignmentTableName, 7, 1));
+    List<TableRecord> records = recordManager.findRecords(AssignmentTableName, new String[]{"SSN"}, new Object[]{7});
+    assertEquals(2, records.size());
+  }
+
+  @Test
+  public void updateAndDeleteTest() {
+    createTables();
+
+    assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(EmployeeTableName,
+        new TableRecord().set("SSN", 1).set("Name", "Ada").set("Salary", 1000.0)));
+    assertEquals(StatusCode.SUCCESS, recordManager.updateRecord(EmployeeTableName,
+        new TableRecord().set("SSN", 1).set("Salary", 2000.0)));
+    assertEquals(StatusCode.RECORD_NOT_FOUND, recordManager.updateRecord(EmployeeTableName,
+        new TableRecord().set("SSN", 2).set("Salary", 2000.0)));
+    assertEquals(new TableRecord().set("SSN", 1L).set("Name", "Ada").set("Salary", 2000.0),
+        recordManager.getRecord(EmployeeTableName, 1));
+
+    // Dropped attributes are no longer part of the records
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAttribute(EmployeeTableName, "Salary"));
+    assertEquals(new TableRecord().set("SSN", 1L).set("Name", "Ada"), recordManager.getRecord(EmployeeTableName, 1));
+
+    assertEquals(StatusCode.PRIMARY_KEY_VALUE_MISSING, recordManager.deleteRecord(EmployeeTableName));
+    assertEquals(StatusCode.RECORD_NOT_FOUND, recordManager.deleteRecord(EmployeeTableName, 2));
+    assertEquals(StatusCode.SUCCESS, recordManager.deleteRecord(EmployeeTableName, 1));
+    assertNull(recordManager.getRecord(EmployeeTableName, 1));
+
+    // Deleting the table deletes its records
+    assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(EmployeeTableName,
+        new TableRecord().set("SSN", 1).set("Name", "Ada")));
+    assertEquals(StatusCode.SUCCESS, tableManager.deleteTable(EmployeeTableName));
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(EmployeeTableName, EmployeeTableAttributeNames,
+        EmployeeTableAttributeTypes, EmployeeTablePKAttributes));
+    assertNull(recordManager.getRecord(EmployeeTableName, 1));
+  }
+
+  @Test
+  public void recordCursorTest() {
+    createTables();
+    for (int i = 0; i < 50; i++) {
+      assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(EmployeeTableName,
+          new TableRecord().set("SSN", 49 - i).set("Name", "Employee" + (49 - i))));
+    }
+
+    // Records come in primary key order, also across resumed cursors
+    List<Object> ssns = new ArrayList<>();
+    Cursor<TableRecord> cursor = recordManager.openRecordCursor(EmployeeTableName, 8, StreamingMode.ITERATOR, null);
+    for (int i = 0; i < 20; i++) {
+      ssns.add(cursor.next().get("SSN"));
+    }
+    cursor = recordManager.openRecordCursor(EmployeeTableName, 8, StreamingMode.ITERATOR, cursor.getContinuation());
+    while (cursor.hasNext()) {
+      ssns.add(cursor.next().get("SSN"));
+    }
+    assertNull(cursor.getContinuation());
+
+    assertEquals(50, ssns.size());
+    for (int i = 0; i < 50; i++) {
+      assertEquals((long) i, ssns.get(i));
+    }
+    assertFalse(recordManager.openRecordCursor("Department", 8, StreamingMode.ITERATOR, null).hasNext());
+  }
+
+  @Test
+  public void indexTest() {
+    createTables();
+    // More records than an index backfill indexes per transaction
+    for (int i = 0; i < 2500; i++) {
+      assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(EmployeeTableName,
+          new TableRecord().set("SSN", i).set("Name", "Name" + (i % 10)).set("Salary", (double) (i % 7))));
+    }
+
+    String[] name = new String[]{"Name"};
+    assertEquals(StatusCode.SUCCESS, tableManager.createIndex(EmployeeTableName, "ByName", name));
+    assertEquals(StatusCode.INDEX_ALREADY_EXISTS, tableManager.createIndex(EmployeeTableName, "ByName", name));
+    assertEquals(StatusCode.TABLE_NOT_FOUND, tableManager.createIndex("Department", "ByName", name));
+    assertEquals(StatusCode.ATTRIBUTE_NOT_FOUND,
+        tableManager.createIndex(EmployeeTableName, "ByAddress", new String[]{"Address"}));
+    assertEquals(StatusCode.SUCCESS,
+        tableManager.createIndex(EmployeeTableName, "ByNameSalary", new String[]{"Name", "Salary"}));
+
+    List<TableRecord> found = recordManager.findRecords(EmployeeTableName, name, new Object[]{"Name3"});
+    assertEquals(250, found.size());
+    for (TableRecord record : found) {
+      assertEquals(3L, (long) record.get("SSN") % 10);
+    }
+    assertEquals(36, recordManager.findRecords(EmployeeTableName, new String[]{"Salary", "Name"},
+        new Object[]{2.0, "Name3"}).size());
+    // Lookups no index serves scan the table
+    assertEquals(358, recordManager.findRecords(EmployeeTableName, new String[]{"Salary"}, new Object[]{0.0}).size());
+    assertEquals(0, recordManager.findRecords(EmployeeTableName, name, new Object[]{3}).size());
+    assertNull(recordManager.findRecords(EmployeeTableName, new String[]{"Address"}, new Object[]{"LA"}));
+    assertNull(recordManager.findRecords("Department", name, new Object[]{"Name3"}));
+
+    // Writes maintain the index
+    assertEquals(StatusCode.SUCCESS, recordManager.updateRecord(EmployeeTableName,
+        new TableRecord().set("SSN", 3).set("Name", "Ada")));
+    assertEquals(StatusCode.SUCCESS, recordManager.deleteRecord(EmployeeTableName, 13));
+    assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(EmployeeTableName,
+        new TableRecord().set("SSN", 5000).set("Name", "Ada")));
+    assertEquals(248, recordManager.findRecords(EmployeeTableName, name, new Object[]{"Name3"}).size());
+    List<Object> ssns = new ArrayList<>();
+    for (TableRecord record : recordManager.findRecords(EmployeeTableName, name, new Object[]{"Ada"})) {
+      ssns.add(record.get("SSN"));
+    }
+    assertEquals(List.of(3L, 5000L), ssns);
+
+    assertEquals(StatusCode.SUCCESS, tableManager.dropIndex(EmployeeTableName, "ByName"));
+    assertEquals(StatusCode.INDEX_NOT_FOUND, tableManager.dropIndex(EmployeeTableName, "ByName"));
+    assertEquals(248, recordManager.findRecords(EmployeeTableName, name, new Object[]{"Name3"}).size());
+
+    // Dropping an indexed attribute drops its indexes
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAttribute(EmployeeTableName, "Salary"));
+    assertEquals(StatusCode.INDEX_NOT_FOUND, tableManager.dropIndex(EmployeeTableName, "ByNameSalary"));
+  }
+}
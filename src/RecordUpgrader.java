@@ -0,0 +1,169 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.StreamingMode;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+import com.apple.foundationdb.tuple.Tuple;
+
+/**
+ * RecordUpgrader rewrites the records of a table that were written with an older schema version
+ * with the current version, and the records that are not compressed with the table's current
+ * dictionary, see {DictionaryTrainer}, with that dictionary.
+ *
+ * Records never need it to be read correctly, see {RecordFormat}; the pass only lets the schema
+ * forget the positions of dropped attributes, which it has to keep as long as older records may
+ * use them, and compresses the records written before the table was trained or since retrained.
+ * Once the pass reaches the end of the table, the schema records the oldest version it
+ * rewrote records with as the minimum record version and drops the history older records needed.
+ *
+ * Like {AttributePurger}, the pass walks the rawdata range in transactions of at most
+ * rowsPerTransaction records and bytesPerTransaction bytes, optionally rate-limited, and keeps its
+ * progress under the table's metadata subspace, so an interrupted pass continues where it stopped
+ * on the next run:
+ *   ("upgrade") -> (next rawdata key, oldest schema version of the pass)
+ */
+public class RecordUpgrader {
+
+  private final AsyncTableManagerImpl tableManager;
+  private final String tableName;
+
+  private int rowsPerTransaction = 1000;
+  private int bytesPerTransaction = 1_000_000;
+  private double maxRowsPerSecond = 0;
+
+  public RecordUpgrader(TableManagerImpl tableManager, String tableName) {
+    this.tableManager = tableManager.getAsyncTableManagerImpl();
+    this.tableName = tableName;
+  }
+
+  public RecordUpgrader setRowsPerTransaction(int rowsPerTransaction) {
+    this.rowsPerTransaction = rowsPerTransaction;
+    return this;
+  }
+
+  public RecordUpgrader setBytesPerTransaction(int bytesPerTransaction) {
+    this.bytesPerTransaction = bytesPerTransaction;
+    return this;
+  }
+
+  public RecordUpgrader setMaxRowsPerSecond(double maxRowsPerSecond) {
+    this.maxRowsPerSecond = maxRowsPerSecond;
+    return this;
+  }
+
+  /**
+   * Runs the pass to the end of the table and waits for it.
+   *
+   * @return the number of records rewritten, or -1 if the table does not exist
+   */
+  public long upgrade() {
+    return upgradeAsync().join();
+  }
+
+  /**
+   * Runs the pass to the end of the table.
+   *
+   * @return future of the number of records rewritten, or of -1 if the table does not exist
+   */
+  public CompletableFuture<Long> upgradeAsync() {
+    return tableManager.measure(Metrics.Operation.MAINTENANCE, invocation -> upgradeFrom(invocation, 0)).whenComplete((rewritten, e) -> tableManager.invalidateCache());
+  }
+
+  private CompletableFuture<Long> upgradeFrom(Metrics.Invocation invocation, long rewritten) {
+    long start = System.nanoTime();
+    return tableManager.runAsync(invocation, this::upgradeStep).thenCompose(step -> {
+      if (step == null) {
+        return CompletableFuture.completedFuture(-1L);
+      }
+      long total = rewritten + step[1];
+      if (step[2] != 0) {
+        return CompletableFuture.completedFuture(total);
+      }
+      if (maxRowsPerSecond <= 0) {
+        return upgradeFrom(invocation, total);
+      }
+      // Wait until the records read so far fit the rate
+      long delay = (long) (step[0] * 1e9 / maxRowsPerSecond) - (System.nanoTime() - start);
+      return CompletableFuture.supplyAsync(() -> null,
+              CompletableFuture.delayedExecutor(Math.max(0, delay), TimeUnit.NANOSECONDS))
+          .thenCompose(ignore -> upgradeFrom(invocation, total));
+    });
+  }
+
+  /**
+   * Rewrites the old records of the next part of the table in one transaction.
+   *
+   * @return the number of records read and rewritten and 1 if the pass is done, or null if the
+   * table does not exist
+   */
+  private CompletableFuture<long[]> upgradeStep(KeyValueTransaction tr) {
+    TableSubspaces subspaces = tableManager.tableSubspaces(tableName);
+    Range rawdata = subspaces.getRawdata().range();
+    CompletableFuture<TableSchema> schema = AsyncTableManagerImpl.readSchema(tr, subspaces);
+    CompletableFuture<byte[]> statistics = tr.get(subspaces.getStatisticsKey());
+    return tr.get(subspaces.getUpgradeKey()).thenCompose(progress -> {
+      byte[] begin = progress == null ? rawdata.begin : Tuple.fromBytes(progress).getBytes(0);
+      CompletableFuture<List<KeyValue>> rows = tr.getRange(begin, rawdata.end, rowsPerTransaction, false,
+              StreamingMode.WANT_ALL).asList();
+      return statistics.thenCompose(state -> schema.thenCombine(rows, (tableSchema, records) -> {
+        if (tableSchema == null) {
+          tr.clear(subspaces.getUpgradeKey());
+          return null;
+        }
+        long oldest = tableSchema.getVersion();
+        if (progress != null) {
+          oldest = Math.min(oldest, Tuple.fromBytes(progress).getLong(1));
+        }
+
+        long rewritten = 0;
+        int read = 0;
+        int bytes = 0;
+        long sizeChange = 0;
+        byte[] next = rawdata.end;
+        for (KeyValue record : records) {
+          if (bytes >= bytesPerTransaction) {
+            next = record.getKey();
+            break;
+          }
+          read++;
+          bytes += record.getKey().length + record.getValue().length;
+          boolean old = RecordFormat.rowVersion(record.getValue()) < tableSchema.getVersion();
+          if (old || ValueCompression.dictionaryId(record.getValue()) != tableSchema.getDictionaryId()) {
+            Tuple primaryKey = subspaces.getRawdata().unpack(record.getKey());
+            byte[] value = RecordFormat.encodeValue(tableSchema,
+                    RecordFormat.decode(tableSchema, primaryKey, record.getValue()));
+            // Values that do not compress stay plain
+            if (!old && Arrays.equals(value, record.getValue())) {
+              continue;
+            }
+            tr.set(record.getKey(), value);
+            bytes += value.length;
+            rewritten++;
+            if (TableStatistics.counts(state, record.getKey())) {
+              sizeChange += value.length - record.getValue().length;
+            }
+          }
+        }
+        TableStatistics.add(tr, subspaces, 0, sizeChange);
+        if (next == rawdata.end && records.size() == rowsPerTransaction) {
+          next = ByteArrayUtil.join(records.get(records.size() - 1).getKey(), new byte[]{0});
+        }
+
+        if (next != rawdata.end) {
+          tr.set(subspaces.getUpgradeKey(), Tuple.from(next, oldest).pack());
+          return new long[]{read, rewritten, 0};
+        }
+        // Records written during the pass use the version of their own transaction, which is
+        // never older than the one of the pass
+        AsyncTableManagerImpl.writeSchema(tr, subspaces, tableSchema.withMinRowVersion((int) oldest));
+        tableManager.bumpCatalogVersion(tr);
+        tr.clear(subspaces.getUpgradeKey());
+        return new long[]{read, rewritten, 1};
+      }));
+    });
+  }
+}
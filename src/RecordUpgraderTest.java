@@ -0,0 +1,94 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class RecordUpgraderTest {
+
+  private TableManagerImpl tableManager;
+  private RecordManager recordManager;
+  private TableSubspaces subspaces;
+
+  @Before
+  public void init() {
+    tableManager = new TableManagerImpl(new MemoryKeyValueStore(), new Subspace(Tuple.from("database")));
+    recordManager = new RecordManagerImpl(tableManager);
+    subspaces = tableManager.getAsyncTableManagerImpl().tableSubspaces(RecordManagerTest.EmployeeTableName);
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(RecordManagerTest.EmployeeTableName,
+        RecordManagerTest.EmployeeTableAttributeNames, RecordManagerTest.EmployeeTableAttributeTypes,
+        RecordManagerTest.EmployeeTablePKAttributes));
+  }
+
+  private TableSchema schema() {
+    return tableManager.getAsyncTableManagerImpl().run(tr -> AsyncTableManagerImpl.readSchema(tr, subspaces).join());
+  }
+
+  private long oldestRowVersion() {
+    long oldest = Long.MAX_VALUE;
+    for (KeyValue keyvalue : tableManager.getAsyncTableManagerImpl().run(tr ->
+        tr.getRange(subspaces.getRawdata().range()).asList().join())) {
+      oldest = Math.min(oldest, RecordFormat.rowVersion(keyvalue.getValue()));
+    }
+    return oldest;
+  }
+
+  @Test
+  public void projectionTest() {
+    for (int i = 0; i < 300; i++) {
+      assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(RecordManagerTest.EmployeeTableName,
+          new TableRecord().set("SSN", i).set("Name", "Employee" + i).set("Salary", i * 10.0)));
+    }
+
+    // Altering the table rewrites no record; only the background purge started by dropping an
+    // attribute does
+    assertEquals(StatusCode.SUCCESS, tableManager.addAttribute(RecordManagerTest.EmployeeTableName, "Age",
+        AttributeType.INT));
+    assertEquals(1, schema().getVersion());
+    assertEquals(0, oldestRowVersion());
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAttribute(RecordManagerTest.EmployeeTableName, "Name"));
+    assertEquals(2, schema().getVersion());
+    assertEquals(new TableRecord().set("SSN", 7L).set("Salary", 70.0),
+        recordManager.getRecord(RecordManagerTest.EmployeeTableName, 7));
+
+    assertEquals(StatusCode.SUCCESS, recordManager.updateRecord(RecordManagerTest.EmployeeTableName,
+        new TableRecord().set("SSN", 8).set("Age", 30)));
+    assertEquals(new TableRecord().set("SSN", 8L).set("Salary", 80.0).set("Age", 30L),
+        recordManager.getRecord(RecordManagerTest.EmployeeTableName, 8));
+
+    // A new attribute with the name of a dropped one has none of its values
+    assertEquals(StatusCode.SUCCESS, tableManager.addAttribute(RecordManagerTest.EmployeeTableName, "Name",
+        AttributeType.VARCHAR));
+    assertEquals(new TableRecord().set("SSN", 7L).set("Salary", 70.0),
+        recordManager.getRecord(RecordManagerTest.EmployeeTableName, 7));
+    assertEquals(1, schema().getDroppedCount());
+
+    // The background purge of Name may have rewritten some records already
+    new RecordUpgrader(tableManager, RecordManagerTest.EmployeeTableName).setRowsPerTransaction(64).upgrade();
+    TableSchema schema = schema();
+    assertEquals(3, oldestRowVersion());
+    assertEquals(3, schema.getMinRowVersion());
+    assertEquals(0, schema.getDroppedCount());
+    assertEquals(new TableRecord().set("SSN", 8L).set("Salary", 80.0).set("Age", 30L),
+        recordManager.getRecord(RecordManagerTest.EmployeeTableName, 8));
+    assertEquals(-1, new RecordUpgrader(tableManager, "Department").upgrade());
+  }
+
+  @Test
+  public void schemaFormatTest() {
+    TableSchema schema = TableSchema.of(RecordManagerTest.EmployeeTableAttributeNames,
+        RecordManagerTest.EmployeeTableAttributeTypes, RecordManagerTest.EmployeeTablePKAttributes)
+        .withAttribute("Age", AttributeType.INT).withoutAttribute(1);
+    TableSchema decoded = TableSchema.decode(schema.encode());
+    assertArrayEquals(schema.encode(), decoded.encode());
+    assertEquals(2, decoded.getVersion());
+    // Layout of version 0: Name, Salary; of version 2: Salary, Age
+    assertEquals(-1, decoded.layout(0)[0]);
+    assertEquals("Salary", decoded.getAttributeName(decoded.layout(0)[1]));
+    assertEquals("Age", decoded.getAttributeName(decoded.layout(2)[1]));
+  }
+}
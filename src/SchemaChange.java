@@ -0,0 +1,142 @@
+import com.apple.foundationdb.tuple.Tuple;
+import com.apple.foundationdb.tuple.Versionstamp;
+
+/**
+ * SchemaChange is one entry of the schema change log, see {AsyncTableManager#changesSince}.
+ *
+ * Every DDL operation appends its changes to the log in the transaction that makes them, under a
+ * key holding the versionstamp of that transaction, so the log is in commit order and a consumer
+ * that applies the changes in order ends up with the catalog as of the last change it read. The
+ * value of an entry is the tuple (type, tableName, attributeName, attributeType, schema), where
+ * schema is the encoded {TableSchema} of a created table. A schema too large for the entry is
+ * left out of it and logged in chunks under the same versionstamp, see {AsyncTableManagerImpl}.
+ */
+public class SchemaChange {
+
+  public enum Type {
+    CREATE_TABLE,
+    DELETE_TABLE,
+    ADD_ATTRIBUTE,
+    DROP_ATTRIBUTE,
+    // Every table was deleted
+    DROP_ALL_TABLES,
+    // New values of the table are compressed with a new dictionary, see {DictionaryTrainer}
+    SET_DICTIONARY
+  }
+
+  private final Versionstamp versionstamp;
+  private final Type type;
+  private final String tableName;
+  private final String attributeName;
+  private final AttributeType attributeType;
+  private final TableMetadata table;
+
+  SchemaChange(Versionstamp versionstamp, Type type, String tableName, String attributeName,
+               AttributeType attributeType, TableMetadata table) {
+    this.versionstamp = versionstamp;
+    this.type = type;
+    this.tableName = tableName;
+    this.attributeName = attributeName;
+    this.attributeType = attributeType;
+    this.table = table;
+  }
+
+  static SchemaChange tableCreated(String tableName, TableSchema schema) {
+    return new SchemaChange(null, Type.CREATE_TABLE, tableName, null, null, schema.toTableMetadata());
+  }
+
+  static SchemaChange tableDeleted(String tableName) {
+    return new SchemaChange(null, Type.DELETE_TABLE, tableName, null, null, null);
+  }
+
+  static SchemaChange attributeAdded(String tableName, String attributeName, AttributeType attributeType) {
+    return new SchemaChange(null, Type.ADD_ATTRIBUTE, tableName, attributeName, attributeType, null);
+  }
+
+  static SchemaChange attributeDropped(String tableName, String attributeName) {
+    return new SchemaChange(null, Type.DROP_ATTRIBUTE, tableName, attributeName, null, null);
+  }
+
+  static SchemaChange allTablesDropped() {
+    return new SchemaChange(null, Type.DROP_ALL_TABLES, null, null, null, null);
+  }
+
+  static SchemaChange dictionarySet(String tableName) {
+    return new SchemaChange(null, Type.SET_DICTIONARY, tableName, null, null, null);
+  }
+
+  /**
+   * @param maxSchemaBytes the size above which the schema of a created table is left out of the
+   *                       entry, to keep it below the value size limit; the caller logs it apart
+   */
+  byte[] encode(int maxSchemaBytes) {
+    byte[] schema = table == null ? null : table.getSchema().encode();
+    if (schema != null && schema.length > maxSchemaBytes) {
+      schema = null;
+    }
+    return Tuple.from(type.name(), tableName, attributeName,
+            attributeType == null ? null : attributeType.name(), schema).pack();
+  }
+
+  /**
+   * Decodes a log entry. The table of a CREATE_TABLE entry whose schema was left out is null.
+   */
+  static SchemaChange decode(Versionstamp versionstamp, byte[] value) {
+    Tuple tuple = Tuple.fromBytes(value);
+    String attributeType = tuple.getString(3);
+    byte[] schema = tuple.getBytes(4);
+    return new SchemaChange(versionstamp, Type.valueOf(tuple.getString(0)), tuple.getString(1), tuple.getString(2),
+            attributeType == null ? null : AttributeType.valueOf(attributeType),
+            schema == null ? null : TableSchema.decode(schema).toTableMetadata());
+  }
+
+  SchemaChange withTable(TableMetadata table) {
+    return new SchemaChange(versionstamp, type, tableName, attributeName, attributeType, table);
+  }
+
+  /**
+   * @return the versionstamp of the transaction that made the change; pass it to changesSince()
+   * to continue after this change
+   */
+  public Versionstamp getVersionstamp() {
+    return versionstamp;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * @return the table the change applies to, or null for DROP_ALL_TABLES
+   */
+  public String getTableName() {
+    return tableName;
+  }
+
+  /**
+   * @return the attribute added or dropped, or null for the other types
+   */
+  public String getAttributeName() {
+    return attributeName;
+  }
+
+  /**
+   * @return the type of the attribute added, or null for the other types
+   */
+  public AttributeType getAttributeType() {
+    return attributeType;
+  }
+
+  /**
+   * @return the metadata of the created table as it was created, or null for the other types
+   */
+  public TableMetadata getTable() {
+    return table;
+  }
+
+  @Override
+  public String toString() {
+    return type + " " + tableName + (attributeName == null ? "" : "." + attributeName)
+            + (attributeType == null ? "" : " " + attributeType) + " at " + versionstamp;
+  }
+}
@@ -0,0 +1,190 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+import com.apple.foundationdb.tuple.Versionstamp;
+
+public class SchemaChangesTest {
+
+  private TableManagerImpl tableManager;
+
+  @Before
+  public void init() {
+    tableManager = new TableManagerImpl(new MemoryKeyValueStore(), new Subspace(Tuple.from("database")));
+  }
+
+  private void createEmployeeTable() {
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(RecordManagerTest.EmployeeTableName,
+        RecordManagerTest.EmployeeTableAttributeNames, RecordManagerTest.EmployeeTableAttributeTypes,
+        RecordManagerTest.EmployeeTablePKAttributes));
+  }
+
+  private static List<SchemaChange> read(Cursor<SchemaChange> cursor) {
+    List<SchemaChange> changes = new ArrayList<>();
+    cursor.forEachRemaining(changes::add);
+    return changes;
+  }
+
+  /**
+   * Applies the changes to the tables of a consumer, the way a consumer would.
+   */
+  private static void apply(HashMap<String, TableMetadata> tables, List<SchemaChange> changes) {
+    for (SchemaChange change : changes) {
+      switch (change.getType()) {
+        case CREATE_TABLE:
+          tables.put(change.getTableName(), change.getTable());
+          break;
+        case DELETE_TABLE:
+          tables.remove(change.getTableName());
+          break;
+        case ADD_ATTRIBUTE:
+          tables.get(change.getTableName()).addAttribute(change.getAttributeName(), change.getAttributeType());
+          break;
+        case DROP_ATTRIBUTE:
+          tables.get(change.getTableName()).getAttributes().remove(change.getAttributeName());
+          break;
+        case DROP_ALL_TABLES:
+          tables.clear();
+          break;
+      }
+    }
+  }
+
+  @Test
+  public void changeLogTest() {
+    createEmployeeTable();
+    List<SchemaChange> changes = read(tableManager.changesSince(null));
+    assertEquals(1, changes.size());
+    assertEquals(SchemaChange.Type.CREATE_TABLE, changes.get(0).getType());
+    assertEquals(tableManager.listTables().get(RecordManagerTest.EmployeeTableName), changes.get(0).getTable());
+    Versionstamp position = changes.get(0).getVersionstamp();
+
+    assertEquals(StatusCode.SUCCESS, tableManager.addAttribute(RecordManagerTest.EmployeeTableName, "Age",
+        AttributeType.INT));
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAttribute(RecordManagerTest.EmployeeTableName, "Salary"));
+    // Failed operations log nothing
+    assertEquals(StatusCode.ATTRIBUTE_NOT_FOUND, tableManager.dropAttribute(RecordManagerTest.EmployeeTableName, "x"));
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable("Department", new String[]{"Id"},
+        new AttributeType[]{AttributeType.INT}, new String[]{"Id"}));
+    assertEquals(StatusCode.SUCCESS, tableManager.deleteTable("Department"));
+
+    changes = read(tableManager.changesSince(position));
+    assertEquals(4, changes.size());
+    assertEquals(SchemaChange.Type.ADD_ATTRIBUTE, changes.get(0).getType());
+    assertEquals("Age", changes.get(0).getAttributeName());
+    assertEquals(AttributeType.INT, changes.get(0).getAttributeType());
+    assertEquals(SchemaChange.Type.DROP_ATTRIBUTE, changes.get(1).getType());
+    assertEquals("Salary", changes.get(1).getAttributeName());
+    assertEquals(SchemaChange.Type.CREATE_TABLE, changes.get(2).getType());
+    assertEquals(SchemaChange.Type.DELETE_TABLE, changes.get(3).getType());
+    for (int i = 1; i < changes.size(); i++) {
+      assertTrue(changes.get(i - 1).getVersionstamp().compareTo(changes.get(i).getVersionstamp()) < 0);
+    }
+    assertTrue(read(tableManager.changesSince(changes.get(3).getVersionstamp())).isEmpty());
+
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAllTables());
+    changes = read(tableManager.changesSince(changes.get(3).getVersionstamp()));
+    assertEquals(1, changes.size());
+    assertEquals(SchemaChange.Type.DROP_ALL_TABLES, changes.get(0).getType());
+    assertNull(changes.get(0).getTableName());
+  }
+
+  @Test
+  public void consumerTest() {
+    // The consumer starts from the catalog, then follows the log
+    HashMap<String, TableMetadata> tables = new HashMap<>();
+    List<SchemaChange> changes = read(tableManager.changesSince(null));
+    assertTrue(changes.isEmpty());
+    createEmployeeTable();
+    Versionstamp position = Versionstamp.complete(new byte[10]);
+
+    for (int round = 0; round < 3; round++) {
+      changes = read(tableManager.changesSince(position));
+      apply(tables, changes);
+      if (!changes.isEmpty()) {
+        position = changes.get(changes.size() - 1).getVersionstamp();
+      }
+      assertEquals(tableManager.listTables(), tables);
+
+      DdlBatch batch = new DdlBatch()
+          .addAttribute(RecordManagerTest.EmployeeTableName, "Attribute" + round, AttributeType.VARCHAR)
+          .createTable("Table" + round, new String[]{"Id"}, new AttributeType[]{AttributeType.INT}, new String[]{"Id"})
+          .dropAttribute(RecordManagerTest.EmployeeTableName, round == 0 ? "Salary" : "Attribute" + (round - 1));
+      tableManager.applyBatch(batch);
+    }
+    apply(tables, read(tableManager.changesSince(position)));
+    assertEquals(tableManager.listTables(), tables);
+
+    // A new consumer gets the same tables, and the position after them
+    HashMap<String, TableMetadata> late = new HashMap<>();
+    changes = read(tableManager.changesSince(null));
+    apply(late, changes);
+    assertEquals(tables, late);
+    assertTrue(read(tableManager.changesSince(changes.get(0).getVersionstamp())).isEmpty());
+  }
+
+  @Test
+  public void wideTableTest() {
+    // Long enough for the definition to be logged apart from its entry
+    int attributeCount = 2000;
+    String[] names = new String[attributeCount];
+    AttributeType[] types = new AttributeType[attributeCount];
+    for (int i = 0; i < attributeCount; i++) {
+      names[i] = String.format("attribute_%04d_of_a_table_wide_enough_to_need_more_than_one_chunk", i);
+      types[i] = AttributeType.values()[i % AttributeType.values().length];
+    }
+    String[] pks = new String[]{names[0]};
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable("Wide", names, types, pks));
+    assertEquals(StatusCode.SUCCESS, tableManager.addAttribute("Wide", "Extra", AttributeType.DOUBLE));
+    createEmployeeTable();
+    TableMetadata created = new TableMetadata(names, types, pks);
+
+    // The change holds the table as it was created, even once it was changed and deleted
+    Versionstamp start = Versionstamp.complete(new byte[10]);
+    List<SchemaChange> changes = read(tableManager.changesSince(start));
+    assertEquals(3, changes.size());
+    assertEquals(created, changes.get(0).getTable());
+    assertEquals(SchemaChange.Type.ADD_ATTRIBUTE, changes.get(1).getType());
+    assertEquals(tableManager.listTables().get(RecordManagerTest.EmployeeTableName), changes.get(2).getTable());
+    assertEquals(StatusCode.SUCCESS, tableManager.deleteTable("Wide"));
+    assertEquals(created, read(tableManager.changesSince(start)).get(0).getTable());
+
+    // A consumer following the log ends up with the catalog
+    HashMap<String, TableMetadata> tables = new HashMap<>();
+    apply(tables, read(tableManager.changesSince(start)));
+    assertEquals(tableManager.listTables(), tables);
+
+    // Trimming the change removes its definition
+    tableManager.trimSchemaChanges(changes.get(0).getVersionstamp());
+    changes = read(tableManager.changesSince(start));
+    assertEquals(3, changes.size());
+    assertEquals(SchemaChange.Type.ADD_ATTRIBUTE, changes.get(0).getType());
+    Subspace definitions = new Subspace(Tuple.from("database")).get("schemaChangeDefinitions");
+    assertTrue(tableManager.getAsyncTableManagerImpl().run(tr -> tr.getRange(definitions.range()).asList().join())
+        .isEmpty());
+  }
+
+  @Test
+  public void trimTest() {
+    createEmployeeTable();
+    assertEquals(StatusCode.SUCCESS, tableManager.addAttribute(RecordManagerTest.EmployeeTableName, "Age",
+        AttributeType.INT));
+    List<SchemaChange> changes = read(tableManager.changesSince(Versionstamp.complete(new byte[10])));
+    assertEquals(2, changes.size());
+    tableManager.trimSchemaChanges(changes.get(0).getVersionstamp());
+    changes = read(tableManager.changesSince(Versionstamp.complete(new byte[10])));
+    assertEquals(1, changes.size());
+    assertEquals(SchemaChange.Type.ADD_ATTRIBUTE, changes.get(0).getType());
+    assertFalse(read(tableManager.changesSince(null)).isEmpty());
+  }
+}
@@ -1,5 +1,5 @@
 /**
- * StatusCode defines the status code that may returns by the {TableManager}
+ * StatusCode defines the status code that may returns by the {TableManager} and the {RecordManager}
  */
 public enum StatusCode {
 
@@ -11,6 +11,13 @@ public enum StatusCode {
   ATTRIBUTE_TYPE_NOT_SUPPORTED,
   TABLE_NOT_FOUND,
   ATTRIBUTE_ALREADY_EXISTS,
-  ATTRIBUTE_NOT_FOUND
+  ATTRIBUTE_NOT_FOUND,
+  PRIMARY_KEY_ATTRIBUTE_DROP_NOT_ALLOWED,
+  ATTRIBUTE_TYPE_MISMATCH,
+  PRIMARY_KEY_VALUE_MISSING,
+  RECORD_ALREADY_EXISTS,
+  RECORD_NOT_FOUND,
+  INDEX_ALREADY_EXISTS,
+  INDEX_NOT_FOUND
 
 }
@@ -0,0 +1,13 @@
+/**
+ * StorageMode defines how the records of a table are laid out, chosen when the table is created.
+ *
+ * ROW stores every record as one key-value, see {RecordFormat}; it suits tables that are mostly
+ * read and written a record at a time. COLUMNAR stores the values of each attribute in blocks of
+ * consecutive records, see {ColumnStore}; it suits wide tables that are mostly scanned a few
+ * attributes at a time, since a {TableQuery} then only reads the attributes it refers to, while
+ * every record write rewrites the block holding the record.
+ */
+public enum StorageMode {
+  ROW,
+  COLUMNAR
+}
@@ -0,0 +1,256 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.StreamingMode;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+import com.apple.foundationdb.tuple.Tuple;
+
+/**
+ * TableAnalyzer refreshes the column histograms of a table, see {TableStatistics}, from a uniform
+ * sample of at most sampleSize of its records.
+ *
+ * The pass walks the rawdata range in transactions of at most rowsPerTransaction records,
+ * optionally rate-limited, and keeps the sample in memory; the histograms are written once the
+ * pass reaches the end of the table. Tables created before record counters are counted by the
+ * same pass: its first transaction resets their counters and marks the table as being counted up
+ * to the first record, every transaction then adds the records it read to the counters and moves
+ * the mark past them, and record writes only change the counters for records before the mark.
+ * The mark is kept in the database, so an interrupted count continues where it stopped.
+ *
+ * Columnar tables, see {ColumnStore}, always keep their counters, and the pass only samples their
+ * records, reading them block by block.
+ */
+public class TableAnalyzer {
+
+  private final AsyncTableManagerImpl tableManager;
+  private final String tableName;
+
+  private int rowsPerTransaction = 1000;
+  private double maxRowsPerSecond = 0;
+  private int sampleSize = 10_000;
+  private int buckets = 16;
+
+  public TableAnalyzer(TableManagerImpl tableManager, String tableName) {
+    this(tableManager.getAsyncTableManagerImpl(), tableName);
+  }
+
+  TableAnalyzer(AsyncTableManagerImpl tableManager, String tableName) {
+    this.tableManager = tableManager;
+    this.tableName = tableName;
+  }
+
+  public TableAnalyzer setRowsPerTransaction(int rowsPerTransaction) {
+    this.rowsPerTransaction = rowsPerTransaction;
+    return this;
+  }
+
+  public TableAnalyzer setMaxRowsPerSecond(double maxRowsPerSecond) {
+    this.maxRowsPerSecond = maxRowsPerSecond;
+    return this;
+  }
+
+  public TableAnalyzer setSampleSize(int sampleSize) {
+    this.sampleSize = sampleSize;
+    return this;
+  }
+
+  /**
+   * Set the number of buckets of every histogram
+   */
+  public TableAnalyzer setBuckets(int buckets) {
+    this.buckets = buckets;
+    return this;
+  }
+
+  /**
+   * Runs the pass to the end of the table and waits for it.
+   *
+   * @return the statistics of the table, or null if the table does not exist
+   */
+  public TableStatistics analyze() {
+    return analyzeAsync().join();
+  }
+
+  /**
+   * Runs the pass to the end of the table.
+   *
+   * @return future of the statistics of the table, or of null if the table does not exist
+   */
+  public CompletableFuture<TableStatistics> analyzeAsync() {
+    TableSubspaces subspaces = tableManager.tableSubspaces(tableName);
+    Sample sample = new Sample();
+    return tableManager.measure(Metrics.Operation.MAINTENANCE,
+            invocation -> analyzeFrom(invocation, subspaces.getRawdata().range().begin, sample)
+                .thenCompose(found -> found ? tableManager.runAsync(invocation, tr -> writeHistograms(tr, sample))
+                    : CompletableFuture.completedFuture(false)))
+        .thenCompose(found -> found ? tableManager.getTableStatistics(tableName) : CompletableFuture.completedFuture(null));
+  }
+
+  /**
+   * Records kept with reservoir sampling: every record read has the same chance to be kept.
+   */
+  private class Sample {
+    private final List<TableRecord> records = new ArrayList<>();
+    private final Random random = new Random();
+    private long seen = 0;
+
+    void add(TableRecord record) {
+      seen++;
+      if (records.size() < sampleSize) {
+        records.add(record);
+        return;
+      }
+      long slot = (long) (random.nextDouble() * seen);
+      if (slot < sampleSize) {
+        records.set((int) slot, record);
+      }
+    }
+  }
+
+  /**
+   * The records one transaction of the pass read.
+   */
+  private static class Step {
+    final List<TableRecord> records;
+    final byte[] next;
+
+    Step(List<TableRecord> records, byte[] next) {
+      this.records = records;
+      this.next = next;
+    }
+  }
+
+  /**
+   * @return future of whether the table exists
+   */
+  private CompletableFuture<Boolean> analyzeFrom(Metrics.Invocation invocation, byte[] from, Sample sample) {
+    long start = System.nanoTime();
+    // Records are only sampled once the transaction that read them committed, since it may be retried
+    return tableManager.runAsync(invocation, tr -> analyzeStep(tr, from)).thenCompose(step -> {
+      if (step == null) {
+        return CompletableFuture.completedFuture(false);
+      }
+      step.records.forEach(sample::add);
+      if (step.next == null) {
+        return CompletableFuture.completedFuture(true);
+      }
+      if (maxRowsPerSecond <= 0) {
+        return analyzeFrom(invocation, step.next, sample);
+      }
+      // Wait until the records read so far fit the rate
+      long delay = (long) (step.records.size() * 1e9 / maxRowsPerSecond) - (System.nanoTime() - start);
+      return CompletableFuture.supplyAsync(() -> null,
+              CompletableFuture.delayedExecutor(Math.max(0, delay), TimeUnit.NANOSECONDS))
+          .thenCompose(ignore -> analyzeFrom(invocation, step.next, sample));
+    });
+  }
+
+  /**
+   * Reads the next records of the table in one transaction, and counts those after the counting
+   * mark if the table is being counted.
+   *
+   * @return the records read and the key to continue from, or null if the table does not exist
+   */
+  private CompletableFuture<Step> analyzeStep(KeyValueTransaction tr, byte[] from) {
+    TableSubspaces subspaces = tableManager.tableSubspaces(tableName);
+    Range rawdata = subspaces.getRawdata().range();
+    CompletableFuture<TableSchema> schema = AsyncTableManagerImpl.readSchema(tr, subspaces);
+    if (!subspaces.getRawdata().contains(from)) {
+      // Continuing through the blocks of a columnar table
+      return schema.thenCompose(tableSchema -> tableSchema == null ? CompletableFuture.completedFuture(null)
+          : sampleBlocks(tr, subspaces, tableSchema, from));
+    }
+    CompletableFuture<List<KeyValue>> rows = tr.getRange(from, rawdata.end, rowsPerTransaction, false,
+            StreamingMode.WANT_ALL).asList();
+    return tr.get(subspaces.getStatisticsKey()).thenCompose(state -> schema.thenCompose(tableSchema -> {
+      if (tableSchema == null) {
+        return CompletableFuture.completedFuture(null);
+      }
+      if (tableSchema.getStorageMode() == StorageMode.COLUMNAR) {
+        return sampleBlocks(tr, subspaces, tableSchema, subspaces.getBlocks().range().begin);
+      }
+      return rows.thenApply(records -> countStep(tr, subspaces, tableSchema, state, records));
+    }));
+  }
+
+  /**
+   * Counts the records of a row table one transaction read, if the table is being counted.
+   */
+  private Step countStep(KeyValueTransaction tr, TableSubspaces subspaces, TableSchema schema, byte[] state,
+                         List<KeyValue> records) {
+    Range rawdata = subspaces.getRawdata().range();
+    byte[] next = records.size() < rowsPerTransaction ? null
+        : ByteArrayUtil.join(records.get(records.size() - 1).getKey(), new byte[]{0});
+
+    byte[] mark = null;
+    if (state == null) {
+      // Counted from the first record on
+      tr.clear(subspaces.getRowCountKey());
+      tr.clear(subspaces.getByteSizeKey());
+      mark = rawdata.begin;
+    } else if (state.length > 0) {
+      mark = Tuple.fromBytes(state).getBytes(0);
+    }
+    if (mark != null) {
+      long count = 0;
+      long bytes = 0;
+      for (KeyValue record : records) {
+        if (ByteArrayUtil.compareUnsigned(record.getKey(), mark) >= 0) {
+          count++;
+          bytes += record.getKey().length + record.getValue().length;
+        }
+      }
+      TableStatistics.add(tr, subspaces, count, bytes);
+      if (next == null) {
+        tr.set(subspaces.getStatisticsKey(), new byte[0]);
+      } else if (state == null || ByteArrayUtil.compareUnsigned(next, mark) > 0) {
+        tr.set(subspaces.getStatisticsKey(), Tuple.from((Object) next).pack());
+      }
+    }
+    List<TableRecord> decoded = new ArrayList<>();
+    for (KeyValue row : records) {
+      TableRecord record = RecordFormat.decode(schema, subspaces.getRawdata().unpack(row.getKey()), row.getValue());
+      if (record != null) {
+        decoded.add(record);
+      }
+    }
+    return new Step(decoded, next);
+  }
+
+  private CompletableFuture<Step> sampleBlocks(KeyValueTransaction tr, TableSubspaces subspaces, TableSchema schema,
+                                               byte[] from) {
+    return ColumnStore.readRecords(tr, subspaces, schema, from, rowsPerTransaction)
+        .thenApply(read -> new Step(read.records, read.next));
+  }
+
+  /**
+   * Replaces the histograms of the table with the ones of the sample.
+   *
+   * @return future of whether the table exists
+   */
+  private CompletableFuture<Boolean> writeHistograms(KeyValueTransaction tr, Sample sample) {
+    TableSubspaces subspaces = tableManager.tableSubspaces(tableName);
+    return AsyncTableManagerImpl.readSchema(tr, subspaces).thenApply(schema -> {
+      if (schema == null) {
+        return false;
+      }
+      tr.clear(subspaces.getHistograms().range());
+      for (int i = 0; i < schema.size(); i++) {
+        String attributeName = schema.getAttributeName(i);
+        List<Object> values = new ArrayList<>();
+        for (TableRecord record : sample.records) {
+          values.add(record.get(attributeName));
+        }
+        tr.set(subspaces.getHistograms().pack(Tuple.from(attributeName)),
+                TableStatistics.ColumnHistogram.of(values, buckets).encode());
+      }
+      tr.set(subspaces.getAnalyzedKey(), Tuple.from(System.currentTimeMillis(), sample.seen).pack());
+      return true;
+    });
+  }
+}
@@ -1,4 +1,9 @@
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.apple.foundationdb.StreamingMode;
+import com.apple.foundationdb.tuple.Versionstamp;
 
 /**
  * TableManager defines the interfaces that need to be implemented to support the table
@@ -25,6 +30,17 @@ public interface TableManager {
    */
   public StatusCode createTable(String tableName, String[] attributeNames, AttributeType[] attributeTypes, String[] primaryKeyAttributeNames);
 
+  /**
+   * Create a table with given name and attributes whose records are stored with the given
+   * {StorageMode}. The error checking is the one of createTable without a storage mode, which
+   * creates a ROW table.
+   *
+   * @param storageMode how the records of the table are laid out
+   * @return status code
+   */
+  public StatusCode createTable(String tableName, String[] attributeNames, AttributeType[] attributeTypes,
+                                String[] primaryKeyAttributeNames, StorageMode storageMode);
+
 
   /**
    * Delete a table by its name
@@ -44,6 +60,30 @@ public interface TableManager {
    */
   public HashMap<String, TableMetadata> listTables();
 
+  /**
+   * Open a cursor over the tables, in table name order, that reads batchSize catalog entries per
+   * transaction. A table whose schema spans several entries is always returned whole.
+   *
+   * @param batchSize the number of catalog entries read per transaction
+   * @param mode the streaming mode of the reads
+   * @param continuation the continuation of an earlier cursor to resume, or null to start at the
+   *                     first table
+   * @return the cursor over the table names and their metadata
+   */
+  public Cursor<Map.Entry<String, TableMetadata>> openTableCursor(int batchSize, StreamingMode mode,
+                                                                 byte[] continuation);
+
+  /**
+   * Open a cursor over the schema changes committed after the given one, in commit order. Each
+   * change carries the versionstamp to pass to the next call, so a consumer polling this method
+   * only reads the changes it has not seen.
+   *
+   * @param versionstamp the versionstamp of the last change the consumer applied, or null to start
+   *                     with a CREATE_TABLE change for every existing table
+   * @return the cursor over the changes
+   */
+  public Cursor<SchemaChange> changesSince(Versionstamp versionstamp);
+
   /**
    * Add a new attribute to a table
    *
@@ -65,6 +105,7 @@ public interface TableManager {
    * ERROR checking and the StatusCode that should return
    * - tableName does not exist --> TABLE_NOT_FOUND
    * - attributeName does not exist --> ATTRIBUTE_NOT_FOUND
+   * - attributeName is part of the primary key --> PRIMARY_KEY_ATTRIBUTE_DROP_NOT_ALLOWED
    *
    * @param tableName the name of the table to be altered
    * @param attributeName the name of the attribute to be dropped
@@ -72,9 +113,63 @@ public interface TableManager {
    */
   public StatusCode dropAttribute(String tableName, String attributeName);
 
+  /**
+   * Create a secondary index on attributes of a table. The records already in the table are
+   * indexed in several transactions; an index is used by lookups once they are all indexed. If the
+   * creation of an index is interrupted, creating it again with the same attributes resumes it.
+   * Dropping an indexed attribute drops the index.
+   *
+   * ERROR checking and the StatusCode that should return
+   * - tableName does not exist --> TABLE_NOT_FOUND
+   * - attributeNames is empty or one of them does not exist --> ATTRIBUTE_NOT_FOUND
+   * - indexName already exists in the table --> INDEX_ALREADY_EXISTS
+   *
+   * @param tableName the name of the table to be indexed
+   * @param indexName the name of the index
+   * @param attributeNames the indexed attributes, in index order
+   * @return status code
+   */
+  public StatusCode createIndex(String tableName, String indexName, String[] attributeNames);
+
+  /**
+   * Drop a secondary index of a table
+   *
+   * ERROR checking and the StatusCode that should return
+   * - tableName does not exist --> TABLE_NOT_FOUND
+   * - indexName does not exist --> INDEX_NOT_FOUND
+   *
+   * @param tableName the name of the indexed table
+   * @param indexName the name of the index
+   * @return status code
+   */
+  public StatusCode dropIndex(String tableName, String indexName);
+
   /**
    * Drop all tables in the database
    * @return status code
    */
   public StatusCode dropAllTables();
+
+  /**
+   * Apply a batch of create/add/drop operations
+   *
+   * The arguments of every operation are checked before anything is written. The operations are
+   * then applied in order, in as few transactions as the transaction size limit allows. Each
+   * operation is checked against the catalog as left by the operations before it and gets the
+   * status code the corresponding single-operation method would have returned.
+   *
+   * @param batch the operations to apply
+   * @return the status code of each operation, in batch order
+   */
+  public List<StatusCode> applyBatch(DdlBatch batch);
+
+  /**
+   * Get the statistics of a table: its row count and byte size, which every record write keeps
+   * exact, and the histograms of its attributes as of the last {TableAnalyzer} pass. Reading them
+   * costs one transaction whatever the size of the table.
+   *
+   * @param tableName the table's name
+   * @return the statistics, or null if the table does not exist
+   */
+  public TableStatistics getTableStatistics(String tableName);
 }
@@ -1,268 +1,149 @@
 import java.util.HashMap;
 import java.util.List;
-import java.util.ArrayList;
-import java.lang.String;
-import java.util.Collections;
-import com.apple.foundationdb.Database;
+import java.util.Map;
 
+import com.apple.foundationdb.StreamingMode;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Versionstamp;
 
-import com.apple.foundationdb.FDB;
-import com.apple.foundationdb.KeySelector;
-import com.apple.foundationdb.Transaction;
-import com.apple.foundationdb.Range;
-import com.apple.foundationdb.directory.DirectoryLayer;
-import com.apple.foundationdb.directory.DirectorySubspace;
-import com.apple.foundationdb.directory.PathUtil;
-import com.apple.foundationdb.tuple.Tuple;
-import com.apple.foundationdb.KeyValue;
 /**
- * TableManagerImpl implements interfaces in {#TableManager}. You should put your implementation
- * in this class.
+ * TableManagerImpl implements interfaces in {#TableManager}. It is a thin synchronous adapter over
+ * {#AsyncTableManagerImpl}: every call waits for the corresponding asynchronous operation.
  */
 public class TableManagerImpl implements TableManager{
 
-  private FDB fdbAPI;
-  private Database db;
-  private DirectorySubspace root;
+  private AsyncTableManagerImpl asyncTableManager;
 
   public TableManagerImpl() {
-    // Instantiate the Database and open it
-    fdbAPI = FDB.selectAPIVersion(710);
-    try {
-      db = fdbAPI.open();
-    }
-    catch(Exception e) {
-      System.out.println("Failed to open database");
-    }
+    asyncTableManager = new AsyncTableManagerImpl();
+  }
 
-    // Instantiate the root directory
-    try {
-      root = DirectoryLayer.getDefault().createOrOpen(db,
-              PathUtil.from("database")).join();
-    }
-    catch(Exception e) {
-      System.out.println("Failed to create root directory");
-    }
+  /**
+   * Keep the tables in the given store, under the given root subspace.
+   */
+  public TableManagerImpl(KeyValueStore store, Subspace root) {
+    asyncTableManager = new AsyncTableManagerImpl(store, root);
   }
 
-  @Override
-  public StatusCode createTable(String tableName, String[] attributeNames, AttributeType[] attributeType,
-                         String[] primaryKeyAttributeNames) {
-    Transaction tr = db.createTransaction();
+  /**
+   * @return the asynchronous table manager this instance delegates to
+   */
+  public AsyncTableManager getAsyncTableManager() {
+    return asyncTableManager;
+  }
 
-    // TODO: Check if table name already exists. Look for tableName in DirectoryLayer
-    if (root.exists(db, PathUtil.from(tableName)).join()) {
-      tr.commit().join();
-      tr.close();
-      return StatusCode.TABLE_ALREADY_EXISTS;
-    }
+  AsyncTableManagerImpl getAsyncTableManagerImpl() {
+    return asyncTableManager;
+  }
 
-    // Check if attribute parameters are provided and valid
-    if (attributeNames == null || attributeType == null ||
-            primaryKeyAttributeNames == null || attributeNames.length != attributeType.length) {
-      tr.commit().join();
-      tr.close();
-      return StatusCode.TABLE_CREATION_ATTRIBUTE_INVALID;
-    }
+  /**
+   * @return the number of times a transaction of this instance was retried
+   */
+  public long getRetryCount() {
+    return asyncTableManager.getRetryCount();
+  }
 
-    // Primary key attributes contains attributes that are not in the attribute definitions
-    for (String pk : primaryKeyAttributeNames) {
-      boolean contains = false;
-      for (String attribute : attributeNames) {
-        if (pk.equals(attribute)) {
-          contains = true;
-          break;
-        }
-      }
-      if (!contains)  {
-        tr.commit().join();
-        tr.close();
-        return StatusCode.TABLE_CREATION_PRIMARY_KEY_NOT_FOUND;
-      }
-    }
+  /**
+   * @return the number of commits of this instance rejected because of a conflict
+   */
+  public long getConflictCount() {
+    return asyncTableManager.getConflictCount();
+  }
 
-    // TODO: Create tableName in root. Also create subdirectories for the metadata and rawdata
-    try {
-      DirectorySubspace table = root.createOrOpen(db, PathUtil.from(tableName)).join();
-      DirectorySubspace metadata = table.createOrOpen(db, PathUtil.from("metadata")).join();
-      // TODO: Add key-value pairs in the "metadata" table that describes attribute and type (attribute name, type) -> (Pk or No)
-      for (int i = 0; i < attributeNames.length; i++) {
-        Tuple keyTuple = new Tuple();
-        keyTuple = keyTuple.add(attributeNames[i]).add(attributeType[i].name());
+  /**
+   * @return the per-operation metrics of this instance and of its record managers
+   */
+  public Metrics getMetrics() {
+    return asyncTableManager.getMetrics();
+  }
 
-        Boolean pk = false;
-        for (int j = 0; j < primaryKeyAttributeNames.length; j++) {
-          if (attributeNames[i].equals(primaryKeyAttributeNames[j])) {
-            pk = true;
-            break;
-          }
-        }
+  /**
+   * Drops the cached catalog so that the next listTables() reads it from the database.
+   */
+  public void invalidateCache() {
+    asyncTableManager.invalidateCache();
+  }
 
-        Tuple valueTuple = new Tuple();
-        valueTuple = valueTuple.add(pk);
-        tr.set(metadata.pack(keyTuple), valueTuple.pack());
-      }
-      table.createOrOpen(db, PathUtil.from("rawdata")).join();
-    }
-    catch(Exception e) {
-      System.out.print("Error adding table");
-      tr.commit().join();
-      tr.close();
-      return StatusCode.TABLE_CREATION_ATTRIBUTE_INVALID;
-    }
+  @Override
+  public StatusCode createTable(String tableName, String[] attributeNames, AttributeType[] attributeType,
+                         String[] primaryKeyAttributeNames) {
+    return asyncTableManager.createTable(tableName, attributeNames, attributeType, primaryKeyAttributeNames).join();
+  }
 
-    tr.commit().join();
-    tr.close();
-    return StatusCode.SUCCESS;
+  @Override
+  public StatusCode createTable(String tableName, String[] attributeNames, AttributeType[] attributeType,
+                                String[] primaryKeyAttributeNames, StorageMode storageMode) {
+    return asyncTableManager.createTable(tableName, attributeNames, attributeType, primaryKeyAttributeNames,
+            storageMode).join();
   }
 
   @Override
   public StatusCode deleteTable(String tableName) {
-    Transaction tr = db.createTransaction();
-
-    if (!root.exists(db, PathUtil.from(tableName)).join()) {
-      tr.commit().join();
-      tr.close();
-      return StatusCode.TABLE_NOT_FOUND;
-    }
-
-    root.remove(db, PathUtil.from(tableName)).join();
-    tr.commit().join();
-    tr.close();
-    return StatusCode.SUCCESS;
+    return asyncTableManager.deleteTable(tableName).join();
   }
 
   @Override
   public HashMap<String, TableMetadata> listTables() {
-    HashMap<String, TableMetadata> tables = new HashMap<>();
-    Transaction tr = db.createTransaction();
-
-    // TODO: Iterate through DirectoryLayer and create TableMetadata for each Directory. Add each to HashMap and return.
-    List<String> tableNames = root.list(db, PathUtil.from()).join();
-    for (String tableName : tableNames) {
-      // TODO: make TableMetadata for each tableName
-      Range range = root.open(db, PathUtil.from(tableName, "metadata")).join().range();
-      List<KeyValue> keyvalues = tr.getRange(range).asList().join();
-
-      ArrayList<String> attributeNames = new ArrayList<>();
-      ArrayList<AttributeType> attributeTypes = new ArrayList<>();
-      ArrayList<String> primaryKeys = new ArrayList<>();
-
-      for (KeyValue keyvalue : keyvalues) {
-        Tuple key = Tuple.fromBytes(keyvalue.getKey());
-        attributeNames.add(key.getString(1));
-        attributeTypes.add(AttributeType.valueOf(key.getString(2)));
-        Tuple value = Tuple.fromBytes(keyvalue.getValue());
-        if (value.getBoolean(0) == true) {
-          primaryKeys.add(key.getString(1));
-        }
-      }
-
-      String[] names = new String[attributeNames.size()];
-      names = attributeNames.toArray(names);
+    return asyncTableManager.listTables().join();
+  }
 
-      AttributeType[] types = new AttributeType[attributeTypes.size()];
-      types = attributeTypes.toArray(types);
+  @Override
+  public Cursor<Map.Entry<String, TableMetadata>> openTableCursor(int batchSize, StreamingMode mode,
+                                                                 byte[] continuation) {
+    return asyncTableManager.openTableCursor(batchSize, mode, continuation);
+  }
 
-      String[] pks = new String[primaryKeys.size()];
-      Collections.reverse(primaryKeys);
-      pks = primaryKeys.toArray(pks);
+  @Override
+  public Cursor<SchemaChange> changesSince(Versionstamp versionstamp) {
+    return asyncTableManager.changesSince(versionstamp);
+  }
 
-      tables.put(tableName, new TableMetadata(names, types, pks));
-    }
-    tr.commit().join();
-    tr.close();
-    return tables;
+  /**
+   * Remove the schema changes up to the given one, see {AsyncTableManagerImpl#trimSchemaChanges}
+   */
+  public void trimSchemaChanges(Versionstamp versionstamp) {
+    asyncTableManager.trimSchemaChanges(versionstamp).join();
   }
 
   @Override
   public StatusCode addAttribute(String tableName, String attributeName, AttributeType attributeType) {
-    Transaction tr = db.createTransaction();
-
-    // TODO: Check if tableName exists in DirectoryLayer.
-    if (!root.exists(db, PathUtil.from(tableName)).join()) {
-      tr.commit().join();
-      tr.close();
-      return StatusCode.TABLE_NOT_FOUND;
-    }
-
-    // TODO: Check if attribute exists. If yes, return ATTRIBUTE_ALREADY_EXISTS
-    Range range = root.open(db, PathUtil.from(tableName, "metadata")).join().range();
-    List<KeyValue> keyvalues = tr.getRange(range).asList().join();
-    for (KeyValue keyvalue : keyvalues) {
-      Tuple key = Tuple.fromBytes(keyvalue.getKey());
-      if (attributeName.equals(key.getString(1))) {
-        tr.commit().join();
-        tr.close();
-        return StatusCode.ATTRIBUTE_ALREADY_EXISTS;
-      }
-    }
-
-    // Add attribute
-    DirectorySubspace metadata = root.open(db, PathUtil.from(tableName, "metadata")).join();
-
-    Tuple keyTuple = new Tuple();
-    keyTuple = keyTuple.add(attributeName).add(attributeType.name());
-    Tuple valueTuple = new Tuple();
-    valueTuple = valueTuple.add(false);
-
-    tr.set(metadata.pack(keyTuple), valueTuple.pack());
-
-    tr.commit().join();
-    tr.close();
-    return StatusCode.SUCCESS;
+    return asyncTableManager.addAttribute(tableName, attributeName, attributeType).join();
   }
 
   @Override
   public StatusCode dropAttribute(String tableName, String attributeName) {
-    Transaction tr = db.createTransaction();
-
-    // Check if table exists. If no, return TABLE_NOT_FOUND
-    if (!root.exists(db, PathUtil.from(tableName)).join()) {
-      tr.commit().join();
-      tr.close();
-      return StatusCode.TABLE_NOT_FOUND;
-    }
-
-    // Check if attribute exists. If no, return ATTRIBUTE_NOT_FOUND
-    boolean found = false;
-    Range range = root.open(db, PathUtil.from(tableName, "metadata")).join().range();
-    List<KeyValue> keyvalues = tr.getRange(range).asList().join();
-    for (KeyValue keyvalue : keyvalues) {
-      Tuple key = Tuple.fromBytes(keyvalue.getKey());
-      if (attributeName.equals(key.getString(1))) {
-        tr.clear(keyvalue.getKey());
-        found = true;
-      }
-    }
-
-    if (found == false) {
-      tr.commit().join();
-      tr.close();
-      return StatusCode.ATTRIBUTE_NOT_FOUND;
-    }
+    return asyncTableManager.dropAttribute(tableName, attributeName).join();
+  }
 
-    // Drop all entries in rawdata
+  @Override
+  public StatusCode createIndex(String tableName, String indexName, String[] attributeNames) {
+    return asyncTableManager.createIndex(tableName, indexName, attributeNames).join();
+  }
 
-    // Remove attribute from TableMetadata
-    tr.commit().join();
-    tr.close();
-    return StatusCode.SUCCESS;
+  @Override
+  public StatusCode dropIndex(String tableName, String indexName) {
+    return asyncTableManager.dropIndex(tableName, indexName).join();
   }
 
   @Override
   public StatusCode dropAllTables() {
-    // Clear all key-value pairs
-    Transaction tr = db.createTransaction();
-    List<String> tableNames = root.list(db, PathUtil.from()).join();
+    return asyncTableManager.dropAllTables().join();
+  }
 
-    for (String tableName : tableNames) {
-      // TODO: make TableMetadata for each tableName
-      root.remove(db, PathUtil.from(tableName)).join();
-    }
+  @Override
+  public List<StatusCode> applyBatch(DdlBatch batch) {
+    return asyncTableManager.applyBatch(batch).join();
+  }
+
+  @Override
+  public TableStatistics getTableStatistics(String tableName) {
+    return asyncTableManager.getTableStatistics(tableName).join();
+  }
 
-    tr.commit().join();
-    tr.close();
-    return StatusCode.SUCCESS;
+  /**
+   * Refresh stale column histograms in the background, see {AsyncTableManagerImpl#setAutoAnalyze}
+   */
+  public void setAutoAnalyze(boolean autoAnalyze) {
+    asyncTableManager.setAutoAnalyze(autoAnalyze);
   }
 }
@@ -4,7 +4,13 @@ import org.junit.Before;
 import org.junit.Test;
 import org.w3c.dom.Attr;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.apple.foundationdb.StreamingMode;
 
 public class TableManagerTest {
   public static String EmployeeTableName = "Employee";
@@ -19,7 +25,7 @@ public class TableManagerTest {
       AttributeType.VARCHAR, AttributeType.INT};
   public static String[] DepartmentTablePKAttributes = new String[]{"Dno"};
 
-  private TableManager tableManager;
+  protected TableManager tableManager;
 
   @Before
   public void init(){
@@ -41,6 +47,9 @@ public class TableManagerTest {
         tableManager.createTable(EmployeeTableName, EmployeeTableAttributeNames, null, EmployeeTablePKAttributes));
     assertEquals(StatusCode.TABLE_CREATION_ATTRIBUTE_INVALID,
         tableManager.createTable(EmployeeTableName, null, EmployeeTableAttributeTypes, EmployeeTablePKAttributes));
+    assertEquals(StatusCode.TABLE_CREATION_NO_PRIMARY_KEY,
+        tableManager.createTable(EmployeeTableName, EmployeeTableAttributeNames,
+            EmployeeTableAttributeTypes, new String[]{}));
     assertEquals(StatusCode.TABLE_CREATION_PRIMARY_KEY_NOT_FOUND,
         tableManager.createTable(EmployeeTableName, EmployeeTableAttributeNames,
             EmployeeTableAttributeTypes, new String[]{"ManagerSSN", "SSN"}));
@@ -236,4 +245,95 @@ public class TableManagerTest {
     assertEquals(1, tables.size());
     assertEquals(employeeTable, tables.get(EmployeeTableName));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void batchTest() {
+    tableManager.dropAllTables();
+
+    TableMetadata EmployeeTable = new TableMetadata(EmployeeTableAttributeNames, EmployeeTableAttributeTypes,
+        EmployeeTablePKAttributes);
+    EmployeeTable.addAttribute("Birthday", AttributeType.VARCHAR);
+    TableMetadata DepartmentTable = new TableMetadata(DepartmentTableAttributeNames,
+        DepartmentTableAttributeTypes, DepartmentTablePKAttributes);
+
+    DdlBatch batch = new DdlBatch()
+        .createTable(EmployeeTableName, EmployeeTableAttributeNames, EmployeeTableAttributeTypes,
+            EmployeeTablePKAttributes)
+        .createTable(DepartmentTableName, DepartmentTableAttributeNames, DepartmentTableAttributeTypes,
+            new String[]{"Manager"})
+        .createTable(DepartmentTableName, DepartmentTableAttributeNames, DepartmentTableAttributeTypes,
+            new String[]{})
+        .addAttribute(EmployeeTableName, "Birthday", AttributeType.VARCHAR)
+        .addAttribute(EmployeeTableName, "Birthday", AttributeType.VARCHAR)
+        .addAttribute(DepartmentTableName, "Budget", AttributeType.DOUBLE)
+        .createTable(DepartmentTableName, DepartmentTableAttributeNames, DepartmentTableAttributeTypes,
+            DepartmentTablePKAttributes)
+        .addAttribute(DepartmentTableName, "Budget", AttributeType.DOUBLE)
+        .dropAttribute(DepartmentTableName, "Budget")
+        .dropAttribute(EmployeeTableName, "Salary");
+
+    assertEquals(Arrays.asList(StatusCode.SUCCESS, StatusCode.TABLE_CREATION_PRIMARY_KEY_NOT_FOUND,
+        StatusCode.TABLE_CREATION_NO_PRIMARY_KEY, StatusCode.SUCCESS, StatusCode.ATTRIBUTE_ALREADY_EXISTS, StatusCode.TABLE_NOT_FOUND, StatusCode.SUCCESS,
+        StatusCode.SUCCESS, StatusCode.SUCCESS, StatusCode.ATTRIBUTE_NOT_FOUND), tableManager.applyBatch(batch));
+
+    HashMap<String, TableMetadata> tables = tableManager.listTables();
+    assertEquals(2, tables.size());
+    assertEquals(EmployeeTable, tables.get(EmployeeTableName));
+    assertEquals(DepartmentTable, tables.get(DepartmentTableName));
+  }
+
+  @Test
+  public void wideTableTest() {
+    tableManager.dropAllTables();
+
+    // Long enough for the schema record to span several catalog values
+    int attributeCount = 2000;
+    String[] names = new String[attributeCount];
+    AttributeType[] types = new AttributeType[attributeCount];
+    for (int i = 0; i < attributeCount; i++) {
+      names[i] = String.format("attribute_%04d_of_a_table_wide_enough_to_need_more_than_one_chunk", i);
+      types[i] = AttributeType.values()[i % AttributeType.values().length];
+    }
+    String[] pks = new String[]{names[7], names[3]};
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable("Wide", names, types, pks));
+    assertEquals(StatusCode.PRIMARY_KEY_ATTRIBUTE_DROP_NOT_ALLOWED, tableManager.dropAttribute("Wide", names[3]));
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAttribute("Wide", names[5]));
+    assertEquals(StatusCode.SUCCESS, tableManager.addAttribute("Wide", "Extra", AttributeType.DOUBLE));
+
+    TableMetadata wide = new TableMetadata(names, types, pks);
+    wide.getAttributes().remove(names[5]);
+    wide.addAttribute("Extra", AttributeType.DOUBLE);
+    assertEquals(wide, tableManager.listTables().get("Wide"));
+  }
+
+  @Test
+  public void tableCursorTest() {
+    tableManager.dropAllTables();
+
+    DdlBatch batch = new DdlBatch();
+    for (int i = 0; i < 25; i++) {
+      batch.createTable(String.format("Table%02d", i), EmployeeTableAttributeNames, EmployeeTableAttributeTypes,
+          EmployeeTablePKAttributes);
+    }
+    tableManager.applyBatch(batch);
+
+    // Read the tables 10 at a time, each page from a new cursor resumed with the continuation
+    List<String> names = new ArrayList<>();
+    byte[] continuation = null;
+    do {
+      Cursor<Map.Entry<String, TableMetadata>> cursor = tableManager.openTableCursor(4, StreamingMode.EXACT, continuation);
+      for (int i = 0; i < 10 && cursor.hasNext(); i++) {
+        Map.Entry<String, TableMetadata> table = cursor.next();
+        names.add(table.getKey());
+        assertEquals(new TableMetadata(EmployeeTableAttributeNames, EmployeeTableAttributeTypes,
+            EmployeeTablePKAttributes), table.getValue());
+      }
+      continuation = cursor.getContinuation();
+    } while (continuation != null);
+
+    assertEquals(25, names.size());
+    for (int i = 0; i < 25; i++) {
+      assertEquals(String.format("Table%02d", i), names.get(i));
+    }
+  }
+}
@@ -7,26 +7,35 @@ import java.util.Objects;
 
 /**
  * TableMetadata defines the view of the table's metadata in system.
+ *
+ * Metadata read from the catalog wraps an immutable {TableSchema}, which is shared by every copy.
+ * The map and list representation is only built when a caller asks for it, and from then on it is
+ * the one that is read and modified.
  */
 public class TableMetadata {
 
+  // Schema this metadata was read from, or null once the attributes have been materialized
+  private TableSchema schema;
+
   // Map from AttributeName to AttributeType
   private HashMap<String, AttributeType> attributes;
 
   // A list contains names of the primary key attribute.
   private List<String> primaryKeys;
 
+  private StorageMode storageMode = StorageMode.ROW;
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
     if (o == null || getClass() != o.getClass()) return false;
     TableMetadata table = (TableMetadata) o;
-    return Objects.equals(attributes, table.attributes) && Objects.equals(primaryKeys, table.primaryKeys);
+    return Objects.equals(getAttributes(), table.getAttributes()) && Objects.equals(getPrimaryKeys(), table.getPrimaryKeys());
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(attributes, primaryKeys);
+    return Objects.hash(getAttributes(), getPrimaryKeys());
   }
 
   public TableMetadata() {
@@ -42,27 +51,77 @@ public class TableMetadata {
     this.primaryKeys = Arrays.asList(primaryKeys);
   }
 
+  public TableMetadata(TableSchema schema) {
+    this.schema = schema;
+    this.storageMode = schema.getStorageMode();
+  }
+
+  public TableMetadata(TableMetadata other) {
+    if (other.schema != null) {
+      schema = other.schema;
+    } else {
+      attributes = new HashMap<>(other.attributes);
+      primaryKeys = new ArrayList<>(other.primaryKeys);
+    }
+    storageMode = other.storageMode;
+  }
+
+  /**
+   * Builds the map and list representation from the schema. Callers may modify it, so the schema
+   * is dropped.
+   */
+  private void materialize() {
+    if (schema == null) {
+      return;
+    }
+    attributes = new HashMap<>();
+    for (int i = 0; i < schema.size(); i++) {
+      attributes.put(schema.getAttributeName(i), schema.getAttributeType(i));
+    }
+    primaryKeys = new ArrayList<>(Arrays.asList(schema.getPrimaryKeys()));
+    schema = null;
+  }
+
+  /**
+   * @return the schema this metadata was read from, or null if it has been materialized
+   */
+  public TableSchema getSchema() {
+    return schema;
+  }
+
+  public StorageMode getStorageMode() {
+    return storageMode;
+  }
+
   public boolean doesAttributeExist(String attributeName) {
+    if (schema != null) {
+      return schema.indexOf(attributeName) >= 0;
+    }
     return attributes.containsKey(attributeName);
   }
 
   public void addAttribute(String attributeName, AttributeType attributeType) {
+    materialize();
     attributes.put(attributeName, attributeType);
   }
 
   public HashMap<String, AttributeType> getAttributes() {
+    materialize();
     return attributes;
   }
 
   public void setAttributes(HashMap<String, AttributeType> attributes) {
+    materialize();
     this.attributes = attributes;
   }
 
   public List<String> getPrimaryKeys() {
+    materialize();
     return primaryKeys;
   }
 
   public StatusCode setPrimaryKeys(List<String> primaryKeys) {
+    materialize();
     for (String pk : primaryKeys) {
       if (!attributes.containsKey(pk)) {
         return StatusCode.ATTRIBUTE_NOT_FOUND;
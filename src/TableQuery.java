@@ -0,0 +1,728 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.StreamingMode;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+import com.apple.foundationdb.tuple.Tuple;
+
+/**
+ * TableQuery filters, projects and aggregates the records of a table as a {TableScan} reads them.
+ *
+ * The predicates given to where() must all hold. Equality predicates on a prefix of the primary
+ * key, in primary key order, and range predicates on the primary key attribute after that prefix
+ * narrow the range of rawdata keys that is read. The other predicates, the grouping and the
+ * aggregates are evaluated on the encoded key-values with {TupleBytes}: values are compared and
+ * summed without being unpacked, and records are only built for the rows that forEach() returns.
+ *
+ * On a columnar table, see {ColumnStore}, the primary key predicates narrow the range of blocks
+ * that is read, and only the column blocks of the attributes the query uses are read. Their values
+ * are evaluated like those of rows, after being packed as tuple elements.
+ *
+ * Like a {TableScan}, a query spans many transactions and does not see a single snapshot of the
+ * table.
+ */
+public class TableQuery {
+
+  // Value of an attribute a record has no value for
+  private static final byte[] NULL_ELEMENT = new byte[]{TupleBytes.NULL};
+
+  private final AsyncTableManagerImpl tableManager;
+  private final String tableName;
+  private final TableScan scan;
+
+  // Attributes returned by forEach(), or null for all of them
+  private String[] projection = null;
+  private final List<QueryPredicate> predicates = new ArrayList<>();
+  private String[] groupBy = new String[0];
+
+  public TableQuery(TableManagerImpl tableManager, String tableName) {
+    this(tableManager.getAsyncTableManagerImpl(), tableName);
+  }
+
+  TableQuery(AsyncTableManagerImpl tableManager, String tableName) {
+    this.tableManager = tableManager;
+    this.tableName = tableName;
+    this.scan = new TableScan(tableManager, tableName);
+  }
+
+  public TableQuery setParallelism(int parallelism) {
+    scan.setParallelism(parallelism);
+    return this;
+  }
+
+  public TableQuery setRowsPerTransaction(int rowsPerTransaction) {
+    scan.setRowsPerTransaction(rowsPerTransaction);
+    return this;
+  }
+
+  /**
+   * Set the attributes of the records returned by forEach()
+   */
+  public TableQuery select(String... attributeNames) {
+    this.projection = attributeNames;
+    return this;
+  }
+
+  /**
+   * Add a predicate the records must match
+   */
+  public TableQuery where(QueryPredicate predicate) {
+    predicates.add(predicate);
+    return this;
+  }
+
+  /**
+   * Set the attributes aggregate() groups the records by
+   */
+  public TableQuery groupBy(String... attributeNames) {
+    this.groupBy = attributeNames;
+    return this;
+  }
+
+  /**
+   * Runs the query and waits for it to complete.
+   *
+   * @param consumer called with the selected attributes of every matching record, from several
+   *                 threads
+   * @return the number of matching records, or -1 if the table does not exist
+   */
+  public long forEach(Consumer<TableRecord> consumer) {
+    return forEachAsync(consumer).join();
+  }
+
+  /**
+   * Runs the query.
+   *
+   * @param consumer called with the selected attributes of every matching record, from several
+   *                 threads
+   * @return future of the number of matching records, or of -1 if the table does not exist
+   * @throws IllegalArgumentException through the future if an attribute does not exist or a
+   * predicate's value does not have the attribute's type
+   */
+  public CompletableFuture<Long> forEachAsync(Consumer<TableRecord> consumer) {
+    return tableManager.measure(Metrics.Operation.QUERY, invocation -> plan(invocation, new Aggregate[0], false)
+        .thenCompose(plan -> {
+          if (plan == null) {
+            return CompletableFuture.completedFuture(-1L);
+          }
+          LongAdder count = new LongAdder();
+          return plan.scan(invocation, row -> {
+            while (row.next()) {
+              consumer.accept(row.project());
+              count.increment();
+            }
+          }).thenApply(ignore -> count.sum());
+        }));
+  }
+
+  /**
+   * @return the number of matching records, or -1 if the table does not exist
+   */
+  public long count() {
+    return countAsync().join();
+  }
+
+  /**
+   * @return future of the number of matching records, or of -1 if the table does not exist
+   */
+  public CompletableFuture<Long> countAsync() {
+    return tableManager.measure(Metrics.Operation.QUERY, invocation -> aggregate(invocation, false, Aggregate.count()))
+        .thenApply(results -> results == null ? -1L : (Long) results.get(0).get("count"));
+  }
+
+  /**
+   * Runs the query and waits for it to complete.
+   *
+   * @return the records of {#aggregateAsync}, or null if the table does not exist
+   */
+  public List<TableRecord> aggregate(Aggregate... aggregates) {
+    return aggregateAsync(aggregates).join();
+  }
+
+  /**
+   * Computes the aggregates over the matching records of each group, see {#groupBy}.
+   *
+   * @return future of one record per group, in the order of the grouping values, holding the
+   * grouping values and the result of every aggregate under its {Aggregate#getName}; without
+   * groupBy() a single record, even if no record matches. Future of null if the table does not
+   * exist.
+   */
+  public CompletableFuture<List<TableRecord>> aggregateAsync(Aggregate... aggregates) {
+    return tableManager.measure(Metrics.Operation.QUERY, invocation -> aggregate(invocation, true, aggregates));
+  }
+
+  private CompletableFuture<List<TableRecord>> aggregate(Metrics.Invocation invocation, boolean grouped,
+                                                         Aggregate... aggregates) {
+    return plan(invocation, aggregates, grouped).thenCompose(plan -> {
+      if (plan == null) {
+        return CompletableFuture.completedFuture(null);
+      }
+      // Groups by their packed grouping values, merged once per batch
+      TreeMap<byte[], Accumulator[]> groups = new TreeMap<>(ByteArrayUtil::compareUnsigned);
+      if (plan.groupColumns.length == 0) {
+        groups.put(new byte[0], plan.accumulators());
+      }
+      return plan.scan(invocation, row -> {
+        TreeMap<byte[], Accumulator[]> local = new TreeMap<>(ByteArrayUtil::compareUnsigned);
+        Accumulator[] ungrouped = plan.groupColumns.length == 0 ? plan.accumulators() : null;
+        while (row.next()) {
+          row.accumulate(ungrouped != null ? ungrouped : local.computeIfAbsent(row.groupKey(), k -> plan.accumulators()));
+        }
+        if (ungrouped != null) {
+          local.put(new byte[0], ungrouped);
+        }
+        synchronized (groups) {
+          for (Map.Entry<byte[], Accumulator[]> group : local.entrySet()) {
+            Accumulator[] merged = groups.putIfAbsent(group.getKey(), group.getValue());
+            if (merged != null) {
+              for (int a = 0; a < merged.length; a++) {
+                merged[a].merge(group.getValue()[a]);
+              }
+            }
+          }
+        }
+      }).thenApply(ignore -> {
+        List<TableRecord> results = new ArrayList<>();
+        for (Map.Entry<byte[], Accumulator[]> group : groups.entrySet()) {
+          TableRecord record = new TableRecord();
+          Tuple values = Tuple.fromBytes(group.getKey());
+          for (int g = 0; g < plan.groupColumns.length; g++) {
+            if (values.get(g) != null) {
+              record.set(plan.columns[plan.groupColumns[g]], values.get(g));
+            }
+          }
+          for (int a = 0; a < aggregates.length; a++) {
+            Object result = group.getValue()[a].result();
+            if (result != null) {
+              record.set(aggregates[a].getName(), result);
+            }
+          }
+          results.add(record);
+        }
+        return results;
+      });
+    });
+  }
+
+  /**
+   * Reads the schema of the table and compiles the query against it.
+   *
+   * @return future of the plan, or of null if the table does not exist
+   */
+  private CompletableFuture<Plan> plan(Metrics.Invocation invocation, Aggregate[] aggregates, boolean grouped) {
+    TableSubspaces subspaces = tableManager.tableSubspaces(tableName);
+    return tableManager.runAsync(invocation, tr -> AsyncTableManagerImpl.readSchema(tr, subspaces))
+        .thenApply(schema -> schema == null ? null : new Plan(schema, subspaces, aggregates, grouped));
+  }
+
+  /**
+   * The query compiled against the schema of the table. Attributes are referred to by their column,
+   * their position in columns.
+   */
+  private class Plan {
+    final AtomicReference<TableSchema> latest;
+    final TableSubspaces subspaces;
+    final Subspace rawdata;
+    final List<String> columnList = new ArrayList<>();
+    final String[] columns;
+    // Position of each column in the primary key, or -1
+    final int[] keyPositions;
+    final AttributeType[] types;
+    // Attribute id of each column outside the primary key, or -1, on a columnar table; null on a
+    // row table
+    final int[] columnIds;
+
+    final int[] predicateColumns;
+    final byte[][] constants;
+    final int[] outputColumns;
+    final int[] groupColumns;
+    final Aggregate[] aggregates;
+    // Column of each aggregate, or -1 for count()
+    final int[] aggregateColumns;
+
+    // Range of rawdata keys, or of block keys on a columnar table, to read, or null if no key can
+    // match
+    final Range range;
+    // Position of each column in the values written with a schema version
+    final Map<Long, int[]> positionsByVersion = new ConcurrentHashMap<>();
+
+    Plan(TableSchema schema, TableSubspaces subspaces, Aggregate[] aggregates, boolean grouped) {
+      this.latest = new AtomicReference<>(schema);
+      this.subspaces = subspaces;
+      this.rawdata = subspaces.getRawdata();
+      this.aggregates = aggregates;
+
+      predicateColumns = new int[predicates.size()];
+      for (int i = 0; i < predicateColumns.length; i++) {
+        predicateColumns[i] = column(schema, predicates.get(i).getAttributeName());
+      }
+      String[] selected = projection;
+      if (selected == null) {
+        selected = new String[schema.size()];
+        for (int i = 0; i < selected.length; i++) {
+          selected[i] = schema.getAttributeName(i);
+        }
+      }
+      outputColumns = new int[selected.length];
+      for (int i = 0; i < selected.length; i++) {
+        outputColumns[i] = column(schema, selected[i]);
+      }
+      groupColumns = new int[grouped ? groupBy.length : 0];
+      for (int i = 0; i < groupColumns.length; i++) {
+        groupColumns[i] = column(schema, groupBy[i]);
+      }
+      aggregateColumns = new int[aggregates.length];
+      for (int a = 0; a < aggregates.length; a++) {
+        aggregateColumns[a] = aggregates[a].getAttributeName() == null ? -1
+                : column(schema, aggregates[a].getAttributeName());
+      }
+
+      columns = columnList.toArray(new String[0]);
+      keyPositions = new int[columns.length];
+      types = new AttributeType[columns.length];
+      for (int c = 0; c < columns.length; c++) {
+        int index = schema.indexOf(columns[c]);
+        types[c] = schema.getAttributeType(index);
+        keyPositions[c] = -1;
+        for (int k = 0; k < schema.getPrimaryKeyCount(); k++) {
+          if (schema.getPrimaryKeyIndex(k) == index) {
+            keyPositions[c] = k;
+          }
+        }
+      }
+      columnIds = schema.getStorageMode() == StorageMode.COLUMNAR ? new int[columns.length] : null;
+      for (int c = 0; columnIds != null && c < columns.length; c++) {
+        columnIds[c] = keyPositions[c] >= 0 ? -1 : schema.getAttributeId(schema.indexOf(columns[c]));
+      }
+      constants = new byte[predicateColumns.length][];
+      for (int i = 0; i < constants.length; i++) {
+        constants[i] = predicates.get(i).encodeValue(types[predicateColumns[i]]);
+      }
+      for (int a = 0; a < aggregates.length; a++) {
+        if (aggregates[a].getFunction() == Aggregate.Function.SUM && types[aggregateColumns[a]] == AttributeType.VARCHAR) {
+          throw new IllegalArgumentException("cannot sum VARCHAR attribute " + aggregates[a].getAttributeName());
+        }
+      }
+      range = keyRange(schema, columnIds == null ? rawdata : subspaces.getBlocks());
+    }
+
+    private int column(TableSchema schema, String attributeName) {
+      if (attributeName == null || schema.indexOf(attributeName) < 0) {
+        throw new IllegalArgumentException("attribute " + attributeName + " not found in table " + tableName);
+      }
+      int column = columnList.indexOf(attributeName);
+      if (column < 0) {
+        columnList.add(attributeName);
+        column = columnList.size() - 1;
+      }
+      return column;
+    }
+
+    /**
+     * @return the range of the records whose primary key can match the predicates, or null if
+     * none can
+     */
+    private Range keyRange(TableSchema schema, Subspace data) {
+      // Values of the primary key prefix fixed by equality predicates
+      Tuple prefix = Tuple.from();
+      int k = 0;
+      for (; k < schema.getPrimaryKeyCount(); k++) {
+        int predicate = predicateOn(k, QueryPredicate.Comparison.EQUAL);
+        if (predicate < 0) {
+          break;
+        }
+        prefix = prefix.addAll(Tuple.fromBytes(constants[predicate]));
+      }
+      byte[] begin = data.pack(prefix);
+      byte[] end = ByteArrayUtil.join(begin, new byte[]{(byte) 0xff});
+
+      // Bounds of the primary key attribute after the prefix. Keys extending a packed tuple sort
+      // after it and before the tuple followed by 0xff, which no element starts with.
+      for (int i = 0; k < schema.getPrimaryKeyCount() && i < predicates.size(); i++) {
+        if (keyPositions[predicateColumns[i]] != k) {
+          continue;
+        }
+        byte[] bound = data.pack(prefix.addAll(Tuple.fromBytes(constants[i])));
+        byte[] after = ByteArrayUtil.join(bound, new byte[]{(byte) 0xff});
+        switch (predicates.get(i).getComparison()) {
+          case GREATER_OR_EQUAL:
+            begin = max(begin, bound);
+            break;
+          case GREATER:
+            begin = max(begin, after);
+            break;
+          case LESS_OR_EQUAL:
+            end = min(end, after);
+            break;
+          case LESS:
+            end = min(end, bound);
+            break;
+          default:
+            break;
+        }
+      }
+      return ByteArrayUtil.compareUnsigned(begin, end) < 0 ? new Range(begin, end) : null;
+    }
+
+    /**
+     * @return the first predicate with the comparison on the k-th primary key attribute, or -1
+     */
+    private int predicateOn(int k, QueryPredicate.Comparison comparison) {
+      for (int i = 0; i < predicates.size(); i++) {
+        if (keyPositions[predicateColumns[i]] == k && predicates.get(i).getComparison() == comparison) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private byte[] max(byte[] a, byte[] b) {
+      return ByteArrayUtil.compareUnsigned(a, b) >= 0 ? a : b;
+    }
+
+    private byte[] min(byte[] a, byte[] b) {
+      return ByteArrayUtil.compareUnsigned(a, b) <= 0 ? a : b;
+    }
+
+    /**
+     * @param consumer called with the rows of each batch, from several threads
+     */
+    CompletableFuture<Void> scan(Metrics.Invocation invocation, Consumer<Row> consumer) {
+      if (range == null) {
+        return CompletableFuture.completedFuture(null);
+      }
+      if (columnIds == null) {
+        return scan.scanRange(invocation, range, keyvalues -> consumer.accept(new Row(keyvalues, null)));
+      }
+      // The block holding the first record of the range starts at or before it
+      byte[] first = subspaces.getBlocks().range().begin;
+      return tableManager.runAsync(invocation, tr -> tr.getRange(first, ByteArrayUtil.join(range.begin, new byte[]{0}), 1,
+              true, StreamingMode.WANT_ALL).asList())
+          .thenCompose(previous -> scan.scanRange(invocation,
+              new Range(previous.isEmpty() ? range.begin : previous.get(0).getKey(), range.end),
+              scan.getBlocksPerTransaction(), (tr, keys) -> ColumnStore.readColumns(tr, subspaces, keys, columnIds),
+              blocks -> consumer.accept(new Row(null, blocks))));
+    }
+
+    /**
+     * @return the position of each column in the values of the records written with the schema
+     * version, 0 for the primary key columns and for columns the records have no value of, or null
+     * if the table no longer exists
+     */
+    int[] valuePositions(long rowVersion) {
+      int[] positions = positionsByVersion.get(rowVersion);
+      if (positions != null) {
+        return positions;
+      }
+      TableSchema schema = latest.get();
+      if (rowVersion > schema.getVersion()) {
+        // Written with a schema version newer than the one the query started with
+        schema = scan.refreshSchema(latest);
+        if (schema == null || rowVersion > schema.getVersion()) {
+          return null;
+        }
+      }
+      int[] layout = schema.layout((int) rowVersion);
+      positions = new int[columns.length];
+      for (int c = 0; c < columns.length; c++) {
+        int index = schema.indexOf(columns[c]);
+        for (int j = 0; j < layout.length && keyPositions[c] < 0 && index >= 0; j++) {
+          if (layout[j] == index) {
+            // The first element of the value is the schema version
+            positions[c] = j + 1;
+          }
+        }
+      }
+      positionsByVersion.putIfAbsent(rowVersion, positions);
+      return positions;
+    }
+
+    Accumulator[] accumulators() {
+      Accumulator[] accumulators = new Accumulator[aggregates.length];
+      for (int a = 0; a < aggregates.length; a++) {
+        accumulators[a] = new Accumulator(aggregates[a].getFunction(),
+                aggregateColumns[a] < 0 ? null : types[aggregateColumns[a]]);
+      }
+      return accumulators;
+    }
+
+    /**
+     * The rows of a batch, the key-values of a row table or the blocks of a columnar table. The
+     * columns of the current row are held as the byte ranges of their encoded values. A row is used
+     * by one thread.
+     */
+    class Row {
+      private final List<KeyValue> keyvalues;
+      private final List<ColumnStore.Block> blocks;
+      // Next key-value or block of the batch
+      private int index = 0;
+
+      private int[] keyOffsets = new int[8];
+      private int[] valueOffsets = new int[16];
+      private final byte[][] sources = new byte[columns.length][];
+      private final int[] begins = new int[columns.length];
+      private final int[] ends = new int[columns.length];
+
+      // The current block of a columnar table: its value in the blocks subspace, split by
+      // keyOffsets, and the values of each column packed as tuple elements
+      private byte[] blockKeys;
+      private int width;
+      private int rowCount = 0;
+      private int row = 0;
+      private final ColumnBlock.Elements[] elements = new ColumnBlock.Elements[columns.length];
+
+      Row(List<KeyValue> keyvalues, List<ColumnStore.Block> blocks) {
+        this.keyvalues = keyvalues;
+        this.blocks = blocks;
+      }
+
+      /**
+       * Moves to the next row of the batch that matches the predicates.
+       *
+       * @return false if there is none
+       */
+      boolean next() {
+        while (true) {
+          if (keyvalues != null) {
+            if (index == keyvalues.size()) {
+              return false;
+            }
+            if (read(keyvalues.get(index++)) && matches()) {
+              return true;
+            }
+            continue;
+          }
+          while (row == rowCount) {
+            if (index == blocks.size()) {
+              return false;
+            }
+            open(blocks.get(index++));
+          }
+          read(row++);
+          if (matches()) {
+            return true;
+          }
+        }
+      }
+
+      /**
+       * Locates the columns of the key-value.
+       *
+       * @return whether the record could be read
+       */
+      private boolean read(KeyValue keyvalue) {
+        byte[] key = keyvalue.getKey();
+        int keyCount;
+        while ((keyCount = TupleBytes.split(key, rawdata.getKey().length, key.length, keyOffsets)) < 0) {
+          keyOffsets = new int[keyOffsets.length * 2];
+        }
+        byte[] value = ValueCompression.decompress(keyvalue.getValue());
+        if (value == null) {
+          // Compressed with a dictionary newer than the schema the query started with
+          if (scan.refreshSchema(latest) == null || (value = ValueCompression.decompress(keyvalue.getValue())) == null) {
+            return false;
+          }
+        }
+        int valueCount = splitValue(value);
+        int[] positions = valuePositions(TupleBytes.decodeLong(value, 0));
+        if (positions == null) {
+          return false;
+        }
+
+        for (int c = 0; c < columns.length; c++) {
+          int k = keyPositions[c];
+          int p = positions[c];
+          if (k >= 0 && k < keyCount) {
+            set(c, key, keyOffsets[k], keyOffsets[k + 1]);
+          } else if (k < 0 && p > 0 && p < valueCount) {
+            set(c, value, valueOffsets[p], valueOffsets[p + 1]);
+          } else {
+            set(c, NULL_ELEMENT, 0, 1);
+          }
+        }
+        return true;
+      }
+
+      private void open(ColumnStore.Block block) {
+        blockKeys = block.keys.getValue();
+        int count;
+        while ((count = TupleBytes.split(blockKeys, 0, blockKeys.length, keyOffsets)) < 0) {
+          keyOffsets = new int[keyOffsets.length * 2];
+        }
+        width = (int) TupleBytes.decodeLong(blockKeys, 0);
+        rowCount = (count - 1) / width;
+        row = 0;
+        for (int c = 0; c < columns.length; c++) {
+          elements[c] = block.columns[c] == null ? null : ColumnBlock.elements(block.columns[c].getValue());
+        }
+      }
+
+      /**
+       * Locates the columns of a row of the current block.
+       */
+      private void read(int r) {
+        for (int c = 0; c < columns.length; c++) {
+          int k = keyPositions[c];
+          if (k >= 0 && k < width) {
+            int element = 1 + r * width + k;
+            set(c, blockKeys, keyOffsets[element], keyOffsets[element + 1]);
+          } else if (k < 0 && elements[c] != null && r < elements[c].offsets.length - 1) {
+            set(c, elements[c].bytes, elements[c].offsets[r], elements[c].offsets[r + 1]);
+          } else {
+            set(c, NULL_ELEMENT, 0, 1);
+          }
+        }
+      }
+
+      /**
+       * @return whether the current row matches the predicates
+       */
+      private boolean matches() {
+        for (int i = 0; i < predicateColumns.length; i++) {
+          int c = predicateColumns[i];
+          if (TupleBytes.isNull(sources[c], begins[c])
+                  || !predicates.get(i).accepts(TupleBytes.compare(sources[c], begins[c], ends[c], constants[i]))) {
+            return false;
+          }
+        }
+        return true;
+      }
+
+      private int splitValue(byte[] value) {
+        int count;
+        while ((count = TupleBytes.split(value, 0, value.length, valueOffsets)) < 0) {
+          valueOffsets = new int[valueOffsets.length * 2];
+        }
+        return count;
+      }
+
+      private void set(int column, byte[] source, int begin, int end) {
+        sources[column] = source;
+        begins[column] = begin;
+        ends[column] = end;
+      }
+
+      /**
+       * @return the record holding the selected attributes
+       */
+      TableRecord project() {
+        TableRecord record = new TableRecord();
+        for (int c : outputColumns) {
+          if (!TupleBytes.isNull(sources[c], begins[c])) {
+            record.set(columns[c], Tuple.fromBytes(sources[c], begins[c], ends[c] - begins[c]).get(0));
+          }
+        }
+        return record;
+      }
+
+      /**
+       * @return the grouping values, packed as a tuple
+       */
+      byte[] groupKey() {
+        int length = 0;
+        for (int c : groupColumns) {
+          length += ends[c] - begins[c];
+        }
+        byte[] key = new byte[length];
+        int offset = 0;
+        for (int c : groupColumns) {
+          System.arraycopy(sources[c], begins[c], key, offset, ends[c] - begins[c]);
+          offset += ends[c] - begins[c];
+        }
+        return key;
+      }
+
+      void accumulate(Accumulator[] accumulators) {
+        for (int a = 0; a < accumulators.length; a++) {
+          int c = aggregateColumns[a];
+          if (c < 0) {
+            accumulators[a].count++;
+          } else {
+            accumulators[a].add(sources[c], begins[c], ends[c]);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The state of one aggregate over the records of a group seen so far.
+   */
+  private static class Accumulator {
+    final Aggregate.Function function;
+    final AttributeType type;
+    // Records for count(), values otherwise
+    long count = 0;
+    long longSum = 0;
+    double doubleSum = 0;
+    // Packed minimum or maximum value
+    byte[] extreme = null;
+
+    Accumulator(Aggregate.Function function, AttributeType type) {
+      this.function = function;
+      this.type = type;
+    }
+
+    void add(byte[] bytes, int begin, int end) {
+      if (TupleBytes.isNull(bytes, begin)) {
+        return;
+      }
+      count++;
+      switch (function) {
+        case SUM:
+          if (type == AttributeType.INT) {
+            longSum += TupleBytes.decodeLong(bytes, begin);
+          } else {
+            doubleSum += TupleBytes.decodeDouble(bytes, begin);
+          }
+          break;
+        case MIN:
+        case MAX:
+          if (extreme == null || isBetter(TupleBytes.compare(bytes, begin, end, extreme))) {
+            extreme = Arrays.copyOfRange(bytes, begin, end);
+          }
+          break;
+        default:
+          break;
+      }
+    }
+
+    private boolean isBetter(int cmp) {
+      return function == Aggregate.Function.MIN ? cmp < 0 : cmp > 0;
+    }
+
+    void merge(Accumulator other) {
+      count += other.count;
+      longSum += other.longSum;
+      doubleSum += other.doubleSum;
+      if (other.extreme != null && (extreme == null || isBetter(ByteArrayUtil.compareUnsigned(other.extreme, extreme)))) {
+        extreme = other.extreme;
+      }
+    }
+
+    Object result() {
+      switch (function) {
+        case COUNT:
+          return count;
+        case SUM:
+          if (count == 0) {
+            return null;
+          }
+          return type == AttributeType.INT ? (Object) longSum : (Object) doubleSum;
+        default:
+          return extreme == null ? null : Tuple.fromBytes(extreme).get(0);
+      }
+    }
+  }
+}
@@ -0,0 +1,249 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class TableQueryTest {
+
+  private static final String TableName = "Staff";
+  private static final String[] Departments = {"Engineering", "Finance", "Legal", "Sales"};
+
+  private TableManagerImpl tableManager;
+  private RecordManager recordManager;
+  private List<TableRecord> records;
+
+  @Before
+  public void init() {
+    tableManager = new TableManagerImpl(new MemoryKeyValueStore(), new Subspace(Tuple.from("database")));
+    recordManager = new RecordManagerImpl(tableManager);
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(TableName,
+        new String[]{"Dept", "Id", "Name", "Age", "Salary"},
+        new AttributeType[]{AttributeType.VARCHAR, AttributeType.INT, AttributeType.VARCHAR, AttributeType.INT,
+            AttributeType.DOUBLE},
+        new String[]{"Dept", "Id"}));
+
+    // Enough records for the memory store to split the table into several parts
+    Random random = new Random(42);
+    records = new ArrayList<>();
+    for (int i = 0; i < 2 * MemoryKeyValueStore.SHARD_KEY_COUNT + 500; i++) {
+      TableRecord record = new TableRecord().set("Dept", Departments[i % Departments.length]).set("Id", (long) i - 1000)
+          .set("Name", "Employee" + i).set("Salary", random.nextInt(200_000) - 1000.5);
+      if (i % 7 != 0) {
+        record.set("Age", (long) (20 + random.nextInt(45)));
+      }
+      records.add(record);
+    }
+    new BulkLoader(tableManager, TableName).load("staff", records.iterator());
+  }
+
+  private List<TableRecord> matching(Predicate<TableRecord> filter) {
+    List<TableRecord> result = new ArrayList<>();
+    for (TableRecord record : records) {
+      if (filter.test(record)) {
+        result.add(record);
+      }
+    }
+    return result;
+  }
+
+  private Map<Object, TableRecord> run(TableQuery query) {
+    Map<Object, TableRecord> results = new ConcurrentHashMap<>();
+    long count = query.setParallelism(3).setRowsPerTransaction(500).forEach(record -> results.put(record.get("Id"), record));
+    assertEquals(results.size(), count);
+    return results;
+  }
+
+  @Test
+  public void tupleBytesTest() {
+    Random random = new Random(7);
+    List<Object> values = new ArrayList<>();
+    for (long value : new long[]{0, 1, -1, 255, -255, 256, -256, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1}) {
+      values.add(value);
+    }
+    for (int i = 0; i < 200; i++) {
+      values.add(random.nextLong() >> random.nextInt(64));
+      values.add(random.nextDouble() * 1e6 - 5e5);
+    }
+    values.add(-0.0);
+    values.add(Double.NEGATIVE_INFINITY);
+    values.add("a\u0000b");
+    values.add(null);
+    values.add(Arrays.asList("nested", null, 1L));
+    byte[] packed = Tuple.fromList(values).pack();
+
+    int[] offsets = new int[values.size() + 1];
+    assertEquals(values.size(), TupleBytes.split(packed, 0, packed.length, offsets));
+    assertEquals(-1, TupleBytes.split(packed, 0, packed.length, new int[values.size()]));
+    for (int i = 0; i < values.size(); i++) {
+      Object value = values.get(i);
+      assertEquals(value, Tuple.fromBytes(packed, offsets[i], offsets[i + 1] - offsets[i]).get(0));
+      if (value instanceof Long) {
+        assertEquals(value, TupleBytes.decodeLong(packed, offsets[i]));
+      } else if (value instanceof Double) {
+        assertEquals(value, TupleBytes.decodeDouble(packed, offsets[i]));
+      }
+    }
+  }
+
+  @Test
+  public void filterAndProjectTest() {
+    // Predicates on attributes outside the primary key
+    Map<Object, TableRecord> results = run(new TableQuery(tableManager, TableName)
+        .where(QueryPredicate.greaterThanOrEqualTo("Age", 40))
+        .where(QueryPredicate.lessThan("Salary", 50_000.0))
+        .select("Id", "Name"));
+    List<TableRecord> expected = matching(r -> r.get("Age") != null && (Long) r.get("Age") >= 40
+        && (Double) r.get("Salary") < 50_000.0);
+    assertEquals(expected.size(), results.size());
+    for (TableRecord record : expected) {
+      assertEquals(new TableRecord().set("Id", record.get("Id")).set("Name", record.get("Name")),
+          results.get(record.get("Id")));
+    }
+
+    // A primary key prefix and a range on the next primary key attribute
+    results = run(new TableQuery(tableManager, TableName)
+        .where(QueryPredicate.equalTo("Dept", "Legal"))
+        .where(QueryPredicate.greaterThan("Id", -10))
+        .where(QueryPredicate.lessThanOrEqualTo("Id", 302))
+        .where(QueryPredicate.notEqualTo("Name", "Employee1002")));
+    expected = matching(r -> r.get("Dept").equals("Legal") && (Long) r.get("Id") > -10 && (Long) r.get("Id") <= 302
+        && !r.get("Name").equals("Employee1002"));
+    assertEquals(expected.size(), results.size());
+    for (TableRecord record : expected) {
+      assertEquals(record, results.get(record.get("Id")));
+    }
+
+    assertEquals(0, new TableQuery(tableManager, TableName).where(QueryPredicate.equalTo("Dept", "Legal"))
+        .where(QueryPredicate.lessThan("Id", 0)).where(QueryPredicate.greaterThan("Id", 0)).count());
+  }
+
+  @Test
+  public void keyRangeTest() {
+    Metrics metrics = tableManager.getMetrics();
+    metrics.setEnabled(true);
+    assertEquals(records.size(), new TableQuery(tableManager, TableName).count());
+    long fullScan = metrics.get(Metrics.Operation.QUERY).getBytesRead();
+
+    metrics.reset();
+    assertEquals(1, new TableQuery(tableManager, TableName).where(QueryPredicate.equalTo("Id", 1))
+        .where(QueryPredicate.equalTo("Dept", "Finance")).count());
+    // Only the record and the schema are read
+    assertTrue(metrics.get(Metrics.Operation.QUERY).getBytesRead() < fullScan / 1000);
+
+    metrics.reset();
+    long count = new TableQuery(tableManager, TableName).where(QueryPredicate.greaterThanOrEqualTo("Dept", "Legal"))
+        .count();
+    assertEquals(matching(r -> ((String) r.get("Dept")).compareTo("Legal") >= 0).size(), count);
+    assertTrue(metrics.get(Metrics.Operation.QUERY).getBytesRead() < fullScan * 3 / 5);
+  }
+
+  @Test
+  public void aggregateTest() {
+    List<TableRecord> groups = new TableQuery(tableManager, TableName)
+        .where(QueryPredicate.lessThan("Id", 1500))
+        .groupBy("Dept")
+        .setParallelism(3).setRowsPerTransaction(500)
+        .aggregate(Aggregate.count(), Aggregate.sum("Age"), Aggregate.sum("Salary"), Aggregate.min("Age"),
+            Aggregate.max("Name"));
+
+    TreeMap<String, List<TableRecord>> expected = new TreeMap<>();
+    for (TableRecord record : matching(r -> (Long) r.get("Id") < 1500)) {
+      expected.computeIfAbsent((String) record.get("Dept"), k -> new ArrayList<>()).add(record);
+    }
+    assertEquals(expected.size(), groups.size());
+    int g = 0;
+    for (Map.Entry<String, List<TableRecord>> group : expected.entrySet()) {
+      TableRecord result = groups.get(g++);
+      long ageSum = 0;
+      double salarySum = 0;
+      long minAge = Long.MAX_VALUE;
+      String maxName = "";
+      for (TableRecord record : group.getValue()) {
+        if (record.get("Age") != null) {
+          ageSum += (Long) record.get("Age");
+          minAge = Math.min(minAge, (Long) record.get("Age"));
+        }
+        salarySum += (Double) record.get("Salary");
+        if (((String) record.get("Name")).compareTo(maxName) > 0) {
+          maxName = (String) record.get("Name");
+        }
+      }
+      assertEquals(group.getKey(), result.get("Dept"));
+      assertEquals((long) group.getValue().size(), result.get("count"));
+      assertEquals(ageSum, result.get("sum(Age)"));
+      assertEquals(salarySum, (Double) result.get("sum(Salary)"), 1e-3);
+      assertEquals(minAge, result.get("min(Age)"));
+      assertEquals(maxName, result.get("max(Name)"));
+    }
+
+    // Without grouping there is one result, even without matching records
+    List<TableRecord> none = new TableQuery(tableManager, TableName).where(QueryPredicate.greaterThan("Age", 1000))
+        .aggregate(Aggregate.count(), Aggregate.sum("Salary"));
+    assertEquals(1, none.size());
+    assertEquals(new TableRecord().set("count", 0L), none.get(0));
+  }
+
+  @Test
+  public void schemaChangeTest() {
+    assertEquals(StatusCode.SUCCESS, tableManager.addAttribute(TableName, "Bonus", AttributeType.DOUBLE));
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAttribute(TableName, "Name"));
+    for (long id = -1000; id < -990; id++) {
+      assertEquals(StatusCode.SUCCESS, recordManager.updateRecord(TableName,
+          new TableRecord().set("Dept", Departments[(int) (id + 1000) % Departments.length]).set("Id", id)
+              .set("Bonus", 10.0 * (id + 1000))));
+    }
+    // Records written before and after the changes are read with their own layout
+    Map<Object, TableRecord> results = run(new TableQuery(tableManager, TableName)
+        .where(QueryPredicate.greaterThanOrEqualTo("Bonus", 50.0)));
+    assertEquals(5, results.size());
+    TableRecord expected = new TableRecord();
+    expected.getValues().putAll(records.get(5).getValues());
+    expected.getValues().remove("Name");
+    expected.set("Bonus", 50.0);
+    assertEquals(expected, results.get(-995L));
+    assertEquals(records.size(), new TableQuery(tableManager, TableName).select("Age").count());
+  }
+
+  @Test
+  public void invalidQueryTest() {
+    assertEquals(-1, new TableQuery(tableManager, "Department").forEach(record -> {}));
+    assertNull(new TableQuery(tableManager, "Department").aggregate(Aggregate.count()));
+    for (TableQuery query : new TableQuery[]{
+        new TableQuery(tableManager, TableName).where(QueryPredicate.equalTo("Address", "LA")),
+        new TableQuery(tableManager, TableName).where(QueryPredicate.equalTo("Age", "old")),
+        new TableQuery(tableManager, TableName).where(QueryPredicate.equalTo("Age", null)),
+        new TableQuery(tableManager, TableName).select("Address")}) {
+      try {
+        query.count();
+        query.forEach(record -> {});
+        fail();
+      }
+      catch(CompletionException e) {
+        assertTrue(e.getCause() instanceof IllegalArgumentException);
+      }
+    }
+    try {
+      new TableQuery(tableManager, TableName).aggregate(Aggregate.sum("Name"));
+      fail();
+    }
+    catch(CompletionException e) {
+      assertTrue(e.getCause() instanceof IllegalArgumentException);
+    }
+  }
+}
@@ -0,0 +1,60 @@
+import java.util.HashMap;
+import java.util.Objects;
+
+/**
+ * TableRecord holds the attribute values of one record of a table.
+ *
+ * Values are Long (or Integer) for INT attributes, String for VARCHAR attributes and Double (or
+ * Float) for DOUBLE attributes. An attribute without a value is absent from the record.
+ */
+public class TableRecord {
+
+  // Map from AttributeName to value
+  private final HashMap<String, Object> values;
+
+  public TableRecord() {
+    values = new HashMap<>();
+  }
+
+  public TableRecord(String[] attributeNames, Object[] attributeValues) {
+    values = new HashMap<>();
+    for (int i = 0; i < attributeNames.length; i++) {
+      values.put(attributeNames[i], attributeValues[i]);
+    }
+  }
+
+  public TableRecord set(String attributeName, Object value) {
+    values.put(attributeName, value);
+    return this;
+  }
+
+  public Object get(String attributeName) {
+    return values.get(attributeName);
+  }
+
+  public boolean hasAttribute(String attributeName) {
+    return values.containsKey(attributeName);
+  }
+
+  public HashMap<String, Object> getValues() {
+    return values;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    TableRecord record = (TableRecord) o;
+    return Objects.equals(values, record.values);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(values);
+  }
+
+  @Override
+  public String toString() {
+    return values.toString();
+  }
+}
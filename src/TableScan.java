@@ -0,0 +1,244 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.StreamingMode;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+import com.apple.foundationdb.tuple.Tuple;
+
+/**
+ * TableScan reads every record of a table in parallel. The table's rawdata range is split at the
+ * boundary keys of the store ({KeyValueStore#getBoundaryKeys}), and a pool of workers scans the
+ * splits concurrently. Each split is read in a sequence of transactions of at most
+ * rowsPerTransaction records, each continuing after the last key the previous one read, so a scan
+ * is not bound by the transaction duration limit and never holds more than one transaction's
+ * records per worker.
+ *
+ * Columnar tables are split and scanned the same way over the keys of their blocks, and every
+ * transaction reads the columns of the blocks it read, see {ColumnStore}.
+ *
+ * Records are handed to the consumer as they are read, from the worker threads and in no
+ * particular order across splits, so the consumer must be thread-safe. Since the scan spans many
+ * transactions it does not see a single snapshot of the table: records written during the scan
+ * may or may not be seen.
+ */
+public class TableScan {
+
+  private final AsyncTableManagerImpl tableManager;
+  private final String tableName;
+
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+  private int rowsPerTransaction = 10_000;
+
+  public TableScan(TableManagerImpl tableManager, String tableName) {
+    this(tableManager.getAsyncTableManagerImpl(), tableName);
+  }
+
+  TableScan(AsyncTableManagerImpl tableManager, String tableName) {
+    this.tableManager = tableManager;
+    this.tableName = tableName;
+  }
+
+  public TableScan setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+    return this;
+  }
+
+  public TableScan setRowsPerTransaction(int rowsPerTransaction) {
+    this.rowsPerTransaction = rowsPerTransaction;
+    return this;
+  }
+
+  /**
+   * Scans the table and waits for the scan to complete.
+   *
+   * @param consumer called with every record, from several threads
+   * @return the number of records scanned, or -1 if the table does not exist
+   */
+  public long forEach(Consumer<TableRecord> consumer) {
+    return forEachAsync(consumer).join();
+  }
+
+  /**
+   * Scans the table.
+   *
+   * @param consumer called with every record, from several threads
+   * @return future of the number of records scanned, or of -1 if the table does not exist
+   */
+  public CompletableFuture<Long> forEachAsync(Consumer<TableRecord> consumer) {
+    return tableManager.measure(Metrics.Operation.SCAN, invocation -> forEachAsync(invocation, consumer));
+  }
+
+  private CompletableFuture<Long> forEachAsync(Metrics.Invocation invocation, Consumer<TableRecord> consumer) {
+    TableSubspaces subspaces = tableManager.tableSubspaces(tableName);
+    Range rawdata = subspaces.getRawdata().range();
+
+    return tableManager.runAsync(invocation, tr -> AsyncTableManagerImpl.readSchema(tr, subspaces)).thenCompose(schema -> {
+      if (schema == null) {
+        return CompletableFuture.completedFuture(-1L);
+      }
+      LongAdder count = new LongAdder();
+      AtomicReference<TableSchema> latest = new AtomicReference<>(schema);
+      Consumer<KeyValue> decoder = keyvalue -> {
+        Tuple primaryKey = subspaces.getRawdata().unpack(keyvalue.getKey());
+        TableRecord record = RecordFormat.decode(latest.get(), primaryKey, keyvalue.getValue());
+        if (record == null) {
+          // Written with a schema version newer than the one the scan started with
+          if (refreshSchema(latest) == null) {
+            return;
+          }
+          record = RecordFormat.decode(latest.get(), primaryKey, keyvalue.getValue());
+        }
+        consumer.accept(record);
+        count.increment();
+      };
+      if (schema.getStorageMode() == StorageMode.COLUMNAR) {
+        int[] attributeIds = ColumnStore.columnIds(schema);
+        return scanRange(invocation, subspaces.getBlocks().range(), getBlocksPerTransaction(),
+            (tr, keys) -> ColumnStore.readColumns(tr, subspaces, keys, attributeIds), blocks -> {
+              for (ColumnStore.Block block : blocks) {
+                for (TableRecord record : block.records(schema)) {
+                  consumer.accept(record);
+                  count.increment();
+                }
+              }
+            }).thenApply(ignore -> count.sum());
+      }
+      return scanRange(invocation, rawdata, batch -> batch.forEach(decoder)).thenApply(ignore -> count.sum());
+    });
+  }
+
+  /**
+   * @return the number of blocks of a columnar table read per transaction
+   */
+  int getBlocksPerTransaction() {
+    return Math.max(1, rowsPerTransaction / ColumnStore.MAX_BLOCK_ROWS);
+  }
+
+  /**
+   * Reads the current schema of the table, blocking the calling worker, and keeps it in latest
+   * unless latest already holds a newer one.
+   *
+   * @return the schema in latest, or null if the table no longer exists
+   */
+  TableSchema refreshSchema(AtomicReference<TableSchema> latest) {
+    TableSubspaces subspaces = tableManager.tableSubspaces(tableName);
+    TableSchema current = tableManager.run(tr -> AsyncTableManagerImpl.readSchema(tr, subspaces).join());
+    if (current == null) {
+      return null;
+    }
+    return latest.accumulateAndGet(current, (a, b) -> a.getVersion() >= b.getVersion() ? a : b);
+  }
+
+  /**
+   * Scans the key-values of a range of the table's rawdata subspace, split at the boundary keys of
+   * the store.
+   *
+   * @param consumer called with the key-values read by each transaction, in key order, from
+   *                 several threads
+   */
+  CompletableFuture<Void> scanRange(Metrics.Invocation invocation, Range range, Consumer<List<KeyValue>> consumer) {
+    return scanRange(invocation, range, rowsPerTransaction, (tr, keyvalues) -> CompletableFuture.completedFuture(keyvalues),
+        consumer);
+  }
+
+  /**
+   * Scans the key-values of a range like scanRange() above, at most limit per transaction, and
+   * reads more for them in the same transaction.
+   *
+   * @param reader called with every transaction and the key-values it read
+   * @param consumer called with the results of the reader, from several threads
+   */
+  <T> CompletableFuture<Void> scanRange(Metrics.Invocation invocation, Range range, int limit,
+                                        BiFunction<KeyValueTransaction, List<KeyValue>, CompletableFuture<T>> reader,
+                                        Consumer<T> consumer) {
+    Split<T> split = new Split<>(limit, reader, consumer);
+    return tableManager.getStore().getBoundaryKeys(range.begin, range.end).thenCompose(boundaries -> {
+      List<Range> splits = new ArrayList<>();
+      byte[] begin = range.begin;
+      for (byte[] boundary : boundaries) {
+        splits.add(new Range(begin, boundary));
+        begin = boundary;
+      }
+      splits.add(new Range(begin, range.end));
+      return scanSplits(invocation, splits, split);
+    });
+  }
+
+  /**
+   * How the key-values of every split are read and consumed.
+   */
+  private static class Split<T> {
+    final int limit;
+    final BiFunction<KeyValueTransaction, List<KeyValue>, CompletableFuture<T>> reader;
+    final Consumer<T> consumer;
+
+    Split(int limit, BiFunction<KeyValueTransaction, List<KeyValue>, CompletableFuture<T>> reader, Consumer<T> consumer) {
+      this.limit = limit;
+      this.reader = reader;
+      this.consumer = consumer;
+    }
+  }
+
+  /**
+   * Scans the splits with parallelism workers, each taking the next split once it is done with the
+   * previous one.
+   */
+  private <T> CompletableFuture<Void> scanSplits(Metrics.Invocation invocation, List<Range> splits, Split<T> split) {
+    int workerCount = Math.max(1, Math.min(parallelism, splits.size()));
+    ExecutorService workers = Executors.newFixedThreadPool(workerCount, r -> {
+      Thread t = new Thread(r, "table-scan-" + tableName);
+      t.setDaemon(true);
+      return t;
+    });
+
+    AtomicInteger nextSplit = new AtomicInteger();
+    CompletableFuture<?>[] done = new CompletableFuture<?>[workerCount];
+    for (int i = 0; i < workerCount; i++) {
+      done[i] = CompletableFuture.runAsync(() -> {}, workers)
+          .thenCompose(ignore -> scanNextSplit(invocation, splits, nextSplit, split, workers));
+    }
+    return CompletableFuture.allOf(done).whenComplete((ignore, e) -> workers.shutdown());
+  }
+
+  private <T> CompletableFuture<Void> scanNextSplit(Metrics.Invocation invocation, List<Range> splits, AtomicInteger nextSplit,
+                                                    Split<T> split, ExecutorService workers) {
+    int next = nextSplit.getAndIncrement();
+    if (next >= splits.size()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return scanFrom(invocation, splits.get(next).begin, splits.get(next).end, split, workers)
+        .thenCompose(ignore -> scanNextSplit(invocation, splits, nextSplit, split, workers));
+  }
+
+  /**
+   * Reads up to limit key-values of [begin, end) and what the reader reads for them in one
+   * transaction, hands the result to the consumer once the transaction is done, and continues
+   * after the last key read.
+   */
+  private <T> CompletableFuture<Void> scanFrom(Metrics.Invocation invocation, byte[] begin, byte[] end, Split<T> split,
+                                               ExecutorService workers) {
+    return tableManager.runAsync(invocation, tr -> tr.getRange(begin, end, split.limit, false, StreamingMode.WANT_ALL).asList()
+            .thenCompose(keyvalues -> split.reader.apply(tr, keyvalues)
+                .thenApply(result -> new AbstractMap.SimpleImmutableEntry<>(keyvalues, result))))
+        .thenComposeAsync(read -> {
+          split.consumer.accept(read.getValue());
+          List<KeyValue> keyvalues = read.getKey();
+          if (keyvalues.size() < split.limit) {
+            return CompletableFuture.completedFuture(null);
+          }
+          byte[] continuation = ByteArrayUtil.join(keyvalues.get(keyvalues.size() - 1).getKey(), new byte[]{0});
+          return scanFrom(invocation, continuation, end, split, workers);
+        }, workers);
+  }
+}
@@ -0,0 +1,54 @@
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class TableScanTest {
+
+  private TableManagerImpl tableManager;
+
+  @Before
+  public void init() {
+    tableManager = new TableManagerImpl(new MemoryKeyValueStore(), new Subspace(Tuple.from("database")));
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(RecordManagerTest.EmployeeTableName,
+        RecordManagerTest.EmployeeTableAttributeNames, RecordManagerTest.EmployeeTableAttributeTypes,
+        RecordManagerTest.EmployeeTablePKAttributes));
+  }
+
+  @Test
+  public void parallelScanTest() {
+    // Enough records for the memory store to split the table into several parts
+    int recordCount = 2 * MemoryKeyValueStore.SHARD_KEY_COUNT + 500;
+    List<TableRecord> records = new ArrayList<>();
+    for (int i = 0; i < recordCount; i++) {
+      records.add(new TableRecord().set("SSN", (long) i).set("Name", "Employee" + i));
+    }
+    new BulkLoader(tableManager, RecordManagerTest.EmployeeTableName).load("employees", records.iterator());
+
+    Map<Object, TableRecord> scanned = new ConcurrentHashMap<>();
+    long count = new TableScan(tableManager, RecordManagerTest.EmployeeTableName)
+        .setParallelism(3)
+        .setRowsPerTransaction(1000)
+        .forEach(record -> scanned.put(record.get("SSN"), record));
+
+    assertEquals(recordCount, count);
+    assertEquals(recordCount, scanned.size());
+    for (TableRecord record : records) {
+      assertEquals(record, scanned.get(record.get("SSN")));
+    }
+  }
+
+  @Test
+  public void emptyAndMissingTableTest() {
+    assertEquals(0, new TableScan(tableManager, RecordManagerTest.EmployeeTableName).forEach(record -> {}));
+    assertEquals(-1, new TableScan(tableManager, "Department").forEach(record -> {}));
+  }
+}
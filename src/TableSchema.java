@@ -0,0 +1,534 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * TableSchema is the immutable schema of one table as it is stored in the catalog: the attributes in
+ * definition order, their types, and the position of each attribute in the primary key.
+ *
+ * It is kept in flat arrays so that the metadata of many tables stays small on the heap: attribute
+ * names are interned and shared between tables, types are stored as ordinals, and names are looked
+ * up by binary search in a sorted copy of the names.
+ *
+ * The schema also keeps its history, so records written with an older schema can be read without
+ * rewriting them. Every addAttribute and dropAttribute creates a new schema version. Each attribute
+ * has an id that is never reused, and records store their non-primary key values by position in
+ * the layout of the version they were written with: the ids of the non-primary key attributes of
+ * that version, in id order. The ids and versions of dropped attributes are kept until no record
+ * written before the drop is left (minRowVersion), see {RecordUpgrader}.
+ *
+ * The schema is stored as one versioned binary record:
+ *   format version                  1 byte
+ *   schema version                  varint
+ *   minimum record version          varint
+ *   next attribute id               varint
+ *   attribute count                 varint
+ *   for each attribute:
+ *     name length                   varint
+ *     name                          UTF-8
+ *     type                          1 byte, the AttributeType ordinal
+ *     primary key position + 1      varint, 0 if the attribute is not part of the primary key
+ *     id                            varint
+ *     version it was added in       varint
+ *   dropped attribute count         varint
+ *   for each dropped non-primary key attribute:
+ *     id, version it was added in, version it was dropped in    varints
+ *   storage mode                    1 byte, the {StorageMode} ordinal; left out for ROW when
+ *                                   values are not compressed
+ *   dictionary id                   8 bytes, the dictionary new values are compressed with, see
+ *                                   {ValueCompression}; left out when they are not compressed
+ * Records larger than a value can hold are split into chunks by the caller.
+ */
+public class TableSchema {
+
+  static final byte FORMAT_VERSION = 1;
+
+  private static final AttributeType[] TYPES = AttributeType.values();
+
+  // Interned attribute names in definition order
+  private final String[] attributeNames;
+  // AttributeType ordinal of each attribute
+  private final byte[] attributeTypes;
+  // Position of each attribute in the primary key, or -1
+  private final int[] primaryKeyPositions;
+
+  // Attribute names in sorted order, and the index of each of them in attributeNames
+  private final String[] sortedNames;
+  private final int[] sortedIndexes;
+  // Index of each primary key attribute, in primary key order
+  private final int[] primaryKeyIndexes;
+
+  private final int version;
+  // Records written with an older version no longer exist
+  private final int minRowVersion;
+  private final int nextId;
+  // Id of each attribute, increasing in definition order, and the version it was added in
+  private final int[] attributeIds;
+  private final int[] addedVersions;
+  // Dropped non-primary key attributes that records may still have values of
+  private final int[] droppedIds;
+  private final int[] droppedAddedVersions;
+  private final int[] droppedVersions;
+  private final StorageMode storageMode;
+  // Dictionary new record values are compressed with, or 0
+  private final long dictionaryId;
+
+  // Layout of each version records were read with, computed on first use
+  private final Map<Integer, int[]> layouts = new ConcurrentHashMap<>();
+
+  private TableSchema(String[] attributeNames, byte[] attributeTypes, int[] primaryKeyPositions, int version,
+                      int minRowVersion, int nextId, int[] attributeIds, int[] addedVersions, int[] droppedIds,
+                      int[] droppedAddedVersions, int[] droppedVersions, StorageMode storageMode,
+                      long dictionaryId) {
+    this.attributeNames = attributeNames;
+    this.attributeTypes = attributeTypes;
+    this.primaryKeyPositions = primaryKeyPositions;
+    this.version = version;
+    this.minRowVersion = minRowVersion;
+    this.nextId = nextId;
+    this.attributeIds = attributeIds;
+    this.addedVersions = addedVersions;
+    this.droppedIds = droppedIds;
+    this.droppedAddedVersions = droppedAddedVersions;
+    this.droppedVersions = droppedVersions;
+    this.storageMode = storageMode;
+    this.dictionaryId = dictionaryId;
+
+    int n = attributeNames.length;
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> attributeNames[a].compareTo(attributeNames[b]));
+    sortedNames = new String[n];
+    sortedIndexes = new int[n];
+    for (int i = 0; i < n; i++) {
+      sortedNames[i] = attributeNames[order[i]];
+      sortedIndexes[i] = order[i];
+    }
+
+    // Positions may have gaps once a primary key attribute is dropped
+    int maxPosition = -1;
+    int count = 0;
+    for (int position : primaryKeyPositions) {
+      if (position >= 0) {
+        count++;
+        maxPosition = Math.max(maxPosition, position);
+      }
+    }
+    int[] byPosition = new int[maxPosition + 1];
+    Arrays.fill(byPosition, -1);
+    for (int i = 0; i < n; i++) {
+      if (primaryKeyPositions[i] >= 0) {
+        byPosition[primaryKeyPositions[i]] = i;
+      }
+    }
+    primaryKeyIndexes = new int[count];
+    int k = 0;
+    for (int index : byPosition) {
+      if (index >= 0) {
+        primaryKeyIndexes[k++] = index;
+      }
+    }
+  }
+
+  /**
+   * Builds the schema of a new table. An attribute defined twice keeps its first position and its
+   * last type.
+   */
+  public static TableSchema of(String[] attributeNames, AttributeType[] attributeTypes,
+                               String[] primaryKeyAttributeNames) {
+    Map<String, Integer> indexes = new HashMap<>();
+    List<String> names = new ArrayList<>();
+    byte[] typeArray = new byte[attributeNames.length];
+    for (int i = 0; i < attributeNames.length; i++) {
+      Integer index = indexes.putIfAbsent(attributeNames[i], names.size());
+      if (index == null) {
+        index = names.size();
+        names.add(attributeNames[i].intern());
+      }
+      typeArray[index] = (byte) attributeTypes[i].ordinal();
+    }
+
+    int[] positions = new int[names.size()];
+    Arrays.fill(positions, -1);
+    for (int j = primaryKeyAttributeNames.length - 1; j >= 0; j--) {
+      positions[indexes.get(primaryKeyAttributeNames[j])] = j;
+    }
+    // Version 0, with ids in definition order
+    int[] ids = new int[names.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = i;
+    }
+    return new TableSchema(names.toArray(new String[0]), Arrays.copyOf(typeArray, names.size()), positions, 0, 0,
+            ids.length, ids, new int[ids.length], new int[0], new int[0], new int[0], StorageMode.ROW, 0);
+  }
+
+  public int size() {
+    return attributeNames.length;
+  }
+
+  public String getAttributeName(int index) {
+    return attributeNames[index];
+  }
+
+  public AttributeType getAttributeType(int index) {
+    return TYPES[attributeTypes[index]];
+  }
+
+  public int getPrimaryKeyPosition(int index) {
+    return primaryKeyPositions[index];
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  public int getMinRowVersion() {
+    return minRowVersion;
+  }
+
+  /**
+   * @return the id of the attribute, which no other attribute of the table ever had
+   */
+  public int getAttributeId(int index) {
+    return attributeIds[index];
+  }
+
+  /**
+   * @return the schema version the attribute was added in
+   */
+  public int getAddedVersion(int index) {
+    return addedVersions[index];
+  }
+
+  public StorageMode getStorageMode() {
+    return storageMode;
+  }
+
+  /**
+   * @return whether records encoded with this schema and with the other one are the same, which
+   * holds when they have the same version and attributes even if their dictionaries or minimum
+   * record versions differ. The attributes are compared too, since a table dropped and created
+   * again starts over at version 0.
+   */
+  public boolean hasSameLayout(TableSchema other) {
+    return version == other.version && storageMode == other.storageMode
+        && Arrays.equals(attributeNames, other.attributeNames) && Arrays.equals(attributeTypes, other.attributeTypes)
+        && Arrays.equals(primaryKeyPositions, other.primaryKeyPositions)
+        && Arrays.equals(attributeIds, other.attributeIds);
+  }
+
+  /**
+   * @return the id of the dictionary new record values are compressed with, or 0 if they are not
+   * compressed
+   */
+  public long getDictionaryId() {
+    return dictionaryId;
+  }
+
+  /**
+   * @return the number of dropped attributes whose position in older layouts is still kept
+   */
+  public int getDroppedCount() {
+    return droppedIds.length;
+  }
+
+  /**
+   * @return for each value position of a record written with the given version, the index of its
+   * attribute in this schema, or -1 if the attribute was dropped
+   */
+  public int[] layout(int rowVersion) {
+    return layouts.computeIfAbsent(rowVersion, v -> {
+      // Current and dropped attributes of version v, sorted by id
+      List<long[]> attributes = new ArrayList<>();
+      for (int i = 0; i < attributeNames.length; i++) {
+        if (primaryKeyPositions[i] < 0 && addedVersions[i] <= v) {
+          attributes.add(new long[]{attributeIds[i], i});
+        }
+      }
+      for (int d = 0; d < droppedIds.length; d++) {
+        if (droppedAddedVersions[d] <= v && v < droppedVersions[d]) {
+          attributes.add(new long[]{droppedIds[d], -1});
+        }
+      }
+      attributes.sort((a, b) -> Long.compare(a[0], b[0]));
+      int[] layout = new int[attributes.size()];
+      for (int j = 0; j < layout.length; j++) {
+        layout[j] = (int) attributes.get(j)[1];
+      }
+      return layout;
+    });
+  }
+
+  /**
+   * @return the index of the attribute, or -1 if the table has no such attribute
+   */
+  public int indexOf(String attributeName) {
+    int i = Arrays.binarySearch(sortedNames, attributeName);
+    return i >= 0 ? sortedIndexes[i] : -1;
+  }
+
+  /**
+   * @return a copy of this schema with the attribute appended
+   */
+  public TableSchema withAttribute(String attributeName, AttributeType attributeType) {
+    int n = attributeNames.length;
+    String[] names = Arrays.copyOf(attributeNames, n + 1);
+    byte[] types = Arrays.copyOf(attributeTypes, n + 1);
+    int[] positions = Arrays.copyOf(primaryKeyPositions, n + 1);
+    int[] ids = Arrays.copyOf(attributeIds, n + 1);
+    int[] added = Arrays.copyOf(addedVersions, n + 1);
+    names[n] = attributeName.intern();
+    types[n] = (byte) attributeType.ordinal();
+    positions[n] = -1;
+    ids[n] = nextId;
+    added[n] = version + 1;
+    return new TableSchema(names, types, positions, version + 1, minRowVersion, nextId + 1, ids, added,
+            droppedIds, droppedAddedVersions, droppedVersions, storageMode, dictionaryId);
+  }
+
+  /**
+   * @return a copy of this schema without the attribute at the given index
+   * @throws IllegalArgumentException if the attribute is part of the primary key, which the keys of
+   * the records are made of
+   */
+  public TableSchema withoutAttribute(int index) {
+    if (primaryKeyPositions[index] >= 0) {
+      throw new IllegalArgumentException("primary key attribute " + attributeNames[index] + " cannot be dropped");
+    }
+    int n = attributeNames.length;
+    String[] names = new String[n - 1];
+    byte[] types = new byte[n - 1];
+    int[] positions = new int[n - 1];
+    System.arraycopy(attributeNames, 0, names, 0, index);
+    System.arraycopy(attributeNames, index + 1, names, index, n - index - 1);
+    System.arraycopy(attributeTypes, 0, types, 0, index);
+    System.arraycopy(attributeTypes, index + 1, types, index, n - index - 1);
+    System.arraycopy(primaryKeyPositions, 0, positions, 0, index);
+    System.arraycopy(primaryKeyPositions, index + 1, positions, index, n - index - 1);
+    int[] ids = remove(attributeIds, index);
+    int[] added = remove(addedVersions, index);
+
+    int d = droppedIds.length;
+    int[] dropped = Arrays.copyOf(droppedIds, d + 1);
+    int[] droppedAdded = Arrays.copyOf(droppedAddedVersions, d + 1);
+    int[] droppedIn = Arrays.copyOf(droppedVersions, d + 1);
+    dropped[d] = attributeIds[index];
+    droppedAdded[d] = addedVersions[index];
+    droppedIn[d] = version + 1;
+    return new TableSchema(names, types, positions, version + 1, minRowVersion, nextId, ids, added,
+            dropped, droppedAdded, droppedIn, storageMode, dictionaryId);
+  }
+
+  /**
+   * @return a copy of this schema noting that no record is older than the given version, without
+   * the dropped attributes that only older records can have
+   */
+  public TableSchema withMinRowVersion(int rowVersion) {
+    int kept = 0;
+    for (int droppedVersion : droppedVersions) {
+      if (droppedVersion > rowVersion) {
+        kept++;
+      }
+    }
+    int[] dropped = new int[kept];
+    int[] droppedAdded = new int[kept];
+    int[] droppedIn = new int[kept];
+    int k = 0;
+    for (int d = 0; d < droppedIds.length; d++) {
+      if (droppedVersions[d] > rowVersion) {
+        dropped[k] = droppedIds[d];
+        droppedAdded[k] = droppedAddedVersions[d];
+        droppedIn[k++] = droppedVersions[d];
+      }
+    }
+    return new TableSchema(attributeNames, attributeTypes, primaryKeyPositions, version,
+            Math.max(minRowVersion, rowVersion), nextId, attributeIds, addedVersions, dropped, droppedAdded, droppedIn,
+            storageMode, dictionaryId);
+  }
+
+  /**
+   * @return a copy of this schema with the storage mode, for a table that has no records yet
+   */
+  public TableSchema withStorageMode(StorageMode mode) {
+    return new TableSchema(attributeNames, attributeTypes, primaryKeyPositions, version, minRowVersion, nextId,
+            attributeIds, addedVersions, droppedIds, droppedAddedVersions, droppedVersions, mode, dictionaryId);
+  }
+
+  /**
+   * @return a copy of this schema whose new record values are compressed with the dictionary
+   */
+  public TableSchema withDictionaryId(long id) {
+    return new TableSchema(attributeNames, attributeTypes, primaryKeyPositions, version, minRowVersion, nextId,
+            attributeIds, addedVersions, droppedIds, droppedAddedVersions, droppedVersions, storageMode, id);
+  }
+
+  private static int[] remove(int[] values, int index) {
+    int[] result = new int[values.length - 1];
+    System.arraycopy(values, 0, result, 0, index);
+    System.arraycopy(values, index + 1, result, index, values.length - index - 1);
+    return result;
+  }
+
+  /**
+   * @return the primary key attributes, ordered by their position. Positions may have gaps once a
+   * primary key attribute is dropped.
+   */
+  public String[] getPrimaryKeys() {
+    String[] pks = new String[primaryKeyIndexes.length];
+    for (int k = 0; k < pks.length; k++) {
+      pks[k] = attributeNames[primaryKeyIndexes[k]];
+    }
+    return pks;
+  }
+
+  /**
+   * @return the number of primary key attributes
+   */
+  public int getPrimaryKeyCount() {
+    return primaryKeyIndexes.length;
+  }
+
+  /**
+   * @return the index of the k-th primary key attribute
+   */
+  public int getPrimaryKeyIndex(int k) {
+    return primaryKeyIndexes[k];
+  }
+
+  public TableMetadata toTableMetadata() {
+    return new TableMetadata(this);
+  }
+
+  public byte[] encode() {
+    byte[][] names = new byte[attributeNames.length][];
+    int size = 1 + varintSize(version) + varintSize(minRowVersion) + varintSize(nextId)
+            + varintSize(attributeNames.length) + varintSize(droppedIds.length);
+    for (int i = 0; i < attributeNames.length; i++) {
+      names[i] = attributeNames[i].getBytes(StandardCharsets.UTF_8);
+      size += varintSize(names[i].length) + names[i].length + 1 + varintSize(primaryKeyPositions[i] + 1)
+              + varintSize(attributeIds[i]) + varintSize(addedVersions[i]);
+    }
+    for (int d = 0; d < droppedIds.length; d++) {
+      size += varintSize(droppedIds[d]) + varintSize(droppedAddedVersions[d]) + varintSize(droppedVersions[d]);
+    }
+    if (storageMode != StorageMode.ROW || dictionaryId != 0) {
+      size++;
+    }
+    if (dictionaryId != 0) {
+      size += 8;
+    }
+
+    byte[] bytes = new byte[size];
+    bytes[0] = FORMAT_VERSION;
+    int offset = writeVarint(bytes, 1, version);
+    offset = writeVarint(bytes, offset, minRowVersion);
+    offset = writeVarint(bytes, offset, nextId);
+    offset = writeVarint(bytes, offset, attributeNames.length);
+    for (int i = 0; i < attributeNames.length; i++) {
+      offset = writeVarint(bytes, offset, names[i].length);
+      System.arraycopy(names[i], 0, bytes, offset, names[i].length);
+      offset += names[i].length;
+      bytes[offset++] = attributeTypes[i];
+      offset = writeVarint(bytes, offset, primaryKeyPositions[i] + 1);
+      offset = writeVarint(bytes, offset, attributeIds[i]);
+      offset = writeVarint(bytes, offset, addedVersions[i]);
+    }
+    offset = writeVarint(bytes, offset, droppedIds.length);
+    for (int d = 0; d < droppedIds.length; d++) {
+      offset = writeVarint(bytes, offset, droppedIds[d]);
+      offset = writeVarint(bytes, offset, droppedAddedVersions[d]);
+      offset = writeVarint(bytes, offset, droppedVersions[d]);
+    }
+    if (storageMode != StorageMode.ROW || dictionaryId != 0) {
+      bytes[offset++] = (byte) storageMode.ordinal();
+    }
+    for (int i = 7; dictionaryId != 0 && i >= 0; i--) {
+      bytes[offset++] = (byte) (dictionaryId >>> (8 * i));
+    }
+    return bytes;
+  }
+
+  /**
+   * Decodes a record written by encode() in a single pass. Attribute names are interned, so names
+   * shared by many tables are kept once.
+   *
+   * @throws IllegalArgumentException if the record has an unknown format version
+   */
+  public static TableSchema decode(byte[] bytes) {
+    if (bytes.length == 0 || bytes[0] != FORMAT_VERSION) {
+      throw new IllegalArgumentException("unknown schema format " + (bytes.length == 0 ? "" : bytes[0]));
+    }
+
+    int[] offset = new int[]{1};
+    int version = readVarint(bytes, offset);
+    int minRowVersion = readVarint(bytes, offset);
+    int nextId = readVarint(bytes, offset);
+    int n = readVarint(bytes, offset);
+    String[] names = new String[n];
+    byte[] types = new byte[n];
+    int[] positions = new int[n];
+    int[] ids = new int[n];
+    int[] added = new int[n];
+    for (int i = 0; i < n; i++) {
+      int length = readVarint(bytes, offset);
+      names[i] = new String(bytes, offset[0], length, StandardCharsets.UTF_8).intern();
+      offset[0] += length;
+      types[i] = bytes[offset[0]++];
+      positions[i] = readVarint(bytes, offset) - 1;
+      ids[i] = readVarint(bytes, offset);
+      added[i] = readVarint(bytes, offset);
+    }
+
+    int d = readVarint(bytes, offset);
+    int[] dropped = new int[d];
+    int[] droppedAdded = new int[d];
+    int[] droppedIn = new int[d];
+    for (int k = 0; k < d; k++) {
+      dropped[k] = readVarint(bytes, offset);
+      droppedAdded[k] = readVarint(bytes, offset);
+      droppedIn[k] = readVarint(bytes, offset);
+    }
+    StorageMode storageMode = offset[0] < bytes.length ? StorageMode.values()[bytes[offset[0]++]] : StorageMode.ROW;
+    long dictionaryId = 0;
+    while (offset[0] < bytes.length) {
+      dictionaryId = (dictionaryId << 8) | (bytes[offset[0]++] & 0xff);
+    }
+    return new TableSchema(names, types, positions, version, minRowVersion, nextId, ids, added, dropped,
+            droppedAdded, droppedIn, storageMode, dictionaryId);
+  }
+
+  private static int varintSize(int value) {
+    int size = 1;
+    while ((value >>>= 7) != 0) {
+      size++;
+    }
+    return size;
+  }
+
+  private static int writeVarint(byte[] bytes, int offset, int value) {
+    while ((value & ~0x7f) != 0) {
+      bytes[offset++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    bytes[offset++] = (byte) value;
+    return offset;
+  }
+
+  private static int readVarint(byte[] bytes, int[] offset) {
+    int value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = bytes[offset[0]++];
+      value |= (b & 0x7f) << shift;
+      shift += 7;
+    } while (b < 0);
+    return value;
+  }
+}
@@ -0,0 +1,284 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+import com.apple.foundationdb.tuple.Tuple;
+
+/**
+ * TableStatistics holds the size of a table and the histograms of its attributes.
+ *
+ * The row count and the byte size of the records (keys and values of the rawdata subspace, or of
+ * the blocks and columns subspaces of a columnar table, index entries excluded) are kept exact by
+ * every record write, with atomic ADD mutations that never conflict. The histograms are built from a sample of the records by {TableAnalyzer} and are only
+ * as recent as its last pass. Everything lives in the table's metadata subspace:
+ *   ("stats") -> () once the counters are exact, or the next rawdata key to count while a
+ *                {TableAnalyzer} pass counts the records of a table created before statistics
+ *   ("rowCount") -> little-endian count
+ *   ("byteSize") -> little-endian count
+ *   ("histogram", attributeName) -> (sampled values, nulls, distinct, min, max, bound, ...)
+ *   ("analyzed") -> (time in milliseconds, records scanned)
+ * Tables without the ("stats") key do not maintain the counters.
+ */
+public class TableStatistics {
+
+  private final long rowCount;
+  private final long byteSize;
+  private final long analyzedAt;
+  private final long analyzedRowCount;
+  private final Map<String, ColumnHistogram> histograms;
+
+  TableStatistics(long rowCount, long byteSize, long analyzedAt, long analyzedRowCount,
+                  Map<String, ColumnHistogram> histograms) {
+    this.rowCount = rowCount;
+    this.byteSize = byteSize;
+    this.analyzedAt = analyzedAt;
+    this.analyzedRowCount = analyzedRowCount;
+    this.histograms = histograms;
+  }
+
+  /**
+   * @return the number of records, or -1 if the table has not been counted yet
+   */
+  public long getRowCount() {
+    return rowCount;
+  }
+
+  /**
+   * @return the bytes of the keys and values of the records, or -1 if the table has not been
+   * counted yet
+   */
+  public long getByteSize() {
+    return byteSize;
+  }
+
+  /**
+   * @return the time of the last analysis in milliseconds since the epoch, or 0 if the table was
+   * never analyzed
+   */
+  public long getAnalyzedAt() {
+    return analyzedAt;
+  }
+
+  /**
+   * @return the number of records the last analysis scanned
+   */
+  public long getAnalyzedRowCount() {
+    return analyzedRowCount;
+  }
+
+  /**
+   * @return the histogram of every attribute as of the last analysis, by attribute name
+   */
+  public Map<String, ColumnHistogram> getHistograms() {
+    return histograms;
+  }
+
+  /**
+   * @return whether the histograms were built when the table had a much different size, or never
+   */
+  public boolean isStale(double changedFraction) {
+    if (rowCount < 0 || analyzedAt == 0) {
+      return true;
+    }
+    return Math.abs(rowCount - analyzedRowCount) > changedFraction * Math.max(analyzedRowCount, 1);
+  }
+
+  @Override
+  public String toString() {
+    return "rowCount=" + rowCount + " byteSize=" + byteSize + " analyzedAt=" + analyzedAt + " histograms=" + histograms;
+  }
+
+  /**
+   * The distribution of the values of one attribute in a sample of the records. The bounds split
+   * the sorted non-null values into buckets holding about the same number of values.
+   */
+  public static class ColumnHistogram {
+
+    private final long sampled;
+    private final long nulls;
+    private final long distinct;
+    private final Object min;
+    private final Object max;
+    private final List<Object> bounds;
+
+    ColumnHistogram(long sampled, long nulls, long distinct, Object min, Object max, List<Object> bounds) {
+      this.sampled = sampled;
+      this.nulls = nulls;
+      this.distinct = distinct;
+      this.min = min;
+      this.max = max;
+      this.bounds = bounds;
+    }
+
+    /**
+     * Builds the histogram of the values of one attribute in the sample.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static ColumnHistogram of(List<Object> values, int buckets) {
+      List<Comparable> present = new ArrayList<>();
+      for (Object value : values) {
+        if (value != null) {
+          present.add((Comparable) value);
+        }
+      }
+      Collections.sort(present);
+      long distinct = 0;
+      for (int i = 0; i < present.size(); i++) {
+        if (i == 0 || present.get(i).compareTo(present.get(i - 1)) != 0) {
+          distinct++;
+        }
+      }
+      List<Object> bounds = new ArrayList<>();
+      for (int i = 1; i <= buckets && !present.isEmpty(); i++) {
+        Object bound = present.get((int) ((long) i * present.size() / buckets) - 1);
+        if (bounds.isEmpty() || !bounds.get(bounds.size() - 1).equals(bound)) {
+          bounds.add(bound);
+        }
+      }
+      return new ColumnHistogram(values.size(), values.size() - present.size(), distinct,
+              present.isEmpty() ? null : present.get(0), present.isEmpty() ? null : present.get(present.size() - 1),
+              bounds);
+    }
+
+    static ColumnHistogram decode(byte[] value) {
+      Tuple tuple = Tuple.fromBytes(value);
+      List<Object> bounds = new ArrayList<>();
+      for (int i = 5; i < tuple.size(); i++) {
+        bounds.add(tuple.get(i));
+      }
+      return new ColumnHistogram(tuple.getLong(0), tuple.getLong(1), tuple.getLong(2), tuple.get(3), tuple.get(4),
+              bounds);
+    }
+
+    byte[] encode() {
+      return Tuple.from(sampled, nulls, distinct, min, max).addAll(bounds).pack();
+    }
+
+    /**
+     * @return the number of values in the sample, null values included
+     */
+    public long getSampled() {
+      return sampled;
+    }
+
+    public long getNulls() {
+      return nulls;
+    }
+
+    /**
+     * @return the number of distinct non-null values in the sample
+     */
+    public long getDistinct() {
+      return distinct;
+    }
+
+    public Object getMin() {
+      return min;
+    }
+
+    public Object getMax() {
+      return max;
+    }
+
+    /**
+     * @return the largest value of every bucket, in order
+     */
+    public List<Object> getBounds() {
+      return bounds;
+    }
+
+    @Override
+    public String toString() {
+      return "sampled=" + sampled + " nulls=" + nulls + " distinct=" + distinct + " min=" + min + " max=" + max
+              + " bounds=" + bounds;
+    }
+  }
+
+  static byte[] encodeCount(long count) {
+    return ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(count).array();
+  }
+
+  static long decodeCount(byte[] value) {
+    return value == null ? 0 : ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN).getLong();
+  }
+
+  /**
+   * Adds the change of a record write to the counters.
+   *
+   * @param state the value of the table's ("stats") key as read by the writing transaction
+   * @param key the rawdata key of the record
+   * @param rows the change of the row count
+   * @param bytes the change of the byte size
+   */
+  static void add(KeyValueTransaction tr, TableSubspaces subspaces, byte[] state, byte[] key, long rows, long bytes) {
+    if (counts(state, key)) {
+      add(tr, subspaces, rows, bytes);
+    }
+  }
+
+  /**
+   * @return whether a write of the record has to change the counters
+   */
+  static boolean counts(byte[] state, byte[] key) {
+    if (state == null) {
+      return false;
+    }
+    // While a table is being counted, records after the counting position are counted by the pass
+    return state.length == 0 || ByteArrayUtil.compareUnsigned(key, Tuple.fromBytes(state).getBytes(0)) < 0;
+  }
+
+  static void add(KeyValueTransaction tr, TableSubspaces subspaces, long rows, long bytes) {
+    if (rows != 0) {
+      tr.mutate(MutationType.ADD, subspaces.getRowCountKey(), encodeCount(rows));
+    }
+    if (bytes != 0) {
+      tr.mutate(MutationType.ADD, subspaces.getByteSizeKey(), encodeCount(bytes));
+    }
+  }
+
+  /**
+   * Decodes the statistics from the key-values of the table's metadata subspace.
+   */
+  static TableStatistics decode(TableSubspaces subspaces, List<KeyValue> metadata) {
+    byte[] state = null;
+    long rowCount = 0;
+    long byteSize = 0;
+    long analyzedAt = 0;
+    long analyzedRowCount = 0;
+    Map<String, ColumnHistogram> histograms = new LinkedHashMap<>();
+    for (KeyValue keyvalue : metadata) {
+      Tuple key = subspaces.getMetadata().unpack(keyvalue.getKey());
+      switch (key.getString(0)) {
+        case "stats":
+          state = keyvalue.getValue();
+          break;
+        case "rowCount":
+          rowCount = decodeCount(keyvalue.getValue());
+          break;
+        case "byteSize":
+          byteSize = decodeCount(keyvalue.getValue());
+          break;
+        case "histogram":
+          histograms.put(key.getString(1), ColumnHistogram.decode(keyvalue.getValue()));
+          break;
+        case "analyzed":
+          Tuple analyzed = Tuple.fromBytes(keyvalue.getValue());
+          analyzedAt = analyzed.getLong(0);
+          analyzedRowCount = analyzed.getLong(1);
+          break;
+        default:
+          break;
+      }
+    }
+    boolean counted = state != null && state.length == 0;
+    return new TableStatistics(counted ? rowCount : -1, counted ? byteSize : -1, analyzedAt, analyzedRowCount,
+            histograms);
+  }
+}
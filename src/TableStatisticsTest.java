@@ -0,0 +1,183 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class TableStatisticsTest {
+
+  private TableManagerImpl tableManager;
+  private RecordManager recordManager;
+  private TableSubspaces subspaces;
+
+  @Before
+  public void init() {
+    tableManager = new TableManagerImpl(new MemoryKeyValueStore(), new Subspace(Tuple.from("database")));
+    recordManager = new RecordManagerImpl(tableManager);
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(RecordManagerTest.EmployeeTableName,
+        RecordManagerTest.EmployeeTableAttributeNames, RecordManagerTest.EmployeeTableAttributeTypes,
+        RecordManagerTest.EmployeeTablePKAttributes));
+    subspaces = tableManager.getAsyncTableManagerImpl().tableSubspaces(RecordManagerTest.EmployeeTableName);
+  }
+
+  private TableRecord employee(int i) {
+    return new TableRecord().set("SSN", i).set("Name", "Employee" + i).set("Salary", i * 10.0);
+  }
+
+  /**
+   * @return the record count and bytes of the table, counted with a scan
+   */
+  private long[] scanned() {
+    List<KeyValue> rows = tableManager.getAsyncTableManagerImpl()
+        .run(tr -> tr.getRange(subspaces.getRawdata().range()).asList().join());
+    long bytes = 0;
+    for (KeyValue row : rows) {
+      bytes += row.getKey().length + row.getValue().length;
+    }
+    return new long[]{rows.size(), bytes};
+  }
+
+  private void assertCounted() {
+    TableStatistics statistics = tableManager.getTableStatistics(RecordManagerTest.EmployeeTableName);
+    long[] expected = scanned();
+    assertEquals(expected[0], statistics.getRowCount());
+    assertEquals(expected[1], statistics.getByteSize());
+  }
+
+  @Test
+  public void countersTest() {
+    assertEquals(0, tableManager.getTableStatistics(RecordManagerTest.EmployeeTableName).getRowCount());
+    for (int i = 0; i < 500; i++) {
+      assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(RecordManagerTest.EmployeeTableName, employee(i)));
+    }
+    assertCounted();
+
+    for (int i = 0; i < 100; i++) {
+      recordManager.updateRecord(RecordManagerTest.EmployeeTableName,
+          new TableRecord().set("SSN", i).set("Name", "A much longer name of employee " + i));
+      recordManager.deleteRecord(RecordManagerTest.EmployeeTableName, i + 100);
+    }
+    // Failed writes change nothing
+    recordManager.insertRecord(RecordManagerTest.EmployeeTableName, employee(1));
+    recordManager.deleteRecord(RecordManagerTest.EmployeeTableName, 150);
+    assertEquals(400, tableManager.getTableStatistics(RecordManagerTest.EmployeeTableName).getRowCount());
+    assertCounted();
+
+    // Loaded records replace the existing ones with the same primary key
+    List<TableRecord> records = new ArrayList<>();
+    for (int i = 450; i < 1450; i++) {
+      records.add(employee(i));
+    }
+    new BulkLoader(tableManager, RecordManagerTest.EmployeeTableName).load("employees", records.iterator());
+    assertEquals(1350, tableManager.getTableStatistics(RecordManagerTest.EmployeeTableName).getRowCount());
+    assertCounted();
+
+    // Purging a dropped attribute shrinks the records
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAttribute(RecordManagerTest.EmployeeTableName, "Salary"));
+    new AttributePurger(tableManager, RecordManagerTest.EmployeeTableName).purge();
+    assertCounted();
+
+    assertNull(tableManager.getTableStatistics("Department"));
+  }
+
+  @Test
+  public void analyzeTest() {
+    for (int i = 0; i < 2000; i++) {
+      recordManager.insertRecord(RecordManagerTest.EmployeeTableName,
+          i % 10 == 0 ? new TableRecord().set("SSN", i).set("Name", "Employee" + i) : employee(i));
+    }
+    TableStatistics statistics = tableManager.getTableStatistics(RecordManagerTest.EmployeeTableName);
+    assertTrue(statistics.getHistograms().isEmpty());
+    assertTrue(statistics.isStale(0.2));
+
+    statistics = new TableAnalyzer(tableManager, RecordManagerTest.EmployeeTableName)
+        .setRowsPerTransaction(300).setSampleSize(500).setBuckets(4).analyze();
+    assertEquals(2000, statistics.getRowCount());
+    assertEquals(2000, statistics.getAnalyzedRowCount());
+    assertFalse(statistics.isStale(0.2));
+
+    TableStatistics.ColumnHistogram salary = statistics.getHistograms().get("Salary");
+    assertEquals(500, salary.getSampled());
+    assertTrue(salary.getNulls() > 0 && salary.getNulls() < 150);
+    assertEquals(4, salary.getBounds().size());
+    assertEquals(salary.getMax(), salary.getBounds().get(3));
+    assertTrue((Double) salary.getMin() <= (Double) salary.getBounds().get(0));
+    // The quartiles of a uniform sample are close to the ones of the table
+    assertTrue(Math.abs((Double) salary.getBounds().get(1) - 10_000) < 2_500);
+    assertEquals(500, statistics.getHistograms().get("SSN").getDistinct());
+
+    assertNull(new TableAnalyzer(tableManager, "Department").analyze());
+  }
+
+  @Test
+  public void countUncountedTableTest() {
+    for (int i = 0; i < 1000; i++) {
+      recordManager.insertRecord(RecordManagerTest.EmployeeTableName, employee(i));
+    }
+    // Tables created before record counters have no ("stats") key and no counters
+    tableManager.getAsyncTableManagerImpl().run(tr -> {
+      tr.clear(subspaces.getStatisticsKey());
+      tr.clear(subspaces.getRowCountKey());
+      return null;
+    });
+    recordManager.insertRecord(RecordManagerTest.EmployeeTableName, employee(5000));
+    assertEquals(-1, tableManager.getTableStatistics(RecordManagerTest.EmployeeTableName).getRowCount());
+
+    // A pass interrupted after counting the records before SSN 500
+    tableManager.getAsyncTableManagerImpl().run(tr -> {
+      tr.set(subspaces.getStatisticsKey(), Tuple.from((Object) subspaces.getRawdata().pack(Tuple.from(500L))).pack());
+      tr.set(subspaces.getRowCountKey(), TableStatistics.encodeCount(500));
+      tr.set(subspaces.getByteSizeKey(), TableStatistics.encodeCount(scannedBytesBefore(500)));
+      return null;
+    });
+    // Writes before the mark are counted as they happen, the ones after it by the pass
+    recordManager.deleteRecord(RecordManagerTest.EmployeeTableName, 10);
+    recordManager.deleteRecord(RecordManagerTest.EmployeeTableName, 900);
+    recordManager.insertRecord(RecordManagerTest.EmployeeTableName, employee(-1));
+    recordManager.updateRecord(RecordManagerTest.EmployeeTableName, new TableRecord().set("SSN", 700).set("Name", "x"));
+    assertEquals(-1, tableManager.getTableStatistics(RecordManagerTest.EmployeeTableName).getRowCount());
+
+    new TableAnalyzer(tableManager, RecordManagerTest.EmployeeTableName).setRowsPerTransaction(100).analyze();
+    assertEquals(1000, tableManager.getTableStatistics(RecordManagerTest.EmployeeTableName).getRowCount());
+    assertCounted();
+  }
+
+  private long scannedBytesBefore(long ssn) {
+    byte[] end = subspaces.getRawdata().pack(Tuple.from(ssn));
+    List<KeyValue> rows = tableManager.getAsyncTableManagerImpl()
+        .run(tr -> tr.getRange(new Range(subspaces.getRawdata().range().begin, end)).asList().join());
+    long bytes = 0;
+    for (KeyValue row : rows) {
+      bytes += row.getKey().length + row.getValue().length;
+    }
+    return bytes;
+  }
+
+  @Test
+  public void autoAnalyzeTest() throws InterruptedException {
+    for (int i = 0; i < 100; i++) {
+      recordManager.insertRecord(RecordManagerTest.EmployeeTableName, employee(i));
+    }
+    tableManager.setAutoAnalyze(true);
+    assertTrue(tableManager.getTableStatistics(RecordManagerTest.EmployeeTableName).getHistograms().isEmpty());
+    for (int i = 0; i < 100; i++) {
+      if (tableManager.getTableStatistics(RecordManagerTest.EmployeeTableName).getAnalyzedAt() > 0) {
+        break;
+      }
+      Thread.sleep(50);
+    }
+    TableStatistics statistics = tableManager.getTableStatistics(RecordManagerTest.EmployeeTableName);
+    assertEquals(100, statistics.getAnalyzedRowCount());
+    assertEquals(0L, statistics.getHistograms().get("SSN").getMin());
+  }
+}
@@ -0,0 +1,167 @@
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+/**
+ * TableSubspaces holds the resolved key prefixes of one table, so operations on the table do not
+ * have to encode the table name again for every key.
+ */
+public class TableSubspaces {
+
+  // Store the table is kept in, which the dictionaries loaded for it are kept by
+  private final KeyValueStore store;
+
+  // Catalog subspace holding the chunks of the table's schema record
+  private final Subspace schema;
+
+  private final Subspace table;
+  private final Subspace metadata;
+  private final Subspace rawdata;
+  // Records of a columnar table, see {ColumnStore}
+  private final Subspace blocks;
+  private final Subspace columns;
+  // Index definitions, backfill progress and entries, see {IndexDefinition}
+  private final Subspace indexDefinitions;
+  private final Subspace indexBuilds;
+  private final Subspace indexes;
+  // Dictionaries record values are compressed with, see {ValueCompression}
+  private final Subspace dictionaries;
+  // Next rawdata key to purge, for every dropped attribute whose values are still stored
+  private final Subspace purges;
+  // Progress of the pass that rewrites old records with the current schema version
+  private final byte[] upgradeKey;
+  // Record counters and histograms, see {TableStatistics}
+  private final byte[] statisticsKey;
+  private final byte[] rowCountKey;
+  private final byte[] byteSizeKey;
+  private final Subspace histograms;
+  private final byte[] analyzedKey;
+
+  TableSubspaces(KeyValueStore store, Subspace catalog, Subspace tables, String tableName) {
+    this.store = store;
+    schema = catalog.get(tableName);
+    table = tables.get(tableName);
+    metadata = table.get("metadata");
+    rawdata = table.get("rawdata");
+    blocks = table.get("blocks");
+    columns = table.get("columns");
+    indexDefinitions = metadata.get("index");
+    indexBuilds = metadata.get("indexBuild");
+    indexes = table.get("index");
+    dictionaries = metadata.get("dictionary");
+    purges = metadata.get("purge");
+    upgradeKey = metadata.pack(Tuple.from("upgrade"));
+    statisticsKey = metadata.pack(Tuple.from("stats"));
+    rowCountKey = metadata.pack(Tuple.from("rowCount"));
+    byteSizeKey = metadata.pack(Tuple.from("byteSize"));
+    histograms = metadata.get("histogram");
+    analyzedKey = metadata.pack(Tuple.from("analyzed"));
+  }
+
+  KeyValueStore getStore() {
+    return store;
+  }
+
+  public Subspace getSchema() {
+    return schema;
+  }
+
+  public byte[] schemaChunkKey(int chunk) {
+    return schema.pack(Tuple.from(chunk));
+  }
+
+  public Subspace getTable() {
+    return table;
+  }
+
+  public Subspace getMetadata() {
+    return metadata;
+  }
+
+  public Subspace getRawdata() {
+    return rawdata;
+  }
+
+  /**
+   * @return the subspace holding the primary keys of every block of a columnar table
+   */
+  public Subspace getBlocks() {
+    return blocks;
+  }
+
+  /**
+   * @return the subspace holding the column blocks of every attribute of a columnar table
+   */
+  public Subspace getColumns() {
+    return columns;
+  }
+
+  /**
+   * @return the subspace holding the column blocks of the attribute with the given id
+   */
+  public Subspace getColumn(int attributeId) {
+    return columns.get(attributeId);
+  }
+
+  public Subspace getIndexDefinitions() {
+    return indexDefinitions;
+  }
+
+  /**
+   * @return the subspace holding, for every index being backfilled, the next rawdata key to index
+   */
+  public Subspace getIndexBuilds() {
+    return indexBuilds;
+  }
+
+  public Subspace getIndex(String indexName) {
+    return indexes.get(indexName);
+  }
+
+  /**
+   * @return the subspace holding every dictionary the table's record values were compressed with,
+   * by dictionary id, see {ValueCompression}
+   */
+  public Subspace getDictionaries() {
+    return dictionaries;
+  }
+
+  /**
+   * @return the subspace holding, for every dropped attribute still being purged from the
+   * records, the next rawdata key to purge, see {AttributePurger}
+   */
+  public Subspace getPurges() {
+    return purges;
+  }
+
+  /**
+   * @return the key holding the next rawdata key and the oldest schema version of an unfinished
+   * {RecordUpgrader} pass
+   */
+  public byte[] getUpgradeKey() {
+    return upgradeKey;
+  }
+
+  /**
+   * @return the key that is empty once the record counters of the table are exact, or holds the
+   * next rawdata key to count, see {TableStatistics}
+   */
+  public byte[] getStatisticsKey() {
+    return statisticsKey;
+  }
+
+  public byte[] getRowCountKey() {
+    return rowCountKey;
+  }
+
+  public byte[] getByteSizeKey() {
+    return byteSizeKey;
+  }
+
+  public Subspace getHistograms() {
+    return histograms;
+  }
+
+  public byte[] getAnalyzedKey() {
+    return analyzedKey;
+  }
+}
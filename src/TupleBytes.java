@@ -0,0 +1,201 @@
+/**
+ * TupleBytes reads the elements of a packed {Tuple} in place, without unpacking it into objects.
+ * The tuple encoding is order-preserving: two elements of the same type compare like their values
+ * when their bytes are compared as unsigned strings, which is the order of the keys in the store.
+ * Nulls sort before every value.
+ */
+class TupleBytes {
+
+  static final byte NULL = 0x00;
+  static final byte BYTES = 0x01;
+  static final byte STRING = 0x02;
+  static final byte NESTED = 0x05;
+  static final byte NEGATIVE_BIG_INTEGER = 0x0b;
+  static final byte INT_ZERO = 0x14;
+  static final byte POSITIVE_BIG_INTEGER = 0x1d;
+  static final byte FLOAT = 0x20;
+  static final byte DOUBLE = 0x21;
+  static final byte FALSE = 0x26;
+  static final byte TRUE = 0x27;
+  static final byte UUID = 0x30;
+  static final byte VERSIONSTAMP = 0x33;
+
+  private TupleBytes() {}
+
+  /**
+   * Finds where the elements of a packed tuple start.
+   *
+   * @param bytes the packed tuple
+   * @param begin where the first element starts
+   * @param end where the tuple ends
+   * @param offsets filled with the start of each element followed by the end of the last one
+   * @return the number of elements, or -1 if offsets is too short to hold them; the elements past
+   * offsets.length - 1 are not located
+   */
+  static int split(byte[] bytes, int begin, int end, int[] offsets) {
+    int count = 0;
+    int offset = begin;
+    while (offset < end) {
+      if (count + 1 >= offsets.length) {
+        return -1;
+      }
+      offsets[count++] = offset;
+      offset = skip(bytes, offset);
+    }
+    offsets[count] = offset;
+    return count;
+  }
+
+  /**
+   * @return the offset after the element starting at offset
+   */
+  static int skip(byte[] bytes, int offset) {
+    int code = bytes[offset] & 0xff;
+    switch (code) {
+      case NULL:
+      case FALSE:
+      case TRUE:
+        return offset + 1;
+      case BYTES:
+      case STRING:
+        return skipTerminated(bytes, offset + 1);
+      case NESTED: {
+        int position = offset + 1;
+        while (true) {
+          if (bytes[position] == NULL) {
+            // A nested null is escaped as 0x00 0xff, a lone 0x00 ends the tuple
+            if (position + 1 < bytes.length && bytes[position + 1] == (byte) 0xff) {
+              position += 2;
+              continue;
+            }
+            return position + 1;
+          }
+          position = skip(bytes, position);
+        }
+      }
+      case NEGATIVE_BIG_INTEGER:
+        return offset + 2 + ((bytes[offset + 1] & 0xff) ^ 0xff);
+      case POSITIVE_BIG_INTEGER:
+        return offset + 2 + (bytes[offset + 1] & 0xff);
+      case FLOAT:
+        return offset + 5;
+      case DOUBLE:
+        return offset + 9;
+      case UUID:
+        return offset + 17;
+      case VERSIONSTAMP:
+        return offset + 13;
+      default:
+        if (code > NEGATIVE_BIG_INTEGER && code < POSITIVE_BIG_INTEGER) {
+          return offset + 1 + Math.abs(code - INT_ZERO);
+        }
+        throw new IllegalArgumentException("unknown tuple type code " + code);
+    }
+  }
+
+  private static int skipTerminated(byte[] bytes, int offset) {
+    int position = offset;
+    while (true) {
+      if (bytes[position] == NULL) {
+        // 0x00 inside the value is escaped as 0x00 0xff
+        if (position + 1 < bytes.length && bytes[position + 1] == (byte) 0xff) {
+          position += 2;
+          continue;
+        }
+        return position + 1;
+      }
+      position++;
+    }
+  }
+
+  static boolean isNull(byte[] bytes, int offset) {
+    return bytes[offset] == NULL;
+  }
+
+  /**
+   * @return the value of the integer element starting at offset, which must fit a long
+   */
+  static long decodeLong(byte[] bytes, int offset) {
+    int code = bytes[offset] & 0xff;
+    int length = Math.abs(code - INT_ZERO);
+    if (length > 8) {
+      throw new IllegalArgumentException("not an integer that fits a long, type code " + code);
+    }
+    long stored = 0;
+    for (int i = 1; i <= length; i++) {
+      stored = (stored << 8) | (bytes[offset + i] & 0xff);
+    }
+    if (code >= INT_ZERO) {
+      return stored;
+    }
+    // Negative values are stored as the one's complement of their magnitude
+    long mask = length == 8 ? -1L : (1L << (8 * length)) - 1;
+    return stored - mask;
+  }
+
+  /**
+   * @return the value of the double element starting at offset
+   */
+  static double decodeDouble(byte[] bytes, int offset) {
+    if (bytes[offset] != DOUBLE) {
+      throw new IllegalArgumentException("not a double, type code " + (bytes[offset] & 0xff));
+    }
+    long stored = 0;
+    for (int i = 1; i <= 8; i++) {
+      stored = (stored << 8) | (bytes[offset + i] & 0xff);
+    }
+    // Positive values have their sign bit flipped, negative ones all their bits
+    long bits = stored < 0 ? stored ^ Long.MIN_VALUE : ~stored;
+    return Double.longBitsToDouble(bits);
+  }
+
+  /**
+   * Packs an integer element, as {Tuple} does, into bytes at offset, which need room for 9 bytes.
+   *
+   * @return the offset after the element
+   */
+  static int encodeLong(byte[] bytes, int offset, long value) {
+    // Negative values are stored as the one's complement of their magnitude, see decodeLong
+    long magnitude = value < 0 ? -value : value;
+    int length = (64 - Long.numberOfLeadingZeros(magnitude) + 7) / 8;
+    long stored = value;
+    if (value < 0) {
+      stored = value + (length == 8 ? -1L : (1L << (8 * length)) - 1);
+    }
+    bytes[offset] = (byte) (value < 0 ? INT_ZERO - length : INT_ZERO + length);
+    for (int i = length; i >= 1; i--) {
+      bytes[offset + i] = (byte) stored;
+      stored >>>= 8;
+    }
+    return offset + 1 + length;
+  }
+
+  /**
+   * Packs a double element, as {Tuple} does, into bytes at offset, which need room for 9 bytes.
+   *
+   * @return the offset after the element
+   */
+  static int encodeDouble(byte[] bytes, int offset, double value) {
+    long bits = Double.doubleToRawLongBits(value);
+    long stored = bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+    bytes[offset] = DOUBLE;
+    for (int i = 8; i >= 1; i--) {
+      bytes[offset + i] = (byte) stored;
+      stored >>>= 8;
+    }
+    return offset + 9;
+  }
+
+  /**
+   * Compares the element in [begin, end) of bytes with the element packed in other.
+   */
+  static int compare(byte[] bytes, int begin, int end, byte[] other) {
+    for (int i = 0; begin + i < end && i < other.length; i++) {
+      int cmp = Integer.compare(bytes[begin + i] & 0xff, other[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return Integer.compare(end - begin, other.length);
+  }
+}
@@ -0,0 +1,310 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+
+/**
+ * ValueCompression compresses the values of the records of a row table with a dictionary trained
+ * on a sample of them, see {DictionaryTrainer}. A compressed value is
+ *   0xfe                            1 byte
+ *   dictionary id                   8 bytes
+ *   the plain value, deflated with the dictionary as preset dictionary
+ * No tuple element starts with 0xfe, so compressed values are told apart from plain ones, and a
+ * table may hold values compressed with any of its dictionaries along with plain ones. Values that
+ * do not get smaller are stored plain.
+ *
+ * The dictionaries of a table are kept under its metadata subspace:
+ *   ("dictionary", dictionary id) -> (time in milliseconds, records sampled, dictionary)
+ * and its schema record holds the id of the one new values are compressed with. A dictionary never
+ * changes once written and ids are drawn at random, so the dictionaries every table manager of the
+ * process reads are cached here by id; readSchema() loads them with the schema that first names
+ * them, for the table of the store they belong to, and deleteTable() and dropAllTables() unload
+ * them with the table. The deflaters, inflaters and buffers are reused by each thread.
+ */
+class ValueCompression {
+
+  static final byte COMPRESSED = (byte) 0xfe;
+  // Deflate only looks that far back, so a longer dictionary is not used
+  static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+  private static final int HEADER_SIZE = 9;
+  // Length of the runs of bytes training counts, and maximum length of a segment of the dictionary
+  private static final int DMER_SIZE = 8;
+  private static final int SEGMENT_SIZE = 64;
+
+  private static final Map<Long, byte[]> dictionaries = new ConcurrentHashMap<>();
+  // Ids of the loaded dictionaries of each table, by store and key prefix of the table. Guards the
+  // changes of dictionaries.
+  private static final Map<KeyValueStore, NavigableMap<byte[], Set<Long>>> tables = new WeakHashMap<>();
+
+  private static final ThreadLocal<Codec> codecs = ThreadLocal.withInitial(Codec::new);
+
+  private ValueCompression() {}
+
+  /**
+   * The deflater, inflater and output buffer of one thread.
+   */
+  private static class Codec {
+    final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    final Inflater inflater = new Inflater(true);
+    byte[] buffer = new byte[4096];
+
+    void grow() {
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    }
+  }
+
+  static boolean isLoaded(long dictionaryId) {
+    return dictionaries.containsKey(dictionaryId);
+  }
+
+  /**
+   * Loads a dictionary of the table of the store with the given key prefix.
+   */
+  static void load(KeyValueStore store, byte[] table, long dictionaryId, byte[] dictionary) {
+    synchronized (tables) {
+      tables.computeIfAbsent(store, s -> new TreeMap<>(ByteArrayUtil::compareUnsigned))
+          .computeIfAbsent(table, t -> new HashSet<>()).add(dictionaryId);
+      dictionaries.putIfAbsent(dictionaryId, dictionary);
+    }
+  }
+
+  /**
+   * Unloads the dictionaries of the tables of the store whose key prefix starts with the given one.
+   */
+  static void unload(KeyValueStore store, byte[] prefix) {
+    synchronized (tables) {
+      NavigableMap<byte[], Set<Long>> loaded = tables.get(store);
+      if (loaded == null) {
+        return;
+      }
+      Map<byte[], Set<Long>> dropped = loaded.subMap(prefix, true, ByteArrayUtil.strinc(prefix), false);
+      for (Set<Long> ids : dropped.values()) {
+        ids.forEach(dictionaries::remove);
+      }
+      dropped.clear();
+    }
+  }
+
+  static boolean isCompressed(byte[] value) {
+    return value.length >= HEADER_SIZE && value[0] == COMPRESSED;
+  }
+
+  /**
+   * @return the id of the dictionary the value was compressed with, or 0 if it is plain
+   */
+  static long dictionaryId(byte[] value) {
+    if (!isCompressed(value)) {
+      return 0;
+    }
+    long id = 0;
+    for (int i = 1; i < HEADER_SIZE; i++) {
+      id = (id << 8) | (value[i] & 0xff);
+    }
+    return id;
+  }
+
+  /**
+   * @return the value compressed with the dictionary, or the value itself if the dictionary is not
+   * loaded or compression does not make it smaller
+   */
+  static byte[] compress(byte[] value, long dictionaryId) {
+    byte[] dictionary = dictionaries.get(dictionaryId);
+    if (dictionary == null) {
+      return value;
+    }
+    Codec codec = codecs.get();
+    Deflater deflater = codec.deflater;
+    deflater.reset();
+    deflater.setDictionary(dictionary);
+    deflater.setInput(value);
+    deflater.finish();
+    int length = HEADER_SIZE;
+    while (!deflater.finished()) {
+      if (length == codec.buffer.length) {
+        codec.grow();
+      }
+      length += deflater.deflate(codec.buffer, length, codec.buffer.length - length);
+    }
+    if (length >= value.length) {
+      return value;
+    }
+    byte[] compressed = Arrays.copyOf(codec.buffer, length);
+    compressed[0] = COMPRESSED;
+    for (int i = 1; i < HEADER_SIZE; i++) {
+      compressed[i] = (byte) (dictionaryId >>> (8 * (HEADER_SIZE - 1 - i)));
+    }
+    return compressed;
+  }
+
+  /**
+   * @return the plain value, the value itself if it is not compressed, or null if it was compressed
+   * with a dictionary that is not loaded
+   * @throws IllegalArgumentException if the compressed value is corrupt
+   */
+  static byte[] decompress(byte[] value) {
+    if (!isCompressed(value)) {
+      return value;
+    }
+    byte[] dictionary = dictionaries.get(dictionaryId(value));
+    if (dictionary == null) {
+      return null;
+    }
+    Codec codec = codecs.get();
+    Inflater inflater = codec.inflater;
+    inflater.reset();
+    inflater.setDictionary(dictionary);
+    inflater.setInput(value, HEADER_SIZE, value.length - HEADER_SIZE);
+    int length = 0;
+    try {
+      while (!inflater.finished()) {
+        if (length == codec.buffer.length) {
+          codec.grow();
+        }
+        int inflated = inflater.inflate(codec.buffer, length, codec.buffer.length - length);
+        if (inflated == 0 && inflater.needsInput()) {
+          throw new IllegalArgumentException("truncated compressed value");
+        }
+        length += inflated;
+      }
+    }
+    catch(DataFormatException e) {
+      throw new IllegalArgumentException("corrupt compressed value", e);
+    }
+    return Arrays.copyOf(codec.buffer, length);
+  }
+
+  /**
+   * Builds a dictionary from plain values, choosing segments of them the way the cover algorithm
+   * does. Every run of DMER_SIZE bytes is counted once for each value it appears in; the values are
+   * split in as many groups as segments fit the dictionary, and each group gives the segment of at
+   * most SEGMENT_SIZE bytes whose runs appear in the most values. The runs of a chosen segment no
+   * longer count, so later segments add other content. The segments are concatenated, the best
+   * last, since deflate encodes nearer matches with fewer bits.
+   *
+   * @param size the maximum size of the dictionary
+   */
+  static byte[] train(List<byte[]> values, int size) {
+    Map<Long, Integer> counts = new HashMap<>();
+    for (byte[] value : values) {
+      // A run repeated within a value counts once
+      Set<Long> seen = new HashSet<>();
+      for (int i = 0; i + DMER_SIZE <= value.length; i++) {
+        seen.add(dmer(value, i));
+      }
+      for (Long dmer : seen) {
+        counts.merge(dmer, 1, Integer::sum);
+      }
+    }
+
+    int limit = Math.min(size, MAX_DICTIONARY_SIZE);
+    int groups = Math.max(1, Math.min(values.size(), limit / SEGMENT_SIZE));
+    List<Segment> chosen = new ArrayList<>();
+    int length = 0;
+    boolean added = true;
+    while (added && length < limit) {
+      added = false;
+      for (int g = 0; g < groups && length < limit; g++) {
+        Segment best = null;
+        for (byte[] value : values.subList(g * values.size() / groups, (g + 1) * values.size() / groups)) {
+          Segment segment = bestSegment(value, counts);
+          if (segment != null && (best == null || segment.score > best.score)) {
+            best = segment;
+          }
+        }
+        if (best == null || length + best.bytes.length > limit) {
+          continue;
+        }
+        for (int i = 0; i + DMER_SIZE <= best.bytes.length; i++) {
+          counts.put(dmer(best.bytes, i), 0);
+        }
+        chosen.add(best);
+        length += best.bytes.length;
+        added = true;
+      }
+    }
+
+    chosen.sort((a, b) -> Long.compare(a.score, b.score));
+    byte[] dictionary = new byte[length];
+    int offset = 0;
+    for (Segment segment : chosen) {
+      System.arraycopy(segment.bytes, 0, dictionary, offset, segment.bytes.length);
+      offset += segment.bytes.length;
+    }
+    return dictionary;
+  }
+
+  private static class Segment {
+    final byte[] bytes;
+    final long score;
+
+    Segment(byte[] bytes, long score) {
+      this.bytes = bytes;
+      this.score = score;
+    }
+  }
+
+  /**
+   * @return the segment of the value whose runs appear in the most other values, or null if none of
+   * them does
+   */
+  private static Segment bestSegment(byte[] value, Map<Long, Integer> counts) {
+    int runs = value.length - DMER_SIZE + 1;
+    if (runs <= 0) {
+      return null;
+    }
+    long[] scores = new long[runs];
+    for (int i = 0; i < runs; i++) {
+      int count = counts.getOrDefault(dmer(value, i), 0);
+      scores[i] = count > 1 ? count : 0;
+    }
+    // Slide a window of the runs that start in the segment
+    int window = Math.min(runs, SEGMENT_SIZE - DMER_SIZE + 1);
+    long score = 0;
+    for (int i = 0; i < window; i++) {
+      score += scores[i];
+    }
+    long bestScore = score;
+    int best = 0;
+    for (int i = window; i < runs; i++) {
+      score += scores[i] - scores[i - window];
+      if (score > bestScore) {
+        bestScore = score;
+        best = i - window + 1;
+      }
+    }
+    if (bestScore == 0) {
+      return null;
+    }
+    // Trim the runs that no other value has
+    int first = best;
+    int last = best + window - 1;
+    while (scores[first] == 0) {
+      first++;
+    }
+    while (scores[last] == 0) {
+      last--;
+    }
+    return new Segment(Arrays.copyOfRange(value, first, last + DMER_SIZE), bestScore);
+  }
+
+  private static long dmer(byte[] value, int offset) {
+    long dmer = 0;
+    for (int i = offset; i < offset + DMER_SIZE; i++) {
+      dmer = (dmer << 8) | (value[i] & 0xff);
+    }
+    return dmer;
+  }
+}